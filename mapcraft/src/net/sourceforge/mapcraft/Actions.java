@@ -33,6 +33,7 @@ public class Actions {
     public final static String  FILE_OPEN           = "file.open";
     public final static String  FILE_SAVE           = "file.save";
     public final static String  FILE_SAVEAS         = "file.saveas";
+    public final static String  FILE_SAVEMAPPED     = "file.savemapped";
     public final static String  FILE_PRINT          = "file.print";
     public final static String  FILE_EXIT           = "file.exit";
     public final static String  FILE_CONNECT	    = "file.connect";
@@ -132,6 +133,7 @@ public class Actions {
             add(FILE_CONNECT, "Connect...", "general/Open");
             add(FILE_SAVE, "Save", "general/Save");
             add(FILE_SAVEAS, "Save As...", "general/SaveAs");
+            add(FILE_SAVEMAPPED, "Save Mapped As...", "general/SaveAs");
             add(FILE_EXIT, "Exit", "general/Stop");
 
             // View actions
@@ -43,6 +43,7 @@ public class FileMenu extends JMenu implements ActionListener {
         addItem(Actions.FILE_CONNECT, "Connect...", KeyEvent.VK_C);
         addItem(Actions.FILE_SAVE, "Save", KeyEvent.VK_S);
         addItem(Actions.FILE_SAVEAS, "Save As...", KeyEvent.VK_A);
+        addItem(Actions.FILE_SAVEMAPPED, "Save Mapped As...", KeyEvent.VK_M);
         addSeparator();
         addItem(Actions.FILE_EXIT, "Exit", KeyEvent.VK_X);
     }
@@ -69,6 +70,8 @@ public class FileMenu extends JMenu implements ActionListener {
             application.save();
         } else if (cmd.equals(Actions.FILE_SAVEAS)) {
             saveas();
+        } else if (cmd.equals(Actions.FILE_SAVEMAPPED)) {
+            savemapped();
         } else if (cmd.equals(Actions.FILE_CONNECT)) {
         	connect();
         }
@@ -107,7 +110,7 @@ public class FileMenu extends JMenu implements ActionListener {
         if(returnVal == JFileChooser.APPROVE_OPTION) {
             String filename = chooser.getSelectedFile().getAbsolutePath();
 
-            if (!filename.endsWith(".map")) {
+            if (!filename.endsWith(".map") && !filename.endsWith(".map.gz")) {
                 filename = filename + ".map";
             }
 
@@ -116,6 +119,30 @@ public class FileMenu extends JMenu implements ActionListener {
         }
     }
 
+    /**
+     * Save map in a new place, with its tiles in memory mapped files
+     * next to the map file. Such a map is opened in the same way as any
+     * other, but only the tiles which are displayed are read, so very
+     * large maps can be edited.
+     */
+    private void
+    savemapped() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new MapFileFilter());
+
+        int returnVal = chooser.showSaveDialog(this);
+        if(returnVal == JFileChooser.APPROVE_OPTION) {
+            String filename = chooser.getSelectedFile().getAbsolutePath();
+
+            if (!filename.endsWith(".map") && !filename.endsWith(".map.gz")) {
+                filename = filename + ".map";
+            }
+
+            System.out.println("Save mapped file as ["+filename+"]");
+            application.saveMapped(filename);
+        }
+    }
+
     /**
      * Create a new map.
      */
@@ -296,6 +296,20 @@ public class MapCraft implements ActionListener {
         }
     }
 
+    /**
+     * Save the currently displayed map to the specified file, with the
+     * tiles kept in files of their own so that they don't have to be
+     * held in memory.
+     */
+    public void
+    saveMapped(String filename) {
+        try {
+            editor.saveMapped(filename);
+        } catch (IOException ioe) {
+            new JOptionPane("Cannot save file", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     public void
     setMessage(String message) {
         statusBar.setText(message);
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2,
+ * or (at your option) any later version. See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.editor;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.*;
+
+/**
+ * Holds every icon of an IconSet, drawn at each of the rotations allowed
+ * for the map, in a single image. Drawing a rotated icon is then just a
+ * copy of part of that image, rather than rotating the graphics context
+ * for each tile.
+ *
+ * Each icon has a row of the image, with one cell for each rotation.
+ * Cells are large enough to hold the rotated icon, so an icon which
+ * spills outside its tile when rotated is drawn the same way as it is
+ * when rotated directly.
+ *
+ * Rotations are in degrees. Rotations which aren't a multiple of the step
+ * used to build the atlas aren't held, and have to be drawn some other way.
+ *
+ * @author  Samuel Penn
+ * @version $Revision$
+ */
+public class IconAtlas {
+    private BufferedImage   image;
+    private int             step;
+    private int             rotations;
+    private double          centreX, centreY;
+
+    // Indexed by icon id. Position of each icon's row in the image, and
+    // for each rotation the position and size of its cell and the offset
+    // of the cell from the top left of the tile.
+    private int[]           rowY;
+    private int[][]         cellX;
+    private int[][]         cellWidth;
+    private int[][]         cellHeight;
+    private int[][]         offsetX;
+    private int[][]         offsetY;
+
+    /**
+     * Build an atlas of all the icons in an IconSet. All the icons must
+     * already have been fully loaded.
+     *
+     * @param icons     Icons to put in the atlas.
+     * @param step      Angle between each rotation, in degrees.
+     * @param cx        X coordinate of the centre of rotation, relative
+     *                  to the top left of the icon.
+     * @param cy        Y coordinate of the centre of rotation.
+     * @param gc        Configuration to create an image compatible with.
+     *                  If null, a plain ARGB image is used.
+     */
+    public
+    IconAtlas(IconSet icons, int step, double cx, double cy,
+              GraphicsConfiguration gc) {
+        int         maxId = -1;
+        int         width = 0, height = 0;
+
+        this.step = step;
+        this.rotations = 360 / step;
+        this.centreX = cx;
+        this.centreY = cy;
+
+        for (int i=0; i < icons.getSize(); i++) {
+            maxId = Math.max(maxId, icons.getId(i));
+        }
+        rowY = new int[maxId + 1];
+        cellX = new int[maxId + 1][];
+        cellWidth = new int[maxId + 1][];
+        cellHeight = new int[maxId + 1][];
+        offsetX = new int[maxId + 1][];
+        offsetY = new int[maxId + 1][];
+
+        // Work out where each icon goes before drawing any of them.
+        for (int i=0; i < icons.getSize(); i++) {
+            int         id = icons.getId(i);
+            Image       icon = icons.getIcon(id);
+            if (id < 0 || icon == null || icon.getWidth(null) < 1) {
+                continue;
+            }
+            Rectangle   bounds = new Rectangle(0, 0, icon.getWidth(null),
+                                               icon.getHeight(null));
+            cellX[id] = new int[rotations];
+            cellWidth[id] = new int[rotations];
+            cellHeight[id] = new int[rotations];
+            offsetX[id] = new int[rotations];
+            offsetY[id] = new int[rotations];
+            rowY[id] = height;
+
+            int         x = 0, rowHeight = 0;
+            for (int r=0; r < rotations; r++) {
+                Rectangle   cell = getRotation(r).createTransformedShape(bounds).getBounds();
+                cellX[id][r] = x;
+                offsetX[id][r] = cell.x;
+                offsetY[id][r] = cell.y;
+                cellWidth[id][r] = cell.width;
+                cellHeight[id][r] = cell.height;
+                rowHeight = Math.max(rowHeight, cell.height);
+                x += cell.width;
+            }
+            width = Math.max(width, x);
+            height += rowHeight;
+        }
+
+        if (gc != null) {
+            image = gc.createCompatibleImage(Math.max(width, 1), Math.max(height, 1),
+                                             Transparency.TRANSLUCENT);
+        } else {
+            image = new BufferedImage(Math.max(width, 1), Math.max(height, 1),
+                                      BufferedImage.TYPE_INT_ARGB);
+        }
+
+        Graphics2D  g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        for (int i=0; i < icons.getSize(); i++) {
+            int         id = icons.getId(i);
+            if (id < 0 || cellX[id] == null) {
+                continue;
+            }
+            Image       icon = icons.getIcon(id);
+            for (int r=0; r < rotations; r++) {
+                AffineTransform     t = AffineTransform.getTranslateInstance(
+                        cellX[id][r] - offsetX[id][r], rowY[id] - offsetY[id][r]);
+                t.concatenate(getRotation(r));
+                g.drawImage(icon, t, null);
+            }
+        }
+        g.dispose();
+    }
+
+    private AffineTransform
+    getRotation(int r) {
+        return AffineTransform.getRotateInstance(Math.toRadians(r * step),
+                                                 centreX, centreY);
+    }
+
+    /**
+     * Draw an icon at the given rotation.
+     *
+     * @param g         Graphics to draw onto.
+     * @param id        Id of the icon to draw.
+     * @param rotation  Rotation of the icon, in degrees.
+     * @param x         X coordinate of the top left of the tile.
+     * @param y         Y coordinate of the top left of the tile.
+     * @return          True if the icon was drawn, false if the atlas
+     *                  doesn't hold this icon at this rotation.
+     */
+    public boolean
+    draw(Graphics g, int id, int rotation, int x, int y) {
+        if (id < 0 || id >= cellX.length || cellX[id] == null) {
+            return false;
+        }
+        rotation %= 360;
+        if (rotation < 0) {
+            rotation += 360;
+        }
+        if (rotation % step != 0) {
+            return false;
+        }
+        int     r = rotation / step;
+        int     sx = cellX[id][r];
+        int     sy = rowY[id];
+        int     dx = x + offsetX[id][r];
+        int     dy = y + offsetY[id][r];
+        int     w = cellWidth[id][r];
+        int     h = cellHeight[id][r];
+
+        g.drawImage(image, dx, dy, dx + w, dy + h, sx, sy, sx + w, sy + h, null);
+
+        return true;
+    }
+}
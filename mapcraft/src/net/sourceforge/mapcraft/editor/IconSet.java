@@ -82,6 +82,18 @@ public class IconSet {
         currentSize++;
     }
 
+    /**
+     * Returns the id of the icon at the given position in the set,
+     * in the order in which they were added.
+     *
+     * @param index Position of the icon, from 0 to getSize()-1.
+     * @return      Unique id of the icon.
+     */
+    public int
+    getId(int index) {
+        return ids[index];
+    }
+
     /**
      * Returns the Image icon identified by its unique id.
      *
@@ -19,6 +19,7 @@ import net.sourceforge.mapcraft.map.elements.Area;
 import net.sourceforge.mapcraft.map.elements.Path;
 import net.sourceforge.mapcraft.map.elements.Terrain;
 import net.sourceforge.mapcraft.map.elements.Thing;
+import net.sourceforge.mapcraft.map.tilesets.DatabaseTileSet;
 
 import javax.swing.*;
 import javax.swing.event.*;
@@ -237,6 +238,40 @@ public class MapEditor extends MapViewer
 
     }
 
+    /**
+     * Flood fill from the given tile with the terrain or area of the
+     * current brush. Area fills can be kept to tiles of the same terrain,
+     * so that (for example) a forest can be named in a single click.
+     * Only the rectangle which was changed is redrawn.
+     */
+    public void
+    applyFill(int x, int y, boolean sameTerrain) {
+        try {
+            int[]   bounds = null;
+
+            switch (brush.getType()) {
+            case Brush.TERRAIN:
+                bounds = currentSet.fillTerrain(x, y,
+                            currentSet.getTerrainSet().getTerrain(brush.getSelected()),
+                            brush.getRotation());
+                break;
+            case Brush.AREAS:
+                bounds = currentSet.fillArea(x, y,
+                            currentSet.getAreaSet().getArea(brush.getSelected()), sameTerrain);
+                break;
+            default:
+                applyBrush(x, y);
+                return;
+            }
+            if (bounds != null) {
+                paintTile(bounds[0], bounds[1]);
+                paintTile(bounds[2], bounds[3]);
+            }
+        } catch (MapException moobe) {
+            warn("Out of bounds!");
+        }
+    }
+
     /**
      * Apply the actions of the current brush to the nearest Thing.
      */
@@ -270,8 +305,10 @@ public class MapEditor extends MapViewer
             break;
         case Brush.SELECT:
             thing = map.getNearestThing(brush.getX(), brush.getY(), 100);
-            if (thing != null) {
-                thing.setPosition(brush.getX(), brush.getY());
+            if (currentSet instanceof DatabaseTileSet) {
+                warn("Things can't be moved on a database map yet");
+            } else if (thing != null) {
+                currentSet.moveThing(thing, brush.getX(), brush.getY());
             }
             break;
         case Brush.EDIT:
@@ -418,7 +455,12 @@ public class MapEditor extends MapViewer
                 y = yp/tileYSize;
             }
 
-            applyBrush(x, y);
+            // Shift-click fills, but fills only follow hexagonal tiles.
+            if (e.isShiftDown() && map.getTileShape() != Map.SQUARE) {
+                applyFill(x, y, e.isControlDown());
+            } else {
+                applyBrush(x, y);
+            }
         }
     }
 
@@ -656,6 +698,22 @@ public class MapEditor extends MapViewer
         save(map.getFilename());
     }
 
+    /**
+     * Save the map with its tiles held in memory mapped files, rather
+     * than in the map file itself. The TileSet being displayed is swapped
+     * for its mapped copy, so further edits go to the file.
+     */
+    public void
+    saveMapped(String filename) throws IOException {
+        map.saveMapped(filename);
+        map.setFilename(filename);
+        try {
+            currentSet = map.getTileSet(0);
+        } catch (MapException e) {
+            // There is always a root TileSet.
+        }
+    }
+
     /**
      * Class to listen for events from the File menu.
      */
@@ -897,9 +955,10 @@ public class MapEditor extends MapViewer
             MergeDialog dialog = new MergeDialog(map, frame);
             if (dialog.isOkay()) {
                 map.merge(dialog.getMergeMap());
+                mapChanged();
             }
         } catch (MapException e) {
-            e.printStackTrace();
+            mergeFailed(e);
         }
     }
     
@@ -909,11 +968,24 @@ public class MapEditor extends MapViewer
             Map     merge = new Map(mergePath);
 
             map.merge(merge);
+            mapChanged();
         } catch (MapException e) {
-            e.printStackTrace();
+            mergeFailed(e);
         }
     }
 
+    /**
+     * Tell the user why a merge couldn't be done, such as the maps being
+     * of different scales, or this map not supporting merges.
+     */
+    private void
+    mergeFailed(MapException e) {
+        warn("Unable to merge maps ("+e.getMessage()+")");
+        JOptionPane.showMessageDialog(frame, e.getMessage(),
+                                      "Unable to merge maps",
+                                      JOptionPane.ERROR_MESSAGE);
+    }
+
     /**
      * Use the Crop dialog to crop the map. The map is forked, and cropped
      * according to the criteria chosen by the user. It is possible to crop
@@ -943,6 +1015,7 @@ public class MapEditor extends MapViewer
 
                     map.cropToPath(name, margin);
                 }
+                mapChanged();
             }
 
         } catch (Exception e) {
@@ -968,12 +1041,28 @@ public class MapEditor extends MapViewer
                 boolean top = dialog.isTopInsert();
 
                 map.resize(width, height, left, top);
+                mapChanged();
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Redraw the whole map after it has been changed as a whole, such as
+     * by a crop or a merge. Its size may have changed, and resizing it
+     * replaces the TileSet, so the view is set up again from scratch.
+     */
+    private void
+    mapChanged() {
+        try {
+            currentSet = map.getTileSet(0);
+        } catch (MapException e) {
+            // There is always a root TileSet.
+        }
+        setView(view);
+    }
+
     public void
     rescale() {
         try {
@@ -983,7 +1072,7 @@ public class MapEditor extends MapViewer
 
             if (dialog.isOkay()) {
                 map.rescale(dialog.getNewScale());
-                setView(view);
+                mapChanged();
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -994,6 +1083,8 @@ public class MapEditor extends MapViewer
     editAreas() {
         try {
             AreaSetDialog   dialog = new AreaSetDialog(map, frame);
+            // Areas may have been renamed or recoloured.
+            invalidateMap();
         } catch (Exception e) {
         }
     }
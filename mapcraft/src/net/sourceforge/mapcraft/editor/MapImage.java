@@ -17,7 +17,7 @@ import java.awt.image.*;
 import java.io.*;
 import java.util.*;
 
-import com.sun.image.codec.jpeg.*;
+import javax.imageio.ImageIO;
 
 import net.sourceforge.mapcraft.utils.Options;
 
@@ -26,12 +26,32 @@ import net.sourceforge.mapcraft.utils.Options;
  * standalone images from the Map, such as a JPEG file. Does not
  * support any form of interactive editing.
  *
+ * Images are drawn a strip or a tile at a time, so that images of
+ * large maps can be written without the whole image being in memory.
+ * Run with -celestia -levels n to write a Celestia virtual texture.
+ *
  * @author  Samuel Penn (sam@bifrost.demon.co.uk)
  * @version $Revision$
  */
 public class MapImage extends MapViewer {
     private int     thumbnail = 0;
 
+    /** Height of each strip of the map drawn when saving an image. */
+    public static final int     STRIP_HEIGHT = 256;
+
+    /** Size of each tile in a Celestia virtual texture. */
+    public static final int     TILE_SIZE = 1024;
+
+    private static final int    CELESTIA_WIDTH = 2048;
+    private static final int    CELESTIA_HEIGHT = 1024;
+
+    /**
+     * Largest image, in pixels, which is written in a format other than
+     * PNG. Other writers, such as JPEG, ask for the whole image at once,
+     * so anything bigger than this is written as a PNG instead.
+     */
+    public static final long    MAX_BUFFERED_PIXELS = 4096L * 4096L;
+
     public
     MapImage() {
         super();
@@ -44,20 +64,70 @@ public class MapImage extends MapViewer {
         super(properties, filename);
     }
 
-    private void
-    clearToWhite(BufferedImage image) {
-        Graphics2D  g = image.createGraphics();
-        int         width = image.getWidth();
-        int         height = image.getHeight();
-        Rectangle   rectangle;
+    /**
+     * Set up the view ready for drawing, and work out the size of the
+     * image of the whole map at that view.
+     *
+     * @param scale     Scale to display at, from 0 (xsmall),
+     *                  2 (medium), 4 (xlarge)
+     * @return          Size of the full image, in pixels.
+     */
+    private Dimension
+    prepare(int scale, boolean unwrap) {
+        setView(scale);
+        if (unwrap) {
+            map.unwrapWorld();
+        }
 
-        rectangle = new Rectangle(0, 0, width, height);
+        int     w = currentSet.getMapWidth() * tileXSize + (iconWidth - tileXSize);
+        int     h = currentSet.getMapHeight() * tileYSize + tileYOffset;
+
+        return new Dimension(w, h);
+    }
+
+    /**
+     * Draw part of the map onto a graphics object, which should be for an
+     * image of the given width and height. The area of the map drawn
+     * starts at x, y in the full sized image, and is scaled by xscale
+     * and yscale. Only tiles which are in the area are drawn.
+     */
+    private void
+    render(Graphics2D g, int width, int height, double x, double y,
+           double xscale, double yscale) {
         g.setColor(Color.WHITE);
-        g.fill(rectangle);
+        g.fillRect(0, 0, width, height);
+        g.setClip(0, 0, width, height);
+        if (xscale != 1.0 || yscale != 1.0) {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                               RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                               RenderingHints.VALUE_ANTIALIAS_ON);
+            g.scale(xscale, yscale);
+        }
+        g.translate(-x, -y);
+        paintMap(g);
     }
 
     /**
-     * Convert the map to an Image, ready for saving to disc.
+     * Draw part of the map into a new image.
+     */
+    private BufferedImage
+    render(int width, int height, double x, double y,
+           double xscale, double yscale) {
+        BufferedImage   image = new BufferedImage(width, height,
+                                                  BufferedImage.TYPE_INT_RGB);
+        Graphics2D      g = image.createGraphics();
+
+        render(g, width, height, x, y, xscale, yscale);
+        g.dispose();
+
+        return image;
+    }
+
+    /**
+     * Convert the map to an Image, ready for saving to disc. The whole
+     * image is held in memory, so for large maps it is better to use
+     * saveImage(), which draws the map a strip at a time.
      *
      * @param scale     Scale to display at, from 0 (xsmall), 
      *                  2 (medium), 4 (xlarge)
@@ -65,27 +135,10 @@ public class MapImage extends MapViewer {
     public BufferedImage
     toImage(int scale, boolean unwrap) {
         BufferedImage   image = null;
-        Graphics2D      graphics = null;
-        int             w, h;
-
-        setView(scale);
 
         try {
-            w = map.getTileSet(0).getMapWidth() * tileXSize + (iconWidth - tileXSize);
-            h = map.getTileSet(0).getMapHeight() * tileYSize + tileYOffset;
-
-            if (unwrap) {
-                map.unwrapWorld();
-            }
-            image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-            clearToWhite(image);
-            graphics = image.createGraphics();
-            if (graphics == null) {
-                System.out.println("NULL Graphics object");
-                System.exit(0);
-            }
-            paintComponent(graphics);
-
+            Dimension   size = prepare(scale, unwrap);
+            image = render(size.width, size.height, 0, 0, 1.0, 1.0);
         } catch (Exception e) {
             System.out.println("toImage: "+e.getMessage());
             e.printStackTrace();
@@ -93,104 +146,302 @@ public class MapImage extends MapViewer {
 
         return image;
     }
-    // This method returns a buffered image with the contents of an image
-    private BufferedImage
-    getBufferedImage(Image image, int crop) {
-        // Create a buffered image with a format that's compatible with the screen
-        BufferedImage bimage = null;
-
-        if (bimage == null) {
-            // Create a buffered image using the default color model
-            int type = BufferedImage.TYPE_INT_RGB;
-            bimage = new BufferedImage(image.getWidth(null)-crop*2,
-                    image.getHeight(null)-crop*2, type);
-        }
-    
-        // Copy image to buffered image
-        Graphics g = bimage.createGraphics();
-    
-        // Paint the image onto the buffered image
-        g.drawImage(image, 0-crop, 0-crop, null);
-        g.dispose();
-    
-        return bimage;
+
+    /**
+     * An image of the map which is only drawn as it is needed, a strip at
+     * a time. Image writers which read the image a row or a tile at a time,
+     * such as the PNG writer, never need the whole image to be in memory.
+     * Only the most recently drawn strip is kept.
+     */
+    private class MapRenderedImage implements RenderedImage {
+        private int             width;
+        private int             height;
+        private ColorModel      colorModel;
+        private SampleModel     sampleModel;
+
+        private int             stripNumber = -1;
+        private BufferedImage   strip = null;
+
+        MapRenderedImage(int width, int height) {
+            this.width = width;
+            this.height = height;
+
+            BufferedImage   model = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+            colorModel = model.getColorModel();
+            sampleModel = model.getSampleModel().createCompatibleSampleModel(width, STRIP_HEIGHT);
+        }
+
+        public Vector getSources() { return null; }
+        public Object getProperty(String name) { return Image.UndefinedProperty; }
+        public String[] getPropertyNames() { return null; }
+        public ColorModel getColorModel() { return colorModel; }
+        public SampleModel getSampleModel() { return sampleModel; }
+        public int getWidth() { return width; }
+        public int getHeight() { return height; }
+        public int getMinX() { return 0; }
+        public int getMinY() { return 0; }
+        public int getNumXTiles() { return 1; }
+        public int getNumYTiles() { return (height + STRIP_HEIGHT - 1) / STRIP_HEIGHT; }
+        public int getMinTileX() { return 0; }
+        public int getMinTileY() { return 0; }
+        public int getTileWidth() { return width; }
+        public int getTileHeight() { return STRIP_HEIGHT; }
+        public int getTileGridXOffset() { return 0; }
+        public int getTileGridYOffset() { return 0; }
+
+        /**
+         * Get a strip of the image, drawing it if it isn't the same strip
+         * as last time. The raster is positioned within the whole image.
+         */
+        public Raster
+        getTile(int tileX, int tileY) {
+            if (tileY != stripNumber) {
+                strip = render(width, STRIP_HEIGHT, 0, tileY * STRIP_HEIGHT, 1.0, 1.0);
+                stripNumber = tileY;
+            }
+            return strip.getRaster().createTranslatedChild(0, tileY * STRIP_HEIGHT);
+        }
+
+        public Raster
+        getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        public Raster
+        getData(Rectangle rect) {
+            SampleModel     model = sampleModel.createCompatibleSampleModel(rect.width, rect.height);
+
+            return copyData(Raster.createWritableRaster(model, new Point(rect.x, rect.y)));
+        }
+
+        public WritableRaster
+        copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = Raster.createWritableRaster(
+                            sampleModel.createCompatibleSampleModel(width, height), null);
+            }
+            Rectangle   bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+            int         first = bounds.y / STRIP_HEIGHT;
+            int         last = (bounds.y + bounds.height - 1) / STRIP_HEIGHT;
+
+            for (int tileY = first; tileY <= last; tileY++) {
+                Raster      tile = getTile(0, tileY);
+                Rectangle   area = tile.getBounds().intersection(bounds);
+                if (!area.isEmpty()) {
+                    raster.setRect(tile.createChild(area.x, area.y, area.width, area.height,
+                                                    area.x, area.y, null));
+                }
+            }
+
+            return raster;
+        }
     }
 
+    /**
+     * Work out the image format to use from the extension of a filename,
+     * defaulting to PNG, which is the only writer which reads the image
+     * a strip at a time.
+     */
+    private static String
+    getFormat(String filename) {
+        int     dot = filename.lastIndexOf('.');
+
+        if (dot >= 0) {
+            String      suffix = filename.substring(dot + 1).toLowerCase();
+            if (ImageIO.getImageWritersBySuffix(suffix).hasNext()) {
+                return suffix;
+            }
+        }
+        return "png";
+    }
 
     private void
-    saveAsJPEG(BufferedImage image, String filename) throws IOException {
-        File          file = new File(filename);
-        OutputStream  out = new BufferedOutputStream(new FileOutputStream(file));
-        JPEGImageEncoder encoder = JPEGCodec.createJPEGEncoder(out);
-        encoder.encode(image);
+    write(RenderedImage image, String filename) throws IOException {
+        if (!ImageIO.write(image, getFormat(filename), new File(filename))) {
+            throw new IOException("No image writer for ["+filename+"]");
+        }
     }
-    
+
+    /**
+     * Save the map as a single texture for Celestia, 2048x1024 pixels.
+     * The map is drawn straight at the size of the texture, with the
+     * half hexes around the edge cropped off.
+     */
     public void
     saveCelestia(String filename, int scale, boolean unwrap) {
-        OutputStream    out = null;
-        BufferedImage   image = null;
-        Image           texture = null;
-        int             crop = 16;
-        
-        int             width = 2048;
-        int             height = 1024;
-
         System.out.println("Saving image as ["+filename+"]");
 
         try {
-            image = toImage(scale, unwrap);
-//            System.out.println("Original image is "+image.getWidth()+
-//                               "x"+image.getHeight());
-            
-            int     w = width + crop * 2;
-            int     h = height + crop * 2;
-            texture = image.getScaledInstance(w, h, Image.SCALE_SMOOTH);
-
-            // Need to crop the image, to remove 'half hexes'.
-            image = getBufferedImage(texture, crop);
-            texture = null; // Free up some memory.
-//            System.out.println("Final image is "+image.getWidth()+
-//                    "x"+image.getHeight());
-            saveAsJPEG(image, filename);
+            Dimension   size = prepare(scale, unwrap);
+            Rectangle   source = getTextureArea(size);
 
+            write(render(CELESTIA_WIDTH, CELESTIA_HEIGHT, source.x, source.y,
+                         (double)CELESTIA_WIDTH / source.width,
+                         (double)CELESTIA_HEIGHT / source.height), filename);
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (out != null) {
-                    out.close();
+        }
+    }
+
+    /**
+     * The area of the full map image which is used for a texture. Half
+     * a tile is cropped from each edge, to remove 'half hexes'.
+     */
+    private Rectangle
+    getTextureArea(Dimension size) {
+        int     cx = tileXSize / 2;
+        int     cy = tileYSize / 2;
+
+        return new Rectangle(cx, cy, size.width - cx * 2, size.height - cy * 2);
+    }
+
+    /**
+     * Save the map as a Celestia virtual texture. The directory is filled
+     * with level0 to levelN directories, where level n holds 2^(n+1) by
+     * 2^n tiles, each TILE_SIZE pixels square, named tx_column_row.jpg.
+     * A .ctx file describing the texture is written alongside the
+     * directory.
+     *
+     * Only the top level is drawn from the map, a tile at a time. Each tile
+     * in the levels below is made from the four tiles above it, so no more
+     * than a few tiles are ever held in memory.
+     *
+     * @param directory Directory to write the levels to.
+     * @param scale     Scale to draw the map at.
+     * @param levels    Number of levels to create, at least 1.
+     */
+    public void
+    saveVirtualTexture(String directory, int scale, boolean unwrap, int levels) {
+        File        base = new File(directory);
+        int         top = Math.max(levels, 1) - 1;
+
+        System.out.println("Saving virtual texture in ["+directory+"]");
+
+        try {
+            Dimension   size = prepare(scale, unwrap);
+            Rectangle   source = getTextureArea(size);
+            int         columns = 2 << top;
+            int         rows = 1 << top;
+            double      xscale = (double)(columns * TILE_SIZE) / source.width;
+            double      yscale = (double)(rows * TILE_SIZE) / source.height;
+            File        level = getLevelDirectory(base, top);
+
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < columns; c++) {
+                    BufferedImage   tile = render(TILE_SIZE, TILE_SIZE,
+                                                  source.x + c * TILE_SIZE / xscale,
+                                                  source.y + r * TILE_SIZE / yscale,
+                                                  xscale, yscale);
+                    ImageIO.write(tile, "jpg", getTileFile(level, c, r));
                 }
-            } catch (Throwable t) {}
+            }
+
+            for (int n = top - 1; n >= 0; n--) {
+                File        above = level;
+                level = getLevelDirectory(base, n);
+                for (int r = 0; r < (1 << n); r++) {
+                    for (int c = 0; c < (2 << n); c++) {
+                        ImageIO.write(shrinkTiles(above, c, r), "jpg", getTileFile(level, c, r));
+                    }
+                }
+            }
+
+            PrintWriter     ctx = new PrintWriter(new FileWriter(new File(base.getAbsoluteFile().getParentFile(),
+                                                                          base.getName()+".ctx")));
+            try {
+                ctx.println("VirtualTexture");
+                ctx.println("{");
+                ctx.println("    ImageDirectory \""+base.getName()+"\"");
+                ctx.println("    BaseSplit 0");
+                ctx.println("    TileSize "+TILE_SIZE);
+                ctx.println("    TileType \"jpg\"");
+                ctx.println("}");
+            } finally {
+                ctx.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private File
+    getLevelDirectory(File base, int level) throws IOException {
+        File    dir = new File(base, "level"+level);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory ["+dir.getPath()+"]");
         }
-        
+        return dir;
+    }
+
+    private File
+    getTileFile(File level, int column, int row) {
+        return new File(level, "tx_"+column+"_"+row+".jpg");
+    }
+
+    /**
+     * Make a tile from the four tiles which cover the same area in the
+     * level above, each shrunk to half size.
+     */
+    private BufferedImage
+    shrinkTiles(File above, int column, int row) throws IOException {
+        BufferedImage   tile = new BufferedImage(TILE_SIZE, TILE_SIZE,
+                                                 BufferedImage.TYPE_INT_RGB);
+        Graphics2D      g = tile.createGraphics();
+        int             half = TILE_SIZE / 2;
+
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING,
+                           RenderingHints.VALUE_RENDER_QUALITY);
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 2; x++) {
+                BufferedImage   part = ImageIO.read(getTileFile(above, column*2 + x, row*2 + y));
+                g.drawImage(part, x * half, y * half, half, half, null);
+            }
+        }
+        g.dispose();
+
+        return tile;
     }
 
+    /**
+     * Save the map as an image. The format is taken from the extension of
+     * the filename. The map is drawn a strip at a time as the image is
+     * written, so for PNG the whole image is never held in memory. Other
+     * formats need the whole image, so if it is larger than
+     * MAX_BUFFERED_PIXELS it is saved as a PNG instead.
+     */
     public void
     saveImage(String filename, int scale, boolean unwrap) {
-        OutputStream    out = null;
-        BufferedImage   image = null;
-
         System.out.println("Saving image as ["+filename+"]");
 
         try {
-            image = toImage(scale, unwrap);
-            saveAsJPEG(image, filename);
+            Dimension   size = prepare(scale, unwrap);
+            String      format = getFormat(filename);
 
-            if (thumbnail > 0) {
-                Image   thumb = image.getScaledInstance(thumbnail, -1,
-                                                Image.SCALE_SMOOTH);
-                String  thumbFile = filename.replaceAll("\\.jpg", "-t.jpg");
-                saveAsJPEG(getBufferedImage(thumb, 0), thumbFile);
+            if (!format.equals("png") &&
+                (long)size.width * size.height > MAX_BUFFERED_PIXELS) {
+                String  png = filename.replaceAll("\\.[a-zA-Z]+$", "") + ".png";
+
+                System.out.println("Warning: "+size.width+"x"+size.height+
+                                   " is too large to save as "+format+
+                                   ", saving as ["+png+"] instead");
+                filename = png;
             }
+            write(new MapRenderedImage(size.width, size.height), filename);
 
+            if (thumbnail > 0) {
+                // Draw the thumbnail straight from the map, rather than
+                // shrinking the full image.
+                double  factor = (double)thumbnail / size.width;
+                int     h = Math.max(1, (int)(size.height * factor));
+                String  thumbFile = filename.replaceAll("\\.([a-z]+)$", "-t.$1");
+
+                write(render(thumbnail, h, 0, 0, factor, factor), thumbFile);
+            }
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-            } catch (Throwable t) {}
         }
     }
 
@@ -208,6 +459,8 @@ public class MapImage extends MapViewer {
             String      outfile = options.getString("-out");
             Properties  properties = new Properties();
 
+            System.setProperty("java.awt.headless", "true");
+
             properties.setProperty("path.run", System.getProperty("user.dir"));
             properties.setProperty("path.images", "");
 
@@ -237,7 +490,13 @@ public class MapImage extends MapViewer {
             map.setShowAreas(true);
             map.setShowLargeGrid(false);
             map.setShowFeatures(true);
-            if (celestia) {
+            if (celestia && options.isOption("-levels")) {
+                scale = 1;
+                if (options.isOption("-scale")) {
+                    scale = options.getInt("-scale");
+                }
+                map.saveVirtualTexture(outfile, scale, unwrap, options.getInt("-levels"));
+            } else if (celestia) {
                 scale = 1;
                 map.saveCelestia(outfile, scale, unwrap);
             } else {
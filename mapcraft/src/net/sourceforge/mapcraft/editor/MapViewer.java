@@ -22,14 +22,13 @@ import net.sourceforge.mapcraft.utils.ImageUtils;
 import net.sourceforge.mapcraft.MapCraft;
 
 import javax.swing.*;
+import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.*;
 import java.net.*;
 import java.io.*;
 
 import java.util.*;
-import java.awt.geom.Line2D;
-import java.awt.geom.GeneralPath;
 
 
 /**
@@ -60,6 +59,8 @@ public class MapViewer extends JPanel {
     protected IconSet     thingSet = null;
     protected IconSet     featureSet = null;
     protected IconSet     effectSet = null;
+    protected IconAtlas   terrainAtlas = null;
+    protected IconAtlas   featureAtlas = null;
 
     private boolean       showGrid = true;
     private boolean       showLargeGrid = true;
@@ -78,6 +79,16 @@ public class MapViewer extends JPanel {
     protected MapCraft          application;
     protected ITileSet          currentSet = null;
 
+    // Off-screen copy of the visible part of the map, the area of the
+    // component it covers, and any part of it which needs redrawing.
+    private BufferedImage       buffer = null;
+    private Rectangle           bufferArea = null;
+    private Rectangle           dirty = null;
+
+    // Labels are drawn to the right of things, so things up to this many
+    // tiles to the left of an area are drawn when it is redrawn.
+    private final static int    LABEL_MARGIN = 8;
+
     protected void
     log(int level, String message) {
         System.out.println(message);
@@ -140,6 +151,23 @@ public class MapViewer extends JPanel {
             return rgb;
         }
 
+        /**
+         * Apply the filter directly to an image, rather than creating a
+         * new image through a FilteredImageSource.
+         */
+        public void
+        filter(BufferedImage image) {
+            int     w = image.getWidth();
+            int     h = image.getHeight();
+            int[]   rgb = image.getRGB(0, 0, w, h, null, 0, w);
+
+            for (int y=0; y < h; y++) {
+                for (int x=0; x < w; x++) {
+                    rgb[y*w + x] = filterRGB(x, y, rgb[y*w + x]);
+                }
+            }
+            image.setRGB(0, 0, w, h, rgb, 0, w);
+        }
     }
 
     /**
@@ -339,8 +367,6 @@ public class MapViewer extends JPanel {
     readIcons(String name, TerrainSet set) {
         IconSet     iconSet = new IconSet(name);
         Iterator    iter = set.iterator();
-        HexFilter   filter = new HexFilter(views[view].getIconWidth(),
-                                           views[view].getIconHeight());
         
         if (iter == null || !iter.hasNext()) {
             warn("No iterator");
@@ -355,7 +381,6 @@ public class MapViewer extends JPanel {
             if (t != null) {
                 int         id = t.getId();
                 Image       icon = null;
-                Image       scaled = null;
                 int         x = views[view].getIconWidth();
                 int         y = views[view].getIconHeight();
                 
@@ -373,30 +398,23 @@ public class MapViewer extends JPanel {
                     } else {
                         String  path = views[view].getPath()+"/"+t.getImagePath();
                         URL     url = MapViewer.class.getResource(path);
-                        icon = toolkit.getImage(url);
+                        icon = ImageIO.read(url);
                     }
     
                     if (set.isAnySize()) {
                         // Icon is not limited to the expected size.
                         while (x == -1 || y == -1) {
-                            prepareImage(icon);
                             x = icon.getWidth(this);
                             y = icon.getHeight(this);
                         }
                         x = (x * views[view].getIconWidth())/96;
                         y = (y * views[view].getIconHeight())/96;
                     }
-                    scaled = icon.getScaledInstance(x, y, Image.SCALE_SMOOTH);
-    
                     if (views[view].isHexagonal() && !set.isAnySize()) {
                         int  h = (int)((Math.sqrt(3)/2)*x);
-                        filter = new HexFilter(x, h);
-                        icon = createImage(new FilteredImageSource(scaled.getSource(), filter));
-                        iconSet.add(id, icon);
-                        prepareImage(icon);
+                        iconSet.add(id, scaleIcon(icon, x, y, new HexFilter(x, h)));
                     } else {
-                        iconSet.add(id, scaled);
-                        prepareImage(scaled);
+                        iconSet.add(id, scaleIcon(icon, x, y, null));
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -405,7 +423,6 @@ public class MapViewer extends JPanel {
         }
         //f.setVisible(false);
         //f.dispose();
-        iconSet.prepareImages(this);
 
         return iconSet;
     }
@@ -413,47 +430,92 @@ public class MapViewer extends JPanel {
     protected IconSet
     readEffectIcons() {
         IconSet     iconSet = new IconSet("effects");
-        HexFilter   filter = new HexFilter(views[view].getIconWidth(),
-                                           views[view].getIconHeight());
         String[]    icons = { "highlight" };
 
         for (int i = 0; i < icons.length; i++) {
             String      name = icons[i]+".png";
             String      path = views[view].getPath()+"/effects/"+name;
             URL         url = MapViewer.class.getResource(path);
-            Image       icon = toolkit.getImage(url);
-            Image       scaled = null;
+            Image       icon = null;
             int     x = -1, y = -1;
 
+            try {
+                icon = ImageIO.read(url);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
             if (icon == null) {
                 warn("Null highlight image icon found");
+                continue;
             }
             x = views[view].getIconWidth();
             y = views[view].getIconHeight();
-            scaled = icon.getScaledInstance(x, y, Image.SCALE_SMOOTH);
 
             if (views[view].isHexagonal()) {
                 int  h = (int)((Math.sqrt(3)/2)*x);
-                filter = new HexFilter(x, h);
-                icon = createImage(new FilteredImageSource(scaled.getSource(), filter));
-                iconSet.add((short)i, icon);
-                prepareImage(icon);
+                iconSet.add((short)i, scaleIcon(icon, x, y, new HexFilter(x, h)));
             } else {
-                iconSet.add((short)i, scaled);
-                prepareImage(scaled);
+                iconSet.add((short)i, scaleIcon(icon, x, y, null));
             }
         }
 
-        iconSet.prepareImages(this);
         return iconSet;
     }
 
+    /**
+     * Scale an icon to the size needed by the current view, and if a
+     * filter is given, use it to mask out the parts of the icon outside
+     * the tile. The result is a fully loaded image, so there is no need
+     * to wait for it to be prepared before drawing it.
+     */
+    protected BufferedImage
+    scaleIcon(Image icon, int width, int height, HexFilter filter) {
+        BufferedImage   scaled = new BufferedImage(width, height,
+                                                   BufferedImage.TYPE_INT_ARGB);
+        Graphics2D      g = scaled.createGraphics();
+
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                           RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING,
+                           RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(icon, 0, 0, width, height, null);
+        g.dispose();
+
+        if (filter != null) {
+            filter.filter(scaled);
+        }
+
+        return scaled;
+    }
+
+    /**
+     * Build the atlases of rotated terrain and feature icons for the
+     * current view. Hexagonal tiles can be rotated in steps of 60
+     * degrees, square tiles in steps of 90.
+     */
+    protected void
+    buildAtlases() {
+        int                     step = views[view].isHexagonal()?60:90;
+        GraphicsConfiguration   gc = getGraphicsConfiguration();
+
+        // Terrain and features are rotated around slightly different
+        // centres, which is kept from when they were rotated directly.
+        terrainAtlas = featureAtlas = null;
+        if (iconSet != null) {
+            terrainAtlas = new IconAtlas(iconSet, step, iconWidth/2, tileYSize/2, gc);
+        }
+        if (featureSet != null) {
+            featureAtlas = new IconAtlas(featureSet, step, tileXSize/2, tileYSize/2, gc);
+        }
+    }
+
     protected void
     readAllIcons() {
         iconSet = readIcons("terrain", map.getTerrainSet());
         thingSet = readIcons("things", map.getThingSet());
         featureSet = readIcons("features", map.getFeatureSet());
         effectSet = readEffectIcons();
+        buildAtlases();
     }
 
     private ViewProperties
@@ -515,6 +577,7 @@ public class MapViewer extends JPanel {
 
             iconSet = readIcons("terrain", set);
             thingSet = readIcons("things", map.getThingSet());
+            buildAtlases();
 
             map.setCurrentSet("root");
             currentSet = map.getTileSet(0);
@@ -528,7 +591,7 @@ public class MapViewer extends JPanel {
             realHeight = tileYSize * (map.getTileSet(0).getMapHeight()+1);
 
             setPreferredSize(new Dimension(realWidth, realHeight));
-            repaint();
+            invalidateMap();
         } catch (MapException e) {
             e.printStackTrace();
         }
@@ -570,9 +633,10 @@ public class MapViewer extends JPanel {
         realHeight = tileYSize * (currentSet.getMapHeight()+1);
 
         setPreferredSize(new Dimension(realWidth, realHeight));
+        revalidate();
 
         readAllIcons();
-        repaint();
+        invalidateMap();
     }
 
 
@@ -685,15 +749,31 @@ public class MapViewer extends JPanel {
         paintComponent();
     }
 
+    /**
+     * Redraw the paths. Since paths can be anything from a few tiles
+     * to the whole map, the whole of the visible map is redrawn.
+     */
     public void
     drawPaths() {
-        drawPaths((Graphics2D)this.getGraphics());
+        invalidateMap();
     }
 
     public void
     drawPaths(Graphics2D g) {
-        int     i = 0, e = 0;
-        Path[]  paths = currentSet.getPaths();
+        int         i = 0, e = 0;
+        Path[]      paths = null;
+        Rectangle   clip = g.getClipBounds();
+
+        if (clip != null) {
+            // Only paths which might cross the clip area are drawn. Allow
+            // a tile around the edge for the width of the line.
+            paths = currentSet.getPaths((clip.x * 100)/tileXSize - 100,
+                                        (clip.y * 100)/tileYSize - 100,
+                                        ((clip.x + clip.width) * 100)/tileXSize + 100,
+                                        ((clip.y + clip.height) * 100)/tileYSize + 100);
+        } else {
+            paths = currentSet.getPaths();
+        }
 
         for (i=0; i < paths.length; i++) {
             Path    path = paths[i];
@@ -737,29 +817,151 @@ public class MapViewer extends JPanel {
 
 
 
+    /**
+     * Redraw the whole of the visible map, for when something has changed
+     * which could affect any of it.
+     */
     public void
     paintComponent() {
-        Graphics2D      g = (Graphics2D) this.getGraphics();
+        invalidateMap();
+    }
 
-        if (isDisplayable()) {
-            if (g == null || !(g instanceof Graphics2D)) {
-                System.out.println("ERROR: paintComponent: Invalid graphics object");
-                return;
-            }
-            paintComponent(g);
+    /**
+     * Throw away the off-screen copy of the map, so that everything is
+     * drawn again on the next repaint.
+     */
+    protected void
+    invalidateMap() {
+        buffer = null;
+        dirty = null;
+        repaint();
+    }
+
+    /**
+     * Mark part of the map as needing to be redrawn. Several areas can be
+     * marked before the next repaint, which redraws them all at once.
+     *
+     * @param area      Area of the component to redraw, in pixels.
+     */
+    protected void
+    invalidateArea(Rectangle area) {
+        if (dirty == null) {
+            dirty = new Rectangle(area);
+        } else {
+            dirty = dirty.union(area);
         }
+        repaint(area);
     }
 
     /**
-     * Paint the entire map component. No attempt at cropping is performed,
-     * the entire map is redrawn each time even if not all of it can be
-     * seen. At some point this needs to be fixed.
+     * Paint the map component from the off-screen copy of the visible
+     * part of the map. Only parts of the map which have changed, or which
+     * have just been scrolled into view, are actually drawn.
      */
     public void
     paintComponent(Graphics g) {
+        if (map == null || g == null) {
+            super.paintComponent(g);
+            return;
+        }
+
+        Rectangle   visible = getVisibleRect();
+        if (visible.isEmpty()) {
+            return;
+        }
+        updateBuffer(visible);
+        g.drawImage(buffer, bufferArea.x, bufferArea.y, this);
+    }
+
+    /**
+     * Bring the off-screen copy up to date, so that it covers the given
+     * area of the component. If the area has moved, the part still visible
+     * is moved and only the newly exposed strips are drawn.
+     */
+    private void
+    updateBuffer(Rectangle visible) {
+        if (buffer == null || buffer.getWidth() != visible.width ||
+                buffer.getHeight() != visible.height) {
+            buffer = new BufferedImage(visible.width, visible.height,
+                                       BufferedImage.TYPE_INT_RGB);
+            bufferArea = new Rectangle(visible);
+            dirty = null;
+            drawBuffer(bufferArea);
+            return;
+        }
+
+        if (!visible.equals(bufferArea)) {
+            int     dx = bufferArea.x - visible.x;
+            int     dy = bufferArea.y - visible.y;
+
+            bufferArea = new Rectangle(visible);
+            if (Math.abs(dx) >= visible.width || Math.abs(dy) >= visible.height) {
+                drawBuffer(bufferArea);
+                dirty = null;
+                return;
+            }
+            Graphics2D  g = buffer.createGraphics();
+            g.copyArea(0, 0, visible.width, visible.height, dx, dy);
+            g.dispose();
+
+            if (dx > 0) {
+                drawBuffer(new Rectangle(visible.x, visible.y, dx, visible.height));
+            } else if (dx < 0) {
+                drawBuffer(new Rectangle(visible.x + visible.width + dx, visible.y,
+                                         -dx, visible.height));
+            }
+            if (dy > 0) {
+                drawBuffer(new Rectangle(visible.x, visible.y, visible.width, dy));
+            } else if (dy < 0) {
+                drawBuffer(new Rectangle(visible.x, visible.y + visible.height + dy,
+                                         visible.width, -dy));
+            }
+        }
+
+        if (dirty != null) {
+            Rectangle   area = dirty.intersection(bufferArea);
+            dirty = null;
+            if (!area.isEmpty()) {
+                drawBuffer(area);
+            }
+        }
+    }
+
+    /**
+     * Draw part of the map into the off-screen copy.
+     *
+     * @param area      Area of the component to draw, in pixels.
+     */
+    private void
+    drawBuffer(Rectangle area) {
+        Graphics2D  g = buffer.createGraphics();
+
+        g.translate(-bufferArea.x, -bufferArea.y);
+        g.setClip(area);
+        g.setColor(getBackground());
+        g.fill(area);
+        paintMap(g);
+        g.dispose();
+    }
+
+    /**
+     * Paint the map straight onto a graphics object, without using the
+     * off-screen copy. Used when drawing the map as an image.
+     */
+    protected void
+    paintDirect(Graphics g) {
         super.paintComponent(g);
+        paintMap(g);
+    }
+
+    /**
+     * Paint the map onto a graphics object. Only tiles within the clip
+     * area are drawn. If there is no clip area, then the entire map is
+     * drawn.
+     */
+    protected void
+    paintMap(Graphics g) {
         int             x=0, y=0;
-        int             xp, yp, ypp;
         
         if (map == null) {
             // Nothing to do.
@@ -820,17 +1022,10 @@ public class MapViewer extends JPanel {
             // Now draw labels. Need to draw these last so that they don't
             // get overwritten by tiles. No labels are drawn for LOCAL maps.
             if (showThings) {
-                Thing[]   things = currentSet.getThings();
+                Thing[]   things = currentSet.getThings(100 * (startX - LABEL_MARGIN), 100 * startY,
+                                                        100 * endX, 100 * (endY + 1));
                 for (int i=0; i < things.length; i++) {
-                    Thing    thing = things[i];
-                    if (thing.getX() < (100 * startX) || thing.getX() > (100 * endX)) {
-                        continue;
-                    }
-                    if (thing.getY() < (100 * startY) || thing.getY() > (100 * endY)) {
-                        continue;
-                    }
-                    paintThing(thing, g);
-
+                    paintThing(things[i], g);
                 }
             }
 
@@ -841,25 +1036,19 @@ public class MapViewer extends JPanel {
                 g2.setStroke(new BasicStroke(1));
 
                 // Vertical lines
-                y1 = 0;
+                y1 = startY * tileYSize;
                 y2 = endY * tileYSize;
-                for (x = 0; x < endX; x+=6) {
+                for (x = startX - startX%6; x < endX; x+=6) {
                     x1 = x2 = (int) (x * tileXSize + (iconWidth * 0.5));
-                    GeneralPath gp = new GeneralPath();
-                    Line2D      line = new Line2D.Float(x1, y1, x2, y2);
-                    gp.append(line, true);
-                    g2.draw(gp);
+                    g2.drawLine(x1, y1, x2, y2);
                 }
 
                 // Horizontal lines
                 x1 = 0;
                 x2 = endX * tileXSize;
-                for (y = 0; y < endY; y+=5) {
+                for (y = startY - startY%5; y < endY; y+=5) {
                     y1 = y2 = (int) (y * tileYSize);
-                    GeneralPath gp = new GeneralPath();
-                    Line2D      line = new Line2D.Float(x1, y1, x2, y2);
-                    gp.append(line, true);
-                    g2.draw(gp);
+                    g2.drawLine(x1, y1, x2, y2);
                 }
             }
         } catch (Exception e) {
@@ -869,19 +1058,17 @@ public class MapViewer extends JPanel {
 
     /**
      * Paint a single tile on the map. Tile is referenced by its
-     * coordinate. Tile is painted to the graphics object of the
-     * MapViewer component.
+     * coordinate. The tile, and the tiles around it, are redrawn into
+     * the off-screen copy of the map on the next repaint.
      */
     public void
     paintTile(int x, int y) {
-        Graphics2D    g = (Graphics2D)this.getGraphics();
-        
-        if (g == null) {
-            System.out.println("ERROR: paintTile: Cannot obtain graphics object");
-            return;
-        }
+        Point       p = getPosition(x, y);
 
-        paintTile(x, y, g);
+        // Icons, rotated icons and borders can spill over into the
+        // neighbouring tiles, so they are redrawn as well.
+        invalidateArea(new Rectangle((int)p.getX() - iconWidth, (int)p.getY() - tileYSize,
+                                     iconWidth * 3, tileYSize * 3));
     }
 
     /**
@@ -931,29 +1118,39 @@ public class MapViewer extends JPanel {
 
         try {
             int     t = currentSet.getTerrain(x, y).getId();
-            Image   icon = iconSet.getIcon(t);
+            int     rotation = currentSet.getTerrainRotation(x, y);
+            Image   icon = null;
             double  r = 0.0;
-            
-            if (icon == null) {
-                System.out.println("ERROR: Icon is null for icon "+t);
-                return;
-            }
 
-            r = Math.toRadians(currentSet.getTerrainRotation(x, y));
-            if (r != 0) {
-                g2.rotate(r, xp+iconWidth/2, yp+tileYSize/2);
-                g2.drawImage(icon, xp, yp, this);
-                g2.rotate(-r, xp+iconWidth/2, yp+tileYSize/2);
-            } else {
-                g2.drawImage(icon, xp, yp, this);
+            // Icons at the standard rotations are drawn from the atlas,
+            // anything else is rotated as it is drawn.
+            if (terrainAtlas == null || !terrainAtlas.draw(g2, t, rotation, xp, yp)) {
+                icon = iconSet.getIcon(t);
+                if (icon == null) {
+                    System.out.println("ERROR: Icon is null for icon "+t);
+                    return;
+                }
+
+                r = Math.toRadians(rotation);
+                if (r != 0) {
+                    g2.rotate(r, xp+iconWidth/2, yp+tileYSize/2);
+                    g2.drawImage(icon, xp, yp, this);
+                    g2.rotate(-r, xp+iconWidth/2, yp+tileYSize/2);
+                } else {
+                    g2.drawImage(icon, xp, yp, this);
+                }
             }
 
             if (currentSet.getFeature(x, y) != null) {
-                r = Math.toRadians(currentSet.getFeatureRotation(x, y));
-                icon = featureSet.getIcon(currentSet.getFeature(x, y).getId());
-                g2.rotate(r, xp+tileXSize/2, yp+tileYSize/2);
-                g2.drawImage(icon, xp, yp, this);
-                g2.rotate(-r, xp+tileXSize/2, yp+tileYSize/2);
+                int     f = currentSet.getFeature(x, y).getId();
+                rotation = currentSet.getFeatureRotation(x, y);
+                if (featureAtlas == null || !featureAtlas.draw(g2, f, rotation, xp, yp)) {
+                    r = Math.toRadians(rotation);
+                    icon = featureSet.getIcon(f);
+                    g2.rotate(r, xp+tileXSize/2, yp+tileYSize/2);
+                    g2.drawImage(icon, xp, yp, this);
+                    g2.rotate(-r, xp+tileXSize/2, yp+tileYSize/2);
+                }
             }
 
 /*
@@ -1010,10 +1207,7 @@ public class MapViewer extends JPanel {
                         x2 = (int)p.getX() + (int)(iconWidth * 0.7);
                         y1 = y2 = (int)p.getY();
 
-                        GeneralPath gp = new GeneralPath();
-                        Line2D      line = new Line2D.Float(x1, y1, x2, y2);
-                        gp.append(line, true);
-                        g2.draw(gp);
+                        g2.drawLine(x1, y1, x2, y2);
                     }
                 }
                 g2.setColor(Color.RED);
@@ -1038,10 +1232,7 @@ public class MapViewer extends JPanel {
                         y1 = (int)p.getY() + (int)(tileYSize * 0.5);
                         y2 = (int)p.getY();
 
-                        GeneralPath gp = new GeneralPath();
-                        Line2D      line = new Line2D.Float(x1, y1, x2, y2);
-                        gp.append(line, true);
-                        g2.draw(gp);
+                        g2.drawLine(x1, y1, x2, y2);
                     }
                 }
 
@@ -1067,10 +1258,7 @@ public class MapViewer extends JPanel {
                         y1 = (int)p.getY() + (int)(tileYSize * 0.5);
                         y2 = (int)p.getY() + tileYSize;
 
-                        GeneralPath gp = new GeneralPath();
-                        Line2D      line = new Line2D.Float(x1, y1, x2, y2);
-                        gp.append(line, true);
-                        g2.draw(gp);
+                        g2.drawLine(x1, y1, x2, y2);
                     }
                 }
             }
@@ -24,6 +24,7 @@ import java.awt.image.*;
 import net.sourceforge.mapcraft.map.elements.Area;
 import net.sourceforge.mapcraft.map.elements.Thing;
 import net.sourceforge.mapcraft.map.interfaces.ITileSet;
+import net.sourceforge.mapcraft.map.tilesets.DatabaseTileSet;
 import net.sourceforge.mapcraft.map.tilesets.TileSet;
 import net.sourceforge.mapcraft.utils.Options;
 
@@ -567,33 +568,16 @@ public class Map extends MapBean implements Cloneable {
      */
     public int
     getNearestThingIndex(int x, int y, int max) {
+        Thing   thing = tileSets[0].getNearestThing(x, y, max);
         Thing[] things = tileSets[0].getThings();
-        Thing   thing = null;
-        int     index = -1;
-        int     sx=0, sy=0;
-        int     min = -1;
-        int     d = 0;
-
-        System.out.println("getNearestThingIndex: "+x+","+y+" ("+max+")");
-
-        max = max * max;
-
-        for (int i = 0; i < things.length; i++) {
-            thing = things[i];
-            sx = x - thing.getX();
-            sy = y - thing.getY();
-            // We're only looking for the smallest distance, so no need
-            // to bother getting the square root.
-            d = sx * sx + sy * sy;
-            System.out.println("thing: "+sx+", "+sy+" "+d);
-            if ((min == -1 || d < min) && (max == 0 || d < max)) {
-                min = d;
-                index = i;
-                System.out.println("Nearest is "+index+" at "+min);
+
+        for (int i = 0; thing != null && i < things.length; i++) {
+            if (things[i] == thing) {
+                return i;
             }
         }
 
-        return index;
+        return -1;
     }
 
     /**
@@ -602,14 +586,7 @@ public class Map extends MapBean implements Cloneable {
      */
     public Thing
     getNearestThing(int x, int y, int max) {
-        Thing   thing = null;
-        int     index = getNearestThingIndex(x, y, max);
-
-        if (index >= 0) {
-            thing = tileSets[0].getThings()[index];
-        }
-
-        return thing;
+        return tileSets[0].getNearestThing(x, y, max);
     }
 
     /**
@@ -638,6 +615,11 @@ public class Map extends MapBean implements Cloneable {
         ITileSet     alpha = tileSets[0];
         ITileSet     beta = merge.tileSets[0];
 
+        if (alpha instanceof DatabaseTileSet) {
+            System.out.println("Map is stored in a database");
+            throw new MapException("Tiles can't be merged into a map stored in a database");
+        }
+
         if (alpha.getScale() != beta.getScale()) {
             System.out.println("Maps are not the same scale");
             throw new MapException("Maps can only be merged if they are the same scale");
@@ -665,47 +647,23 @@ public class Map extends MapBean implements Cloneable {
         dy = dy * alpha.getParentsScale()/alpha.getScale();
 
         System.out.println("merge: dx "+dx+" dy "+dy);
-        // TODO: Rewrite merge code for new world.
-        /*
-        try {
-            for (int y=0; y < bh; y++) {
-                if (y - dy < 0 || y - dy >= ah) {
-                    continue;
-                }
-                for (int x=0; x < bw; x++) {
-                    if (x - dx < 0 || x - dx >= aw) {
-                        continue;
-                    }
-                    Tile        b = beta.getTile(x, y);
-                    Tile        a = alpha.getTile(x-dx, y-dy);
-                    alpha.setTile(x-dx, y-dy, b);
-
-                    // Now work out areas - this can be complicated.
-                    String      aName = getAreaName(0, x-dx, y-dy);
-                    String      bName = merge.getAreaName(0, x, y);
-                    if (bName == null) {
-                        // Set area to be zero.
-                        alpha.setArea(x-dx, y-dy, (short)0);
-                    } else if (aName == null || !aName.equals(bName)) {
-                        if (getAreaByName(bName) != null) {
-                            short     id = (short)getAreaByName(bName).getId();
-                            alpha.setArea(x-dx, y-dy, id);
-                        } else {
-                            // Area doesn't exist in our map. Try the area's parent.
-                            String  parent = merge.getAreaParentName(0, x, y);
-                            Area    newArea = getAreaByName(parent);
-                            if (newArea != null) {
-                                alpha.setArea(x-dx, y-dy, (short)newArea.getId());
-                            }
-                        }
-                    }
-                }
+
+        // Work out which of our areas each of their areas becomes. If we
+        // don't have an area of the same name, try the area's parent. If
+        // neither exists, the tiles are given no area.
+        Hashtable   areas = new Hashtable();
+        Iterator    iter = merge.getAreaSet().iterator();
+        while (iter.hasNext()) {
+            Area    b = (Area)iter.next();
+            Area    a = getAreaSet().getArea(b.getName());
+            if (a == null && b.getParent() != null) {
+                a = getAreaSet().getArea(b.getParent().getName());
+            }
+            if (a != null) {
+                areas.put(b, a);
             }
-        } catch (MapOutOfBoundsException e) {
-            e.printStackTrace();
-            return false;
         }
-        */
+        alpha.merge(beta, dx, dy, areas);
 
         return true;
     }
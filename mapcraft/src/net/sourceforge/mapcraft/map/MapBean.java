@@ -15,6 +15,7 @@ import net.sourceforge.mapcraft.xml.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 import javax.swing.ImageIcon;
 import java.awt.Toolkit;
 import java.awt.Image;
@@ -22,6 +23,7 @@ import java.awt.image.*;
 
 import net.sourceforge.mapcraft.map.interfaces.*;
 import net.sourceforge.mapcraft.map.elements.*;
+import net.sourceforge.mapcraft.map.tilesets.MappedTileSet;
 import net.sourceforge.mapcraft.map.tilesets.TileSet;
 import net.sourceforge.mapcraft.utils.Options;
 
@@ -121,7 +123,7 @@ public class MapBean implements Cloneable {
     MapBean(String filename) throws MapException {
         this.filename = filename;
         try {
-            xml = new MapXML(filename);
+            xml = new StreamingMapXML(filename);
             tileSets = xml.getTileSets();
             terrainSet = xml.getTerrainSet("basic");
             thingSet = xml.getTerrainSet("things");
@@ -396,7 +398,7 @@ public class MapBean implements Cloneable {
 
 
     private void
-    writeTerrainSet(TerrainSet set, FileWriter writer) throws IOException {
+    writeTerrainSet(TerrainSet set, Writer writer) throws IOException {
         writer.write("    <terrainset id=\""+set.getId()+
                      "\" path=\""+set.getPath()+"\">\n");
 
@@ -419,7 +421,7 @@ public class MapBean implements Cloneable {
     }
 
     private void
-    writeAreaSet(FileWriter writer) throws IOException {
+    writeAreaSet(Writer writer) throws IOException {
         if (areaSet == null) {
             return;
         }
@@ -439,7 +441,7 @@ public class MapBean implements Cloneable {
      * Write out the header of the map file.
      */
     private void
-    writeHeader(FileWriter writer) throws IOException {
+    writeHeader(Writer writer) throws IOException {
         writer.write("    <header>\n");
         writer.write("        <name>"+name+"</name>\n");
         writer.write("        <author>"+author+"</author>\n");
@@ -464,6 +466,8 @@ public class MapBean implements Cloneable {
         writer.write("    </header>\n");
     }
 
+    private static final String COLUMN_INDENT = "\n                ";
+
     /**
      * Write out tileset data as XML. The data is written on a per
      * column basis, with each column written as a 'blob' of base64
@@ -481,9 +485,14 @@ public class MapBean implements Cloneable {
      *
      * Base64 encoding is as follows:
      * ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/
+     *
+     * The tiles of a MappedTileSet are already in a file of their own,
+     * so they are written back to it, and the tiles element just names
+     * the file. It is relative to the directory of the map file if it
+     * is in that directory.
      */
     private void
-    writeTileSet(ITileSet set, FileWriter writer) throws IOException {
+    writeTileSet(ITileSet set, Writer writer, File directory) throws IOException {
         int         x,y;
 
         writer.write("    <tileset id=\""+set.getName()+"\">\n");
@@ -501,25 +510,43 @@ public class MapBean implements Cloneable {
             writer.write("        </parent>\n\n");
         }
 
+        if (set instanceof MappedTileSet) {
+            MappedTileSet   mapped = (MappedTileSet)set;
+            File            file = mapped.getFile().getAbsoluteFile();
+            String          path = file.getPath();
+
+            mapped.flush();
+            if (file.getParentFile().equals(directory)) {
+                path = file.getName();
+            }
+            writer.write("        <tiles file=\""+path+"\"/>\n");
+            writePaths(writer);
+            writeThings(writer);
+            writer.write("    </tileset>\n\n");
+            return;
+        }
+
         writer.write("        <tiles>\n");
 
+        // Each column is encoded into the same buffer, which has room for
+        // a newline and indent before every five tiles.
+        char[]      terrain = new char[set.getMapHeight() * (MapXML.BLOBSIZE+1) +
+                                       (set.getMapHeight()/5 + 1) * COLUMN_INDENT.length()];
         for (x=0; x < set.getMapWidth(); x++) {
-            writer.write("            ");
-            writer.write("<column x=\""+x+"\">");
-
-            StringBuffer    terrain = new StringBuffer();
-            String          tmp;
+            writer.write("            <column x=\"");
+            writer.write(String.valueOf(x));
+            writer.write("\">");
 
+            int     length = 0;
             for (y=0; y < set.getMapHeight(); y++) {
-                tmp = MapXML.tileToBlob(set, x, y);
-
                 if ((y%5)==0) {
-                    terrain.append("\n");
-                    terrain.append("                ");
+                    COLUMN_INDENT.getChars(0, COLUMN_INDENT.length(), terrain, length);
+                    length += COLUMN_INDENT.length();
                 }
-                terrain.append(tmp);
+                MapXML.tileToBlob(set, x, y, terrain, length);
+                length += MapXML.BLOBSIZE+1;
             }
-            writer.write(terrain.toString());
+            writer.write(terrain, 0, length);
             writer.write("\n");
             writer.write("            ");
             writer.write("</column>\n");
@@ -532,18 +559,18 @@ public class MapBean implements Cloneable {
         writeThings(writer);
 
         writer.write("    </tileset>\n\n");
-        writer.flush();
     }
 
     public void
-    writePaths(FileWriter writer) throws IOException {
+    writePaths(Writer writer) throws IOException {
         int         i = 0, e = 0;
         Path[]      paths = tileSets[0].getPaths();
         Path        path = null;
         Vector      elements;
         String[]    types = { "unknown", "start", "end", "path", "join" };
 
-        if (paths == null || paths.length == 0) {
+        // An empty TileSet returns an array holding just null.
+        if (paths == null || paths.length == 0 || paths[0] == null) {
             return;
         }
 
@@ -571,12 +598,12 @@ public class MapBean implements Cloneable {
     }
 
     public void
-    writeThings(FileWriter writer) throws IOException {
+    writeThings(Writer writer) throws IOException {
         Thing[]     things = tileSets[0].getThings();
         String      pad = "        ";
         int         i = 0;
 
-        if (things != null && things.length > 0) {
+        if (things != null && things.length > 0 && things[0] != null) {
             writer.write(pad+"<things>\n");
             for (i=0; i < things.length; i++) {
                 Thing    thing = things[i];
@@ -614,50 +641,101 @@ public class MapBean implements Cloneable {
 
 
     /**
-     * Save the map as an XML file.
+     * Save the map as an XML file. If the filename ends in .gz, then
+     * the file is gzip compressed. Either kind of file can be loaded.
      */
     public void
     save(String filename) throws IOException {
-        FileWriter      writer = new FileWriter(filename);
+        save(filename, filename.endsWith(".gz"));
+    }
+
+    /**
+     * Save the map as an XML file, optionally gzip compressed. Output
+     * is buffered, so writing each element as a separate small write
+     * is cheap.
+     *
+     * @param filename  Name of the file to write to.
+     * @param compress  True if the file should be gzip compressed.
+     */
+    public void
+    save(String filename, boolean compress) throws IOException {
+        OutputStream    out = new FileOutputStream(filename);
+        File            directory = new File(filename).getAbsoluteFile().getParentFile();
         int             x, y;
         int             i;
 
         System.out.println("Saving map");
-
-        writer.write("<?xml version=\"1.0\"?>\n");
-        writer.write("<map>\n");
-
-        // Header.
-        writeHeader(writer);
-
-        // Terrain Sets
-        writer.write("    <!-- Standard terrain set -->\n");
-        writeTerrainSet(terrainSet, writer);
-        writer.write("    <!-- Things -->\n");
-        writeTerrainSet(thingSet, writer);
-        writer.write("    <!-- Features -->\n");
-        writeTerrainSet(featureSet, writer);
-
-        writer.write("    <!-- TileSets contain blob data for the tiles -->\n");
-        writer.write("    <!-- Format is: \"tthhffaacu\" for each tile. -->\n");
-        writer.write("    <!--     tt = Terrain type    hh = height     -->\n");
-        writer.write("    <!--     ff = Feature         aa = area       -->\n");
-        writer.write("    <!--     c  = coast mask      u  = unused     -->\n");
-        writer.write("    <!-- Each blob is Base 64 encoded.            -->\n");
-        // Now go through each of the tilesets in turn.
-        for (i=0; i < tileSets.length; i++) {
-            try {
-                setCurrentSet(i);
-                writeTileSet(tileSets[i], writer);
-            } catch (MapException me) {
-                me.printStackTrace();
+        if (compress) {
+            out = new GZIPOutputStream(out, MapXML.BUFFER_SIZE);
+        }
+        Writer          writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"),
+                                                    MapXML.BUFFER_SIZE);
+        try {
+            writer.write("<?xml version=\"1.0\"?>\n");
+            writer.write("<map>\n");
+
+            // Header.
+            writeHeader(writer);
+
+            // Terrain Sets
+            writer.write("    <!-- Standard terrain set -->\n");
+            writeTerrainSet(terrainSet, writer);
+            writer.write("    <!-- Things -->\n");
+            writeTerrainSet(thingSet, writer);
+            writer.write("    <!-- Features -->\n");
+            writeTerrainSet(featureSet, writer);
+
+            writer.write("    <!-- TileSets contain blob data for the tiles -->\n");
+            writer.write("    <!-- Format is: \"tthhffaacu\" for each tile. -->\n");
+            writer.write("    <!--     tt = Terrain type    hh = height     -->\n");
+            writer.write("    <!--     ff = Feature         aa = area       -->\n");
+            writer.write("    <!--     c  = coast mask      u  = unused     -->\n");
+            writer.write("    <!-- Each blob is Base 64 encoded.            -->\n");
+            // Now go through each of the tilesets in turn.
+            for (i=0; i < tileSets.length; i++) {
+                try {
+                    setCurrentSet(i);
+                    writeTileSet(tileSets[i], writer, directory);
+                } catch (MapException me) {
+                    me.printStackTrace();
+                }
             }
+
+            writeAreaSet(writer);
+            writer.write("</map>\n");
+        } finally {
+            writer.close();
         }
+    }
 
-        writeAreaSet(writer);
-        writer.write("</map>\n");
+    /**
+     * Save the map with the tiles of each TileSet kept in a memory mapped
+     * file of their own, next to the map file, rather than in the XML.
+     * Any TileSet which isn't already mapped is copied into a new file
+     * named after the map and the TileSet, so it must fit in memory this
+     * once. After that, the map can be loaded and saved however large it
+     * is, since only the tiles which are used are read, and the XML just
+     * holds the terrain, areas, things and paths.
+     *
+     * @param filename  Name of the map file to write.
+     */
+    public void
+    saveMapped(String filename) throws IOException {
+        String      base = filename.replaceAll("\\.map(\\.gz)?$", "");
 
-        writer.close();
+        for (int i=0; i < tileSets.length; i++) {
+            if (tileSets[i] instanceof MappedTileSet) {
+                continue;
+            }
+            File    file = new File(base+"."+tileSets[i].getName()+".tiles");
+            try {
+                tileSets[i] = MappedTileSet.copyOf(tileSets[i], file);
+            } catch (InvalidArgumentException e) {
+                throw new IOException("Cannot create tiles in ["+file.getPath()+"] ("+
+                                      e.getMessage()+")");
+            }
+        }
+        save(filename);
     }
 
     /**
@@ -43,6 +43,10 @@ public class Path {
     private boolean     dirty = true;
     private int         minX, minY, maxX, maxY;
 
+    // Shapes for drawing this path, keyed by the scale they were
+    // created at. Cleared whenever the path changes.
+    private Hashtable   shapes = new Hashtable();
+
 
     /**
      * Inner class which describes an element of a path.
@@ -177,6 +181,7 @@ public class Path {
             Element     start = (Element)elements.elementAt(0);
             start.setType(PATH);
             elements.insertElementAt(new Element(START, x, y, 5), 0);
+            changed();
         }
     }
 
@@ -184,48 +189,49 @@ public class Path {
     add(int type, int x, int y) {
         Element e = new Element(type, x, y, 1);
         elements.add(e);
+        changed();
+    }
+
+    /**
+     * Called whenever the elements of the path change, so that the
+     * bounding box and shapes are worked out again when next needed.
+     */
+    private void
+    changed() {
+        dirty = true;
+        shapes.clear();
     }
 
     /**
      * Return a Graphics2D shape representing this path.
      * This can then be used to draw directly to a Java
-     * Graphics2D object.
+     * Graphics2D object. Shapes are kept for each scale they
+     * are asked for, until the path is next changed.
      */
     public Shape
     getGraphicsShape(Graphics2D g, int xscale, int yscale, int offset, int iconWidth, int iconHeight) {
-        GeneralPath     gp = new GeneralPath();
-        Line2D          line = null;
-        int             i;
-        Point2D         p1 = null, p2 = null;
-
-        float           x, y;
-        double          xs, ys;
-
-        GraphicsConfiguration gc = g.getDeviceConfiguration();
+        Point           key = new Point(xscale, yscale);
+        GeneralPath     gp = (GeneralPath)shapes.get(key);
 
-        AffineTransform transform = gc.getNormalizingTransform();
-
-        xs = transform.getScaleX();
-        ys = transform.getScaleY();
+        if (gp != null) {
+            return gp;
+        }
 
-        for (i=0; i < elements.size(); i++) {
+        gp = new GeneralPath(GeneralPath.WIND_EVEN_ODD, elements.size());
+        for (int i=0; i < elements.size(); i++) {
             Element e = (Element)elements.elementAt(i);
-            x = (float)e.getX() * (float)(xscale/100.0);
-            y = (float)e.getY() * (float)(yscale/100.0);
+            float   x = (float)e.getX() * (float)(xscale/100.0);
+            float   y = (float)e.getY() * (float)(yscale/100.0);
 
-            if (p1 == null) {
-                p1 = new Point2D.Float(x, y);
+            if (i == 0) {
+                gp.moveTo(x, y);
             } else {
-                p2 = new Point2D.Float(x, y);
-
-                line = new Line2D.Float(p1, p2);
-                gp.append(line, true);
-                p1 = p2;
+                gp.lineTo(x, y);
             }
         }
+        shapes.put(key, gp);
 
         return gp;
-
     }
 
     /**
@@ -276,6 +282,7 @@ public class Path {
         if (e != null) {
             e.setX(x);
             e.setY(y);
+            changed();
         }
     }
 
@@ -413,6 +420,7 @@ public class Path {
             e.setX(e.getX() + x);
             e.setY(e.getY() + y);
         }
+        changed();
     }
 
     public void
@@ -425,12 +433,14 @@ public class Path {
             e.setX((int)(e.getX() * factor));
             e.setY((int)(e.getY() * factor));
         }
+        changed();
     }
 
     private void
     boundingBox() {
-        int     index = -1;
-
+        if (!dirty) {
+            return;
+        }
         minY = minX = 10000000;
         maxY = maxX = -1;
         for (int i = 0; i < elements.size(); i++) {
@@ -11,6 +11,8 @@
  */
 package net.sourceforge.mapcraft.map.interfaces;
 
+import java.util.Hashtable;
+
 import net.sourceforge.mapcraft.map.*;
 import net.sourceforge.mapcraft.map.elements.*;
 
@@ -203,6 +205,19 @@ public interface ITileSet {
     public void
     cropToThing(String name, short radius) throws MapException;
 
+    /**
+     * Copy the tiles of another TileSet over this one, where they overlap.
+     * The tile at (x, y) in the source goes to (x - dx, y - dy) here.
+     *
+     * @param source    TileSet to copy tiles from.
+     * @param dx        X offset of this TileSet within the source.
+     * @param dy        Y offset of this TileSet within the source.
+     * @param areas     Maps Areas of the source to Areas of this TileSet.
+     *                  Tiles whose source Area isn't listed get no area.
+     */
+    public void
+    merge(ITileSet source, int dx, int dy, Hashtable areas);
+
     /**
      * Crop the tiles to a bounding box which fully includes the named
      * path. If the path goes beyond the existing map edge, then the
@@ -231,6 +246,29 @@ public interface ITileSet {
     public Path[] getPaths();
     public Thing[] getThings();
 
+    /**
+     * Get all the Things within a rectangle, given in hundredths of a
+     * tile. The edges of the rectangle are included.
+     */
+    public Thing[] getThings(int minX, int minY, int maxX, int maxY);
+
+    /**
+     * Get all the Paths which cross, or might cross, a rectangle given
+     * in hundredths of a tile.
+     */
+    public Path[] getPaths(int minX, int minY, int maxX, int maxY);
+
+    /**
+     * Find the Thing nearest to a position, in hundredths of a tile.
+     * If max is non-zero, then only Things closer than max are found.
+     */
+    public Thing getNearestThing(int x, int y, int max);
+
+    /**
+     * Move a Thing to a new position.
+     */
+    public void moveThing(Thing thing, int x, int y);
+
     /**
      * Get a list of the names of all the things in this TileSet.
      * The list is returned as an array of Strings. It is not guaranteed
@@ -299,7 +337,54 @@ public interface ITileSet {
      * @return              Count of number of tiles changed.
      */
     public int changeArea(Area oldArea, Area newArea);
-    
+
+    /**
+     * Flood fill terrain. The tile at x,y and every tile connected to it
+     * which has the same terrain is set to the new terrain and rotation.
+     * Tiles are connected to the six tiles which surround them.
+     *
+     * @param x             X coordinate of the tile to start from.
+     * @param y             Y coordinate of the tile to start from.
+     * @param terrain       Terrain to set.
+     * @param rotation      Rotation of the terrain, in degrees.
+     *
+     * @return              Bounds of the tiles changed, as minX, minY,
+     *                      maxX, maxY, or null if nothing was changed.
+     */
+    public int[] fillTerrain(int x, int y, Terrain terrain, short rotation)
+                         throws MapOutOfBoundsException;
+
+    /**
+     * Flood fill an area. The tile at x,y and every tile connected to it
+     * which is in the same area is set to the new area. If sameTerrain
+     * is true, then the fill is also limited to tiles which have the same
+     * terrain as the first tile.
+     *
+     * @param x             X coordinate of the tile to start from.
+     * @param y             Y coordinate of the tile to start from.
+     * @param area          Area to set, or null to clear the area.
+     * @param sameTerrain   Only fill tiles with the same terrain.
+     *
+     * @return              Bounds of the tiles changed, as minX, minY,
+     *                      maxX, maxY, or null if nothing was changed.
+     */
+    public int[] fillArea(int x, int y, Area area, boolean sameTerrain)
+                         throws MapOutOfBoundsException;
+
+    /**
+     * Find each separate land mass on the map. Every tile which has terrain
+     * which isn't water is land, and each connected group of land tiles
+     * is given its own number, starting from 1.
+     *
+     * @param labels        Array of width * height ints, held by column
+     *                      (so the tile at x,y is x * height + y), which is
+     *                      filled with the number of the land mass each
+     *                      tile belongs to, or zero for water.
+     *
+     * @return              Number of land masses found.
+     */
+    public int labelLandMasses(int[] labels);
+
     public void copy(int fromX, int fromY, int toX, int toY)
                          throws MapOutOfBoundsException;
 
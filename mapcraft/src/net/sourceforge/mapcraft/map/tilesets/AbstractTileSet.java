@@ -11,6 +11,9 @@
  */
 package net.sourceforge.mapcraft.map.tilesets;
 
+import java.util.HashMap;
+import java.util.Iterator;
+
 import net.sourceforge.mapcraft.map.*;
 import net.sourceforge.mapcraft.map.elements.*;
 import net.sourceforge.mapcraft.map.interfaces.ITileSet;
@@ -272,21 +275,48 @@ public abstract class AbstractTileSet implements ITileSet {
 
         // Perform sanity checks.
         checkBounds(x, y);
-        checkBounds(x + width, y + height);
+        checkBounds(x + width - 1, y + height - 1);
         if (width < 1 || height < 1) {
             throw new MapOutOfBoundsException("Crop size must be positive");
         }
-        for (int ix=0; ix < width; ix++) {
-            for (int iy=0; iy < height; iy++) {
-                cropped.copyFrom(tiles, x+ix, y+iy, ix, iy);
-            }
-        }
+        copyTiles(tiles, cropped, 0, 0, range(x, width), range(y, height));
         mapWidth = width;
         mapHeight = height;
     }
 
 
 
+    /**
+     * Array of the count numbers starting at first.
+     */
+    protected static int[]
+    range(int first, int count) {
+        int[]   range = new int[count];
+        for (int i=0; i < count; i++) {
+            range[i] = first + i;
+        }
+        return range;
+    }
+
+    /**
+     * Copy tiles from one set of tiles to another, so that the tile at
+     * (toX + x, toY + y) is copied from the one at (columns[x], rows[y]).
+     * If both are PackedTiles then they are copied in bulk, otherwise
+     * they are copied one tile at a time.
+     */
+    protected static void
+    copyTiles(ITiles from, ITiles to, int toX, int toY, int[] columns, int[] rows) {
+        if (from instanceof PackedTiles && to instanceof PackedTiles) {
+            ((PackedTiles)to).resample((PackedTiles)from, toX, toY, columns, rows, null);
+            return;
+        }
+        for (int x=0; x < columns.length; x++) {
+            for (int y=0; y < rows.length; y++) {
+                to.copyFrom(from, columns[x], rows[y], toX + x, toY + y);
+            }
+        }
+    }
+
     /**
      * Find all occurrences of a given area on a map, and change them to be
      * the new area. Often used when an area is deleted, and it is to be set
@@ -318,6 +348,106 @@ public abstract class AbstractTileSet implements ITileSet {
         
         return count;
     }
+
+    public int[]
+    fillTerrain(int x, int y, Terrain terrain, short rotation)
+            throws MapOutOfBoundsException {
+        checkBounds(x, y);
+        if (tiles instanceof PackedTiles && ((PackedTiles)tiles).canFill(terrain, null)) {
+            return ((PackedTiles)tiles).fillTerrain(x, y, terrain, rotation);
+        }
+        if (tiles.terrain(x, y) == terrain && tiles.terrainRotation(x, y) == rotation) {
+            return null;
+        }
+        HexFill     fill = new HexFill(mapWidth, mapHeight);
+        fill.fill(tileKeys(new HashMap(), null), 0, -1, x, y);
+        for (int n=0; n < fill.size(); n++) {
+            int     i = fill.get(n);
+            tiles.setTerrain(i / mapHeight, i % mapHeight, terrain);
+            tiles.setTerrainRotation(i / mapHeight, i % mapHeight, rotation);
+        }
+
+        return fill.getBounds();
+    }
+
+    public int[]
+    fillArea(int x, int y, Area area, boolean sameTerrain)
+            throws MapOutOfBoundsException {
+        checkBounds(x, y);
+        if (tiles instanceof PackedTiles && ((PackedTiles)tiles).canFill(null, area)) {
+            return ((PackedTiles)tiles).fillArea(x, y, area, sameTerrain);
+        }
+        if (tiles.area(x, y) == area) {
+            return null;
+        }
+        HexFill     fill = new HexFill(mapWidth, mapHeight);
+        fill.fill(tileKeys(sameTerrain?new HashMap():null, new HashMap()), 0, -1, x, y);
+        for (int n=0; n < fill.size(); n++) {
+            int     i = fill.get(n);
+            tiles.setArea(i / mapHeight, i % mapHeight, area);
+        }
+
+        return fill.getBounds();
+    }
+
+    public int
+    labelLandMasses(int[] labels) {
+        if (labels.length != mapWidth * mapHeight) {
+            throw new IllegalArgumentException("Labels must have one entry per tile");
+        }
+        if (tiles instanceof PackedTiles && ((PackedTiles)tiles).canFill(null, null)) {
+            return ((PackedTiles)tiles).labelLand(labels);
+        }
+        HashMap     terrain = new HashMap();
+        int[]       keys = tileKeys(terrain, null);
+        boolean[]   land = new boolean[terrain.size() + 1];
+        Iterator    iter = terrain.keySet().iterator();
+        while (iter.hasNext()) {
+            Terrain     t = (Terrain)iter.next();
+            land[((Integer)terrain.get(t)).intValue()] = !t.getWater();
+        }
+
+        return new HexFill(mapWidth, mapHeight).label(keys, 0, -1, land, labels);
+    }
+
+    /**
+     * For tiles which aren't packed, give each tile a number made from its
+     * terrain and area, held by column, so that they can be filled in the
+     * same way as packed tiles. Each distinct terrain or area object is
+     * numbered from 1 (null is 0), and the numbers are kept in the given
+     * maps. If a map is null, then that value is left out.
+     */
+    private int[]
+    tileKeys(HashMap terrain, HashMap area) {
+        int[]   keys = new int[mapWidth * mapHeight];
+
+        for (int x=0; x < mapWidth; x++) {
+            for (int y=0; y < mapHeight; y++) {
+                int     key = 0;
+                if (terrain != null) {
+                    key = keyOf(terrain, tiles.terrain(x, y));
+                }
+                if (area != null) {
+                    key |= keyOf(area, tiles.area(x, y)) << 16;
+                }
+                keys[x * mapHeight + y] = key;
+            }
+        }
+        return keys;
+    }
+
+    private static int
+    keyOf(HashMap keys, Object value) {
+        if (value == null) {
+            return 0;
+        }
+        Integer     key = (Integer)keys.get(value);
+        if (key == null) {
+            key = new Integer(keys.size() + 1);
+            keys.put(value, key);
+        }
+        return key.intValue();
+    }
     
     public void setCollections(TerrainSet terrain, TerrainSet features,
                                AreaSet areas) {
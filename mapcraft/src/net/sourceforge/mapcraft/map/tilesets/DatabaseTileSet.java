@@ -85,6 +85,13 @@ public class DatabaseTileSet extends AbstractTileSet {
         
     }
 
+    /* (non-Javadoc)
+     * @see net.sourceforge.mapcraft.map.interfaces.ITileSet#merge(net.sourceforge.mapcraft.map.interfaces.ITileSet, int, int, java.util.Hashtable)
+     */
+    public void merge(ITileSet source, int dx, int dy, Hashtable areas) {
+        // Tiles can't be written to the database yet, so nothing is merged.
+    }
+
     /* (non-Javadoc)
      * @see net.sourceforge.mapcraft.map.interfaces.ITileSet#cropToPath(java.lang.String, short)
      */
@@ -125,6 +132,37 @@ public class DatabaseTileSet extends AbstractTileSet {
         return null;
     }
 
+    /* (non-Javadoc)
+     * @see net.sourceforge.mapcraft.map.interfaces.ITileSet#getThings(int, int, int, int)
+     */
+    public Thing[] getThings(int minX, int minY, int maxX, int maxY) {
+        // Things aren't stored in the database yet, so there are none.
+        return new Thing[0];
+    }
+
+    /* (non-Javadoc)
+     * @see net.sourceforge.mapcraft.map.interfaces.ITileSet#getPaths(int, int, int, int)
+     */
+    public Path[] getPaths(int minX, int minY, int maxX, int maxY) {
+        // Paths aren't stored in the database yet, so there are none.
+        return new Path[0];
+    }
+
+    /* (non-Javadoc)
+     * @see net.sourceforge.mapcraft.map.interfaces.ITileSet#getNearestThing(int, int, int)
+     */
+    public Thing getNearestThing(int x, int y, int max) {
+        // There are no Things, so none is ever near.
+        return null;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sourceforge.mapcraft.map.interfaces.ITileSet#moveThing(net.sourceforge.mapcraft.map.elements.Thing, int, int)
+     */
+    public void moveThing(Thing thing, int x, int y) {
+        // Things aren't stored in the database yet, so there is nothing to move.
+    }
+
     /* (non-Javadoc)
      * @see net.sourceforge.mapcraft.map.interfaces.ITileSet#getThingNames()
      */
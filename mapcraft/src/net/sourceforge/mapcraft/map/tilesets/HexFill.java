@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation version 2.
+ * See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.map.tilesets;
+
+import java.util.BitSet;
+
+/**
+ * Finds connected groups of hex tiles, for flood fills and for labelling
+ * land masses. Tiles are identified by their index in a flat array held
+ * by column (x * height + y), the same as PackedTiles, and are compared
+ * by a field of an int per tile, given as a shift and a mask.
+ *
+ * Even columns are 'higher' than odd columns, so the neighbours of a tile
+ * in the columns either side are on the same row and the row above for
+ * an even column, and on the same row and the row below for an odd one.
+ *
+ * A HexFill is made for each fill and then thrown away, rather than being
+ * kept with the map, since a large map would otherwise hold on to several
+ * ints per tile between fills. Visited tiles are marked in a BitSet, and
+ * the queue starts small and grows as tiles are found, so a small fill of
+ * a large map only needs a bit per tile. A HexFill is not thread safe.
+ *
+ * @author  Samuel Penn
+ * @version $Revision$
+ */
+class HexFill {
+    // Offsets to the six neighbours of a tile, for even and odd columns.
+    private static final int[]  DX = { 0, 0, -1, -1, 1, 1 };
+    private static final int[]  EVEN_DY = { -1, 1, -1, 0, -1, 0 };
+    private static final int[]  ODD_DY = { -1, 1, 0, 1, 0, 1 };
+
+    private static final int    INITIAL_QUEUE = 1024;
+
+    private int         width, height;
+    private int[]       queue;
+    private BitSet      marks;
+
+    // Number of tiles found, and their bounds, from the last search.
+    private int         count = 0;
+    private int         minX, minY, maxX, maxY;
+
+    HexFill(int width, int height) {
+        this.width = width;
+        this.height = height;
+        queue = new int[Math.min(width * height, INITIAL_QUEUE)];
+        marks = new BitSet(width * height);
+    }
+
+    /**
+     * Gets the index of the n'th tile found by the last search.
+     */
+    int
+    get(int n) {
+        return queue[n];
+    }
+
+    /**
+     * Gets the number of tiles found by the last search.
+     */
+    int
+    size() {
+        return count;
+    }
+
+    /**
+     * Gets the bounds of the tiles found by the last search, as
+     * {minX, minY, maxX, maxY}, or null if nothing was found.
+     */
+    int[]
+    getBounds() {
+        return (count == 0)?null:new int[] { minX, minY, maxX, maxY };
+    }
+
+    private void
+    add(int i) {
+        if (count == queue.length) {
+            int[]   bigger = new int[Math.min(width * height, queue.length * 2)];
+            System.arraycopy(queue, 0, bigger, 0, count);
+            queue = bigger;
+        }
+        marks.set(i);
+        queue[count++] = i;
+    }
+
+    /**
+     * Find all the tiles connected to a starting tile which have the same
+     * value in the given field. Afterwards, the tiles found can be listed
+     * with size() and get(), and their bounds with getBounds().
+     *
+     * @param codes     One int per tile, held by column.
+     * @param shift     Bits to shift each int right to get the field.
+     * @param mask      Mask of the field, after shifting.
+     * @param x         X coordinate of the starting tile.
+     * @param y         Y coordinate of the starting tile.
+     * @return          Number of tiles found.
+     */
+    int
+    fill(int[] codes, int shift, int mask, int x, int y) {
+        int     start = x * height + y;
+
+        marks.clear();
+        count = 0;
+        spread(codes, shift, mask, (codes[start] >>> shift) & mask, null, start);
+
+        return count;
+    }
+
+    /**
+     * Give every tile which is 'in' a number for the connected group it
+     * belongs to. Groups are numbered from 1, and tiles which aren't in
+     * any group are 0. Whether a tile is in is looked up from the table,
+     * using the value of the given field.
+     *
+     * @param codes     One int per tile, held by column.
+     * @param shift     Bits to shift each int right to get the field.
+     * @param mask      Mask of the field, after shifting.
+     * @param in        Which values of the field are in a group.
+     * @param labels    Array to put the group numbers in, one per tile.
+     * @return          Number of groups found.
+     */
+    int
+    label(int[] codes, int shift, int mask, boolean[] in, int[] labels) {
+        int     groups = 0;
+
+        marks.clear();
+        java.util.Arrays.fill(labels, 0);
+        for (int i=0; i < codes.length; i++) {
+            int     value = (codes[i] >>> shift) & mask;
+            if (marks.get(i) || value >= in.length || !in[value]) {
+                continue;
+            }
+            count = 0;
+            spread(codes, shift, mask, -1, in, i);
+            groups++;
+            for (int n=0; n < count; n++) {
+                labels[queue[n]] = groups;
+            }
+        }
+        count = 0;
+
+        return groups;
+    }
+
+    /**
+     * Breadth first search out from a tile. Tiles match if their field
+     * is equal to value, or if a table is given, if it is set for their
+     * field. Matching tiles are added to the queue and marked. The queue
+     * doubles as the list of results, since nothing is ever removed.
+     */
+    private void
+    spread(int[] codes, int shift, int mask, int value, boolean[] in, int start) {
+        int     head = 0;
+
+        add(start);
+        minX = maxX = start / height;
+        minY = maxY = start % height;
+
+        while (head < count) {
+            int     i = queue[head++];
+            int     x = i / height;
+            int     y = i % height;
+            int[]   dy = (x%2 == 0)?EVEN_DY:ODD_DY;
+
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+
+            for (int d=0; d < 6; d++) {
+                int     nx = x + DX[d];
+                int     ny = y + dy[d];
+                if (nx < 0 || nx >= width || ny < 0 || ny >= height) {
+                    continue;
+                }
+                int     n = nx * height + ny;
+                if (marks.get(n)) {
+                    continue;
+                }
+                int     field = (codes[n] >>> shift) & mask;
+                if (in == null ? field != value : (field >= in.length || !in[field])) {
+                    continue;
+                }
+                add(n);
+            }
+        }
+    }
+}
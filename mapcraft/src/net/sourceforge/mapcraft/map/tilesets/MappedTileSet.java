@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation version 2.
+ * See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.map.tilesets;
+
+import java.io.*;
+import java.util.*;
+
+import net.sourceforge.mapcraft.map.*;
+import net.sourceforge.mapcraft.map.elements.*;
+import net.sourceforge.mapcraft.map.interfaces.ITileSet;
+
+/**
+ * A TileSet whose tiles are kept in a memory mapped file (see MappedTiles)
+ * rather than in memory, for maps which are too large to fit in the heap.
+ * Everything else (things, paths and the terrain and area collections) is
+ * held in memory as normal, and the TileSet can be used anywhere any other
+ * TileSet can.
+ *
+ * When the map is cropped or rescaled, the new tiles are written to a new
+ * file, which then replaces the original.
+ *
+ * The file only holds the tiles. The rest of the map is kept in the map's
+ * XML file, whose tiles element names the tile file instead of holding
+ * columns. MapBean.saveMapped() writes a map this way, and it is loaded
+ * like any other map.
+ *
+ * @author  Samuel Penn
+ * @version $Revision$
+ */
+public class MappedTileSet extends TileSet {
+    private File        file;
+
+    /**
+     * Create a new, empty, TileSet in the given file. If the file already
+     * exists, it is overwritten.
+     *
+     * @param name      Name of this TileSet.
+     * @param width     Width, in tiles.
+     * @param height    Height, in tiles.
+     * @param scale     Scale, in whatever units are being used.
+     * @param file      File to hold the tiles.
+     */
+    public MappedTileSet(String name, int width, int height, int scale, File file)
+            throws InvalidArgumentException, IOException {
+        super(name, width, height, scale, new MappedTiles(null, file, width, height));
+        this.file = file;
+        ((MappedTiles)tiles).setOwner(this);
+    }
+
+    /**
+     * Open a TileSet from an existing file of tiles. Only the header of
+     * the file is read, so this is quick however large the map is.
+     *
+     * @param name      Name of this TileSet.
+     * @param scale     Scale, in whatever units are being used.
+     * @param file      File holding the tiles.
+     */
+    public MappedTileSet(String name, int scale, File file)
+            throws InvalidArgumentException, IOException {
+        this(name, scale, new MappedTiles(null, file), file);
+    }
+
+    private MappedTileSet(String name, int scale, MappedTiles tiles, File file)
+            throws InvalidArgumentException {
+        super(name, tiles.getWidth(), tiles.getHeight(), scale, tiles);
+        this.file = file;
+        tiles.setOwner(this);
+    }
+
+    /**
+     * Create a TileSet in the given file which is a copy of another
+     * TileSet, such as one which has just been loaded from a map file.
+     * This is how a map is first converted, so the source must fit in
+     * memory, but the copy never needs to again.
+     *
+     * @param source    TileSet to be copied.
+     * @param file      File to hold the tiles.
+     * @return          New TileSet, which is backed by the file.
+     */
+    public static MappedTileSet
+    copyOf(ITileSet source, File file) throws InvalidArgumentException, IOException {
+        MappedTileSet   set = new MappedTileSet(source.getName(), source.getMapWidth(),
+                                                source.getMapHeight(), source.getScale(), file);
+
+        set.setCollections(source.getTerrainSet(), source.getFeatureSet(), source.getAreaSet());
+        if (source.isChild()) {
+            set.setParent(source.getParentsScale(), source.getParentsXOffset(),
+                          source.getParentsYOffset());
+        }
+        try {
+            for (int x=0; x < source.getMapWidth(); x++) {
+                for (int y=0; y < source.getMapHeight(); y++) {
+                    set.copy(source, x, y, x, y);
+                }
+            }
+        } catch (MapOutOfBoundsException e) {
+            // Both sets are the same size, so this can't happen.
+            throw new IllegalStateException(e.getMessage());
+        }
+        set.setPaths(withoutNulls(source.getPaths()));
+        set.setThings(withoutNulls(source.getThings()));
+        set.flush();
+
+        return set;
+    }
+
+    private static ArrayList
+    withoutNulls(Object[] array) {
+        ArrayList   list = new ArrayList();
+        for (int i=0; array != null && i < array.length; i++) {
+            if (array[i] != null) {
+                list.add(array[i]);
+            }
+        }
+        return list;
+    }
+
+    public File
+    getFile() {
+        return file;
+    }
+
+    /**
+     * New tiles are created in a temporary file next to the current one,
+     * which is put in its place by replaceFile().
+     */
+    protected ITiles
+    createTiles(int width, int height) {
+        try {
+            File    tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            return new MappedTiles(this, tmp, width, height);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create tiles next to ["+
+                                            file.getPath()+"] ("+e.getMessage()+")");
+        }
+    }
+
+    /**
+     * If the tiles have been replaced, close the old file and move the
+     * new one into its place.
+     */
+    private void
+    replaceFile(ITiles old) {
+        if (tiles == old) {
+            return;
+        }
+        MappedTiles     mapped = (MappedTiles)tiles;
+        try {
+            ((MappedTiles)old).close();
+            if (!file.delete() || !mapped.getFile().renameTo(file)) {
+                System.out.println("MappedTileSet: Unable to replace ["+file.getPath()+
+                                   "], tiles are in ["+mapped.getFile().getPath()+"]");
+                file = mapped.getFile();
+                return;
+            }
+            mapped.setFile(file);
+        } catch (IOException e) {
+            System.out.println("MappedTileSet: Unable to close ["+file.getPath()+"] ("+
+                               e.getMessage()+")");
+        }
+    }
+
+    public void
+    crop(int x, int y, int w, int h) throws MapOutOfBoundsException {
+        ITiles      old = tiles;
+        try {
+            super.crop(x, y, w, h);
+        } finally {
+            replaceFile(old);
+        }
+    }
+
+    public void
+    rescale(int newScale) throws IllegalArgumentException {
+        ITiles      old = tiles;
+        try {
+            super.rescale(newScale);
+        } finally {
+            replaceFile(old);
+        }
+    }
+
+    /**
+     * Write any changed tiles back to the file.
+     */
+    public void
+    flush() {
+        ((MappedTiles)tiles).flush();
+    }
+
+    /**
+     * Write any changed tiles back to the file, and close it. The TileSet
+     * cannot be used after it has been closed.
+     */
+    public void
+    close() throws IOException {
+        ((MappedTiles)tiles).close();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation version 2.
+ * See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.map.tilesets;
+
+import java.io.File;
+
+import junit.framework.*;
+
+/**
+ * Check that a MappedTileSet gives back what was written to it, both
+ * while it is open and after it has been closed and opened again.
+ */
+public class MappedTileSetTest extends TestCase {
+    // More than one block in each direction.
+    private static final int    WIDTH = 40, HEIGHT = 50;
+
+    // Every rotation the editor sets, for hex and square tiles.
+    private static final short[]    ROTATIONS = { 0, 60, 90, 120, 180, 240, 270, 300 };
+
+    private File        file;
+
+    public void
+    setUp() throws Exception {
+        file = File.createTempFile("mapcraft", ".tiles");
+    }
+
+    public void
+    tearDown() {
+        file.delete();
+    }
+
+    private static short
+    featureRotation(int r) {
+        return ROTATIONS[(r + 3) % ROTATIONS.length];
+    }
+
+    /**
+     * Every legal rotation must read back as it was set, and must not
+     * disturb the flags which share the record with it.
+     */
+    public void
+    testRotations() throws Exception {
+        MappedTileSet   set = new MappedTileSet("Test", WIDTH, HEIGHT, 5, file);
+
+        for (int r=0; r < ROTATIONS.length; r++) {
+            int     x = r * 5, y = r * 6;
+            set.setTerrainRotation(x, y, ROTATIONS[r]);
+            set.setFeatureRotation(x, y, featureRotation(r));
+            set.setWritable(x, y, true);
+            set.setHighlighted(x, y, r%2 == 0);
+        }
+        set.setTerrainRotation(WIDTH-1, HEIGHT-1, (short)300);
+        for (int r=0; r < ROTATIONS.length; r++) {
+            int     x = r * 5, y = r * 6;
+            assertEquals("Terrain rotation", ROTATIONS[r], set.getTerrainRotation(x, y));
+            assertEquals("Feature rotation", featureRotation(r), set.getFeatureRotation(x, y));
+        }
+        set.close();
+
+        set = new MappedTileSet("Test", 5, file);
+        for (int r=0; r < ROTATIONS.length; r++) {
+            int     x = r * 5, y = r * 6;
+            assertEquals("Terrain rotation after reopening", ROTATIONS[r],
+                         set.getTerrainRotation(x, y));
+            assertEquals("Feature rotation after reopening", featureRotation(r),
+                         set.getFeatureRotation(x, y));
+            assertTrue("Writable flag lost", set.isWritable(x, y));
+            assertEquals("Highlighted flag", r%2 == 0, set.isHighlighted(x, y));
+        }
+        assertEquals("Rotation of last tile", 300, set.getTerrainRotation(WIDTH-1, HEIGHT-1));
+
+        // Setting a smaller rotation must clear the high bit again.
+        set.setTerrainRotation(WIDTH-1, HEIGHT-1, (short)60);
+        assertEquals("Rotation not reduced", 60, set.getTerrainRotation(WIDTH-1, HEIGHT-1));
+        set.close();
+    }
+}
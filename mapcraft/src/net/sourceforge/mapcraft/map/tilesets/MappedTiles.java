@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation version 2.
+ * See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.map.tilesets;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import net.sourceforge.mapcraft.map.AreaSet;
+import net.sourceforge.mapcraft.map.TerrainSet;
+import net.sourceforge.mapcraft.map.elements.Area;
+import net.sourceforge.mapcraft.map.elements.Terrain;
+import net.sourceforge.mapcraft.map.interfaces.ITileSet;
+
+/**
+ * Tile storage which keeps the tiles in a memory mapped file rather than
+ * on the heap, so maps can be much larger than the memory available to
+ * Java. The operating system reads pages of the file in as they are used,
+ * and writes changed pages back, so opening a map only reads the header.
+ *
+ * Tiles are grouped into blocks of 32x40 tiles (a sector), so that tiles
+ * which are drawn together are close together in the file. The blocks are
+ * stored row by row, and the tiles within a block column by column. The
+ * file is mapped a group of blocks at a time, when a tile in the group is
+ * first used.
+ *
+ * Each tile is a 16 byte record:
+ *      short   terrain id + 1 (0 means none)
+ *      short   feature id + 1 (0 means none)
+ *      int     area id + 1 (0 means none)
+ *      int     altitude
+ *      byte    terrain rotation, low 8 bits
+ *      byte    feature rotation, low 8 bits
+ *      byte    flags (1 = writable, 2 = highlighted)
+ *      byte    high bit of the terrain rotation (1) and feature rotation (2)
+ *
+ * Rotations are in degrees, so need nine bits. They are kept between 0
+ * and 359.
+ *
+ * As with PackedTiles, terrain and areas are stored by id, and are found
+ * from the collections of the TileSet which owns the tiles.
+ *
+ * @author  Samuel Penn
+ * @version $Revision$
+ */
+public class MappedTiles implements ITiles {
+    public static final int     BLOCK_WIDTH = 32;
+    public static final int     BLOCK_HEIGHT = 40;
+
+    private static final long   MAGIC = 0x4d4354494c455331L; // "MCTILES1"
+    private static final int    HEADER_SIZE = 64;
+    private static final int    RECORD_SIZE = 16;
+    private static final int    BLOCK_SIZE = BLOCK_WIDTH * BLOCK_HEIGHT * RECORD_SIZE;
+    // Number of blocks mapped at once, about 20MB.
+    private static final int    BLOCKS_PER_CHUNK = 1024;
+
+    private static final int    TERRAIN = 0;
+    private static final int    FEATURE = 2;
+    private static final int    AREA = 4;
+    private static final int    ALTITUDE = 8;
+    private static final int    TERRAIN_ROTATION = 12;
+    private static final int    FEATURE_ROTATION = 13;
+    private static final int    FLAGS = 14;
+    private static final int    ROTATION_HIGH = 15;
+
+    private static final byte   WRITABLE = 1;
+    private static final byte   HIGHLIGHTED = 2;
+
+    private File                file;
+    private RandomAccessFile    raf;
+    private FileChannel         channel;
+    private MappedByteBuffer[]  chunks;
+
+    private ITileSet            owner;
+    private int                 width, height;
+    private int                 blocksAcross;
+
+    // Objects found for each id, and the collections they came from.
+    private Hashtable           terrainById = new Hashtable();
+    private Hashtable           featureById = new Hashtable();
+    private Hashtable           areaById = new Hashtable();
+    private TerrainSet          terrainSet, featureSet;
+    private AreaSet             areaSet;
+
+    /**
+     * Create a new file of empty tiles. If the file already exists, it
+     * is overwritten.
+     *
+     * @param owner     TileSet whose collections hold the terrain and
+     *                  areas used by these tiles. May be null.
+     * @param file      File to hold the tiles.
+     * @param width     Width of the map, in tiles.
+     * @param height    Height of the map, in tiles.
+     */
+    public MappedTiles(ITileSet owner, File file, int width, int height) throws IOException {
+        this.owner = owner;
+        this.file = file;
+        this.width = width;
+        this.height = height;
+
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        raf.setLength(HEADER_SIZE + (long)getBlockCount() * BLOCK_SIZE);
+        raf.writeLong(MAGIC);
+        raf.writeInt(width);
+        raf.writeInt(height);
+        open();
+    }
+
+    /**
+     * Open an existing file of tiles.
+     *
+     * @param owner     TileSet whose collections hold the terrain and
+     *                  areas used by these tiles. May be null.
+     * @param file      File holding the tiles.
+     */
+    public MappedTiles(ITileSet owner, File file) throws IOException {
+        this.owner = owner;
+        this.file = file;
+
+        raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < HEADER_SIZE || raf.readLong() != MAGIC) {
+            raf.close();
+            throw new IOException("["+file.getPath()+"] is not a tile file");
+        }
+        width = raf.readInt();
+        height = raf.readInt();
+        if (raf.length() < HEADER_SIZE + (long)getBlockCount() * BLOCK_SIZE) {
+            raf.close();
+            throw new IOException("["+file.getPath()+"] is truncated");
+        }
+        open();
+    }
+
+    private int getBlockCount() {
+        blocksAcross = (width + BLOCK_WIDTH - 1) / BLOCK_WIDTH;
+        return blocksAcross * ((height + BLOCK_HEIGHT - 1) / BLOCK_HEIGHT);
+    }
+
+    private void open() {
+        channel = raf.getChannel();
+        chunks = new MappedByteBuffer[(getBlockCount() + BLOCKS_PER_CHUNK - 1) / BLOCKS_PER_CHUNK];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Set the TileSet whose collections are used to find terrain and
+     * areas by id.
+     */
+    public void setOwner(ITileSet owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Gets the buffer holding a tile, positioned at the start of its
+     * record. Chunks of the file are mapped as they are needed.
+     */
+    private ByteBuffer record(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new ArrayIndexOutOfBoundsException("Tile "+x+","+y+" is outside "+
+                                                     width+"x"+height);
+        }
+        int     block = (y / BLOCK_HEIGHT) * blocksAcross + (x / BLOCK_WIDTH);
+        int     chunk = block / BLOCKS_PER_CHUNK;
+
+        MappedByteBuffer    buffer = chunks[chunk];
+        if (buffer == null) {
+            buffer = map(chunk);
+        }
+        buffer.position((block % BLOCKS_PER_CHUNK) * BLOCK_SIZE +
+                        ((x % BLOCK_WIDTH) * BLOCK_HEIGHT + (y % BLOCK_HEIGHT)) * RECORD_SIZE);
+        return buffer;
+    }
+
+    private synchronized MappedByteBuffer map(int chunk) {
+        if (chunks[chunk] == null) {
+            long    start = HEADER_SIZE + (long)chunk * BLOCKS_PER_CHUNK * BLOCK_SIZE;
+            long    size = Math.min((long)BLOCKS_PER_CHUNK * BLOCK_SIZE,
+                                    HEADER_SIZE + (long)getBlockCount() * BLOCK_SIZE - start);
+            try {
+                chunks[chunk] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to map tiles from ["+
+                                                file.getPath()+"] ("+e.getMessage()+")");
+            }
+        }
+        return chunks[chunk];
+    }
+
+    /**
+     * Forget the objects found so far if the owner's collections have
+     * been replaced since they were looked up.
+     */
+    private void checkCollections() {
+        if (owner == null) {
+            return;
+        }
+        if (owner.getTerrainSet() != terrainSet) {
+            terrainSet = owner.getTerrainSet();
+            terrainById.clear();
+        }
+        if (owner.getFeatureSet() != featureSet) {
+            featureSet = owner.getFeatureSet();
+            featureById.clear();
+        }
+        if (owner.getAreaSet() != areaSet) {
+            areaSet = owner.getAreaSet();
+            areaById.clear();
+        }
+    }
+
+    private Terrain getTerrain(int code, Hashtable byId, TerrainSet set) {
+        if (code == 0) {
+            return null;
+        }
+        Integer     id = new Integer(code - 1);
+        Terrain     t = (Terrain)byId.get(id);
+        if (t == null && set != null) {
+            t = set.getTerrain(code - 1);
+            if (t != null) {
+                byId.put(id, t);
+            }
+        }
+        return t;
+    }
+
+    private short pack(Terrain t, Hashtable byId) {
+        if (t == null) {
+            return 0;
+        }
+        int     id = t.getId();
+        if (id < 0 || id >= 0xFFFF) {
+            throw new IllegalArgumentException("Terrain id "+id+" cannot be stored");
+        }
+        checkCollections();
+        byId.put(new Integer(id), t);
+        return (short)(id + 1);
+    }
+
+    public synchronized Terrain terrain(int x, int y) {
+        ByteBuffer  b = record(x, y);
+        int         code = b.getShort(b.position() + TERRAIN) & 0xFFFF;
+        checkCollections();
+        return getTerrain(code, terrainById, terrainSet);
+    }
+
+    public synchronized Terrain feature(int x, int y) {
+        ByteBuffer  b = record(x, y);
+        int         code = b.getShort(b.position() + FEATURE) & 0xFFFF;
+        checkCollections();
+        return getTerrain(code, featureById, featureSet);
+    }
+
+    public synchronized Area area(int x, int y) {
+        ByteBuffer  b = record(x, y);
+        int         code = b.getInt(b.position() + AREA);
+
+        if (code == 0) {
+            return null;
+        }
+        checkCollections();
+        Integer     id = new Integer(code - 1);
+        Area        a = (Area)areaById.get(id);
+        if (a == null && areaSet != null) {
+            a = areaSet.getArea(code - 1);
+            if (a != null) {
+                areaById.put(id, a);
+            }
+        }
+        return a;
+    }
+
+    public synchronized int altitude(int x, int y) {
+        ByteBuffer  b = record(x, y);
+        return b.getInt(b.position() + ALTITUDE);
+    }
+
+    public synchronized short terrainRotation(int x, int y) {
+        return getRotation(record(x, y), TERRAIN_ROTATION, 1);
+    }
+
+    public synchronized short featureRotation(int x, int y) {
+        return getRotation(record(x, y), FEATURE_ROTATION, 2);
+    }
+
+    private static short getRotation(ByteBuffer b, int offset, int highBit) {
+        int     low = b.get(b.position() + offset) & 0xFF;
+        int     high = b.get(b.position() + ROTATION_HIGH) & highBit;
+        return (short)((high != 0)?(low | 0x100):low);
+    }
+
+    private static void setRotation(ByteBuffer b, int offset, int highBit, short rotation) {
+        int     r = ((rotation % 360) + 360) % 360;
+        int     i = b.position() + ROTATION_HIGH;
+
+        b.put(b.position() + offset, (byte)r);
+        b.put(i, (byte)((r > 0xFF)?(b.get(i) | highBit):(b.get(i) & ~highBit)));
+    }
+
+    public synchronized boolean writable(int x, int y) {
+        ByteBuffer  b = record(x, y);
+        return (b.get(b.position() + FLAGS) & WRITABLE) != 0;
+    }
+
+    public synchronized boolean highlighted(int x, int y) {
+        ByteBuffer  b = record(x, y);
+        return (b.get(b.position() + FLAGS) & HIGHLIGHTED) != 0;
+    }
+
+    public synchronized void setTerrain(int x, int y, Terrain terrain) {
+        ByteBuffer  b = record(x, y);
+        b.putShort(b.position() + TERRAIN, pack(terrain, terrainById));
+    }
+
+    public synchronized void setFeature(int x, int y, Terrain feature) {
+        ByteBuffer  b = record(x, y);
+        b.putShort(b.position() + FEATURE, pack(feature, featureById));
+    }
+
+    public synchronized void setArea(int x, int y, Area area) {
+        ByteBuffer  b = record(x, y);
+        int         code = 0;
+
+        if (area != null) {
+            if (area.getId() < 0 || area.getId() == Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Area id "+area.getId()+" cannot be stored");
+            }
+            checkCollections();
+            areaById.put(new Integer(area.getId()), area);
+            code = area.getId() + 1;
+        }
+        b.putInt(b.position() + AREA, code);
+    }
+
+    public synchronized void setAltitude(int x, int y, int altitude) {
+        ByteBuffer  b = record(x, y);
+        b.putInt(b.position() + ALTITUDE, altitude);
+    }
+
+    public synchronized void setTerrainRotation(int x, int y, short rotation) {
+        setRotation(record(x, y), TERRAIN_ROTATION, 1, rotation);
+    }
+
+    public synchronized void setFeatureRotation(int x, int y, short rotation) {
+        setRotation(record(x, y), FEATURE_ROTATION, 2, rotation);
+    }
+
+    private void setFlag(int x, int y, byte flag, boolean value) {
+        ByteBuffer  b = record(x, y);
+        int         i = b.position() + FLAGS;
+        b.put(i, (byte)(value?(b.get(i) | flag):(b.get(i) & ~flag)));
+    }
+
+    public synchronized void setWritable(int x, int y, boolean writable) {
+        setFlag(x, y, WRITABLE, writable);
+    }
+
+    public synchronized void setHighlighted(int x, int y, boolean highlighted) {
+        setFlag(x, y, HIGHLIGHTED, highlighted);
+    }
+
+    public void copyFrom(ITiles source, int fromX, int fromY, int toX, int toY) {
+        setTerrain(toX, toY, source.terrain(fromX, fromY));
+        setFeature(toX, toY, source.feature(fromX, fromY));
+        setArea(toX, toY, source.area(fromX, fromY));
+        setWritable(toX, toY, source.writable(fromX, fromY));
+        setHighlighted(toX, toY, source.highlighted(fromX, fromY));
+        setTerrainRotation(toX, toY, source.terrainRotation(fromX, fromY));
+        setFeatureRotation(toX, toY, source.featureRotation(fromX, fromY));
+        setAltitude(toX, toY, source.altitude(fromX, fromY));
+    }
+
+    /**
+     * Write any changed tiles back to the file.
+     */
+    public synchronized void flush() {
+        for (int i=0; i < chunks.length; i++) {
+            if (chunks[i] != null) {
+                chunks[i].force();
+            }
+        }
+    }
+
+    /**
+     * Write any changed tiles back to the file, and close it. The tiles
+     * cannot be used after they have been closed.
+     */
+    public synchronized void close() throws IOException {
+        flush();
+        chunks = new MappedByteBuffer[0];
+        raf.close();
+    }
+
+    /**
+     * The file has been renamed, so keep track of its new name. The file
+     * stays open, so the tiles can still be used.
+     */
+    void setFile(File file) {
+        this.file = file;
+    }
+}
@@ -0,0 +1,1161 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation version 2.
+ * See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.map.tilesets;
+
+import java.util.*;
+
+import net.sourceforge.mapcraft.map.AreaSet;
+import net.sourceforge.mapcraft.map.TerrainSet;
+import net.sourceforge.mapcraft.map.elements.Area;
+import net.sourceforge.mapcraft.map.elements.Terrain;
+import net.sourceforge.mapcraft.map.interfaces.ITileSet;
+
+/**
+ * Tile storage which packs each tile into as little memory as possible,
+ * for use with large maps. Rather than holding references to Terrain and
+ * Area objects, the id of each is packed into a single int per tile, and
+ * the objects are looked up by id from the collections of the TileSet
+ * which owns the tiles. Tiles are stored by column in flat arrays.
+ *
+ * Packing is as follows (low bits first):
+ *      10 bits = terrain id + 1 (0 means none)
+ *      10 bits = feature id + 1 (0 means none)
+ *      12 bits = area id + 1 (0 means none)
+ *
+ * Terrain and areas with ids which don't fit (which the map file format
+ * can't store anyway) are kept separately for the tiles which use them.
+ *
+ * Altitudes and rotations are normally the same across the whole map, so
+ * their arrays are not created until a tile is set to something else,
+ * and altitudes are dropped again if every tile is set to the same value.
+ * Altitudes are held as shorts, again with any which don't fit being kept
+ * separately. Rotations are held as shorts, in degrees, as they are by
+ * BasicTiles. The writable and highlighted flags are held as bits.
+ *
+ * Since terrain is identified by id, if two different Terrain objects with
+ * the same id are set, then both will be returned as the last one set.
+ *
+ * Cropping, rescaling and merging are done in bulk on the packed arrays
+ * by resample() and downsample(), which split the columns between several
+ * threads on large maps.
+ *
+ * Flood fills and labelling of land masses also work directly on the
+ * packed values, using a new HexFill for each one. Once the
+ * bounds of the areas have been asked for, they are kept up to date as
+ * tiles are set, so the editor can find an area without searching the map.
+ *
+ * @author  Samuel Penn
+ * @version $Revision$
+ */
+public class PackedTiles implements ITiles, Cloneable {
+    private static final int    TERRAIN_BITS = 10;
+    private static final int    AREA_BITS = 12;
+
+    private static final int    TERRAIN_MASK = (1 << TERRAIN_BITS) - 1;
+    private static final int    AREA_MASK = (1 << AREA_BITS) - 1;
+
+    private static final int    FEATURE_SHIFT = TERRAIN_BITS;
+    private static final int    AREA_SHIFT = TERRAIN_BITS * 2;
+
+    // Value of a packed field which means "look in the overflow table".
+    private static final int    TERRAIN_OVERFLOW = TERRAIN_MASK;
+    private static final int    AREA_OVERFLOW = AREA_MASK;
+    private static final short  ALTITUDE_OVERFLOW = Short.MIN_VALUE;
+
+    private ITileSet        owner;
+    private int             width, height;
+
+    private int[]           codes;
+    private short[]         altitude = null;
+    private int             baseAltitude = 0;
+    private int             commonAltitude, commonCount;
+    private short[]         terrainRotation = null;
+    private short[]         featureRotation = null;
+    private BitSet          writable;
+    private BitSet          highlighted;
+
+    // Tiles which hold values too large to pack.
+    private Hashtable       terrainOverflow = new Hashtable();
+    private Hashtable       featureOverflow = new Hashtable();
+    private Hashtable       areaOverflow = new Hashtable();
+    private Hashtable       altitudeOverflow = new Hashtable();
+
+    // Objects found for each id, and the collections they came from.
+    private Terrain[]       terrainById = new Terrain[TERRAIN_MASK];
+    private Terrain[]       featureById = new Terrain[TERRAIN_MASK];
+    private Area[]          areaById = new Area[AREA_MASK];
+    private TerrainSet      terrainSet, featureSet;
+    private AreaSet         areaSet;
+
+    // Used for flood fills, and which terrain values are land.
+    private boolean[]       landCodes = null;
+
+    // Bounds of each packed area value, as four ints per value, once they
+    // have been found. Bounds which might be too large, because a tile on
+    // their edge has since been changed, are marked as stale.
+    private int[]           areaBounds = null;
+    private BitSet          staleBounds = null;
+
+    // Bulk operations are only split between threads if each thread
+    // will have at least this many tiles to work on.
+    private static final int    THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int    MIN_THREAD_TILES = 250000;
+
+    /** Number of possible packed area values. */
+    static final int            AREA_CODES = AREA_MASK + 1;
+
+    /**
+     * Create a new set of tiles, all of which are empty.
+     *
+     * @param owner     TileSet whose collections hold the terrain and
+     *                  areas used by these tiles. May be null.
+     * @param width     Width of the map, in tiles.
+     * @param height    Height of the map, in tiles.
+     */
+    public PackedTiles(ITileSet owner, int width, int height) {
+        this.owner = owner;
+        this.width = width;
+        this.height = height;
+
+        codes = new int[width * height];
+        writable = new BitSet(width * height);
+        highlighted = new BitSet(width * height);
+    }
+
+    private final int index(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new ArrayIndexOutOfBoundsException("Tile "+x+","+y+" is outside "+
+                                                     width+"x"+height);
+        }
+        return x * height + y;
+    }
+
+    /**
+     * Forget the objects found so far if the owner's collections have
+     * been replaced since they were looked up.
+     */
+    private void checkCollections() {
+        if (owner == null) {
+            return;
+        }
+        if (owner.getTerrainSet() != terrainSet) {
+            terrainSet = owner.getTerrainSet();
+            Arrays.fill(terrainById, null);
+        }
+        if (owner.getFeatureSet() != featureSet) {
+            featureSet = owner.getFeatureSet();
+            Arrays.fill(featureById, null);
+        }
+        if (owner.getAreaSet() != areaSet) {
+            areaSet = owner.getAreaSet();
+            Arrays.fill(areaById, null);
+        }
+    }
+
+    /**
+     * Gets the terrain for a packed value, looking it up from the
+     * collection if it hasn't been seen before.
+     */
+    private Terrain getTerrain(int i, int code, Terrain[] byId, TerrainSet set, Hashtable overflow) {
+        if (code == 0) {
+            return null;
+        } else if (code == TERRAIN_OVERFLOW) {
+            return (Terrain)overflow.get(new Integer(i));
+        }
+        Terrain     t = byId[code - 1];
+        if (t == null && set != null) {
+            t = set.getTerrain(code - 1);
+            byId[code - 1] = t;
+        }
+        return t;
+    }
+
+    /**
+     * Work out the packed value for a terrain, remembering the object so
+     * that it can be returned again.
+     */
+    private int pack(int i, Terrain t, Terrain[] byId, Hashtable overflow) {
+        overflow.remove(new Integer(i));
+        if (t == null) {
+            return 0;
+        }
+        int     id = t.getId();
+        if (id < 0 || id + 1 >= TERRAIN_OVERFLOW) {
+            overflow.put(new Integer(i), t);
+            return TERRAIN_OVERFLOW;
+        }
+        checkCollections();
+        byId[id] = t;
+        return id + 1;
+    }
+
+    public Terrain terrain(int x, int y) {
+        int     i = index(x, y);
+        checkCollections();
+        return getTerrain(i, codes[i] & TERRAIN_MASK, terrainById, terrainSet, terrainOverflow);
+    }
+
+    public Terrain feature(int x, int y) {
+        int     i = index(x, y);
+        checkCollections();
+        return getTerrain(i, (codes[i] >>> FEATURE_SHIFT) & TERRAIN_MASK,
+                          featureById, featureSet, featureOverflow);
+    }
+
+    public Area area(int x, int y) {
+        int     i = index(x, y);
+        int     code = codes[i] >>> AREA_SHIFT;
+
+        if (code == 0) {
+            return null;
+        } else if (code == AREA_OVERFLOW) {
+            return (Area)areaOverflow.get(new Integer(i));
+        }
+        checkCollections();
+        Area    a = areaById[code - 1];
+        if (a == null && areaSet != null) {
+            a = areaSet.getArea(code - 1);
+            areaById[code - 1] = a;
+        }
+        return a;
+    }
+
+    public int altitude(int x, int y) {
+        int     i = index(x, y);
+        if (altitude == null) {
+            return baseAltitude;
+        } else if (altitude[i] == ALTITUDE_OVERFLOW) {
+            return ((Integer)altitudeOverflow.get(new Integer(i))).intValue();
+        }
+        return altitude[i];
+    }
+
+    public short terrainRotation(int x, int y) {
+        int     i = index(x, y);
+        return (terrainRotation == null)?0:terrainRotation[i];
+    }
+
+    public short featureRotation(int x, int y) {
+        int     i = index(x, y);
+        return (featureRotation == null)?0:featureRotation[i];
+    }
+
+    public boolean writable(int x, int y) {
+        return writable.get(index(x, y));
+    }
+
+    public boolean highlighted(int x, int y) {
+        return highlighted.get(index(x, y));
+    }
+
+    public void setTerrain(int x, int y, Terrain terrain) {
+        int     i = index(x, y);
+        codes[i] = (codes[i] & ~TERRAIN_MASK) | pack(i, terrain, terrainById, terrainOverflow);
+    }
+
+    public void setFeature(int x, int y, Terrain feature) {
+        int     i = index(x, y);
+        codes[i] = (codes[i] & ~(TERRAIN_MASK << FEATURE_SHIFT)) |
+                   (pack(i, feature, featureById, featureOverflow) << FEATURE_SHIFT);
+    }
+
+    public void setArea(int x, int y, Area area) {
+        int     i = index(x, y);
+        int     old = codes[i] >>> AREA_SHIFT;
+        int     code = 0;
+
+        areaOverflow.remove(new Integer(i));
+        if (area != null) {
+            int     id = area.getId();
+            if (id < 0 || id + 1 >= AREA_OVERFLOW) {
+                areaOverflow.put(new Integer(i), area);
+                code = AREA_OVERFLOW;
+            } else {
+                checkCollections();
+                areaById[id] = area;
+                code = id + 1;
+            }
+        }
+        codes[i] = (codes[i] & ~(AREA_MASK << AREA_SHIFT)) | (code << AREA_SHIFT);
+        if (areaBounds != null && code != old) {
+            moveBounds(old, code, x, y, x, y);
+        }
+    }
+
+    public void setAltitude(int x, int y, int altitude) {
+        int     i = index(x, y);
+        int     old = altitude(x, y);
+
+        if (this.altitude == null) {
+            if (altitude == baseAltitude) {
+                return;
+            }
+            this.altitude = new short[width * height];
+            Arrays.fill(this.altitude, toShort(-1, baseAltitude));
+            commonAltitude = altitude;
+            commonCount = 0;
+        }
+        if (old == commonAltitude) {
+            commonCount--;
+        }
+        if (altitude == commonAltitude) {
+            commonCount++;
+        }
+        if (commonCount == width * height) {
+            // Every tile has the same altitude again, as happens when
+            // a map is loaded, so the array is no longer needed.
+            this.altitude = null;
+            altitudeOverflow.clear();
+            baseAltitude = commonAltitude;
+            return;
+        }
+        altitudeOverflow.remove(new Integer(i));
+        this.altitude[i] = toShort(i, altitude);
+    }
+
+    /**
+     * Gets the value to store for an altitude, which is the altitude
+     * itself if it will fit.
+     */
+    private short toShort(int i, int altitude) {
+        if (altitude > Short.MIN_VALUE && altitude <= Short.MAX_VALUE) {
+            return (short)altitude;
+        }
+        if (i < 0) {
+            // Filling every tile, so remember them all.
+            for (int t=0; t < width * height; t++) {
+                altitudeOverflow.put(new Integer(t), new Integer(altitude));
+            }
+        } else {
+            altitudeOverflow.put(new Integer(i), new Integer(altitude));
+        }
+        return ALTITUDE_OVERFLOW;
+    }
+
+    public void setTerrainRotation(int x, int y, short rotation) {
+        int     i = index(x, y);
+        if (terrainRotation == null) {
+            if (rotation == 0) {
+                return;
+            }
+            terrainRotation = new short[width * height];
+        }
+        terrainRotation[i] = rotation;
+    }
+
+    public void setFeatureRotation(int x, int y, short rotation) {
+        int     i = index(x, y);
+        if (featureRotation == null) {
+            if (rotation == 0) {
+                return;
+            }
+            featureRotation = new short[width * height];
+        }
+        featureRotation[i] = rotation;
+    }
+
+    public void setWritable(int x, int y, boolean writable) {
+        this.writable.set(index(x, y), writable);
+    }
+
+    public void setHighlighted(int x, int y, boolean highlighted) {
+        this.highlighted.set(index(x, y), highlighted);
+    }
+
+    public void copyFrom(ITiles source, int fromX, int fromY, int toX, int toY) {
+        setTerrain(toX, toY, source.terrain(fromX, fromY));
+        setFeature(toX, toY, source.feature(fromX, fromY));
+        setArea(toX, toY, source.area(fromX, fromY));
+        setWritable(toX, toY, source.writable(fromX, fromY));
+        setHighlighted(toX, toY, source.highlighted(fromX, fromY));
+        setTerrainRotation(toX, toY, source.terrainRotation(fromX, fromY));
+        setFeatureRotation(toX, toY, source.featureRotation(fromX, fromY));
+        setAltitude(toX, toY, source.altitude(fromX, fromY));
+    }
+
+    /**
+     * Something which is done to a range of columns, from first up to
+     * but not including last.
+     */
+    private interface ColumnTask {
+        void run(int first, int last);
+    }
+
+    /**
+     * Run a task across all the columns, splitting them between threads
+     * if there are enough tiles to make it worthwhile. Each column is
+     * only ever worked on by one thread.
+     */
+    private static void
+    forColumns(int columns, int rows, final ColumnTask task) {
+        int         threads = (int)Math.min(THREADS, Math.min(columns,
+                                            (long)columns * rows / MIN_THREAD_TILES));
+
+        if (threads <= 1) {
+            task.run(0, columns);
+            return;
+        }
+
+        final Throwable[]   failure = new Throwable[1];
+        Thread[]            workers = new Thread[threads];
+        for (int t=0; t < threads; t++) {
+            final int   first = (int)((long)columns * t / threads);
+            final int   last = (int)((long)columns * (t + 1) / threads);
+            workers[t] = new Thread("PackedTiles-"+t) {
+                public void run() {
+                    try {
+                        task.run(first, last);
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        try {
+            for (int t=0; t < threads; t++) {
+                workers[t].join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while working on tiles");
+        }
+        if (failure[0] instanceof RuntimeException) {
+            throw (RuntimeException)failure[0];
+        } else if (failure[0] instanceof Error) {
+            throw (Error)failure[0];
+        }
+    }
+
+    /**
+     * Can tiles be copied from the source by their packed values? This is
+     * only true if the ids in each refer to the same collections.
+     */
+    boolean
+    isCompatible(PackedTiles source) {
+        checkCollections();
+        source.checkCollections();
+
+        return terrainSet == source.terrainSet && featureSet == source.featureSet &&
+               areaSet == source.areaSet;
+    }
+
+    /**
+     * Take any objects the source has found for each id which we haven't,
+     * since they may not be in the collections.
+     */
+    private void
+    shareObjects(PackedTiles source) {
+        for (int i=0; i < terrainById.length; i++) {
+            if (terrainById[i] == null) terrainById[i] = source.terrainById[i];
+            if (featureById[i] == null) featureById[i] = source.featureById[i];
+        }
+        for (int i=0; i < areaById.length; i++) {
+            if (areaById[i] == null) areaById[i] = source.areaById[i];
+        }
+    }
+
+    private int
+    altitudeAt(int i) {
+        if (altitude == null) {
+            return baseAltitude;
+        } else if (altitude[i] == ALTITUDE_OVERFLOW) {
+            return ((Integer)altitudeOverflow.get(new Integer(i))).intValue();
+        }
+        return altitude[i];
+    }
+
+    /**
+     * Remove overflow entries for tiles within a rectangle.
+     */
+    private void
+    clearOverflow(Hashtable overflow, int x, int y, int w, int h) {
+        if (overflow.isEmpty()) {
+            return;
+        }
+        Iterator    iter = overflow.keySet().iterator();
+        while (iter.hasNext()) {
+            int     i = ((Integer)iter.next()).intValue();
+            int     ix = i / height, iy = i % height;
+            if (ix >= x && ix < x + w && iy >= y && iy < y + h) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * After altitudes have been set in bulk, work out whether they are all
+     * the same again, in which case the array is dropped.
+     */
+    private void
+    recountAltitudes() {
+        if (altitude == null) {
+            return;
+        }
+        commonAltitude = altitudeAt(0);
+        commonCount = 0;
+        for (int i=0; i < width * height; i++) {
+            if (altitudeAt(i) == commonAltitude) {
+                commonCount++;
+            }
+        }
+        if (commonCount == width * height) {
+            altitude = null;
+            altitudeOverflow.clear();
+            baseAltitude = commonAltitude;
+        }
+    }
+
+    /**
+     * Set a rectangle of tiles from tiles in the source. The packed ids
+     * are copied as they are, so the source should either be compatible,
+     * or use collections in which the same ids mean the same things, as
+     * when merging maps. The tile at (toX + x, toY + y) is copied from the tile
+     * at (columns[x], rows[y]) in the source, so this can crop, copy or
+     * enlarge. Where the rows are in sequence, each column is copied
+     * with a single array copy.
+     *
+     * If areas is given, it maps the packed area values of the source to
+     * the packed values to be set instead.
+     */
+    void
+    resample(final PackedTiles source, final int toX, final int toY,
+             final int[] columns, final int[] rows, final int[] areas) {
+        final int       w = columns.length;
+        final int       h = rows.length;
+        final int       sh = source.height;
+        boolean         inSequence = true;
+
+        if (toX < 0 || toY < 0 || toX + w > width || toY + h > height) {
+            throw new ArrayIndexOutOfBoundsException("Region is outside "+width+"x"+height);
+        }
+        for (int y=1; y < h; y++) {
+            inSequence &= (rows[y] == rows[y-1] + 1);
+        }
+        final boolean   copyColumns = inSequence && areas == null && h > 0;
+        final boolean   overflows = !source.terrainOverflow.isEmpty() ||
+                                    !source.featureOverflow.isEmpty() ||
+                                    !source.areaOverflow.isEmpty();
+        final boolean   wholeMap = (toX == 0 && toY == 0 && w == width && h == height);
+
+        if (isCompatible(source)) {
+            shareObjects(source);
+        }
+        areaBounds = null;
+        clearOverflow(terrainOverflow, toX, toY, w, h);
+        clearOverflow(featureOverflow, toX, toY, w, h);
+        clearOverflow(areaOverflow, toX, toY, w, h);
+        clearOverflow(altitudeOverflow, toX, toY, w, h);
+
+        // Work out which of the optional arrays are needed before
+        // starting, so that the threads don't have to.
+        final boolean   altitudes;
+        if (source.altitude == null && (altitude == null || wholeMap)) {
+            altitudes = (baseAltitude != source.baseAltitude && !wholeMap);
+            if (wholeMap) {
+                altitude = null;
+                altitudeOverflow.clear();
+                baseAltitude = source.baseAltitude;
+            }
+        } else {
+            altitudes = true;
+        }
+        if (altitudes && altitude == null) {
+            altitude = new short[width * height];
+            Arrays.fill(altitude, toShort(-1, baseAltitude));
+        }
+        if (source.terrainRotation != null && terrainRotation == null) {
+            terrainRotation = new short[width * height];
+        }
+        if (source.featureRotation != null && featureRotation == null) {
+            featureRotation = new short[width * height];
+        }
+
+        forColumns(w, h, new ColumnTask() {
+            public void run(int first, int last) {
+                for (int x = first; x < last; x++) {
+                    int     column = columns[x] * sh;
+                    int     to = (toX + x) * height + toY;
+
+                    if (copyColumns) {
+                        int     from = column + rows[0];
+                        System.arraycopy(source.codes, from, codes, to, h);
+                        copyShorts(source.terrainRotation, from, terrainRotation, to, h);
+                        copyShorts(source.featureRotation, from, featureRotation, to, h);
+                    } else {
+                        for (int y=0; y < h; y++) {
+                            int     from = column + rows[y];
+                            int     code = source.codes[from];
+                            if (areas != null) {
+                                int     area = areas[code >>> AREA_SHIFT];
+                                code = (code & ~(AREA_MASK << AREA_SHIFT)) | (area << AREA_SHIFT);
+                            }
+                            codes[to + y] = code;
+                            if (terrainRotation != null) {
+                                terrainRotation[to + y] = (source.terrainRotation == null)?0:
+                                                          source.terrainRotation[from];
+                            }
+                            if (featureRotation != null) {
+                                featureRotation[to + y] = (source.featureRotation == null)?0:
+                                                          source.featureRotation[from];
+                            }
+                        }
+                    }
+                    for (int y=0; y < h; y++) {
+                        int     from = column + rows[y];
+                        if (altitudes) {
+                            altitude[to + y] = toShort(to + y, source.altitudeAt(from));
+                        }
+                        if (overflows) {
+                            copyOverflow(source, from, to + y);
+                        }
+                    }
+                }
+            }
+        });
+
+        // BitSets can't be safely shared between threads.
+        for (int x=0; x < w; x++) {
+            for (int y=0; y < h; y++) {
+                int     from = columns[x] * sh + rows[y];
+                int     to = (toX + x) * height + toY + y;
+                writable.set(to, source.writable.get(from));
+                highlighted.set(to, source.highlighted.get(from));
+            }
+        }
+        recountAltitudes();
+    }
+
+    private static void
+    copyShorts(short[] source, int from, short[] dest, int to, int length) {
+        if (dest == null) {
+            return;
+        } else if (source == null) {
+            Arrays.fill(dest, to, to + length, (short)0);
+        } else {
+            System.arraycopy(source, from, dest, to, length);
+        }
+    }
+
+    /**
+     * Copy the objects for any values of a tile which are too large to
+     * be packed. The overflow tables are synchronized, so this is safe
+     * to call from several threads at once.
+     */
+    private void
+    copyOverflow(PackedTiles source, int from, int to) {
+        int     code = codes[to];
+        Integer key = new Integer(from);
+
+        if ((code & TERRAIN_MASK) == TERRAIN_OVERFLOW) {
+            terrainOverflow.put(new Integer(to), source.terrainOverflow.get(key));
+        }
+        if (((code >>> FEATURE_SHIFT) & TERRAIN_MASK) == TERRAIN_OVERFLOW) {
+            featureOverflow.put(new Integer(to), source.featureOverflow.get(key));
+        }
+        if ((code >>> AREA_SHIFT) == AREA_OVERFLOW && source.areaOverflow.containsKey(key)) {
+            areaOverflow.put(new Integer(to), source.areaOverflow.get(key));
+        }
+    }
+
+    /**
+     * Set every tile from a block of tiles in the source, which should be
+     * compatible. Tile (x, y) is made from the source tiles in columns
+     * columns[x] up to columns[x+1] and rows rows[y] up to rows[y+1], so
+     * both arrays are one longer than the width and height of these tiles.
+     *
+     * The terrain, features and area of each tile are whichever are the
+     * most common in the block, with ties going to the one found first.
+     * Altitude is the average of the block. Everything else is taken from
+     * the first tile in the block which has the chosen terrain.
+     */
+    void
+    downsample(final PackedTiles source, final int[] columns, final int[] rows) {
+        final int       sh = source.height;
+        final int[]     chosen = new int[width * height];
+
+        if (columns.length != width + 1 || rows.length != height + 1) {
+            throw new IllegalArgumentException("Blocks do not match "+width+"x"+height);
+        }
+        if (isCompatible(source)) {
+            shareObjects(source);
+        }
+        areaBounds = null;
+        terrainOverflow.clear();
+        featureOverflow.clear();
+        areaOverflow.clear();
+        altitudeOverflow.clear();
+        altitude = null;
+        baseAltitude = source.baseAltitude;
+        if (source.altitude != null) {
+            altitude = new short[width * height];
+        }
+        terrainRotation = (source.terrainRotation == null)?null:new short[width * height];
+        featureRotation = (source.featureRotation == null)?null:new short[width * height];
+
+        forColumns(width, height, new ColumnTask() {
+            public void run(int first, int last) {
+                Vote    terrain = new Vote(TERRAIN_MASK + 1);
+                Vote    feature = new Vote(TERRAIN_MASK + 1);
+                Vote    area = new Vote(AREA_MASK + 1);
+
+                for (int x = first; x < last; x++) {
+                    for (int y=0; y < height; y++) {
+                        long    total = 0;
+                        int     count = 0;
+
+                        for (int sx = columns[x]; sx < columns[x+1]; sx++) {
+                            for (int sy = rows[y]; sy < rows[y+1]; sy++) {
+                                int     i = sx * sh + sy;
+                                int     code = source.codes[i];
+                                terrain.add(code & TERRAIN_MASK);
+                                feature.add((code >>> FEATURE_SHIFT) & TERRAIN_MASK);
+                                area.add(code >>> AREA_SHIFT);
+                                total += source.altitudeAt(i);
+                                count++;
+                            }
+                        }
+
+                        int     t = terrain.winner(), f = feature.winner(), a = area.winner();
+                        int     to = x * height + y;
+                        int     from = -1;
+                        for (int sx = columns[x]; from < 0 && sx < columns[x+1]; sx++) {
+                            for (int sy = rows[y]; sy < rows[y+1]; sy++) {
+                                if ((source.codes[sx * sh + sy] & TERRAIN_MASK) == t) {
+                                    from = sx * sh + sy;
+                                    break;
+                                }
+                            }
+                        }
+                        codes[to] = t | (f << FEATURE_SHIFT) | (a << AREA_SHIFT);
+                        chosen[to] = from;
+                        if (altitude != null) {
+                            altitude[to] = toShort(to, (int)Math.round((double)total / count));
+                        }
+                        if (terrainRotation != null) {
+                            terrainRotation[to] = source.terrainRotation[from];
+                        }
+                        if (featureRotation != null) {
+                            featureRotation[to] = source.featureRotation[from];
+                        }
+                        if (t == TERRAIN_OVERFLOW || f == TERRAIN_OVERFLOW || a == AREA_OVERFLOW) {
+                            downsampleOverflow(source, columns[x], columns[x+1],
+                                               rows[y], rows[y+1], to);
+                        }
+                    }
+                }
+            }
+        });
+
+        writable.clear();
+        highlighted.clear();
+        for (int i=0; i < width * height; i++) {
+            writable.set(i, source.writable.get(chosen[i]));
+            highlighted.set(i, source.highlighted.get(chosen[i]));
+        }
+        recountAltitudes();
+    }
+
+    /**
+     * Where the winning value for a block is one which is too large to be
+     * packed, use the object from the first tile in the block which has it.
+     */
+    private void
+    downsampleOverflow(PackedTiles source, int x1, int x2, int y1, int y2, int to) {
+        int     code = codes[to];
+        Object  t = null, f = null, a = null;
+
+        for (int sx = x1; sx < x2; sx++) {
+            for (int sy = y1; sy < y2; sy++) {
+                Integer     key = new Integer(sx * source.height + sy);
+                if (t == null) t = source.terrainOverflow.get(key);
+                if (f == null) f = source.featureOverflow.get(key);
+                if (a == null) a = source.areaOverflow.get(key);
+            }
+        }
+        if ((code & TERRAIN_MASK) == TERRAIN_OVERFLOW && t != null) {
+            terrainOverflow.put(new Integer(to), t);
+        }
+        if (((code >>> FEATURE_SHIFT) & TERRAIN_MASK) == TERRAIN_OVERFLOW && f != null) {
+            featureOverflow.put(new Integer(to), f);
+        }
+        if ((code >>> AREA_SHIFT) == AREA_OVERFLOW && a != null) {
+            areaOverflow.put(new Integer(to), a);
+        }
+    }
+
+    /**
+     * Counts votes for packed values, to find the most common. Only the
+     * values which have had votes are reset after each count, so it is
+     * cheap to use for small blocks.
+     */
+    private static class Vote {
+        private int[]   counts;
+        private int[]   seen;
+        private int     size = 0;
+
+        Vote(int values) {
+            counts = new int[values];
+            seen = new int[values];
+        }
+
+        void
+        add(int value) {
+            if (counts[value]++ == 0) {
+                seen[size++] = value;
+            }
+        }
+
+        /**
+         * Return the value with the most votes, and reset the counts.
+         */
+        int
+        winner() {
+            int     best = seen[0];
+            for (int i=0; i < size; i++) {
+                if (counts[seen[i]] > counts[best]) {
+                    best = seen[i];
+                }
+            }
+            for (int i=0; i < size; i++) {
+                counts[seen[i]] = 0;
+            }
+            size = 0;
+
+            return best;
+        }
+    }
+
+    /**
+     * Find the smallest rectangle which holds every tile in the given
+     * area. Only tiles whose area can be packed are looked at. The first
+     * call finds the bounds of every area at once. After that they are
+     * kept up to date as tiles are set, and an area is only searched for
+     * again if a tile on the edge of its bounds has been painted over.
+     *
+     * @return      Array of minX, minY, maxX, maxY, or null if no tile
+     *              is in the area.
+     */
+    int[]
+    findArea(Area area) {
+        if (area == null || area.getId() < 0 || area.getId() + 1 >= AREA_OVERFLOW) {
+            return null;
+        }
+        int     code = area.getId() + 1;
+
+        if (areaBounds == null) {
+            findAllAreas();
+        } else if (staleBounds.get(code)) {
+            clearBounds(areaBounds, code);
+            int[]   found = scanArea(code);
+            if (found != null) {
+                growBounds(areaBounds, code, found[0], found[1], found[2], found[3]);
+            }
+            staleBounds.clear(code);
+        }
+        if (areaBounds[code * 4 + 2] < 0) {
+            return null;
+        }
+        int[]   bounds = new int[4];
+        System.arraycopy(areaBounds, code * 4, bounds, 0, 4);
+
+        return bounds;
+    }
+
+    /**
+     * Search the map for the bounds of a single packed area value.
+     */
+    private int[]
+    scanArea(final int code) {
+        final int[]     bounds = { Integer.MAX_VALUE, Integer.MAX_VALUE, -1, -1 };
+
+        forColumns(width, height, new ColumnTask() {
+            public void run(int first, int last) {
+                int     minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+                int     maxX = -1, maxY = -1;
+                for (int x = first; x < last; x++) {
+                    int     i = x * height;
+                    for (int y=0; y < height; y++, i++) {
+                        if ((codes[i] >>> AREA_SHIFT) == code) {
+                            if (x < minX) minX = x;
+                            if (y < minY) minY = y;
+                            if (x > maxX) maxX = x;
+                            if (y > maxY) maxY = y;
+                        }
+                    }
+                }
+                synchronized (bounds) {
+                    bounds[0] = Math.min(bounds[0], minX);
+                    bounds[1] = Math.min(bounds[1], minY);
+                    bounds[2] = Math.max(bounds[2], maxX);
+                    bounds[3] = Math.max(bounds[3], maxY);
+                }
+            }
+        });
+
+        return (bounds[2] < 0)?null:bounds;
+    }
+
+    /**
+     * Find the bounds of every packed area value in a single pass, and
+     * start keeping track of them.
+     */
+    private void
+    findAllAreas() {
+        final int[]     all = new int[AREA_CODES * 4];
+
+        for (int c=0; c < AREA_CODES; c++) {
+            clearBounds(all, c);
+        }
+        forColumns(width, height, new ColumnTask() {
+            public void run(int first, int last) {
+                int[]   found = new int[AREA_CODES * 4];
+                for (int c=0; c < AREA_CODES; c++) {
+                    clearBounds(found, c);
+                }
+                for (int x = first; x < last; x++) {
+                    int     i = x * height;
+                    for (int y=0; y < height; y++, i++) {
+                        growBounds(found, codes[i] >>> AREA_SHIFT, x, y, x, y);
+                    }
+                }
+                synchronized (all) {
+                    for (int c=0; c < AREA_CODES; c++) {
+                        int     b = c * 4;
+                        if (found[b + 2] >= 0) {
+                            growBounds(all, c, found[b], found[b+1], found[b+2], found[b+3]);
+                        }
+                    }
+                }
+            }
+        });
+        areaBounds = all;
+        staleBounds = new BitSet(AREA_CODES);
+    }
+
+    private static void
+    clearBounds(int[] bounds, int code) {
+        int     b = code * 4;
+        bounds[b] = bounds[b + 1] = Integer.MAX_VALUE;
+        bounds[b + 2] = bounds[b + 3] = -1;
+    }
+
+    private static void
+    growBounds(int[] bounds, int code, int minX, int minY, int maxX, int maxY) {
+        int     b = code * 4;
+        if (minX < bounds[b]) bounds[b] = minX;
+        if (minY < bounds[b + 1]) bounds[b + 1] = minY;
+        if (maxX > bounds[b + 2]) bounds[b + 2] = maxX;
+        if (maxY > bounds[b + 3]) bounds[b + 3] = maxY;
+    }
+
+    /**
+     * Tiles within a rectangle have been changed from one area to another.
+     * The bounds of the new area grow to hold them, and those of the old
+     * area are stale if the rectangle reaches their edge.
+     */
+    private void
+    moveBounds(int from, int to, int minX, int minY, int maxX, int maxY) {
+        int     b = from * 4;
+        if (areaBounds[b + 2] >= 0 &&
+                (minX <= areaBounds[b] || minY <= areaBounds[b + 1] ||
+                 maxX >= areaBounds[b + 2] || maxY >= areaBounds[b + 3])) {
+            staleBounds.set(from);
+        }
+        growBounds(areaBounds, to, minX, minY, maxX, maxY);
+    }
+
+    /**
+     * The packed value used for a terrain, or -1 if it can't be packed.
+     */
+    static int
+    terrainCode(Terrain terrain) {
+        if (terrain == null) {
+            return 0;
+        }
+        int     id = terrain.getId();
+        return (id < 0 || id + 1 >= TERRAIN_OVERFLOW)?-1:(id + 1);
+    }
+
+    /**
+     * Can flood fills and labelling be done on the packed values, setting
+     * the given terrain and area (either of which may be null)? They can't
+     * if any tile, or either of the values, is too large to be packed.
+     */
+    boolean
+    canFill(Terrain terrain, Area area) {
+        return terrainOverflow.isEmpty() && areaOverflow.isEmpty() &&
+               terrainCode(terrain) >= 0 && areaCode(area) >= 0;
+    }
+
+    /**
+     * Set the terrain and its rotation of a tile and of every tile connected
+     * to it which has the same terrain. canFill() must be true for the terrain.
+     *
+     * @return      Bounds of the tiles changed, as minX, minY, maxX, maxY,
+     *              or null if the tile already has the terrain and rotation.
+     */
+    int[]
+    fillTerrain(int x, int y, Terrain terrain, short rotation) {
+        int     i = index(x, y);
+        int     code = terrainCode(terrain);
+
+        if ((codes[i] & TERRAIN_MASK) == code && terrainRotation(x, y) == rotation) {
+            return null;
+        } else if (terrain != null) {
+            checkCollections();
+            terrainById[code - 1] = terrain;
+        }
+        HexFill     fill = new HexFill(width, height);
+        int         count = fill.fill(codes, 0, TERRAIN_MASK, x, y);
+        for (int n=0; n < count; n++) {
+            int     j = fill.get(n);
+            codes[j] = (codes[j] & ~TERRAIN_MASK) | code;
+            setTerrainRotation(j / height, j % height, rotation);
+        }
+
+        return fill.getBounds();
+    }
+
+    /**
+     * Set the area of a tile and of every tile connected to it which is
+     * in the same area, and if sameTerrain is set, has the same terrain.
+     * canFill() must be true for the area.
+     *
+     * @return      Bounds of the tiles changed, as minX, minY, maxX, maxY,
+     *              or null if the tile is already in the area.
+     */
+    int[]
+    fillArea(int x, int y, Area area, boolean sameTerrain) {
+        int     i = index(x, y);
+        int     code = areaCode(area);
+        int     old = codes[i] >>> AREA_SHIFT;
+        int     mask = AREA_MASK << AREA_SHIFT;
+
+        if (old == code) {
+            return null;
+        } else if (area != null) {
+            checkCollections();
+            areaById[code - 1] = area;
+        }
+        if (sameTerrain) {
+            mask |= TERRAIN_MASK;
+        }
+        HexFill     fill = new HexFill(width, height);
+        int         count = fill.fill(codes, 0, mask, x, y);
+        for (int n=0; n < count; n++) {
+            int     j = fill.get(n);
+            codes[j] = (codes[j] & ~(AREA_MASK << AREA_SHIFT)) | (code << AREA_SHIFT);
+        }
+
+        int[]   bounds = fill.getBounds();
+        if (areaBounds != null) {
+            moveBounds(old, code, bounds[0], bounds[1], bounds[2], bounds[3]);
+        }
+        return bounds;
+    }
+
+    /**
+     * Number each connected group of land tiles, where land is any terrain
+     * which isn't water. canFill() must be true.
+     *
+     * @param labels    One int per tile, held by column, which is set to
+     *                  the group the tile is in, or zero if it isn't land.
+     * @return          Number of groups found.
+     */
+    int
+    labelLand(int[] labels) {
+        if (landCodes == null) {
+            landCodes = new boolean[TERRAIN_MASK + 1];
+        }
+        Arrays.fill(landCodes, false);
+        checkCollections();
+        if (terrainSet != null) {
+            Iterator    iter = terrainSet.iterator();
+            while (iter.hasNext()) {
+                Terrain     t = (Terrain)iter.next();
+                int         code = terrainCode(t);
+                if (code > 0) {
+                    landCodes[code] = !t.getWater();
+                }
+            }
+        }
+        for (int id=0; id + 1 < TERRAIN_OVERFLOW; id++) {
+            if (terrainById[id] != null) {
+                landCodes[id + 1] = !terrainById[id].getWater();
+            }
+        }
+
+        return new HexFill(width, height).label(codes, 0, TERRAIN_MASK, landCodes, labels);
+    }
+
+    /**
+     * The packed value used for an area, or -1 if the area can't be packed.
+     * Packed values are always less than AREA_CODES.
+     */
+    static int
+    areaCode(Area area) {
+        if (area == null) {
+            return 0;
+        }
+        int     id = area.getId();
+        return (id < 0 || id + 1 >= AREA_OVERFLOW)?-1:(id + 1);
+    }
+
+    /**
+     * Are there any tiles whose area couldn't be packed?
+     */
+    boolean
+    hasAreaOverflow() {
+        return !areaOverflow.isEmpty();
+    }
+
+    /**
+     * Make a copy of these tiles. The copy uses the same collections as
+     * the original, unless it is given a new owner with setOwner().
+     */
+    public Object clone() {
+        try {
+            PackedTiles     copy = (PackedTiles)super.clone();
+
+            copy.codes = (int[])codes.clone();
+            copy.altitude = (altitude == null)?null:(short[])altitude.clone();
+            copy.terrainRotation = (terrainRotation == null)?null:(short[])terrainRotation.clone();
+            copy.featureRotation = (featureRotation == null)?null:(short[])featureRotation.clone();
+            copy.writable = (BitSet)writable.clone();
+            copy.highlighted = (BitSet)highlighted.clone();
+            copy.terrainOverflow = (Hashtable)terrainOverflow.clone();
+            copy.featureOverflow = (Hashtable)featureOverflow.clone();
+            copy.areaOverflow = (Hashtable)areaOverflow.clone();
+            copy.altitudeOverflow = (Hashtable)altitudeOverflow.clone();
+            copy.terrainById = (Terrain[])terrainById.clone();
+            copy.featureById = (Terrain[])featureById.clone();
+            copy.areaById = (Area[])areaById.clone();
+            copy.areaBounds = (areaBounds == null)?null:(int[])areaBounds.clone();
+            copy.staleBounds = (staleBounds == null)?null:(BitSet)staleBounds.clone();
+
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Set the TileSet whose collections are used to find terrain and
+     * areas by id.
+     */
+    public void setOwner(ITileSet owner) {
+        this.owner = owner;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation version 2.
+ * See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.map.tilesets;
+
+import junit.framework.*;
+
+import net.sourceforge.mapcraft.map.elements.Area;
+import net.sourceforge.mapcraft.map.elements.Terrain;
+
+/**
+ * Check that PackedTiles gives back exactly what was put into it, for
+ * values which are packed and for those which are too large to pack.
+ */
+public class PackedTilesTest extends TestCase {
+    private static final int    WIDTH = 20, HEIGHT = 16;
+
+    // Every rotation the editor sets, for hex and square tiles.
+    private static final short[]    ROTATIONS = { 0, 60, 90, 120, 180, 240, 270, 300 };
+
+    private PackedTiles     tiles;
+
+    public void
+    setUp() {
+        tiles = new PackedTiles(null, WIDTH, HEIGHT);
+    }
+
+    /**
+     * Every legal rotation must read back as it was set, on the edges
+     * of the map as well as in the middle.
+     */
+    public void
+    testRotations() {
+        int[][]     positions = { { 0, 0 }, { WIDTH-1, 0 }, { 0, HEIGHT-1 },
+                                  { WIDTH-1, HEIGHT-1 }, { 7, 5 } };
+
+        for (int r=0; r < ROTATIONS.length; r++) {
+            for (int p=0; p < positions.length; p++) {
+                int     x = positions[p][0], y = positions[p][1];
+                short   other = ROTATIONS[(r + 3) % ROTATIONS.length];
+
+                tiles.setTerrainRotation(x, y, ROTATIONS[r]);
+                tiles.setFeatureRotation(x, y, other);
+                assertEquals("Terrain rotation at "+x+","+y, ROTATIONS[r],
+                             tiles.terrainRotation(x, y));
+                assertEquals("Feature rotation at "+x+","+y, other,
+                             tiles.featureRotation(x, y));
+            }
+        }
+
+        // And they must survive being copied.
+        tiles.setTerrainRotation(3, 4, (short)300);
+        PackedTiles     copy = (PackedTiles)tiles.clone();
+        assertEquals("Rotation lost by clone", 300, copy.terrainRotation(3, 4));
+        PackedTiles     other = new PackedTiles(null, WIDTH, HEIGHT);
+        other.copyFrom(tiles, 3, 4, 1, 1);
+        assertEquals("Rotation lost by copyFrom", 300, other.terrainRotation(1, 1));
+    }
+
+    /**
+     * Terrain and features with ids too large to pack are kept in the
+     * overflow tables, and are forgotten when the tile is set to a
+     * terrain which can be packed.
+     */
+    public void
+    testTerrainOverflow() {
+        Terrain     small = new Terrain(5, "small", "Small", "small.png");
+        int[]       ids = { 1021, 1022, 1023, 1024, 5000 };
+
+        for (int i=0; i < ids.length; i++) {
+            Terrain     big = new Terrain(ids[i], "big"+ids[i], "Big", "big.png");
+
+            tiles.setTerrain(0, 0, small);
+            tiles.setTerrain(1, 0, big);
+            tiles.setFeature(1, 0, big);
+            tiles.setTerrain(WIDTH-1, HEIGHT-1, big);
+
+            assertSame("Neighbour of overflowed terrain", small, tiles.terrain(0, 0));
+            assertSame("Terrain id "+ids[i], big, tiles.terrain(1, 0));
+            assertSame("Feature id "+ids[i], big, tiles.feature(1, 0));
+            assertSame("Terrain id "+ids[i]+" at corner", big, tiles.terrain(WIDTH-1, HEIGHT-1));
+            assertNull("Feature of corner", tiles.feature(WIDTH-1, HEIGHT-1));
+        }
+        tiles.setTerrain(1, 0, small);
+        assertSame("Overflow not replaced", small, tiles.terrain(1, 0));
+        tiles.setFeature(1, 0, null);
+        assertNull("Overflow not cleared", tiles.feature(1, 0));
+    }
+
+    /**
+     * Areas with ids too large to pack are kept in the overflow table.
+     */
+    public void
+    testAreaOverflow() {
+        Area        small = new Area(3, "small", "small");
+        int[]       ids = { 4093, 4094, 4095, 4096, 10000 };
+
+        for (int i=0; i < ids.length; i++) {
+            Area    big = new Area(ids[i], "big"+ids[i], "big"+ids[i]);
+
+            tiles.setArea(0, 0, small);
+            tiles.setArea(0, 1, big);
+            tiles.setArea(WIDTH-1, 0, big);
+
+            assertSame("Neighbour of overflowed area", small, tiles.area(0, 0));
+            assertSame("Area id "+ids[i], big, tiles.area(0, 1));
+            assertSame("Area id "+ids[i]+" at edge", big, tiles.area(WIDTH-1, 0));
+        }
+        PackedTiles     copy = (PackedTiles)tiles.clone();
+        assertEquals("Overflowed area lost by clone", 10000, copy.area(0, 1).getId());
+
+        tiles.setArea(0, 1, null);
+        assertNull("Overflow not cleared", tiles.area(0, 1));
+        assertEquals("Clone shares overflow table", 10000, copy.area(0, 1).getId());
+    }
+}
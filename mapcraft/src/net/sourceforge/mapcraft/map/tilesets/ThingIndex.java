@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation version 2.
+ * See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.map.tilesets;
+
+import java.util.*;
+
+import net.sourceforge.mapcraft.map.elements.Thing;
+
+/**
+ * Spatial index of the Things on a TileSet, so that the Things in an
+ * area of the map, or the Thing nearest to a point, can be found without
+ * looking at every Thing.
+ *
+ * The map is divided into a grid of square cells, each CELL_SIZE tiles
+ * across, and each cell holds a list of the Things within it. Things
+ * which are off the edge of the map are put in the nearest cell on the
+ * edge. Positions are in hundredths of a tile, the same as for Things.
+ *
+ * The index only knows where a Thing is when it is added or moved, so
+ * Things must be moved with move() rather than by changing their position
+ * directly.
+ *
+ * @author  Samuel Penn
+ * @version $Revision$
+ */
+class ThingIndex {
+    /** Width and height of each cell, in tiles. */
+    public static final int     CELL_SIZE = 8;
+
+    private static final int    CELL = CELL_SIZE * 100;
+
+    private int             columns;
+    private int             rows;
+    private ArrayList[]     cells;
+    private IdentityHashMap positions = new IdentityHashMap();
+
+    /**
+     * Create an empty index for a map of the given size.
+     *
+     * @param width     Width of the map, in tiles.
+     * @param height    Height of the map, in tiles.
+     */
+    ThingIndex(int width, int height) {
+        columns = Math.max(1, (width + CELL_SIZE - 1) / CELL_SIZE);
+        rows = Math.max(1, (height + CELL_SIZE - 1) / CELL_SIZE);
+        cells = new ArrayList[columns * rows];
+    }
+
+    /**
+     * Create an index for a map of the given size, holding all the
+     * Things in the list.
+     */
+    ThingIndex(int width, int height, List things) {
+        this(width, height);
+        for (int i=0; things != null && i < things.size(); i++) {
+            add((Thing)things.get(i));
+        }
+    }
+
+    private int
+    column(int x) {
+        return Math.max(0, Math.min(columns - 1, x / CELL));
+    }
+
+    private int
+    row(int y) {
+        return Math.max(0, Math.min(rows - 1, y / CELL));
+    }
+
+    void
+    add(Thing thing) {
+        if (thing == null || positions.containsKey(thing)) {
+            return;
+        }
+        int         cell = row(thing.getY()) * columns + column(thing.getX());
+
+        if (cells[cell] == null) {
+            cells[cell] = new ArrayList();
+        }
+        cells[cell].add(thing);
+        positions.put(thing, new Integer(cell));
+    }
+
+    void
+    remove(Thing thing) {
+        Integer     cell = (Integer)positions.remove(thing);
+
+        if (cell != null) {
+            ArrayList   list = cells[cell.intValue()];
+            for (int i=0; i < list.size(); i++) {
+                if (list.get(i) == thing) {
+                    list.remove(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Move a Thing to a new position, and update the index to match.
+     */
+    void
+    move(Thing thing, int x, int y) {
+        remove(thing);
+        thing.setPosition(x, y);
+        add(thing);
+    }
+
+    /**
+     * Find all the Things within a rectangle. The edges of the rectangle
+     * are included.
+     *
+     * @return      List of Things, in no particular order.
+     */
+    ArrayList
+    find(int minX, int minY, int maxX, int maxY) {
+        ArrayList   found = new ArrayList();
+
+        for (int r = row(minY); r <= row(maxY); r++) {
+            for (int c = column(minX); c <= column(maxX); c++) {
+                ArrayList   list = cells[r * columns + c];
+                for (int i=0; list != null && i < list.size(); i++) {
+                    Thing   thing = (Thing)list.get(i);
+                    if (thing.getX() >= minX && thing.getX() <= maxX &&
+                        thing.getY() >= minY && thing.getY() <= maxY) {
+                        found.add(thing);
+                    }
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Find the Thing nearest to a point. Cells are searched in rings
+     * outwards from the point, until no unsearched cell can hold anything
+     * nearer than the nearest Thing found so far.
+     *
+     * @param max       Things must be closer than this. If zero, then
+     *                  there is no limit.
+     * @return          Nearest Thing, or null if none are close enough.
+     */
+    Thing
+    nearest(int x, int y, int max) {
+        Thing       nearest = null;
+        long        min = -1;
+        long        limit = (long)max * max;
+        int         cx = column(x);
+        int         cy = row(y);
+        int         rings = Math.max(columns, rows);
+
+        for (int ring = 0; ring < rings; ring++) {
+            // Anything in this ring or beyond is at least this far away.
+            long    bound = (long)Math.max(0, ring - 1) * CELL;
+            bound *= bound;
+            if ((min != -1 && min <= bound) || (max != 0 && limit <= bound)) {
+                break;
+            }
+            for (int r = cy - ring; r <= cy + ring; r++) {
+                if (r < 0 || r >= rows) {
+                    continue;
+                }
+                for (int c = cx - ring; c <= cx + ring; c++) {
+                    if (c < 0 || c >= columns) {
+                        continue;
+                    }
+                    if (Math.abs(r - cy) != ring && Math.abs(c - cx) != ring) {
+                        // Only look at the edge of the ring.
+                        continue;
+                    }
+                    ArrayList   list = cells[r * columns + c];
+                    for (int i=0; list != null && i < list.size(); i++) {
+                        Thing   thing = (Thing)list.get(i);
+                        long    sx = x - thing.getX();
+                        long    sy = y - thing.getY();
+                        long    d = sx * sx + sy * sy;
+                        if ((min == -1 || d < min) && (max == 0 || d < limit)) {
+                            min = d;
+                            nearest = thing;
+                        }
+                    }
+                }
+            }
+        }
+
+        return nearest;
+    }
+}
@@ -17,6 +17,7 @@ import java.util.*;
 import net.sourceforge.mapcraft.map.*;
 import net.sourceforge.mapcraft.map.elements.*;
 import net.sourceforge.mapcraft.map.interfaces.ITileSet;
+import net.sourceforge.mapcraft.utils.Base64Codec;
 
 /**
  * Defines a set of tiles for use in a map. The set is a two
@@ -31,6 +32,7 @@ public class TileSet extends AbstractTileSet implements Cloneable {
     
     protected ArrayList paths = null;
     protected ArrayList things = null;
+    private ThingIndex  thingIndex = null;
 
 
     /**
@@ -44,6 +46,23 @@ public class TileSet extends AbstractTileSet implements Cloneable {
      */
     public TileSet(String name, int width, int height, int scale)
             throws InvalidArgumentException {
+        this(name, width, height, scale, null);
+    }
+
+    /**
+     * Create a new TileSet which uses the given tiles, for subclasses
+     * which store their tiles elsewhere. If no tiles are given, then
+     * they are created with createTiles().
+     *
+     * @param name      Name of this TileSet.
+     * @param width     Width, in tiles.
+     * @param height    Height, in tiles.
+     * @param scale     Scale, in whatever units are being used.
+     * @param tiles     Tiles of the right size, or null.
+     * @throws InvalidArgumentException
+     */
+    protected TileSet(String name, int width, int height, int scale, ITiles tiles)
+            throws InvalidArgumentException {
 
         if (name == null || name.length() == 0) {
             throw new InvalidArgumentException("TileSet name must not be empty");
@@ -65,14 +84,28 @@ public class TileSet extends AbstractTileSet implements Cloneable {
 
         paths = new ArrayList();
         things = new ArrayList();
+        thingIndex = new ThingIndex(mapWidth, mapHeight);
         System.out.println("Setting tiles");
-        this.tiles = new BasicTiles(mapWidth, mapHeight);
-        if (tiles == null) {
+        this.tiles = (tiles != null)?tiles:createTiles(mapWidth, mapHeight);
+        if (this.tiles == null) {
             System.out.println("Failed to set tiles");
             System.exit(0);
         }
     }
 
+    /**
+     * Create a new, empty, set of tiles of the given size. This is used
+     * when the map is created, cropped or rescaled.
+     *
+     * @param width     Width, in tiles.
+     * @param height    Height, in tiles.
+     * @return          New tiles.
+     */
+    protected ITiles
+    createTiles(int width, int height) {
+        return new PackedTiles(this, width, height);
+    }
+
     /**
      * Make a new copy of this TileSet object.
 
@@ -196,8 +229,8 @@ public class TileSet extends AbstractTileSet implements Cloneable {
             w+=1;
         }
         checkBounds(x, y);
-        checkBounds(x + w, y + h);
-        BasicTiles  cropped = new BasicTiles(w, h);
+        checkBounds(x + w - 1, y + h - 1);
+        ITiles      cropped = createTiles(w, h);
         cropTiles(cropped, x, y, w, h);
         
         tiles = cropped;
@@ -216,6 +249,15 @@ public class TileSet extends AbstractTileSet implements Cloneable {
         }
     }
 
+    /**
+     * Rebuild the spatial index of Things. Needed whenever the size of the
+     * map changes, or Things are moved other than by moveThing().
+     */
+    protected void
+    reindexThings() {
+        thingIndex = new ThingIndex(mapWidth, mapHeight, things);
+    }
+
     private void
     scaleAllPaths(double factor) {
         Path        path = null;
@@ -263,57 +305,131 @@ public class TileSet extends AbstractTileSet implements Cloneable {
         } else if (newScale < mapScale) {
             scaleSmaller(newScale);
         }
+        reindexThings();
         return;
     }
 
+    /**
+     * Work out which of the old tiles each new tile starts at, when the
+     * number of tiles is changed by rescaling. The array has an extra
+     * entry at the end, for the end of the last tile.
+     */
+    private int[]
+    scaleStarts(int newSize, int newScale) {
+        int[]       starts = new int[newSize + 1];
+        for (int i=0; i <= newSize; i++) {
+            starts[i] = (int)(((long)i * newScale) / mapScale);
+        }
+        return starts;
+    }
+
+    /**
+     * The new scale is larger than the current scale, so the map will get
+     * smaller. Each new tile covers a block of old tiles, and takes the
+     * terrain, feature and area which are most common in that block, and
+     * their average altitude.
+     */
     private void
     scaleLarger(int newScale) {
-        return;
+        int         newWidth = Math.max(1, (int)(((long)mapWidth * mapScale)/newScale));
+        int         newHeight = Math.max(1, (int)(((long)mapHeight * mapScale)/newScale));
+        int[]       columns = scaleStarts(newWidth, newScale);
+        int[]       rows = scaleStarts(newHeight, newScale);
+
+        System.out.println("scaleLarger: "+mapScale+" -> "+newScale+
+                           " ("+newWidth+"x"+newHeight+")");
+        columns[newWidth] = Math.min(Math.max(columns[newWidth], 1), mapWidth);
+        rows[newHeight] = Math.min(Math.max(rows[newHeight], 1), mapHeight);
+
+        ITiles      scaled = createTiles(newWidth, newHeight);
+        if (tiles instanceof PackedTiles && scaled instanceof PackedTiles) {
+            ((PackedTiles)scaled).downsample((PackedTiles)tiles, columns, rows);
+        } else {
+            for (int x=0; x < newWidth; x++) {
+                for (int y=0; y < newHeight; y++) {
+                    downsampleTile(scaled, x, y, columns[x], columns[x+1],
+                                   rows[y], rows[y+1]);
+                }
+            }
+        }
+        mapWidth = newWidth;
+        mapHeight = newHeight;
+        tiles = scaled;
+        mapScale = newScale;
+    }
+
+    /**
+     * Set one tile from a block of the current tiles, one tile at a time,
+     * for tiles which can't be downsampled in bulk.
+     */
+    private void
+    downsampleTile(ITiles scaled, int x, int y, int x1, int x2, int y1, int y2) {
+        ArrayList   terrain = new ArrayList();
+        ArrayList   feature = new ArrayList();
+        ArrayList   area = new ArrayList();
+        long        total = 0;
+
+        for (int ox = x1; ox < x2; ox++) {
+            for (int oy = y1; oy < y2; oy++) {
+                terrain.add(tiles.terrain(ox, oy));
+                feature.add(tiles.feature(ox, oy));
+                area.add(tiles.area(ox, oy));
+                total += tiles.altitude(ox, oy);
+            }
+        }
+        int     first = terrain.indexOf(mostCommon(terrain));
+        scaled.copyFrom(tiles, x1 + first / (y2-y1), y1 + first % (y2-y1), x, y);
+        scaled.setFeature(x, y, (Terrain)mostCommon(feature));
+        scaled.setArea(x, y, (Area)mostCommon(area));
+        scaled.setAltitude(x, y, (int)Math.round((double)total / terrain.size()));
+    }
+
+    /**
+     * Find the most common value in a list. If there is a tie, then the
+     * value which is first in the list is returned.
+     */
+    private static Object
+    mostCommon(ArrayList values) {
+        IdentityHashMap counts = new IdentityHashMap();
+        Object          best = null;
+        int             max = 0;
+
+        for (int i=0; i < values.size(); i++) {
+            int[]   count = (int[])counts.get(values.get(i));
+            if (count == null) {
+                count = new int[1];
+                counts.put(values.get(i), count);
+            }
+            count[0]++;
+        }
+        for (int i=0; i < values.size(); i++) {
+            int     count = ((int[])counts.get(values.get(i)))[0];
+            if (count > max) {
+                max = count;
+                best = values.get(i);
+            }
+        }
+        return best;
     }
 
     /**
      * The new scale is smaller than current scale, so the map will get
-     * bigger.
+     * bigger. Each old tile is copied to all the new tiles which it covers.
      */
     private void
     scaleSmaller(int newScale) {
         System.out.println("scaleSmaller: "+mapScale+" -> "+newScale);
-        if (mapScale%newScale != 0) {
-            // Can only cope with exact multiples.
-            //return false;
-        }
 
-        double      factor = mapScale / newScale;
-        int         newWidth = (mapWidth * mapScale)/newScale;
-        int         newHeight = (mapHeight * mapScale)/newScale;
+        int         newWidth = (int)(((long)mapWidth * mapScale)/newScale);
+        int         newHeight = (int)(((long)mapHeight * mapScale)/newScale);
 
         System.out.println("New width x height = "+newWidth+"x"+newHeight);
 
-        BasicTiles    scaled = new BasicTiles(newWidth, newHeight);
-
-        // top and bottom take care of the gaps caused by hexes at
-        // the top and bottom edges of the map.
-        for (int x=0; x < newWidth; x++) {
-            boolean     xIsEven = (((x * mapScale)/newScale)%2 == 0);
-            int         ox = (x * newScale)/mapScale;
-
-            int         top = (int)(0.5 + (0.5 * mapScale / newScale));
-            int         bottom = (int)(0.5 * mapScale / newScale);
+        ITiles      scaled = createTiles(newWidth, newHeight);
+        int[]       columns = scaleStarts(newWidth - 1, newScale);
+        int[]       rows = scaleStarts(newHeight - 1, newScale);
 
-            if (xIsEven) {
-                for (int y = newHeight - bottom; y < newHeight; y++) {
-                    scaled.copyFrom(tiles, ox, mapHeight-1, x, y);
-                }
-            } else {
-                for (int y = 0; y < top; y++) {
-                    scaled.copyFrom(tiles, ox, 0, x, y);
-                }
-            }
-            for (int y = 0; y < newHeight; y++) {
-                int     oy = (y * newScale)/mapScale;
-                scaled.copyFrom(tiles, ox, oy, x, y);
-            }
-        }
+        copyTiles(tiles, scaled, 0, 0, columns, rows);
         mapWidth = newWidth;
         mapHeight = newHeight;
         tiles = scaled;
@@ -416,26 +532,39 @@ public class TileSet extends AbstractTileSet implements Cloneable {
         boolean found = false;
 
         minX = minY = maxX = maxY = -1;
-        for (x=0; x < mapWidth; x++) {
-            for (y=0; y < mapHeight; y++) {
-                try {
-                    if (getArea(x, y).equals(area)) {
-                        if (!found || x < minX) {
-                            minX = x;
-                        }
-                        if (!found || x > maxX) {
-                            maxX = x;
-                        }
-                        if (!found || y < minY) {
-                            minY = y;
-                        }
-                        if (!found || y > maxY) {
-                            maxY = y;
+        if (area != null && tiles instanceof PackedTiles &&
+                !((PackedTiles)tiles).hasAreaOverflow()) {
+            int[]   bounds = ((PackedTiles)tiles).findArea(area);
+            if (bounds != null) {
+                minX = bounds[0];
+                minY = bounds[1];
+                maxX = bounds[2];
+                maxY = bounds[3];
+                found = true;
+            }
+        } else {
+            for (x=0; x < mapWidth; x++) {
+                for (y=0; y < mapHeight; y++) {
+                    try {
+                        Area    a = getArea(x, y);
+                        if (a != null && a.equals(area)) {
+                            if (!found || x < minX) {
+                                minX = x;
+                            }
+                            if (!found || x > maxX) {
+                                maxX = x;
+                            }
+                            if (!found || y < minY) {
+                                minY = y;
+                            }
+                            if (!found || y > maxY) {
+                                maxY = y;
+                            }
+                            found = true;
                         }
-                        found = true;
+                    } catch (MapOutOfBoundsException moobe) {
+                        System.out.println(moobe);
                     }
-                } catch (MapOutOfBoundsException moobe) {
-                    System.out.println(moobe);
                 }
             }
         }
@@ -555,6 +684,7 @@ public class TileSet extends AbstractTileSet implements Cloneable {
     void
     setThings(ArrayList things) {
         this.things = things;
+        reindexThings();
     }
 
     public Path[] getPaths() {
@@ -565,6 +695,63 @@ public class TileSet extends AbstractTileSet implements Cloneable {
         return (Thing[])things.toArray(new Thing[1]);
     }
 
+    /**
+     * Get all the Things within a rectangle, which is given in hundredths
+     * of a tile, the same as the position of each Thing. The edges of the
+     * rectangle are included.
+     *
+     * @return      Array of Things, which may be empty.
+     */
+    public Thing[]
+    getThings(int minX, int minY, int maxX, int maxY) {
+        ArrayList   list = thingIndex.find(minX, minY, maxX, maxY);
+
+        return (Thing[])list.toArray(new Thing[list.size()]);
+    }
+
+    /**
+     * Find the Thing nearest to the given position.
+     *
+     * @param x     X coordinate, in hundredths of a tile.
+     * @param y     Y coordinate, in hundredths of a tile.
+     * @param max   Maximum distance to look, or zero for no limit.
+     * @return      Nearest Thing, or null if none within range.
+     */
+    public Thing
+    getNearestThing(int x, int y, int max) {
+        return thingIndex.nearest(x, y, max);
+    }
+
+    /**
+     * Move a Thing to a new position, keeping the spatial index up to
+     * date. Things in this TileSet should always be moved this way.
+     */
+    public void
+    moveThing(Thing thing, int x, int y) {
+        thingIndex.move(thing, x, y);
+    }
+
+    /**
+     * Get all the Paths which have at least part of their bounding box
+     * within a rectangle, given in hundredths of a tile.
+     *
+     * @return      Array of Paths, which may be empty.
+     */
+    public Path[]
+    getPaths(int minX, int minY, int maxX, int maxY) {
+        ArrayList   list = new ArrayList();
+
+        for (int i=0; i < paths.size(); i++) {
+            Path    path = (Path)paths.get(i);
+            if (path.getMaxX() >= minX && path.getMinX() <= maxX &&
+                path.getMaxY() >= minY && path.getMinY() <= maxY) {
+                list.add(path);
+            }
+        }
+
+        return (Path[])list.toArray(new Path[list.size()]);
+    }
+
     /**
      * Get a list of the names of all the things in this TileSet.
      * The list is returned as an array of Strings. It is not guaranteed
@@ -682,19 +869,18 @@ public class TileSet extends AbstractTileSet implements Cloneable {
 
     void
     removeThing(int id) {
-        things.remove(id);
+        thingIndex.remove((Thing)things.remove(id));
     }
 
     public void addThing(Thing thing) {
         things.add(thing);
+        thingIndex.add(thing);
     }
 
 
 
 
-    public static final String BASE64 = new String("ABCDEFGHIJKLMNOPQRSTUVWXYZ"+
-                                                   "abcdefghijklmnopqrstuvwxyz"+
-                                                   "0123456789");
+    public static final String BASE64 = Base64Codec.DIGITS;
 
     /**
      * Convert an integer into its Base64 representation as a string
@@ -703,20 +889,7 @@ public class TileSet extends AbstractTileSet implements Cloneable {
      */
     public static String
     toBase64(int value, int width) {
-        String  result = "";
-
-        while (value > 0) {
-            int     digit = value % 64;
-            value /= 64; // Integer division.
-
-            result = BASE64.substring(digit, digit+1) + result;
-        }
-
-        while (result.length() < width) {
-            result = "A"+result;
-        }
-
-        return result;
+        return Base64Codec.encode(value, width);
     }
 
     /**
@@ -724,16 +897,7 @@ public class TileSet extends AbstractTileSet implements Cloneable {
      */
     public static int
     fromBase64(String base64) {
-        int         value = 0;
-        int         i = 0;
-        int         c = 0;
-
-        for (i = 0; i < base64.length(); i++) {
-            c = BASE64.indexOf(base64.substring(i, i+1));
-            value += c * (int)Math.pow(64, base64.length() - i -1);
-        }
-
-        return value;
+        return Base64Codec.decode(base64, 0, base64.length());
     }
 
 
@@ -759,6 +923,86 @@ public class TileSet extends AbstractTileSet implements Cloneable {
         setArea(toX, toY, source.getArea(fromX, fromY));
     }
 
+    /**
+     * Copy all the tiles of another TileSet over the tiles of this one,
+     * where they overlap. The tile at (x, y) in the source is copied to
+     * (x - dx, y - dy) in this TileSet.
+     *
+     * Areas are converted using the table, which maps Areas used by the
+     * source to Areas of this TileSet. Tiles with no area in the source,
+     * or with an Area which isn't in the table, are given no area.
+     *
+     * @param source    TileSet to copy tiles from. It is not changed.
+     * @param dx        X offset of this TileSet within the source.
+     * @param dy        Y offset of this TileSet within the source.
+     * @param areas     Table of source Areas to Areas of this TileSet.
+     */
+    public void
+    merge(ITileSet source, int dx, int dy, Hashtable areas) {
+        int         minX = Math.max(0, dx);
+        int         minY = Math.max(0, dy);
+        int         maxX = Math.min(source.getMapWidth(), mapWidth + dx);
+        int         maxY = Math.min(source.getMapHeight(), mapHeight + dy);
+
+        if (maxX <= minX || maxY <= minY) {
+            return;
+        }
+        int[]       columns = range(minX, maxX - minX);
+        int[]       rows = range(minY, maxY - minY);
+        int[]       codes = mergeCodes(source, areas);
+
+        if (codes != null) {
+            ((PackedTiles)tiles).resample((PackedTiles)((TileSet)source).tiles,
+                                          minX - dx, minY - dy, columns, rows, codes);
+            return;
+        }
+        try {
+            for (int x = minX; x < maxX; x++) {
+                for (int y = minY; y < maxY; y++) {
+                    Area    b = source.getArea(x, y);
+
+                    copy(source, x, y, x - dx, y - dy);
+                    setHighlighted(x - dx, y - dy, source.isHighlighted(x, y));
+                    setArea(x - dx, y - dy, (b == null)?null:(Area)areas.get(b));
+                }
+            }
+        } catch (MapOutOfBoundsException e) {
+            // Only tiles within both TileSets are copied.
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * If tiles can be merged from the source in bulk, work out the packed
+     * area to set for each packed area in the source. Areas which aren't
+     * in the table become zero, which is no area. Returns null if the
+     * tiles must be merged one by one.
+     */
+    private int[]
+    mergeCodes(ITileSet source, Hashtable areas) {
+        if (!(source instanceof TileSet) || !(tiles instanceof PackedTiles) ||
+                !(((TileSet)source).tiles instanceof PackedTiles)) {
+            return null;
+        }
+        PackedTiles     from = (PackedTiles)((TileSet)source).tiles;
+        int[]           codes = new int[PackedTiles.AREA_CODES];
+
+        if (from.hasAreaOverflow() || ((PackedTiles)tiles).hasAreaOverflow()) {
+            return null;
+        }
+        Iterator    iter = areas.keySet().iterator();
+        while (iter.hasNext()) {
+            Area    key = (Area)iter.next();
+            int     b = PackedTiles.areaCode(key);
+            int     a = PackedTiles.areaCode((Area)areas.get(key));
+            if (a < 0 || b < 0) {
+                return null;
+            }
+            codes[b] = a;
+        }
+        return codes;
+    }
+
     /* (non-Javadoc)
      * @see net.sourceforge.mapcraft.map.interfaces.ITileSet#setPaths(net.sourceforge.mapcraft.map.elements.Path[])
      */
@@ -778,14 +1022,16 @@ public class TileSet extends AbstractTileSet implements Cloneable {
         
         for (int i=0; things != null && i < things.length; i++) {
             this.things.add(things[i]);
-        }        
+        }
+        reindexThings();
     }
 
     /* (non-Javadoc)
      * @see net.sourceforge.mapcraft.map.interfaces.ITileSet#removeThing(net.sourceforge.mapcraft.map.elements.Thing)
      */
     public void removeThing(Thing thing) {
-        things.remove(thing);        
+        things.remove(thing);
+        thingIndex.remove(thing);
     }
     
 
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation version 2.
+ * See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.utils;
+
+/**
+ * Encodes and decodes the base 64 numbers used for tile blobs in map
+ * files. Each digit is one character, most significant first, using the
+ * alphabet below, so 'A' is zero. Lookups are done with tables, and
+ * numbers can be written to and read from char arrays, so that encoding
+ * and decoding whole columns of tiles doesn't create any objects.
+ *
+ * Characters which aren't in the alphabet decode as -1, as they always
+ * have done.
+ *
+ * @author Samuel Penn
+ */
+public final class Base64Codec {
+    public static final String  DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ"+
+                                         "abcdefghijklmnopqrstuvwxyz"+
+                                         "0123456789+/";
+
+    private static final char[] ENCODE = DIGITS.toCharArray();
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        for (int i=0; i < DECODE.length; i++) {
+            DECODE[i] = -1;
+        }
+        for (int i=0; i < ENCODE.length; i++) {
+            DECODE[ENCODE[i]] = (byte)i;
+        }
+    }
+
+    private Base64Codec() {
+    }
+
+    /**
+     * Write a number into a buffer as exactly 'width' digits, padded with
+     * 'A' (0). Negative numbers are written as zero.
+     *
+     * @param value     Number to encode.
+     * @param width     Number of digits to write.
+     * @param buffer    Buffer to write into.
+     * @param offset    Position in the buffer of the first digit.
+     * @throws IllegalArgumentException if the number needs more digits,
+     *                                  in which case the buffer is unchanged.
+     */
+    public static void
+    encode(int value, int width, char[] buffer, int offset) {
+        if (value < 0) {
+            value = 0;
+        }
+        // Six digits hold 36 bits, so any int fits in that many.
+        if (width < 6 && (value >>> (6 * width)) != 0) {
+            throw new IllegalArgumentException("Value too large for "+width+" digits");
+        }
+        for (int i = offset + width - 1; i >= offset; i--) {
+            buffer[i] = ENCODE[value & 63];
+            value >>>= 6;
+        }
+    }
+
+    /**
+     * Convert a number into a string of at least the given number of
+     * digits. If the number needs more digits, the string will be longer.
+     *
+     * @param value     Number to encode.
+     * @param width     Minimum number of digits.
+     * @return          Encoded number.
+     */
+    public static String
+    encode(int value, int width) {
+        int     digits = 1;
+        if (value < 0) {
+            value = 0;
+        }
+        while (value >>> (6 * digits) != 0 && digits < 6) {
+            digits++;
+        }
+        char[]  buffer = new char[Math.max(width, digits)];
+        encode(value, buffer.length, buffer, 0);
+
+        return new String(buffer);
+    }
+
+    /**
+     * Gets the value of a single digit, or -1 if it isn't a valid digit.
+     */
+    public static int
+    decode(char c) {
+        return (c < 128)?DECODE[c]:-1;
+    }
+
+    /**
+     * Read a number from part of a char array.
+     *
+     * @param buffer    Buffer to read from.
+     * @param offset    Position of the most significant digit.
+     * @param length    Number of digits.
+     * @return          Decoded number.
+     */
+    public static int
+    decode(char[] buffer, int offset, int length) {
+        int     value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = value * 64 + decode(buffer[i]);
+        }
+        return value;
+    }
+
+    /**
+     * Read a number from part of a string, without copying it.
+     *
+     * @param text      Text to read from.
+     * @param offset    Position of the most significant digit.
+     * @param length    Number of digits.
+     * @return          Decoded number.
+     */
+    public static int
+    decode(CharSequence text, int offset, int length) {
+        int     value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = value * 64 + decode(text.charAt(i));
+        }
+        return value;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation version 2.
+ * See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.utils;
+
+import junit.framework.*;
+
+import net.sourceforge.mapcraft.xml.MapXML;
+
+/**
+ * Check that numbers survive being encoded and decoded, and that bad
+ * input is dealt with the way it always has been.
+ */
+public class Base64CodecTest extends TestCase {
+
+    /**
+     * Every terrain id must come back as it went in, whichever form of
+     * encode and decode is used.
+     */
+    public void
+    testRoundTrip() {
+        char[]      buffer = new char[4];
+
+        for (int value=0; value <= MapXML.MAXTYPES; value++) {
+            String  text = Base64Codec.encode(value, 2);
+
+            assertEquals("Width of "+value, 2, text.length());
+            assertEquals("String "+value, value, Base64Codec.decode(text, 0, 2));
+            assertEquals("MapXML "+value, value,
+                         MapXML.fromBase64(MapXML.toBase64(value, 2)));
+
+            Base64Codec.encode(value, 2, buffer, 1);
+            assertEquals("Buffer "+value, text, new String(buffer, 1, 2));
+            assertEquals("Buffer "+value, value, Base64Codec.decode(buffer, 1, 2));
+        }
+        assertEquals("Largest two digit number", "//", Base64Codec.encode(4095, 2));
+        assertEquals("Negative number", "AA", Base64Codec.encode(-5, 2));
+        assertEquals("Long string", 4096, MapXML.fromBase64(MapXML.toBase64(4096, 2)));
+        assertEquals("Largest int", Integer.MAX_VALUE,
+                     MapXML.fromBase64(MapXML.toBase64(Integer.MAX_VALUE, 1)));
+    }
+
+    /**
+     * A number which doesn't fit must be rejected before anything is
+     * written into the caller's buffer.
+     */
+    public void
+    testOverflow() {
+        char[]      buffer = "xxxx".toCharArray();
+
+        try {
+            Base64Codec.encode(4096, 2, buffer, 1);
+            fail("No exception for a number which is too large");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        assertEquals("Buffer written on overflow", "xxxx", new String(buffer));
+
+        Base64Codec.encode(Integer.MAX_VALUE, 6, new char[6], 0);
+    }
+
+    /**
+     * Characters outside the alphabet decode to -1.
+     */
+    public void
+    testInvalidCharacters() {
+        char[]      invalid = { '!', ' ', '=', (char)127, (char)200, (char)0x20AC };
+
+        for (int i=0; i < invalid.length; i++) {
+            assertEquals("Character "+(int)invalid[i], -1, Base64Codec.decode(invalid[i]));
+        }
+        assertEquals("Valid digit", 63, Base64Codec.decode('/'));
+        assertEquals("Single invalid digit", -1, MapXML.fromBase64("!"));
+        assertEquals("Invalid low digit", 64 - 1, MapXML.fromBase64("B!"));
+    }
+}
@@ -95,6 +95,10 @@ public class MapFileFilter extends FileFilter {
 			if(extension != null && extension.equals(MAP_EXTENSION)) {
 				return true;
 			}
+			// Compressed maps are loaded in the same way.
+			if (f.getName().toLowerCase().endsWith("."+MAP_EXTENSION+".gz")) {
+				return true;
+			}
 		}
 		return false;
 	}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation version 2.
+ * See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.xml;
+
+import net.sourceforge.mapcraft.map.*;
+import net.sourceforge.mapcraft.map.tilesets.TileSet;
+
+/**
+ * Compares the time taken to encode and decode every tile of a large
+ * TileSet as blobs, using the original String based base 64 functions
+ * and using Base64Codec. Each is run a few times first so that only the
+ * encoding and decoding is being measured.
+ *
+ * Usage: BlobBenchmark [size [iterations]]
+ *
+ * @author  Samuel Penn
+ * @version $Revision$
+ */
+public class BlobBenchmark {
+    private static final int    WARMUP = 3;
+
+    /**
+     * The original implementation of toBase64(), kept for comparison.
+     */
+    private static String
+    legacyToBase64(int value, int width) {
+        String  result = "";
+
+        while (value > 0) {
+            int     digit = value % 64;
+            value /= 64; // Integer division.
+
+            result = MapXML.BASE64.substring(digit, digit+1) + result;
+        }
+
+        while (result.length() < width) {
+            result = "A"+result;
+        }
+
+        return result;
+    }
+
+    /**
+     * The original implementation of fromBase64(), kept for comparison.
+     */
+    private static int
+    legacyFromBase64(String base64) {
+        int         value = 0;
+        int         i = 0;
+        int         c = 0;
+
+        for (i = 0; i < base64.length(); i++) {
+            c = MapXML.BASE64.indexOf(base64.substring(i, i+1));
+            value += c * (int)Math.pow(64, base64.length() - i -1);
+        }
+
+        return value;
+    }
+
+    private static String
+    legacyTileToBlob(TileSet tiles, int x, int y) throws MapOutOfBoundsException {
+        String  t, h = "AA", m, a, c = "A", f = "A";
+
+        t = legacyToBase64(tiles.getTerrain(x, y).getId(), 2);
+        m = legacyToBase64(tiles.getFeature(x, y).getId(), 2);
+        a = legacyToBase64(tiles.getArea(x, y).getId(), 2);
+
+        return t + h + m + a + c + f + " ";
+    }
+
+    private static void
+    legacyBlobToTile(String blob, TileSet tiles, int x, int y) {
+        MapXML.setTile(tiles, x, y,
+                       (short)legacyFromBase64(blob.substring(0, 2)),
+                       (short)legacyFromBase64(blob.substring(2, 4)),
+                       (short)legacyFromBase64(blob.substring(4, 6)),
+                       legacyFromBase64(blob.substring(6, 8)));
+    }
+
+    private static long
+    legacyEncode(TileSet tiles, String[] columns) throws MapOutOfBoundsException {
+        long    start = System.nanoTime();
+        for (int x=0; x < tiles.getMapWidth(); x++) {
+            StringBuffer    column = new StringBuffer();
+            for (int y=0; y < tiles.getMapHeight(); y++) {
+                column.append(legacyTileToBlob(tiles, x, y));
+            }
+            columns[x] = column.toString();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long
+    legacyDecode(TileSet tiles, String[] columns) {
+        long    start = System.nanoTime();
+        for (int x=0; x < tiles.getMapWidth(); x++) {
+            for (int y=0; y < tiles.getMapHeight(); y++) {
+                int     i = y * (MapXML.BLOBSIZE+1);
+                legacyBlobToTile(columns[x].substring(i, i + MapXML.BLOBSIZE), tiles, x, y);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long
+    codecEncode(TileSet tiles, char[][] columns) {
+        long    start = System.nanoTime();
+        for (int x=0; x < tiles.getMapWidth(); x++) {
+            for (int y=0; y < tiles.getMapHeight(); y++) {
+                MapXML.tileToBlob(tiles, x, y, columns[x], y * (MapXML.BLOBSIZE+1));
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long
+    codecDecode(TileSet tiles, char[][] columns) {
+        long    start = System.nanoTime();
+        for (int x=0; x < tiles.getMapWidth(); x++) {
+            for (int y=0; y < tiles.getMapHeight(); y++) {
+                MapXML.blobToTile(columns[x], y * (MapXML.BLOBSIZE+1), tiles, x, y);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void
+    main(String[] args) throws Exception {
+        int         size = (args.length > 0)?Integer.parseInt(args[0]):1000;
+        int         iterations = (args.length > 1)?Integer.parseInt(args[1]):5;
+
+        TerrainSet  terrain = new TerrainSet("terrain", "terrain");
+        TerrainSet  features = new TerrainSet("features", "features");
+        AreaSet     areas = new AreaSet();
+        for (short i=0; i < 60; i++) {
+            terrain.add(i, "t"+i, "Terrain "+i, "t"+i+".png");
+            features.add(i, "f"+i, "Feature "+i, "f"+i+".png");
+            areas.add(i, "a"+i, "a"+i);
+        }
+
+        TileSet     tiles = new TileSet("benchmark", size, size, 1);
+        tiles.setCollections(terrain, features, areas);
+        for (int x=0; x < size; x++) {
+            for (int y=0; y < size; y++) {
+                tiles.setTerrain(x, y, terrain.getTerrain((x + y) % 60));
+                tiles.setFeature(x, y, features.getTerrain((x * y) % 60));
+                tiles.setArea(x, y, areas.getArea(x % 60));
+            }
+        }
+
+        String[]    strings = new String[size];
+        char[][]    buffers = new char[size][size * (MapXML.BLOBSIZE+1)];
+        long        le = 0, ld = 0, ce = 0, cd = 0;
+
+        for (int i=0; i < WARMUP + iterations; i++) {
+            long    t;
+            t = legacyEncode(tiles, strings);
+            if (i >= WARMUP) le += t;
+            t = legacyDecode(tiles, strings);
+            if (i >= WARMUP) ld += t;
+            t = codecEncode(tiles, buffers);
+            if (i >= WARMUP) ce += t;
+            t = codecDecode(tiles, buffers);
+            if (i >= WARMUP) cd += t;
+        }
+
+        for (int x=0; x < size; x++) {
+            if (!strings[x].equals(new String(buffers[x]))) {
+                System.out.println("Blobs differ in column "+x);
+                return;
+            }
+        }
+
+        System.out.println(size+"x"+size+" tiles, "+iterations+" iterations");
+        System.out.println("Encode, legacy: "+(le / iterations / 1000000)+"ms");
+        System.out.println("Encode, codec:  "+(ce / iterations / 1000000)+"ms");
+        System.out.println("Decode, legacy: "+(ld / iterations / 1000000)+"ms");
+        System.out.println("Decode, codec:  "+(cd / iterations / 1000000)+"ms");
+    }
+}
@@ -15,10 +15,13 @@ package net.sourceforge.mapcraft.xml;
 import net.sourceforge.mapcraft.map.*;
 import net.sourceforge.mapcraft.map.elements.*;
 import net.sourceforge.mapcraft.map.interfaces.ITileSet;
+import net.sourceforge.mapcraft.map.tilesets.MappedTileSet;
 import net.sourceforge.mapcraft.map.tilesets.TileSet;
+import net.sourceforge.mapcraft.utils.Base64Codec;
 
 import java.io.*;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 import java.net.*;
 
 
@@ -55,10 +58,13 @@ public class MapXML {
     protected String        imagedir;
     protected String        tileShape;
 
+    // Directory the map was loaded from, which tile files are relative to.
+    protected File          directory = null;
+
     public static final int    MAXTYPES = 512;
-    public static final String BASE64 = new String("ABCDEFGHIJKLMNOPQRSTUVWXYZ"+
-                                                   "abcdefghijklmnopqrstuvwxyz"+
-                                                   "0123456789");
+    public static final int    BLOBSIZE = 10;
+    public static final int    BUFFER_SIZE = 65536;
+    public static final String BASE64 = Base64Codec.DIGITS;
 
     public static final String SQUARE = "Square";
     public static final String HEXAGONAL = "Hexagonal";
@@ -66,10 +72,10 @@ public class MapXML {
     public static final String LOCAL = "Local";
     public static final String WORLD = "World";
     
-    private TerrainSet  terrainSet = null;
-    private TerrainSet  featureSet = null;
-    private TerrainSet  thingSet = null;
-    private AreaSet     areaSet = null;
+    protected TerrainSet  terrainSet = null;
+    protected TerrainSet  featureSet = null;
+    protected TerrainSet  thingSet = null;
+    protected AreaSet     areaSet = null;
 
     private void
     debug(String message) {
@@ -97,20 +103,7 @@ public class MapXML {
      */
     public static String
     toBase64(int value, int width) {
-        String  result = "";
-
-        while (value > 0) {
-            int     digit = value % 64;
-            value /= 64; // Integer division.
-
-            result = BASE64.substring(digit, digit+1) + result;
-        }
-
-        while (result.length() < width) {
-            result = "A"+result;
-        }
-
-        return result;
+        return Base64Codec.encode(value, width);
     }
 
     /**
@@ -118,16 +111,7 @@ public class MapXML {
      */
     public static int
     fromBase64(String base64) {
-        int         value = 0;
-        int         i = 0;
-        int         c = 0;
-
-        for (i = 0; i < base64.length(); i++) {
-            c = BASE64.indexOf(base64.substring(i, i+1));
-            value += c * (int)Math.pow(64, base64.length() - i -1);
-        }
-
-        return value;
+        return Base64Codec.decode(base64, 0, base64.length());
     }
     
     /**
@@ -140,31 +124,48 @@ public class MapXML {
      * @return          10 character string of blob data.
      */
     public static String tileToBlob(ITileSet tiles, int x, int y) {
-        String  blob = null;
-        String  t="AA", h="AA", m="AA", c="A", f="A", a="AA";
+        char[]  blob = new char[BLOBSIZE+1];
+
+        tileToBlob(tiles, x, y, blob, 0);
+        
+        return new String(blob);
+    }
+    
+    /**
+     * Write the blob for a tile into a buffer. The blob is followed by
+     * a space, so BLOBSIZE+1 characters are written.
+     * 
+     * @param tiles     TileSet to retrieve tile from.
+     * @param x         X coordinate of tile to convert.
+     * @param y         Y coordinate of tile to convert.
+     * @param buffer    Buffer to write to.
+     * @param offset    Position in buffer to start writing at.
+     */
+    public static void tileToBlob(ITileSet tiles, int x, int y, char[] buffer, int offset) {
+        for (int i=0; i < BLOBSIZE; i++) {
+            buffer[offset + i] = 'A';
+        }
+        buffer[offset + BLOBSIZE] = ' ';
 
         try {
             int   tmp = 0;
             
             tmp = tiles.getTerrain(x, y).getId();
             tmp += tiles.getTerrainRotation(x, y)*MAXTYPES;
-            t = MapXML.toBase64(tmp, 2);
-            h = "AA"; // TODO: Implement altitude for blobs.
+            Base64Codec.encode(tmp, 2, buffer, offset);
+            // TODO: Implement altitude for blobs.
             tmp = tiles.getFeature(x, y).getId();
             tmp += tiles.getFeatureRotation(x, y)*MAXTYPES;
-            m = MapXML.toBase64(tmp, 2);
-            a = MapXML.toBase64(tiles.getArea(x, y).getId(), 2);
-            c = "A";
-            f = "A";
+            Base64Codec.encode(tmp, 2, buffer, offset + 4);
+            // Most tiles of most maps have no area, which is written as zero.
+            Area  area = tiles.getArea(x, y);
+            if (area != null) {
+                Base64Codec.encode(area.getId(), 2, buffer, offset + 6);
+            }
         } catch (Exception e) {
             System.out.println("tileToBlob: Could not write tile "+x+","+y+
                                " ("+e.getMessage()+")");
         }
-        c = "A";
-
-        blob = t + h + m + a + c + f + " ";
-        
-        return blob;
     }
     
     public static void blobToTile(String blob, ITileSet tiles, int x, int y) {
@@ -174,11 +175,37 @@ public class MapXML {
         int     area;
 
         // Assume new format, 10 chars per blob.
-        terrain = (short)fromBase64(blob.substring(0, 2));
-        height = (short)fromBase64(blob.substring(2, 4));
-        hills = (short)fromBase64(blob.substring(4, 6));
-        area = fromBase64(blob.substring(6, 8));
+        terrain = (short)Base64Codec.decode(blob, 0, 2);
+        height = (short)Base64Codec.decode(blob, 2, 2);
+        hills = (short)Base64Codec.decode(blob, 4, 2);
+        area = Base64Codec.decode(blob, 6, 2);
+
+        setTile(tiles, x, y, terrain, height, hills, area);
+    }
 
+    /**
+     * Set a tile from a blob held in a buffer.
+     * 
+     * @param buffer    Buffer holding the blob.
+     * @param offset    Position of the start of the blob.
+     * @param tiles     TileSet to update.
+     * @param x         X coordinate of tile to set.
+     * @param y         Y coordinate of tile to set.
+     */
+    public static void blobToTile(char[] buffer, int offset, ITileSet tiles, int x, int y) {
+        setTile(tiles, x, y, (short)Base64Codec.decode(buffer, offset, 2),
+                (short)Base64Codec.decode(buffer, offset + 2, 2),
+                (short)Base64Codec.decode(buffer, offset + 4, 2),
+                Base64Codec.decode(buffer, offset + 6, 2));
+    }
+
+    /**
+     * Set a tile from the values decoded from a blob. The terrain and
+     * feature values include the rotation, and the height is relative
+     * to the baseline.
+     */
+    public static void setTile(ITileSet tiles, int x, int y, short terrain,
+                               short height, short hills, int area) {
         height -= 100000; // Baseline
         
         try {
@@ -233,7 +260,7 @@ public class MapXML {
         try {
             InputSource             in;
 
-            in = new InputSource(url.openStream());
+            in = new InputSource(openStream(url.openStream()));
             load(in);
         } catch (XMLException xe) {
             throw xe;
@@ -255,22 +282,7 @@ public class MapXML {
             dbf.setNamespaceAware(true);
 
             document = dbf.newDocumentBuilder().parse(in);
-
-            name = getTextNode("/map/header/name");
-            author = getTextNode("/map/header/author");
-            version = getTextNode("/map/header/cvs/version");
-            date = getTextNode("/map/header/cvs/date");
-            format = getTextNode("/map/header/format");
-            id = getTextNode("/map/header/id");
-            parent = getTextNode("/map/header/parent");
-            tileShape = getTextNode("/map/header/shape");
-            type = getTextNode("/map/header/type");
-            imagedir = getTextNode("/map/header/imagedir");
-
-            terrainSet = getTerrainSet("basic");
-            featureSet = getTerrainSet("features");
-            thingSet = getTerrainSet("things");
-            areaSet = getAreas();
+            readHeader();
         } catch (XMLException xe) {
             throw xe;
         } catch (IOException ioe) {
@@ -282,6 +294,54 @@ public class MapXML {
         return;
     }
 
+    /**
+     * Read the header, terrain sets and areas from the loaded document.
+     */
+    protected void
+    readHeader() throws XMLException {
+        name = getTextNode("/map/header/name");
+        author = getTextNode("/map/header/author");
+        version = getTextNode("/map/header/cvs/version");
+        date = getTextNode("/map/header/cvs/date");
+        format = getTextNode("/map/header/format");
+        id = getTextNode("/map/header/id");
+        parent = getTextNode("/map/header/parent");
+        tileShape = getTextNode("/map/header/shape");
+        type = getTextNode("/map/header/type");
+        imagedir = getTextNode("/map/header/imagedir");
+
+        terrainSet = getTerrainSet("basic");
+        featureSet = getTerrainSet("features");
+        thingSet = getTerrainSet("things");
+        areaSet = getAreas();
+    }
+
+    /**
+     * Wrap a stream of map data ready for reading. If the data is
+     * gzip compressed (as .map.gz files are), then it is uncompressed
+     * as it is read. This is decided by looking at the data itself,
+     * so the name of the file doesn't matter.
+     *
+     * @param in    Stream to read the map from.
+     * @return      Buffered stream of uncompressed map data.
+     */
+    protected static InputStream
+    openStream(InputStream in) throws IOException {
+        BufferedInputStream     buffered = new BufferedInputStream(in, BUFFER_SIZE);
+
+        buffered.mark(2);
+        int     b1 = buffered.read();
+        int     b2 = buffered.read();
+        buffered.reset();
+
+        if (b1 == (GZIPInputStream.GZIP_MAGIC & 0xFF) &&
+            b2 == (GZIPInputStream.GZIP_MAGIC >> 8)) {
+            return new BufferedInputStream(new GZIPInputStream(buffered, BUFFER_SIZE),
+                                           BUFFER_SIZE);
+        }
+        return buffered;
+    }
+
     /**
      * Load a map document from the local filesystem. Map is
      * parsed and inserted into DOM structure for later querying.
@@ -291,12 +351,13 @@ public class MapXML {
     private void
     load(String filename) throws XMLException, IOException {
         System.out.println("Loading ["+filename+"]");
+        directory = new File(filename).getAbsoluteFile().getParentFile();
         try {
             InputSource             in;
             FileInputStream         fis;
 
             fis = new FileInputStream(filename);
-            in = new InputSource(fis);
+            in = new InputSource(openStream(fis));
             load(in);
         } catch (XMLException xe) {
             throw xe;
@@ -631,44 +692,23 @@ public class MapXML {
         height = getIntNode(node, "dimensions/height");
 
         try {
-            // First, create an empty tileset.
-            tileSet = new TileSet(name, width, height, scale);
-            tileSet.setCollections(terrainSet, featureSet, areaSet);
-            System.out.println("getTileSet: Created tileset");
-            tileSet.dumpSets();
-            // Next, populate the tiles with data from the XML.
-            NodeList    columns = getNodeList(node, "tiles/column");
-            if (columns == null) {
-                throw new XMLException("No columns defined in this tileset");
-            }
-
-            for (int t=0; t < columns.getLength(); t++) {
-                Node            column = columns.item(t);
-                NamedNodeMap    values;
-
-                // A column consists of an X coordinate, and stream
-                // data for all the rows in the column. Rows are stored
-                // as 2 digit base 36 numbers. White space is ignored.
-                if (column != null) {
-                    int     x=0, y=0;
-                    int     i;
-
-                    // Do NOT used the XPathAPI here, since the docs
-                    // don't exagerate when they say it's slow.
-                    values = column.getAttributes();
-                    x = getIntNode(values.getNamedItem("x"));
-
-                    String  data = getTextNode(column).replaceAll(" |\n|\t", "");
-                    for (y=0,i=0; i < data.length(); i+=blobSize, y++) {
-                        String  part = data.substring(i, i+blobSize);
-                        //terrain = Short.valueOf(part, 36).shortValue();
-
-                        blobToTile(part, tileSet, x,y);
-                    }
-                }
+            File    tileFile = getTileFile(node);
+            if (tileFile != null) {
+                // Tiles are kept in their own file, and are only read
+                // as they are needed.
+                tileSet = new MappedTileSet(name, scale, tileFile);
+                tileSet.setCollections(terrainSet, featureSet, areaSet);
+                System.out.println("getTileSet: Opened tiles in ["+tileFile.getPath()+"]");
+            } else {
+                // First, create an empty tileset.
+                tileSet = new TileSet(name, width, height, scale);
+                tileSet.setCollections(terrainSet, featureSet, areaSet);
+                System.out.println("getTileSet: Created tileset");
+                tileSet.dumpSets();
+                // Next, populate the tiles with data from the XML.
+                readTiles(node, tileSet, blobSize);
+                System.out.println("getTileSet: Finished reading column data");
             }
-            columns = null; // Free memory;
-            System.out.println("getTileSet: Finished reading column data");
             try {
                 int     parentScale, parentX, parentY;
                 parentScale = getIntNode(node, "parent/scale");
@@ -680,6 +720,8 @@ public class MapXML {
             }
         } catch (InvalidArgumentException iae) {
             throw new XMLException("Cannot create TileSet from XML");
+        } catch (IOException ioe) {
+            throw new XMLException("Cannot open tiles for ["+name+"] ("+ioe.getMessage()+")");
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -688,6 +730,79 @@ public class MapXML {
         return tileSet;
     }
 
+    /**
+     * Get the file which holds the tiles of a tileset, if they are kept
+     * in a file of their own (see MappedTileSet) rather than as columns.
+     * The file is given by the file attribute of the tiles element, and
+     * is relative to the map file unless it is absolute.
+     *
+     * @param node      The tileset node.
+     * @return          File holding the tiles, or null if they are inline.
+     */
+    protected File
+    getTileFile(Node node) {
+        NodeList    children = node.getChildNodes();
+
+        for (int i=0; i < children.getLength(); i++) {
+            Node    child = children.item(i);
+            if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals("tiles")) {
+                String  path = ((Element)child).getAttribute("file");
+                if (path == null || path.length() == 0) {
+                    return null;
+                }
+                File    file = new File(path);
+                if (!file.isAbsolute() && directory != null) {
+                    file = new File(directory, path);
+                }
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Populate a new TileSet with the tile data held in the column
+     * elements of a tileset node.
+     *
+     * @param node      The tileset node.
+     * @param tileSet   Empty TileSet to be filled.
+     * @param blobSize  Number of characters for each tile.
+     */
+    protected void
+    readTiles(Node node, TileSet tileSet, int blobSize) throws XMLException {
+        NodeList    columns = getNodeList(node, "tiles/column");
+        if (columns == null) {
+            throw new XMLException("No columns defined in this tileset");
+        }
+
+        for (int t=0; t < columns.getLength(); t++) {
+            Node            column = columns.item(t);
+            NamedNodeMap    values;
+
+            // A column consists of an X coordinate, and stream
+            // data for all the rows in the column. Rows are stored
+            // as 2 digit base 36 numbers. White space is ignored.
+            if (column != null) {
+                int     x=0, y=0;
+                int     i;
+
+                // Do NOT used the XPathAPI here, since the docs
+                // don't exagerate when they say it's slow.
+                values = column.getAttributes();
+                x = getIntNode(values.getNamedItem("x"));
+
+                String  data = getTextNode(column).replaceAll(" |\n|\t", "");
+                for (y=0,i=0; i < data.length(); i+=blobSize, y++) {
+                    String  part = data.substring(i, i+blobSize);
+                    //terrain = Short.valueOf(part, 36).shortValue();
+
+                    blobToTile(part, tileSet, x,y);
+                }
+            }
+        }
+        columns = null; // Free memory;
+    }
+
     /**
      * Returns a nodelist of all the tilesets.
      */
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation version 2.
+ * See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.xml;
+
+import net.sourceforge.mapcraft.map.*;
+import net.sourceforge.mapcraft.map.tilesets.TileSet;
+import net.sourceforge.mapcraft.utils.Base64Codec;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import org.w3c.dom.*;
+
+import javax.xml.parsers.*;
+import javax.xml.stream.*;
+
+/**
+ * Reads a map file with a streaming (StAX) parser rather than building
+ * a DOM of the whole document. The tile data, which makes up nearly all
+ * of a large map, is decoded from the parser's character buffer as it is
+ * read, so the text of each column is never turned into Strings.
+ *
+ * Everything other than the tile data is small, so it is still built into
+ * a DOM, and all the other methods of MapXML work as normal. The tiles
+ * are held as packed numbers until getTileSets() is called, since the
+ * areas they refer to are normally listed after them in the file. They
+ * are then set on the TileSet in exactly the same way as MapXML does, and
+ * the packed data is thrown away, so getTileSets() can only be called once.
+ *
+ * @author  Samuel Penn
+ * @version $Revision$
+ */
+public class StreamingMapXML extends MapXML {
+    private Hashtable   rawTiles = new Hashtable();
+
+    /**
+     * Load a map from a file on the local filesystem.
+     *
+     * @param filename  Filename of the map to load.
+     */
+    public
+    StreamingMapXML(String filename) throws MapException {
+        System.out.println("Streaming ["+filename+"]");
+        directory = new File(filename).getAbsoluteFile().getParentFile();
+        try {
+            InputStream     in = openStream(new FileInputStream(filename));
+            try {
+                load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new MapException("Cannot load XML document ["+filename+"]");
+        } catch (XMLException xmle) {
+            throw new MapException("Cannot parse XML data ("+xmle.getMessage()+")");
+        }
+    }
+
+    public
+    StreamingMapXML(URL url) throws MapException {
+        try {
+            InputStream     in = openStream(url.openStream());
+            try {
+                load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new MapException("Cannot load XML document ("+ioe.getMessage()+")");
+        } catch (XMLException xmle) {
+            throw new MapException("Cannot parse XML data ("+xmle.getMessage()+")");
+        }
+    }
+
+    private void
+    load(InputStream in) throws IOException, XMLException {
+        try {
+            XMLInputFactory     factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+
+            DocumentBuilderFactory  dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(true);
+            document = dbf.newDocumentBuilder().newDocument();
+
+            XMLStreamReader     reader = factory.createXMLStreamReader(in);
+            try {
+                parse(reader);
+            } finally {
+                reader.close();
+            }
+            readHeader();
+        } catch (XMLException xe) {
+            throw xe;
+        } catch (XMLStreamException se) {
+            if (se.getNestedException() instanceof IOException) {
+                throw (IOException)se.getNestedException();
+            }
+            throw new XMLException("Failed to load XML document ("+se.getMessage()+")");
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new XMLException("Failed to load XML document ("+e.getMessage()+")");
+        }
+    }
+
+    /**
+     * Build the DOM from the stream, decoding the contents of any
+     * column elements straight into packed tile data instead.
+     */
+    private void
+    parse(XMLStreamReader reader) throws XMLStreamException, XMLException {
+        Node        current = document;
+        Element     tileSet = null;
+        RawTiles    raw = null;
+        boolean     inColumn = false;
+
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                Element     element = document.createElementNS(reader.getNamespaceURI(),
+                                                               getQName(reader.getPrefix(), reader.getLocalName()));
+                for (int i=0; i < reader.getAttributeCount(); i++) {
+                    element.setAttributeNS(reader.getAttributeNamespace(i),
+                                           getQName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                                           reader.getAttributeValue(i));
+                }
+                current.appendChild(element);
+                current = element;
+
+                String      name = reader.getLocalName();
+                if (name.equals("tileset") && element.getParentNode() == document.getDocumentElement()) {
+                    tileSet = element;
+                } else if (name.equals("tiles") && tileSet != null && element.getParentNode() == tileSet &&
+                           element.getAttribute("file").length() == 0) {
+                    raw = new RawTiles(tileSet);
+                    rawTiles.put(tileSet.getAttribute("id"), raw);
+                } else if (name.equals("column") && raw != null && element.getParentNode().getParentNode() == tileSet) {
+                    raw.startColumn(getIntNode(element.getAttributeNode("x")));
+                    inColumn = true;
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                if (inColumn) {
+                    raw.endColumn();
+                    inColumn = false;
+                } else if (current.getNodeName().equals("tiles")) {
+                    raw = null;
+                } else if (current == tileSet) {
+                    tileSet = null;
+                }
+                current = current.getParentNode();
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+                if (inColumn) {
+                    raw.decode(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                } else if (current != document) {
+                    current.appendChild(document.createTextNode(reader.getText()));
+                }
+                break;
+            case XMLStreamConstants.CDATA:
+                if (inColumn) {
+                    raw.decode(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                } else if (current != document) {
+                    current.appendChild(document.createCDATASection(reader.getText()));
+                }
+                break;
+            case XMLStreamConstants.COMMENT:
+                if (!inColumn) {
+                    current.appendChild(document.createComment(reader.getText()));
+                }
+                break;
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                current.appendChild(document.createProcessingInstruction(reader.getPITarget(),
+                                                                         reader.getPIData()));
+                break;
+            }
+        }
+    }
+
+    private static String
+    getQName(String prefix, String localName) {
+        if (prefix == null || prefix.length() == 0) {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
+
+    /**
+     * Set the tiles from the packed data read from the stream. If there
+     * is none for this tileset, the DOM is used as normal.
+     */
+    protected void
+    readTiles(Node node, TileSet tileSet, int blobSize) throws XMLException {
+        String      setId = ((Element)node).getAttribute("id");
+        RawTiles    raw = (RawTiles)rawTiles.remove(setId);
+
+        if (raw == null) {
+            super.readTiles(node, tileSet, blobSize);
+            return;
+        }
+        for (int x=0; x < raw.width; x++) {
+            for (int y=0; y < raw.height; y++) {
+                int     i = x * raw.height + y;
+                if (raw.set.get(i)) {
+                    i *= 4;
+                    setTile(tileSet, x, y, raw.data[i], raw.data[i+1],
+                            raw.data[i+2], raw.data[i+3]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tile values for a tileset, as decoded from the blobs but not yet
+     * turned into terrain and areas. Each tile has four shorts, for the
+     * terrain, height, features and area, stored by column.
+     */
+    private class RawTiles {
+        int         width, height;
+        int         blobSize = 10;
+        short[]     data;
+        BitSet      set;
+
+        // Decoding state for the current column.
+        int         x, y, pos;
+        int[]       values = new int[4];
+        boolean     warned;
+
+        RawTiles(Element tileSet) throws XMLException {
+            width = getIntNode(tileSet, "dimensions/width");
+            height = getIntNode(tileSet, "dimensions/height");
+            if (getTextNode("/map/header/format").startsWith("0.0.")) {
+                System.out.println("WARNING: Old format file, converting");
+                blobSize = 8;
+            }
+            data = new short[width * height * 4];
+            set = new BitSet(width * height);
+        }
+
+        void
+        startColumn(int x) {
+            this.x = x;
+            y = 0;
+            pos = 0;
+            warned = false;
+            Arrays.fill(values, 0);
+        }
+
+        /**
+         * Decode blob characters from the parser's buffer. Spaces, tabs and
+         * newlines are ignored, as they are by MapXML.
+         */
+        void
+        decode(char[] text, int start, int length) {
+            for (int i=start; i < start + length; i++) {
+                char    c = text[i];
+                if (c == ' ' || c == '\n' || c == '\t') {
+                    continue;
+                }
+                if (pos < 8) {
+                    values[pos/2] = values[pos/2] * 64 + Base64Codec.decode(c);
+                }
+                if (++pos == blobSize) {
+                    store();
+                    y++;
+                    pos = 0;
+                    Arrays.fill(values, 0);
+                }
+            }
+        }
+
+        private void
+        store() {
+            if (x < 0 || x >= width || y >= height) {
+                if (!warned) {
+                    System.out.println("StreamingMapXML: Could not read tile "+x+","+y+
+                                       " (Coordinates are outside map)");
+                    warned = true;
+                }
+                return;
+            }
+            int     i = x * height + y;
+            set.set(i);
+            i *= 4;
+            data[i] = (short)values[0];
+            data[i+1] = (short)values[1];
+            data[i+2] = (short)values[2];
+            data[i+3] = (short)values[3];
+        }
+
+        void
+        endColumn() {
+            if (pos != 0) {
+                System.out.println("StreamingMapXML: Incomplete tile at end of column "+x);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2004 Samuel Penn, sam@bifrost.demon.co.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation version 2.
+ * See the file COPYING.
+ *
+ * $Revision$
+ * $Date$
+ */
+package net.sourceforge.mapcraft.xml;
+
+import java.util.Vector;
+
+import junit.framework.*;
+
+import net.sourceforge.mapcraft.map.elements.*;
+import net.sourceforge.mapcraft.map.interfaces.ITileSet;
+import net.sourceforge.mapcraft.map.tilesets.TileSet;
+
+/**
+ * The streaming loader must build exactly the same map as the DOM loader.
+ * Each of the sample maps is loaded both ways, and every tile, thing and
+ * path is compared.
+ */
+public class StreamingMapXMLTest extends TestCase {
+    private static final String[]   MAPS = { "castle", "indoor", "island", "town", "world" };
+
+    public void
+    testSampleMaps() throws Exception {
+        for (int m=0; m < MAPS.length; m++) {
+            String          filename = "application/maps/"+MAPS[m]+".map";
+            MapXML          dom = new MapXML(filename);
+            MapXML          stream = new StreamingMapXML(filename);
+            TileSet[]       expected = dom.getTileSets();
+            TileSet[]       actual = stream.getTileSets();
+
+            assertEquals(MAPS[m]+": number of tile sets", expected.length, actual.length);
+            for (int s=0; s < expected.length; s++) {
+                String      name = MAPS[m]+"/"+expected[s].getName();
+
+                assertEquals(name+": tile set name", expected[s].getName(), actual[s].getName());
+                compareTiles(name, expected[s], actual[s]);
+                compareThings(name, dom.getThings(expected[s].getName()),
+                              stream.getThings(actual[s].getName()));
+                comparePaths(name, dom.getPaths(expected[s].getName()),
+                             stream.getPaths(actual[s].getName()));
+            }
+        }
+    }
+
+    private static int
+    id(Terrain t) {
+        return (t == null)?-1:t.getId();
+    }
+
+    private static int
+    id(Area a) {
+        return (a == null)?-1:a.getId();
+    }
+
+    private void
+    compareTiles(String name, ITileSet expected, ITileSet actual) throws Exception {
+        assertEquals(name+": width", expected.getMapWidth(), actual.getMapWidth());
+        assertEquals(name+": height", expected.getMapHeight(), actual.getMapHeight());
+        assertEquals(name+": scale", expected.getScale(), actual.getScale());
+
+        for (int x=0; x < expected.getMapWidth(); x++) {
+            for (int y=0; y < expected.getMapHeight(); y++) {
+                String  tile = name+" "+x+","+y+": ";
+                assertEquals(tile+"terrain", id(expected.getTerrain(x, y)),
+                             id(actual.getTerrain(x, y)));
+                assertEquals(tile+"feature", id(expected.getFeature(x, y)),
+                             id(actual.getFeature(x, y)));
+                assertEquals(tile+"area", id(expected.getArea(x, y)),
+                             id(actual.getArea(x, y)));
+                assertEquals(tile+"altitude", expected.getAltitude(x, y),
+                             actual.getAltitude(x, y));
+                assertEquals(tile+"terrain rotation", expected.getTerrainRotation(x, y),
+                             actual.getTerrainRotation(x, y));
+                assertEquals(tile+"feature rotation", expected.getFeatureRotation(x, y),
+                             actual.getFeatureRotation(x, y));
+                assertEquals(tile+"writable", expected.isWritable(x, y),
+                             actual.isWritable(x, y));
+                assertEquals(tile+"highlighted", expected.isHighlighted(x, y),
+                             actual.isHighlighted(x, y));
+            }
+        }
+    }
+
+    private void
+    compareThings(String name, Thing[] expected, Thing[] actual) {
+        if (expected == null || actual == null) {
+            assertTrue(name+": things", expected == actual);
+            return;
+        }
+        assertEquals(name+": number of things", expected.length, actual.length);
+        for (int i=0; i < expected.length; i++) {
+            Thing   e = expected[i], a = actual[i];
+            String  thing = name+" thing "+e.getName()+": ";
+
+            assertEquals(thing+"name", e.getName(), a.getName());
+            assertEquals(thing+"description", e.getDescription(), a.getDescription());
+            assertEquals(thing+"type", e.getType(), a.getType());
+            assertEquals(thing+"x", e.getX(), a.getX());
+            assertEquals(thing+"y", e.getY(), a.getY());
+            assertEquals(thing+"importance", e.getImportance(), a.getImportance());
+            assertEquals(thing+"font size", e.getFontSize(), a.getFontSize());
+            assertEquals(thing+"rotation", e.getRotation(), a.getRotation());
+            assertEquals(thing+"properties", e.getPropertyCount(), a.getPropertyCount());
+        }
+    }
+
+    private void
+    comparePaths(String name, Path[] expected, Path[] actual) {
+        if (expected == null || actual == null) {
+            assertTrue(name+": paths", expected == actual);
+            return;
+        }
+        assertEquals(name+": number of paths", expected.length, actual.length);
+        for (int i=0; i < expected.length; i++) {
+            Path    e = expected[i], a = actual[i];
+            String  path = name+" path "+e.getName()+": ";
+
+            assertEquals(path+"name", e.getName(), a.getName());
+            assertEquals(path+"type", e.getType(), a.getType());
+            assertEquals(path+"style", e.getStyle(), a.getStyle());
+            assertEquals(path+"width", e.getWidth(), a.getWidth());
+
+            Vector  ee = e.getElements(), ae = a.getElements();
+            assertEquals(path+"number of elements", ee.size(), ae.size());
+            for (int j=0; j < ee.size(); j++) {
+                Path.Element    ex = (Path.Element)ee.get(j);
+                Path.Element    ax = (Path.Element)ae.get(j);
+                assertEquals(path+"element "+j+" x", ex.getX(), ax.getX());
+                assertEquals(path+"element "+j+" y", ex.getY(), ax.getY());
+                assertEquals(path+"element "+j+" type", ex.getType(), ax.getType());
+                assertEquals(path+"element "+j+" width", ex.getWidth(), ax.getWidth());
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package uk.org.glendale.mapcraft.graphics;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import uk.org.glendale.mapcraft.server.AppManager;
+
+/**
+ * Process wide cache of map icons. Icons are decoded from their PNG
+ * files once, scaled to the size they will be drawn at, and kept as
+ * BufferedImages so that painting them is a straight copy. Icons are
+ * identified by their style folder, path within that folder and size.
+ *
+ * The cache is bounded by the memory used by the images themselves,
+ * set by the 'cache.icons' configuration option (in MB, default 32).
+ * When full, the least recently used icons are dropped.
+ *
+ * @author Samuel Penn
+ */
+public class IconCache {
+	private static Logger		log = Logger.getLogger("uk.org.glendale.mapcraft.graphics.IconCache");
+
+	private static final long	maxBytes = Long.parseLong(AppManager.getProperty("cache.icons", "32")) * 1024 * 1024;
+	private static long			usedBytes = 0;
+
+	private static final LinkedHashMap<String,BufferedImage>	icons = new LinkedHashMap<String,BufferedImage>(256, 0.75f, true);
+
+	private IconCache() {
+	}
+
+	private static String getKey(File folder, String path, int width, int height) {
+		return folder.getAbsolutePath()+path+"@"+width+"x"+height;
+	}
+
+	/**
+	 * Gets an icon, scaled to the given size. If the icon isn't already
+	 * cached, it is read from disc.
+	 *
+	 * @param folder	Style folder the icon belongs to.
+	 * @param path		Path of the icon within the folder, e.g. "/terrain/sea.png".
+	 * @param width		Width to scale the icon to.
+	 * @param height	Height to scale the icon to.
+	 * @return			The icon, or null if it couldn't be read.
+	 */
+	public static BufferedImage getIcon(File folder, String path, int width, int height) {
+		String			key = getKey(folder, path, width, height);
+		BufferedImage	icon;
+
+		synchronized (icons) {
+			icon = icons.get(key);
+		}
+		if (icon == null) {
+			icon = load(new File(folder.getAbsolutePath()+path), width, height);
+			if (icon != null) {
+				put(key, icon);
+			}
+		}
+		return icon;
+	}
+
+	private static void put(String key, BufferedImage icon) {
+		synchronized (icons) {
+			BufferedImage	old = icons.put(key, icon);
+			if (old != null) {
+				usedBytes -= getBytes(old);
+			}
+			usedBytes += getBytes(icon);
+
+			Iterator<BufferedImage>	i = icons.values().iterator();
+			while (usedBytes > maxBytes && i.hasNext()) {
+				BufferedImage	eldest = i.next();
+				if (eldest == icon) {
+					break;
+				}
+				usedBytes -= getBytes(eldest);
+				i.remove();
+			}
+		}
+	}
+
+	private static long getBytes(BufferedImage image) {
+		return 4L * image.getWidth() * image.getHeight();
+	}
+
+	/**
+	 * Read an image from disc and scale it to the given size.
+	 */
+	private static BufferedImage load(File file, int width, int height) {
+		if (!file.exists()) {
+			log.warning("Missing icon ["+file.getAbsolutePath()+"]");
+			return null;
+		}
+		try {
+			BufferedImage	source = ImageIO.read(file);
+			if (source == null) {
+				log.warning("Unable to decode icon ["+file.getAbsolutePath()+"]");
+				return null;
+			}
+			BufferedImage	icon = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D		g = icon.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(source, 0, 0, width, height, null);
+			g.dispose();
+
+			return icon;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to read icon ["+file.getAbsolutePath()+"]", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Read every icon in a sub-folder of a style into the cache, at the
+	 * given size. Used to warm the cache at startup.
+	 *
+	 * @param folder	Style folder.
+	 * @param subFolder	Folder within the style, e.g. "/terrain/".
+	 * @param width		Width to scale the icons to.
+	 * @param height	Height to scale the icons to.
+	 * @return			Number of icons read.
+	 */
+	public static int preload(File folder, String subFolder, int width, int height) {
+		File[]		files = new File(folder.getAbsolutePath()+subFolder).listFiles();
+		int			count = 0;
+
+		if (files == null) {
+			return 0;
+		}
+		for (File file : files) {
+			if (file.isFile() && file.getName().endsWith(".png")) {
+				if (getIcon(folder, subFolder+file.getName(), width, height) != null) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Empty the cache.
+	 */
+	public static void clear() {
+		synchronized (icons) {
+			icons.clear();
+			usedBytes = 0;
+		}
+	}
+
+	public static int size() {
+		synchronized (icons) {
+			return icons.size();
+		}
+	}
+
+	public static long getUsedBytes() {
+		synchronized (icons) {
+			return usedBytes;
+		}
+	}
+}
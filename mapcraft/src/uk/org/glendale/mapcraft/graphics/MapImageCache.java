@@ -0,0 +1,502 @@
+package uk.org.glendale.mapcraft.graphics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import uk.org.glendale.mapcraft.map.Rectangle;
+import uk.org.glendale.mapcraft.map.Sector;
+import uk.org.glendale.mapcraft.map.SectorCache;
+import uk.org.glendale.mapcraft.map.SectorListener;
+import uk.org.glendale.mapcraft.server.AppManager;
+
+/**
+ * Keeps track of which part of the map each cached image was drawn from,
+ * so that when a sector is changed only the images which overlap it need
+ * to be thrown away. It listens to every SectorCache, so it hears about
+ * changes as soon as they reach the database.
+ *
+ * For each map there is an index file in the cache folder, which lists
+ * the bounds of each cached image, and the sectors of the map which have
+ * changed since the world overview was last drawn. The overview is then
+ * brought up to date by redrawing just those sectors, rather than all of
+ * it. Tiles from the TilePyramid are invalidated at every zoom level.
+ *
+ * The index of each map is kept in memory once it has been read, and each
+ * map has its own lock. Changes are written back to the file a few seconds
+ * later, so a burst of edits only writes it once.
+ *
+ * @author Samuel Penn
+ */
+public class MapImageCache implements SectorListener {
+	private static Logger			log = Logger.getLogger("uk.org.glendale.mapcraft.graphics.MapImageCache");
+
+	private static final String		WORLD_CHANGES = "world.changes";
+
+	// Milliseconds to wait after a change before writing an index.
+	private static final long		WRITE_DELAY = 5000;
+
+	private static MapImageCache	instance = null;
+
+	private static ScheduledExecutorService	writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread	t = new Thread(r, "MapImageCache writer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private File		cacheFolder;
+	private HashMap<String,Index>	indexes = new HashMap<String,Index>();
+
+	/**
+	 * The index of one map. Images maps the name of each cached image to
+	 * its bounds, and changes maps the bounds of each sector which needs
+	 * redrawing on the world overview to the version at which it last
+	 * changed, so a sector is only listed once however often it changes.
+	 */
+	private static class Index {
+		Properties			images = new Properties();
+		Map<String,Long>	changes = new LinkedHashMap<String,Long>();
+		long				version = 0;
+		boolean				dirty = false;
+		boolean				removed = false;
+	}
+
+	/**
+	 * Create a cache which manages the images in the given folder. This
+	 * does not register the cache as a SectorListener.
+	 *
+	 * @param cacheFolder	Folder holding cached images.
+	 */
+	public MapImageCache(File cacheFolder) {
+		this.cacheFolder = cacheFolder;
+	}
+
+	/**
+	 * Gets the cache of images for the application, which is told about
+	 * every change to every map.
+	 */
+	public static synchronized MapImageCache getInstance() {
+		if (instance == null) {
+			instance = new MapImageCache(new File(AppManager.getInstance().getRootPath()+"/images/cache"));
+			SectorCache.addSectorListener(instance);
+		}
+		return instance;
+	}
+
+	public File getCacheFolder() {
+		return cacheFolder;
+	}
+
+	/**
+	 * Gets the folder which tiles for the TilePyramid are kept in.
+	 */
+	public File getTileFolder() {
+		return new File(cacheFolder, "tiles");
+	}
+
+	/**
+	 * Gets a file in the cache. The file may not exist.
+	 */
+	public File getImage(String filename) {
+		return new File(cacheFolder, filename);
+	}
+
+	/**
+	 * Record which part of the map a cached image shows, so that it can be
+	 * deleted if that part of the map changes.
+	 *
+	 * @param mapName	Map the image was drawn from.
+	 * @param image		Cached image file.
+	 * @param bounds	Tiles drawn on the image.
+	 */
+	public void register(String mapName, File image, Rectangle bounds) {
+		register(mapName, image, bounds, null);
+	}
+
+	/**
+	 * Record which part of the map a cached image of a named area shows.
+	 * As well as when anything within the bounds changes, the image will
+	 * be deleted if any of the areas spread to a sector outside them.
+	 *
+	 * @param mapName	Map the image was drawn from.
+	 * @param image		Cached image file.
+	 * @param bounds	Tiles drawn on the image.
+	 * @param areas		Ids of the named areas shown, may be null.
+	 */
+	public void register(String mapName, File image, Rectangle bounds, Set<Integer> areas) {
+		Index			index = getIndex(mapName);
+		StringBuffer	value = new StringBuffer(toString(bounds));
+
+		if (areas != null) {
+			value.append(":");
+			for (int id : areas) {
+				value.append(" ").append(id);
+			}
+		}
+		synchronized (index) {
+			index.images.setProperty(image.getName(), value.toString());
+			changed(mapName, index);
+		}
+	}
+
+	/**
+	 * The regions of a map which have changed since the world overview was
+	 * last drawn, as fetched by getWorldChanges().
+	 */
+	public static class WorldChanges {
+		private final List<Rectangle>	regions;
+		private final long				version;
+
+		private WorldChanges(List<Rectangle> regions, long version) {
+			this.regions = regions;
+			this.version = version;
+		}
+
+		/**
+		 * Gets the changed regions, each of which is one sector.
+		 */
+		public List<Rectangle> getRegions() {
+			return regions;
+		}
+
+		public boolean isEmpty() {
+			return regions.isEmpty();
+		}
+	}
+
+	/**
+	 * Gets the regions of the map which have changed since the world
+	 * overview was last drawn. They are remembered until they are passed
+	 * back to commitWorldChanges(), so if drawing fails they will be drawn
+	 * next time.
+	 *
+	 * @param mapName	Map to get changes for.
+	 * @return			Changed regions, which may be empty.
+	 */
+	public WorldChanges getWorldChanges(String mapName) {
+		Index			index = getIndex(mapName);
+		List<Rectangle>	regions = new ArrayList<Rectangle>();
+
+		synchronized (index) {
+			for (String r : index.changes.keySet()) {
+				regions.add(toRectangle(r));
+			}
+			return new WorldChanges(regions, index.version);
+		}
+	}
+
+	/**
+	 * Forget about changes to the world overview which have now been drawn.
+	 * A sector which has changed again since the changes were fetched is
+	 * kept, since the drawing may not include the latest change.
+	 *
+	 * @param mapName	Map the overview was drawn from.
+	 * @param changes	Changes returned by getWorldChanges().
+	 */
+	public void commitWorldChanges(String mapName, WorldChanges changes) {
+		Index		index = getIndex(mapName);
+
+		synchronized (index) {
+			boolean		removed = false;
+			for (Rectangle r : changes.regions) {
+				String	key = toString(r);
+				Long	version = index.changes.get(key);
+				if (version != null && version <= changes.version) {
+					index.changes.remove(key);
+					removed = true;
+				}
+			}
+			if (removed) {
+				changed(mapName, index);
+			}
+		}
+	}
+
+	/**
+	 * Throw away every cached image and tile of a map, along with its index,
+	 * for when the map is deleted. A new map with the same name then starts
+	 * with an empty cache.
+	 *
+	 * @param mapName	Map to forget about.
+	 */
+	public void removeMap(String mapName) {
+		Index		index;
+		int			count = 0;
+
+		synchronized (indexes) {
+			index = getIndex(mapName);
+			indexes.remove(mapName);
+		}
+		synchronized (index) {
+			index.removed = true;
+			for (String name : index.images.stringPropertyNames()) {
+				if (getImage(name).delete()) {
+					count++;
+				}
+			}
+			getIndexFile(mapName).delete();
+		}
+		count += deleteAll(new File(getTileFolder(), mapName));
+		log.info("Removed ["+count+"] cached images of ["+mapName+"]");
+	}
+
+	/**
+	 * Delete a file, or a folder and everything in it.
+	 *
+	 * @return		Number of plain files deleted.
+	 */
+	private static int deleteAll(File file) {
+		int		count = 0;
+		File[]	children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				count += deleteAll(child);
+			}
+			file.delete();
+		} else if (file.delete()) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Delete every cached image and tile which shows any part of the given
+	 * sector, and record the sector as needing to be redrawn on the world
+	 * overview. Hexes are drawn overlapping their neighbours, so images
+	 * which end just short of the sector are also included.
+	 */
+	public void sectorChanged(String mapName, Sector sector) {
+		Rectangle	changed = new Rectangle(sector.getOriginX(), sector.getOriginY(), Sector.WIDTH, Sector.HEIGHT);
+		Index		index = getIndex(mapName);
+		Set<Integer>	areas = getAreas(sector);
+		int			count = 0;
+
+		synchronized (index) {
+			for (String name : index.images.stringPropertyNames()) {
+				String[]	value = index.images.getProperty(name).split(":");
+				boolean		stale = overlaps(toRectangle(value[0]), changed);
+
+				if (!stale && value.length > 1) {
+					for (String id : value[1].trim().split(" +")) {
+						if (id.length() > 0 && areas.contains(Integer.parseInt(id))) {
+							stale = true;
+							break;
+						}
+					}
+				}
+				if (stale) {
+					getImage(name).delete();
+					index.images.remove(name);
+					count++;
+				}
+			}
+			// Move the sector to the end, so the list stays in order of change.
+			String	key = toString(changed);
+			index.changes.remove(key);
+			index.changes.put(key, ++index.version);
+			changed(mapName, index);
+		}
+
+		count += invalidateTiles(mapName, sector.getOriginX() / Sector.WIDTH, sector.getOriginY() / Sector.HEIGHT);
+		log.fine("Sector "+sector.getCoord()+" of ["+mapName+"] changed, dropped ["+count+"] images");
+	}
+
+	/**
+	 * Remove the tile references for a sector and its neighbours (which
+	 * draw the edge of this sector) at every zoom level of every style.
+	 * The deepest zoom level is always built first, so it tells us how
+	 * many levels there are.
+	 */
+	private int invalidateTiles(String mapName, int sx, int sy) {
+		File[]	styles = new File(getTileFolder(), mapName).listFiles();
+		int		count = 0;
+
+		if (styles == null) {
+			return 0;
+		}
+		for (File style : styles) {
+			int		maxZoom = -1;
+			String[] levels = style.list();
+			if (levels == null) {
+				continue;
+			}
+			for (String z : levels) {
+				if (z.matches("[0-9]+")) {
+					maxZoom = Math.max(maxZoom, Integer.parseInt(z));
+				}
+			}
+			for (int z = 0; z <= maxZoom; z++) {
+				int		shift = maxZoom - z;
+				for (int x = (sx - 1) >> shift; x <= (sx + 1) >> shift; x++) {
+					for (int y = (sy - 1) >> shift; y <= (sy + 1) >> shift; y++) {
+						if (new File(style, z+"/"+x+"-"+y+".ref").delete()) {
+							count++;
+						}
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	private static Set<Integer> getAreas(Sector sector) {
+		Set<Integer>	areas = new HashSet<Integer>();
+		for (int[] column : sector.getAreaData()) {
+			for (int id : column) {
+				areas.add(id);
+			}
+		}
+		return areas;
+	}
+
+	private static boolean overlaps(Rectangle image, Rectangle changed) {
+		// Allow for the icons of hexes outside the image being drawn on it.
+		return image.getWest() - 2 < changed.getEast() && changed.getWest() < image.getEast() + 2 &&
+			   image.getNorth() - 1 < changed.getSouth() && changed.getNorth() < image.getSouth() + 1;
+	}
+
+	private static String toString(Rectangle r) {
+		return r.getX()+","+r.getY()+","+r.getWidth()+","+r.getHeight();
+	}
+
+	private static Rectangle toRectangle(String value) {
+		String[]	v = value.split(",");
+		return new Rectangle(Integer.parseInt(v[0]), Integer.parseInt(v[1]),
+							 Integer.parseInt(v[2]), Integer.parseInt(v[3]));
+	}
+
+	private File getIndexFile(String mapName) {
+		return new File(cacheFolder, mapName+".index");
+	}
+
+	/**
+	 * Gets the index of a map, reading it from its file the first time.
+	 */
+	private Index getIndex(String mapName) {
+		synchronized (indexes) {
+			Index	index = indexes.get(mapName);
+			if (index == null) {
+				index = readIndex(mapName);
+				indexes.put(mapName, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Note that an index has changed, and arrange for it to be written
+	 * unless it is already waiting to be. Called with the index locked.
+	 */
+	private void changed(final String mapName, final Index index) {
+		if (index.dirty) {
+			return;
+		}
+		index.dirty = true;
+		try {
+			writer.schedule(new Runnable() {
+				public void run() {
+					write(mapName, index);
+				}
+			}, WRITE_DELAY, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			write(mapName, index);
+		}
+	}
+
+	/**
+	 * Write any indexes which haven't been written since they changed,
+	 * without waiting. Called when the application is shut down.
+	 */
+	public void flush() {
+		List<String>	names;
+		List<Index>		list;
+
+		synchronized (indexes) {
+			names = new ArrayList<String>(indexes.keySet());
+			list = new ArrayList<Index>(indexes.values());
+		}
+		for (int i=0; i < list.size(); i++) {
+			write(names.get(i), list.get(i));
+		}
+	}
+
+	private Index readIndex(String mapName) {
+		Index		index = new Index();
+		File		file = getIndexFile(mapName);
+
+		if (file.exists()) {
+			try {
+				InputStream		in = new FileInputStream(file);
+				try {
+					index.images.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Unable to read image index ["+file.getAbsolutePath()+"]", e);
+			}
+		}
+		String	list = (String)index.images.remove(WORLD_CHANGES);
+		if (list != null) {
+			for (String r : list.split(";")) {
+				if (r.length() > 0) {
+					index.changes.put(r, index.version);
+				}
+			}
+		}
+		return index;
+	}
+
+	private void write(String mapName, Index index) {
+		synchronized (index) {
+			if (!index.dirty || index.removed) {
+				return;
+			}
+			index.dirty = false;
+
+			Properties	properties = new Properties();
+			File		file = getIndexFile(mapName);
+
+			properties.putAll(index.images);
+			if (index.changes.size() > 0) {
+				StringBuffer	list = new StringBuffer();
+				for (String r : index.changes.keySet()) {
+					list.append((list.length() > 0)?";":"").append(r);
+				}
+				properties.setProperty(WORLD_CHANGES, list.toString());
+			}
+			try {
+				cacheFolder.mkdirs();
+				OutputStream	out = new FileOutputStream(file);
+				try {
+					properties.store(out, "Cached images of "+mapName);
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Unable to write image index ["+file.getAbsolutePath()+"]", e);
+			}
+		}
+	}
+}
@@ -1,19 +1,29 @@
 package uk.org.glendale.mapcraft.graphics;
 
 import java.awt.Font;
+import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.sql.SQLException;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Properties;
 import java.util.ResourceBundle;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.imageio.ImageIO;
 
 import uk.org.glendale.graphics.SimpleImage;
 import uk.org.glendale.mapcraft.map.Map;
@@ -23,6 +33,7 @@ import uk.org.glendale.mapcraft.map.Rectangle;
 import uk.org.glendale.mapcraft.map.Sector;
 import uk.org.glendale.mapcraft.map.Terrain;
 import uk.org.glendale.mapcraft.map.Tile;
+import uk.org.glendale.mapcraft.map.TileBlock;
 import uk.org.glendale.mapcraft.server.database.MapTile;
 
 
@@ -41,7 +52,7 @@ public class MapSector {
 	private Scale		scale = Scale.STANDARD;
 	private boolean		hideAsGrey = false;
 	
-	private Set<Integer>	allowedAreas = null;
+	private BitSet		allowedAreas = null;
 	
 	private int			iconWidth = 0;
 	private int			iconHeight = 0;
@@ -49,6 +60,14 @@ public class MapSector {
 	private int			tileHeight = 0;
 	private int			tileHalfHeight = 0;
 	
+	private int			overviewPixelWidth, overviewPixelHeight;
+	private int			overviewXStep, overviewYStep;
+	private int			overviewMinImportance;
+	private BufferedImage	overviewTerrain = null;
+	private BufferedImage	overview = null;
+	
+	private static ForkJoinPool	renderPool = null;
+	
 	public enum Scale {
 		STANDARD,   // Normal
 		COMPACT,  // Individual tiles
@@ -135,27 +154,78 @@ public class MapSector {
 	}
 	
 	public void save(File file) throws IOException {
-		image.save(file);
+		if (overview != null) {
+			// Overviews are drawn straight into a raster, which can be
+			// encoded as it is rather than copied first.
+			OutputStream	out = new BufferedOutputStream(new FileOutputStream(file));
+			try {
+				if (!ImageIO.write(overview, "jpeg", out)) {
+					throw new IOException("No JPEG encoder available");
+				}
+			} finally {
+				out.close();
+			}
+		} else {
+			image.save(file);
+		}
+	}
+	
+	/**
+	 * Gets a copy of the last drawn map as a BufferedImage.
+	 */
+	public BufferedImage getImage() {
+		return image.getBufferedImage();
+	}
+	
+	/**
+	 * Gets the horizontal distance in pixels between adjacent columns
+	 * of tiles at full scale.
+	 */
+	public int getTileWidth() {
+		return tileWidth;
+	}
+	
+	/**
+	 * Gets the vertical distance in pixels between adjacent rows of
+	 * tiles at full scale.
+	 */
+	public int getTileHeight() {
+		return tileHeight;
+	}
+	
+	/**
+	 * Gets the icon for a tile, scaled to the given size. Icons come from
+	 * the process wide IconCache, so are only read from disc once.
+	 */
+	private Image getIcon(Tile terrain, int width, int height) {
+		return IconCache.getIcon(imageFolder, terrain.getPrefix()+terrain.getImage()+".png", width, height);
 	}
 	
 	private Image getIcon(Tile terrain) {
-		File			file = new File(imageFolder.getAbsolutePath()+terrain.getPrefix()+terrain.getImage()+".png");
-		if (!file.exists()) {
-			System.out.println(file.getAbsolutePath());
-		}
-		SimpleImage		si = new SimpleImage(file);
-		
-		return si.getImage();
+		return getIcon(terrain, iconWidth, iconHeight);
 	}
 	
 	private Image getGreyIcon() {
-		File			file = new File(imageFolder.getAbsolutePath()+"/effects/grey.png");
-		if (!file.exists()) {
-			System.out.println(file.getAbsolutePath());
-		}
-		SimpleImage		si = new SimpleImage(file);
+		return IconCache.getIcon(imageFolder, "/effects/grey.png", iconWidth, iconHeight);
+	}
+	
+	/**
+	 * Read all the icons for a style into the IconCache, at the sizes they
+	 * will be drawn at, so that the first maps drawn don't have to.
+	 * 
+	 * @param imageFolder	Folder for the style.
+	 * @return				Number of icons read.
+	 */
+	public static int preloadIcons(File imageFolder) {
+		MapSector	sizes = new MapSector(null, imageFolder);
+		int			count = 0;
 		
-		return si.getImage();		
+		count += IconCache.preload(imageFolder, "/terrain/", sizes.iconWidth, sizes.iconHeight);
+		count += IconCache.preload(imageFolder, "/features/", sizes.iconWidth, sizes.iconHeight);
+		count += IconCache.preload(imageFolder, "/effects/", sizes.iconWidth, sizes.iconHeight);
+		count += IconCache.preload(imageFolder, "/things/", sizes.tileWidth, sizes.tileHeight);
+		
+		return count;
 	}
 	
 	public void drawMap(Sector sector) throws IOException {
@@ -163,7 +233,10 @@ public class MapSector {
 	}
 
 	/**
-	 * Draw a map over the given area at full scale.
+	 * Draw a map over the given area at full scale. All the tile data for
+	 * the area (including the bleed margin) is fetched in one go, and the
+	 * icons are looked up once per terrain type, so drawing each tile is
+	 * just array indexing and an image copy.
 	 * 
 	 * @param orgX
 	 * @param orgY
@@ -173,6 +246,105 @@ public class MapSector {
 	 */
 	public void drawMap(int orgX, int orgY, int width, int height) throws IOException {
 		image = new SimpleImage(width*tileWidth+(bleeding?0:tileWidth/2), height*tileHeight+tileHeight, "#FFFFFF");
+		overview = null;
+
+		// Always start on an even column.
+		orgX -= orgX%2;
+		
+		if (orgX < 0) {
+			orgX = 0;
+		}
+		if (orgY < 0) {
+			orgY = 0;
+		}
+		
+		int			bleedX = bleeding?2:0;
+		int			bleedY = bleeding?1:0;
+		// Tiles outside the allowed areas are at most greyed out, so sectors
+		// without any of those areas needn't be read. The area index knows
+		// which of their tiles are land.
+		TileBlock	block = map.getTileBlock(orgX-bleedX, orgY-bleedY, width+bleedX*2, height+bleedY*2,
+											 allowedAreas);
+		
+		Image[]		terrainIcons = new Image[block.getMaxTerrain()+1];
+		boolean[]	land = new boolean[terrainIcons.length];
+		for (int id=0; id < terrainIcons.length; id++) {
+			Terrain	t = map.getInfo().getTerrain(id);
+			if (t != null) {
+				terrainIcons[id] = getIcon(t);
+				land[id] = t.getWater() < 100;
+			}
+		}
+		Image[]		featureIcons = new Image[block.getMaxFeature()+1];
+		for (int id=1; id < featureIcons.length; id++) {
+			Tile	f = map.getInfo().getFeature(id);
+			if (f != null) {
+				featureIcons[id] = getIcon(f);
+			}
+		}
+		boolean[]	allowed = null;
+		if (allowedAreas != null) {
+			allowed = new boolean[block.getMaxArea()+1];
+			for (int id = allowedAreas.nextSetBit(0); id >= 0 && id < allowed.length; id = allowedAreas.nextSetBit(id+1)) {
+				allowed[id] = true;
+			}
+		}
+		Image		grey = hideAsGrey?getGreyIcon():null;
+		
+		// Draw the tiles for this map. Because 'lower' tiles can overlap 'higher'
+		// tiles, we must draw top rows first. Also, must do each row in two passes,
+		// once for the even (higher) columns and once for the odd (lower) columns.
+		for (int y=orgY-bleedY; y < orgY+height+bleedY; y++) {
+			for (int odd=0; odd < 2; odd++) {
+				for (int x=orgX+odd-bleedX; x < orgX+width+bleedX; x+=2) {
+					int		px = (x-orgX)*tileWidth;
+					int		py = (y-orgY)*tileHeight+(x%2)*tileHalfHeight;
+					int		t = block.getTerrain(x, y);
+					
+					if (t < 0) {
+						if (grey != null && block.isHiddenLand(x, y)) {
+							image.paint(grey, px, py, iconWidth, iconHeight);
+						}
+						continue;
+					} else if (t >= terrainIcons.length || terrainIcons[t] == null) {
+						continue;
+					}
+					if (allowed != null) {
+						int		a = block.getArea(x, y);
+						if (a < 0 || !allowed[a]) {
+							if (grey != null && land[t]) {
+								image.paint(grey, px, py, iconWidth, iconHeight);
+							}
+							continue;
+						}
+					}
+					image.paint(terrainIcons[t], px, py, iconWidth, iconHeight);
+					
+					int		f = block.getFeature(x, y);
+					if (f > 0 && featureIcons[f] != null) {
+						image.paint(featureIcons[f], px, py, iconWidth, iconHeight);
+					}
+				}
+			}
+		}
+		
+		drawPlaces(orgX, orgY, width, height);
+	}
+	
+	/**
+	 * Draw a map over the given area at full scale, looking up each tile
+	 * individually. This is the original drawing method, and is kept so
+	 * that RenderBenchmark can compare it against drawMap().
+	 * 
+	 * @param orgX
+	 * @param orgY
+	 * @param width
+	 * @param height
+	 * @throws IOException
+	 */
+	public void drawMapByTile(int orgX, int orgY, int width, int height) throws IOException {
+		image = new SimpleImage(width*tileWidth+(bleeding?0:tileWidth/2), height*tileHeight+tileHeight, "#FFFFFF");
+		overview = null;
 
 		// Always start on an even column.
 		orgX -= orgX%2;
@@ -193,9 +365,9 @@ public class MapSector {
 				int		px = (x-orgX)*tileWidth;
 				int		py = (y-orgY)*tileHeight+(x%2)*tileHalfHeight;
 
-				if (allowedAreas != null && !allowedAreas.contains(map.getArea(x, y))) {
+				if (allowedAreas != null && !isAllowed(map.getArea(x, y))) {
 					if (hideAsGrey && map.getInfo().getTerrain(map.getTerrain(x, y)).getWater() < 100) {
-						image.paint(getGreyIcon(), px, py, iconWidth, iconWidth);
+						image.paint(getGreyIcon(), px, py, iconWidth, iconHeight);
 					}
 					continue;
 				}
@@ -214,7 +386,7 @@ public class MapSector {
 			for (int x=orgX+1-(bleeding?2:0); x < orgX+width+(bleeding?2:0); x+=2) {
 				int		px = (x-orgX)*tileWidth;
 				int		py = (y-orgY)*tileHeight+(x%2)*tileHalfHeight;
-				if (allowedAreas != null && !allowedAreas.contains(map.getArea(x, y))) {
+				if (allowedAreas != null && !isAllowed(map.getArea(x, y))) {
 					if (hideAsGrey && map.getInfo().getTerrain(map.getTerrain(x, y)).getWater() < 100) {
 						image.paint(getGreyIcon(), px, py, iconWidth, iconHeight);
 					}
@@ -233,15 +405,18 @@ public class MapSector {
 			}
 		}
 		
+		drawPlaces(orgX, orgY, width, height);
+	}
+	
+	private void drawPlaces(int orgX, int orgY, int width, int height) throws IOException {
 		try {
 			List<NamedPlace> places = map.getInfo().getNamedPlaces(orgX+1-(bleeding?2:0), orgY-(bleeding?1:0), orgX+width+(bleeding?2:0), orgY+height+(bleeding?1:0));
 			
 			for (NamedPlace place : places) {
-				System.out.println(place.getName()+" ("+place.getX()+","+place.getY()+")");
-				if (allowedAreas != null && !allowedAreas.contains(map.getArea(place.getX(), place.getY()))) {
+				if (allowedAreas != null && !isAllowed(map.getArea(place.getX(), place.getY()))) {
 					continue;
 				}
-				Image	i = getIcon(map.getInfo().getThing(place.getThingId()));
+				Image	i = getIcon(map.getInfo().getThing(place.getThingId()), tileWidth, tileHeight);
 				int		px = (place.getX()-orgX)*tileWidth;
 				int		py = (place.getY()-orgY)*tileHeight+(place.getX()%2)*tileHalfHeight;
 				image.paint(i, px, py, tileWidth, tileHeight);
@@ -252,14 +427,14 @@ public class MapSector {
 		}
 	}
 	
+	private boolean isAllowed(int areaId) {
+		return areaId >= 0 && allowedAreas.get(areaId);
+	}
+	
 	public void drawMap(NamedArea area, int borderSize) throws IOException {
 		Rectangle	bounds = map.getInfo().getNamedAreaBounds(area);
 		
-		allowedAreas = new HashSet<Integer>();
-		allowedAreas.add(area.getId());
-		for (NamedArea a : map.getInfo().getChildAreas(area)) {
-			allowedAreas.add(a.getId());
-		}
+		allowedAreas = map.getInfo().getAreaIds(area);
 		int		maxDimension = Math.max(bounds.getWidth(), bounds.getHeight());
 		setScale(maxDimension + borderSize*2);
 		
@@ -284,94 +459,282 @@ public class MapSector {
 	}
 		
 	public void drawOverviewMap(int orgX, int orgY, int width, int height) throws IOException {
-		int		pixelWidth = 4;
-		int		pixelHeight = 5;
-		int		xStep = 1;
-		int		yStep = 1;
-		int		minImportance = 3;
+		setOverviewScale();
+		
+		overview = new BufferedImage(overviewPixelWidth * width / overviewXStep, 
+									 overviewPixelHeight * height / overviewYStep, BufferedImage.TYPE_INT_RGB);
+		Arrays.fill(getPixels(overview), 0xFFFFFF);
+		image = new SimpleImage(overview);
+		
+		drawOverviewTiles(orgX, orgY, orgX, orgY, width, height);
+		overviewTerrain = copyOf(overview);
+		drawOverviewPlaces(orgX, orgY, width, height);
+	}
+	
+	/**
+	 * Gets a copy of the terrain of the last overview map drawn, before
+	 * the names of places were added to it. This can be passed back to
+	 * updateOverviewMap() so that only the parts which have changed need
+	 * to be drawn again.
+	 * 
+	 * @return	Terrain layer of the overview map, or null if none drawn.
+	 */
+	public BufferedImage getOverviewTerrain() {
+		return overviewTerrain;
+	}
+	
+	/**
+	 * Draw an overview of the whole map, as drawOverviewMap(int), but
+	 * starting from the terrain of a previous overview and only redrawing
+	 * the given regions of it. Place names are then added as normal.
+	 * 
+	 * @param terrain	Terrain layer from a previous overview of the map.
+	 * @param changed	Regions of the map to redraw.
+	 * @throws IOException
+	 */
+	public void updateOverviewMap(BufferedImage terrain, List<Rectangle> changed) throws IOException {
+		int		width = map.getInfo().getWidth();
+		int		height = map.getInfo().getHeight();
+		
+		setOverviewScale();
+		overview = copyOf(terrain);
+		image = new SimpleImage(overview);
+		for (Rectangle r : changed) {
+			int		x = Math.max(0, r.getX() - r.getX()%overviewXStep);
+			int		y = Math.max(0, r.getY() - r.getY()%overviewYStep);
+			int		w = Math.min(width, r.getX() + r.getWidth()) - x;
+			int		h = Math.min(height, r.getY() + r.getHeight()) - y;
+			
+			if (w > 0 && h > 0) {
+				drawOverviewTiles(0, 0, x, y, w, h);
+			}
+		}
+		overviewTerrain = copyOf(overview);
+		drawOverviewPlaces(0, 0, width, height);
+	}
+	
+	/**
+	 * Copy an image into a new RGB image, whose pixels can be written
+	 * to directly.
+	 */
+	private static BufferedImage copyOf(BufferedImage source) {
+		BufferedImage	copy = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D		g = copy.createGraphics();
+		g.drawImage(source, 0, 0, null);
+		g.dispose();
+		
+		return copy;
+	}
+	
+	private static int[] getPixels(BufferedImage image) {
+		return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+	}
+	
+	/**
+	 * Gets the RGB value of a terrain colour. Colours are stored as six hex
+	 * digits, normally without a leading '#', though one is allowed.
+	 * 
+	 * @param colour	Colour, such as "99FF99" or "#99FF99".
+	 * @return			RGB value, or -1 if there is no valid colour.
+	 */
+	static int parseColour(String colour) {
+		if (colour == null) {
+			return -1;
+		}
+		if (colour.startsWith("#")) {
+			colour = colour.substring(1);
+		}
+		if (colour.length() < 6) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(colour.substring(0, 6), 16);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Fill a rectangle of an image's pixels with a colour, clipped to the
+	 * edges of the image.
+	 */
+	static void fillPixels(int[] pixels, int imageWidth, int imageHeight, int px, int py, int width, int height, int colour) {
+		for (int yy = Math.max(0, py); yy < Math.min(imageHeight, py + height); yy++) {
+			int		row = yy * imageWidth;
+			for (int xx = Math.max(0, px); xx < Math.min(imageWidth, px + width); xx++) {
+				pixels[row + xx] = colour;
+			}
+		}
+	}
+	
+	private static synchronized ForkJoinPool getRenderPool() {
+		if (renderPool == null) {
+			renderPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return renderPool;
+	}
+	
+	private void setOverviewScale() {
+		overviewPixelWidth = 4;
+		overviewPixelHeight = 5;
+		overviewXStep = 1;
+		overviewYStep = 1;
+		overviewMinImportance = 3;
 		
 		switch (scale) {
 		case STANDARD:
-			minImportance = 1;
+			overviewMinImportance = 1;
 			break;
 		case COMPACT:
-			minImportance = 2;
-			pixelWidth = 4;
-			pixelHeight = 5;
+			overviewMinImportance = 2;
+			overviewPixelWidth = 4;
+			overviewPixelHeight = 5;
 			break;
 		case LARGE:
-			minImportance = 3;
-			pixelWidth = 10;
-			pixelHeight = 11;
-			xStep = yStep = 4;
+			overviewMinImportance = 3;
+			overviewPixelWidth = 10;
+			overviewPixelHeight = 11;
+			overviewXStep = overviewYStep = 4;
 			break;
 		case SUBSECTOR:
-			minImportance = 4;
-			pixelWidth = 4;
-			pixelHeight = 5;
-			xStep = 8;
-			yStep = 10;
+			overviewMinImportance = 4;
+			overviewPixelWidth = 4;
+			overviewPixelHeight = 5;
+			overviewXStep = 8;
+			overviewYStep = 10;
 			break;
 		case SECTOR:
-			minImportance = 5;
-			pixelWidth = 4;
-			pixelHeight = 5;
-			xStep = 32;
-			yStep = 40;
+			overviewMinImportance = 5;
+			overviewPixelWidth = 4;
+			overviewPixelHeight = 5;
+			overviewXStep = 32;
+			overviewYStep = 40;
 			break;
 		}
+	}
+	
+	/**
+	 * Draw the terrain for part of an overview map. The image's top left
+	 * corner is at orgX, orgY, and the region from x, y is drawn.
+	 * 
+	 * The region is split into bands one sector high, which are drawn in
+	 * parallel straight into the overview's pixels. Each band reads the
+	 * tiles it needs in one go, and covers its own rows of the image, so
+	 * bands don't need to coordinate with each other.
+	 */
+	private void drawOverviewTiles(int orgX, int orgY, int fromX, int fromY, int width, int height) {
+		// Find the rows of tiles to be drawn, and where each band starts.
+		int			rows = (height + overviewYStep - 1) / overviewYStep;
+		int[]		bands = new int[rows + 1];
+		int			count = 0;
+		
+		for (int row = 0; row < rows; row++) {
+			int		y = fromY + row * overviewYStep;
+			if (row == 0 || y / Sector.HEIGHT != (y - overviewYStep) / Sector.HEIGHT) {
+				bands[count++] = row;
+			}
+		}
+		bands[count] = rows;
 		
+		getRenderPool().invoke(new OverviewBands(orgX, orgY, fromX, fromY, width, bands, 0, count));
+	}
+	
+	/**
+	 * Draws a range of bands of an overview map, splitting the range in
+	 * half until there is just one band to draw.
+	 */
+	private class OverviewBands extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
 		
-		image = new SimpleImage(pixelWidth * width / xStep, 
-								pixelHeight * height / yStep, "#FFFFFF");
+		private final int		orgX, orgY, fromX, fromY, width;
+		private final int[]		bands;
+		private final int		first, last;
 		
-		Hashtable<String,Image> colourTiles = new Hashtable<String,Image>();
-		colourTiles.put("#E0E0E0", SimpleImage.createImage(pixelWidth, pixelHeight, "#E0E0E0"));
-
-		for (int y=orgY; y < orgY+height; y+= yStep) {
-			if (y%10 == 0) System.out.println(y);
-			for (int x=orgX; x < orgX+width; x+=xStep) {
-				try {
+		OverviewBands(int orgX, int orgY, int fromX, int fromY, int width, int[] bands, int first, int last) {
+			this.orgX = orgX;
+			this.orgY = orgY;
+			this.fromX = fromX;
+			this.fromY = fromY;
+			this.width = width;
+			this.bands = bands;
+			this.first = first;
+			this.last = last;
+		}
+		
+		protected void compute() {
+			if (last - first > 1) {
+				int		middle = (first + last) / 2;
+				invokeAll(new OverviewBands(orgX, orgY, fromX, fromY, width, bands, first, middle),
+						  new OverviewBands(orgX, orgY, fromX, fromY, width, bands, middle, last));
+			} else if (last > first) {
+				drawBand(bands[first], bands[first + 1]);
+			}
+		}
+		
+		private void drawBand(int firstRow, int lastRow) {
+			int			pixelWidth = overviewPixelWidth;
+			int			pixelHeight = overviewPixelHeight;
+			int			xStep = overviewXStep;
+			int			yStep = overviewYStep;
+			
+			int			top = fromY + firstRow * yStep;
+			int			bottom = fromY + (lastRow - 1) * yStep + 1;
+			TileBlock	block = map.getTileBlock(fromX, top, width, bottom - top);
+			
+			int[]		colours = new int[block.getMaxTerrain() + 1];
+			boolean[]	land = new boolean[colours.length];
+			for (int id = 0; id < colours.length; id++) {
+				Terrain		t = map.getInfo().getTerrain(id);
+				colours[id] = -1;
+				if (t != null) {
+					colours[id] = parseColour(t.getColour());
+					land[id] = t.getWater() < 100;
+				}
+			}
+			
+			int[]		pixels = getPixels(overview);
+			int			imageWidth = overview.getWidth();
+			int			imageHeight = overview.getHeight();
+			
+			for (int y = top; y < bottom; y += yStep) {
+				int		py = ((y-orgY) * pixelHeight) / yStep;
+				for (int x = fromX; x < fromX+width; x += xStep) {
 					int		px = ((x-orgX) * pixelWidth) / xStep;
-					int		py = ((y-orgY) * pixelHeight) / yStep;
-					
-					MapTile	tile = map.getData().getTile(x, y);
+					int		terrain = block.getTerrain(x, y);
 					
-					if (allowedAreas != null && !allowedAreas.contains(tile.getAreaId())) {
-						if (map.getInfo().getTerrain(tile.getTerrainId()).getWater() < 100) {
-							if (hideAsGrey) {
-								image.paint(colourTiles.get("#E0E0E0"), px, py, pixelWidth, pixelHeight);
-							}
+					if (terrain < 0 || colours[terrain] < 0) {
+						continue;
+					}
+					int		colour = colours[terrain];
+					if (allowedAreas != null && !isAllowed(block.getArea(x, y)) && land[terrain]) {
+						if (!hideAsGrey) {
 							continue;
 						}
+						colour = 0xE0E0E0;
 					}
-					Terrain	t = map.getInfo().getTerrain(tile.getTerrainId());
-					Image	i = colourTiles.get(t.getColour());
-					if (i == null) {
-						i = SimpleImage.createImage(pixelWidth, pixelHeight, t.getColour());
-						colourTiles.put(t.getColour(), i);
-					}
-					image.paint(i, px, py, pixelWidth, pixelHeight);					
-				} catch (Throwable e) {
+					fillPixels(pixels, imageWidth, imageHeight, px, py, pixelWidth, pixelHeight, colour);
 				}
 			}
 		}
+	}
+	
+	private void drawOverviewPlaces(int orgX, int orgY, int width, int height) {
+		int		pixelWidth = overviewPixelWidth;
+		int		pixelHeight = overviewPixelHeight;
+		int		xStep = overviewXStep;
+		int		yStep = overviewYStep;
 
 		try {
-			List<NamedPlace> places = map.getInfo().getNamedPlaces(orgX, orgY, orgX+width, orgY+height);
+			// Only places important enough for the scale are labelled.
+			List<NamedPlace> places = map.getInfo().getNamedPlaces(orgX, orgY, orgX+width, orgY+height, overviewMinImportance);
 			
 			for (NamedPlace place : places) {
-				if (place.getImportance() < minImportance) {
-					continue;
-				}
 				int		px = ((place.getX()-orgX) * pixelWidth) / xStep;
 				int		py = ((place.getY()-orgY) * pixelHeight) / yStep;
 				
-				System.out.println(place.getName()+" ("+place.getX()+","+place.getY()+")");
-				if (allowedAreas != null && !allowedAreas.contains(map.getArea(place.getX(), place.getY()))) {
+				if (allowedAreas != null && !isAllowed(map.getArea(place.getX(), place.getY()))) {
 					continue;
 				}
-				Image	i = getIcon(map.getInfo().getThing(place.getThingId()));
 				image.circle(px, py, 5, "#000000");
 				image.text(px, py, place.getTitle(), Font.PLAIN, 12, "#000000");
 			}
@@ -0,0 +1,50 @@
+package uk.org.glendale.mapcraft.graphics;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import uk.org.glendale.mapcraft.map.Terrain;
+
+public class MapSectorTest extends TestCase {
+	/**
+	 * Terrain as seeded by MapManager.createMap(), which stores colours
+	 * without a leading '#'.
+	 */
+	private Terrain[] getSeededTerrain() {
+		return new Terrain[] {
+			new Terrain(1, "water.ocean", "Ocean", "ocean", 100, 0, 0, 0, "9999FF"),
+			new Terrain(2, "water.sea", "Sea", "sea", 100, 0, 0, 0, "AAAAFF"),
+			new Terrain(3, "temperate.grassland", "Grassland", "grass", 0, 10, 0, 75, "99FF99"),
+			new Terrain(4, "temperate.woodland", "Light woodland", "woods", 0, 30, 0, 75, "77DD77"),
+			new Terrain(5, "subtropical.desert", "Desert", "desert", 0, 0, 0, 5, "88FFFF")
+		};
+	}
+	
+	public void testParseColour() {
+		assertEquals(0x99FF99, MapSector.parseColour("99FF99"));
+		assertEquals(0x99FF99, MapSector.parseColour("#99FF99"));
+		assertEquals(-1, MapSector.parseColour(null));
+		assertEquals(-1, MapSector.parseColour("#FFF"));
+		assertEquals(-1, MapSector.parseColour("green!"));
+	}
+	
+	/**
+	 * An overview of a freshly seeded map must not come out blank.
+	 */
+	public void testSeededTerrainDrawsColour() {
+		int			width = 40, height = 10;
+		int[]		pixels = new int[width * height];
+		Terrain[]	terrain = getSeededTerrain();
+		
+		Arrays.fill(pixels, 0xFFFFFF);
+		for (int i = 0; i < terrain.length; i++) {
+			int		colour = MapSector.parseColour(terrain[i].getColour());
+			assertTrue("No colour for "+terrain[i].getName(), colour >= 0);
+			MapSector.fillPixels(pixels, width, height, i * 8, 0, 8, height, colour);
+		}
+		for (int i = 0; i < pixels.length; i++) {
+			assertTrue("Pixel "+i+" is still white", pixels[i] != 0xFFFFFF);
+		}
+	}
+}
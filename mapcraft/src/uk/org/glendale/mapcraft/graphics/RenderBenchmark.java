@@ -0,0 +1,65 @@
+package uk.org.glendale.mapcraft.graphics;
+
+import java.io.File;
+
+import uk.org.glendale.mapcraft.map.Map;
+import uk.org.glendale.mapcraft.server.AppManager;
+import uk.org.glendale.mapcraft.server.database.MapManager;
+
+/**
+ * Compares the time taken to draw an area of a map using the prefetched
+ * drawMap() against the original tile by tile drawMapByTile(). Both are
+ * run a few times first so that the sector and icon caches are warm, and
+ * only the drawing itself is being measured.
+ * 
+ * Usage: RenderBenchmark <mapname> <style folder> <x> <y> [width height [iterations]]
+ * 
+ * @author Samuel Penn
+ */
+public class RenderBenchmark {
+	private static final int	WARMUP = 3;
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.out.println("Usage: RenderBenchmark <mapname> <style folder> <x> <y> [width height [iterations]]");
+			return;
+		}
+		String		name = args[0];
+		File		style = new File(args[1]);
+		int			x = Integer.parseInt(args[2]);
+		int			y = Integer.parseInt(args[3]);
+		int			width = (args.length > 5)?Integer.parseInt(args[4]):32;
+		int			height = (args.length > 5)?Integer.parseInt(args[5]):40;
+		int			iterations = (args.length > 6)?Integer.parseInt(args[6]):20;
+		
+		AppManager		app = new AppManager();
+		MapManager		manager = new MapManager(app.getConnectionSource());
+		Map				map = manager.getMap(name);
+		MapSector		sector = new MapSector(map, style);
+		sector.setBleeding(true);
+		
+		for (int i=0; i < WARMUP; i++) {
+			sector.drawMap(x, y, width, height);
+			sector.drawMapByTile(x, y, width, height);
+		}
+		
+		long	start = System.nanoTime();
+		for (int i=0; i < iterations; i++) {
+			sector.drawMapByTile(x, y, width, height);
+		}
+		long	byTile = (System.nanoTime() - start) / iterations;
+		
+		start = System.nanoTime();
+		for (int i=0; i < iterations; i++) {
+			sector.drawMap(x, y, width, height);
+		}
+		long	prefetched = (System.nanoTime() - start) / iterations;
+		
+		System.out.println(String.format("%dx%d tiles, %d iterations", width, height, iterations));
+		System.out.println(String.format("drawMapByTile: %8.2fms", byTile / 1000000.0));
+		System.out.println(String.format("drawMap:       %8.2fms", prefetched / 1000000.0));
+		System.out.println(String.format("Speed up:      %8.2fx", (double)byTile / prefetched));
+		
+		manager.disconnect();
+	}
+}
@@ -0,0 +1,409 @@
+package uk.org.glendale.mapcraft.graphics;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import uk.org.glendale.mapcraft.map.Map;
+import uk.org.glendale.mapcraft.map.Sector;
+
+/**
+ * Serves a map as a pyramid of fixed size image tiles, in the z/x/y
+ * layout used by slippy map clients such as Leaflet or OpenLayers.
+ *
+ * At the deepest zoom level each tile is exactly one sector, drawn at
+ * full scale with bleeding so that neighbouring tiles join up. Each
+ * level above has tiles which cover twice the width and height of the
+ * level below, and which are built by shrinking the four tiles beneath
+ * them rather than by drawing the map again. Zoom 0 is a single tile
+ * covering the whole map.
+ *
+ * Since a tile is one sector, tiles aren't square. Their size in pixels
+ * is Sector.WIDTH by Sector.HEIGHT hexes of the style, and can be found
+ * with getTileWidth() and getTileHeight(). Clients have to be told it,
+ * for example with Leaflet's tileSize option given as a point, rather
+ * than assuming the usual 256 pixel square.
+ *
+ * A tile at the deepest zoom is drawn when it is asked for, since that is
+ * one sector. A tile above that which can't be built straight from the
+ * tiles beneath it would need a large part of the map drawing, so it is
+ * built in the background instead, one tile at a time for all maps, and
+ * a blank placeholder is served until it is ready.
+ *
+ * Tile images are stored on disc under the name of a hash of their
+ * content, so identical tiles (open sea, for example) are only stored
+ * once, and a tile's URL only changes when its content does. A small
+ * reference file records which content each z/x/y position currently
+ * has. Removing a reference file causes the tile to be rebuilt next time
+ * it is asked for.
+ *
+ * @author Samuel Penn
+ */
+public class TilePyramid {
+	private static Logger	log = Logger.getLogger("uk.org.glendale.mapcraft.graphics.TilePyramid");
+
+	private static ExecutorService	builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread	t = new Thread(r, "TilePyramid builder");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// Tiles waiting to be built in the background, by reference file.
+	private static Set<File>		building = Collections.synchronizedSet(new HashSet<File>());
+
+	// Hash of the blank placeholder tile of each size, as width x height.
+	private static java.util.Map<String,String>	placeholders = Collections.synchronizedMap(new HashMap<String,String>());
+
+	private Map			map;
+	private File		styleFolder;
+	private File		tileFolder;
+	private File		contentFolder;
+
+	private int			sectorsAcross;
+	private int			sectorsDown;
+	private int			maxZoom;
+	private int			tileWidth;
+	private int			tileHeight;
+
+	/**
+	 * Create a tile pyramid for a map drawn in the given style.
+	 *
+	 * @param map			Map to draw.
+	 * @param styleFolder	Folder of the style to draw with.
+	 * @param cacheFolder	Root folder for cached tiles.
+	 */
+	public TilePyramid(Map map, File styleFolder, File cacheFolder) {
+		this.map = map;
+		this.styleFolder = styleFolder;
+		this.contentFolder = new File(cacheFolder, "content");
+		this.tileFolder = new File(cacheFolder, map.getInfo().getName()+"/"+styleFolder.getName());
+
+		sectorsAcross = Math.max(1, (map.getInfo().getWidth() + Sector.WIDTH - 1) / Sector.WIDTH);
+		sectorsDown = Math.max(1, (map.getInfo().getHeight() + Sector.HEIGHT - 1) / Sector.HEIGHT);
+
+		maxZoom = 0;
+		while ((1 << maxZoom) < Math.max(sectorsAcross, sectorsDown)) {
+			maxZoom++;
+		}
+
+		MapSector	sizes = new MapSector(map, styleFolder);
+		tileWidth = Sector.WIDTH * sizes.getTileWidth();
+		tileHeight = Sector.HEIGHT * sizes.getTileHeight();
+	}
+
+	/**
+	 * Gets the deepest zoom level, at which each tile is one sector.
+	 */
+	public int getMaxZoom() {
+		return maxZoom;
+	}
+
+	/**
+	 * Width of every tile, in pixels.
+	 */
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	/**
+	 * Height of every tile, in pixels.
+	 */
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	/**
+	 * Number of tiles across the map at the given zoom level.
+	 */
+	public int getTilesAcross(int z) {
+		int		span = 1 << (maxZoom - z);
+		return (sectorsAcross + span - 1) / span;
+	}
+
+	/**
+	 * Number of tiles down the map at the given zoom level.
+	 */
+	public int getTilesDown(int z) {
+		int		span = 1 << (maxZoom - z);
+		return (sectorsDown + span - 1) / span;
+	}
+
+	/**
+	 * Is there a tile at this position?
+	 */
+	public boolean isValid(int z, int x, int y) {
+		if (z < 0 || z > maxZoom || x < 0 || y < 0) {
+			return false;
+		}
+		return x < getTilesAcross(z) && y < getTilesDown(z);
+	}
+
+	/**
+	 * Gets the content hash of a tile, drawing it (and any tiles it is
+	 * built from) if it hasn't been drawn already.
+	 *
+	 * @param z		Zoom level, 0 to getMaxZoom().
+	 * @param x		Column of tile at that zoom.
+	 * @param y		Row of tile at that zoom.
+	 * @return		Hash identifying the tile's image.
+	 * @throws IOException
+	 */
+	public String getTileHash(int z, int x, int y) throws IOException {
+		if (!isValid(z, x, y)) {
+			throw new IllegalArgumentException("No tile at "+z+"/"+x+"/"+y);
+		}
+		File	ref = getReferenceFile(z, x, y);
+		String	hash = readReference(ref);
+
+		if (hash == null || !getContentFile(hash).exists()) {
+			long			start = System.currentTimeMillis();
+			BufferedImage	tile = (z == maxZoom)?drawTile(x, y):shrinkTiles(z, x, y);
+			hash = store(tile);
+			writeReference(ref, hash);
+			log.fine("Built tile "+z+"/"+x+"/"+y+" of ["+map.getInfo().getName()+"] in "+
+					 (System.currentTimeMillis() - start)+"ms");
+		}
+		return hash;
+	}
+
+	/**
+	 * Gets the content hash of a tile without waiting for it to be built,
+	 * if building it would mean drawing more than one sector. Such a tile
+	 * is queued to be built in the background, and null is returned.
+	 *
+	 * @param z		Zoom level, 0 to getMaxZoom().
+	 * @param x		Column of tile at that zoom.
+	 * @param y		Row of tile at that zoom.
+	 * @return		Hash identifying the tile's image, or null if it isn't ready.
+	 * @throws IOException
+	 */
+	public String findTileHash(int z, int x, int y) throws IOException {
+		if (z == maxZoom || isBuilt(z, x, y)) {
+			return getTileHash(z, x, y);
+		}
+		// Can be shrunk from what is already there, without drawing.
+		boolean	ready = true;
+		for (int dy = 0; dy < 2 && ready; dy++) {
+			for (int dx = 0; dx < 2 && ready; dx++) {
+				if (isValid(z + 1, x * 2 + dx, y * 2 + dy)) {
+					ready = isBuilt(z + 1, x * 2 + dx, y * 2 + dy);
+				}
+			}
+		}
+		if (ready) {
+			return getTileHash(z, x, y);
+		}
+		buildLater(z, x, y);
+		return null;
+	}
+
+	private boolean isBuilt(int z, int x, int y) throws IOException {
+		String	hash = readReference(getReferenceFile(z, x, y));
+		return hash != null && getContentFile(hash).exists();
+	}
+
+	private void buildLater(final int z, final int x, final int y) {
+		final File	ref = getReferenceFile(z, x, y);
+		if (!building.add(ref)) {
+			return;
+		}
+		builder.execute(new Runnable() {
+			public void run() {
+				try {
+					getTileHash(z, x, y);
+				} catch (Exception e) {
+					log.log(Level.WARNING, "Unable to build tile "+z+"/"+x+"/"+y+" of ["+map.getInfo().getName()+"]", e);
+				} finally {
+					building.remove(ref);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gets the content hash of a blank tile, to show while a tile is
+	 * being built.
+	 */
+	public String getPlaceholderHash() throws IOException {
+		String	size = tileWidth+"x"+tileHeight;
+		String	hash = placeholders.get(size);
+		if (hash != null && getContentFile(hash).exists()) {
+			return hash;
+		}
+		BufferedImage	tile = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics2D		g = tile.createGraphics();
+
+		g.setColor(java.awt.Color.WHITE);
+		g.fillRect(0, 0, tileWidth, tileHeight);
+		g.dispose();
+		hash = store(tile);
+		placeholders.put(size, hash);
+
+		return hash;
+	}
+
+	/**
+	 * Gets the file holding the image with the given content hash. The
+	 * file may not exist if the hash is unknown.
+	 */
+	public File getContentFile(String hash) {
+		return getContentFile(contentFolder.getParentFile(), hash);
+	}
+
+	/**
+	 * Gets the file holding the image with the given content hash, from
+	 * a given cache folder. Content is shared by all maps and styles.
+	 *
+	 * @param cacheFolder	Root folder for cached tiles.
+	 * @param hash			Content hash of the tile.
+	 * @return				File holding the tile, which may not exist.
+	 */
+	public static File getContentFile(File cacheFolder, String hash) {
+		if (!hash.matches("[0-9a-f]+")) {
+			throw new IllegalArgumentException("Invalid tile hash ["+hash+"]");
+		}
+		return new File(cacheFolder, "content/"+hash+".png");
+	}
+
+	private File getReferenceFile(int z, int x, int y) {
+		return new File(tileFolder, z+"/"+x+"-"+y+".ref");
+	}
+
+	/**
+	 * Draw a single sector at full scale. The map is drawn with bleeding,
+	 * then cropped so the tile ends exactly where the next one starts.
+	 */
+	private BufferedImage drawTile(int x, int y) throws IOException {
+		MapSector	imageMap = new MapSector(map, styleFolder);
+		imageMap.setBleeding(true);
+		imageMap.drawMap(x * Sector.WIDTH, y * Sector.HEIGHT, Sector.WIDTH, Sector.HEIGHT);
+
+		return imageMap.getImage().getSubimage(0, 0, tileWidth, tileHeight);
+	}
+
+	/**
+	 * Build a tile by shrinking the four tiles from the zoom level below
+	 * into each of its quarters.
+	 */
+	private BufferedImage shrinkTiles(int z, int x, int y) throws IOException {
+		BufferedImage	tile = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics2D		g = tile.createGraphics();
+
+		g.setColor(java.awt.Color.WHITE);
+		g.fillRect(0, 0, tileWidth, tileHeight);
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+		for (int dy = 0; dy < 2; dy++) {
+			for (int dx = 0; dx < 2; dx++) {
+				int		cx = x * 2 + dx, cy = y * 2 + dy;
+				if (!isValid(z + 1, cx, cy)) {
+					continue;
+				}
+				BufferedImage	child = ImageIO.read(getContentFile(getTileHash(z + 1, cx, cy)));
+				if (child == null) {
+					throw new IOException("Unable to decode tile "+(z+1)+"/"+cx+"/"+cy);
+				}
+				int		px = dx * tileWidth / 2, py = dy * tileHeight / 2;
+				g.drawImage(child, px, py, (dx + 1) * tileWidth / 2 - px, (dy + 1) * tileHeight / 2 - py, null);
+			}
+		}
+		g.dispose();
+
+		return tile;
+	}
+
+	/**
+	 * Encode a tile as PNG and store it under the hash of its content.
+	 * Tiles are kept lossless, since they are shrunk again to build the
+	 * lower zoom levels.
+	 */
+	private String store(BufferedImage tile) throws IOException {
+		ByteArrayOutputStream	buffer = new ByteArrayOutputStream();
+		ImageIO.write(tile, "png", buffer);
+		byte[]					data = buffer.toByteArray();
+		String					hash = hash(data);
+		File					file = getContentFile(hash);
+
+		if (!file.exists()) {
+			contentFolder.mkdirs();
+			File				tmp = File.createTempFile("tile", ".tmp", contentFolder);
+			FileOutputStream	out = new FileOutputStream(tmp);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				// Someone else stored the same content first.
+				tmp.delete();
+			}
+		}
+		return hash;
+	}
+
+	private static String hash(byte[] data) {
+		try {
+			MessageDigest	digest = MessageDigest.getInstance("SHA-1");
+			StringBuffer	hex = new StringBuffer();
+			for (byte b : digest.digest(data)) {
+				hex.append(String.format("%02x", b & 0xFF));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+	private static String readReference(File ref) throws IOException {
+		if (!ref.exists()) {
+			return null;
+		}
+		RandomAccessFile	in = new RandomAccessFile(ref, "r");
+		try {
+			String	hash = in.readLine();
+			return (hash == null || hash.trim().length() == 0)?null:hash.trim();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeReference(File ref, String hash) throws IOException {
+		ref.getParentFile().mkdirs();
+		File				tmp = File.createTempFile("ref", ".tmp", ref.getParentFile());
+		FileOutputStream	out = new FileOutputStream(tmp);
+		try {
+			out.write(hash.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		ref.delete();
+		if (!tmp.renameTo(ref)) {
+			tmp.delete();
+			if (ref.exists()) {
+				// Another thread built the same tile.
+				return;
+			}
+			throw new IOException("Unable to write tile reference ["+ref.getAbsolutePath()+"]");
+		}
+	}
+}
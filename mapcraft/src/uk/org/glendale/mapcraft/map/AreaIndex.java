@@ -0,0 +1,425 @@
+package uk.org.glendale.mapcraft.map;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import uk.org.glendale.mapcraft.server.database.MapData;
+
+/**
+ * Index of where each named area is on a map. For every sector it holds
+ * the set of areas which have tiles in it, and the bounds of each of those
+ * areas within the sector. The bounds of an area across the whole map are
+ * worked out from these when first asked for, and then kept until one of
+ * the sectors it is in changes.
+ *
+ * The index is built by reading every sector once, so unlike a query on
+ * the stored tiles it takes account of sparse sectors. This is done on a
+ * background thread (see startBuild()), and the index isn't locked while
+ * the sectors are being read, so nothing which can manage without the
+ * index has to wait for it. Sectors written while it is being built are
+ * indexed again once it is done. After that, it is
+ * kept up to date as sectors are written (it is a SectorListener), and
+ * as tiles are painted with setArea(). Painting only ever adds to the
+ * index, so until the sector is written an area which has been painted
+ * over may still be listed for it. This is safe for drawing, which only
+ * uses the index to decide what it doesn't need to look at.
+ *
+ * The index also records which tiles of each sector are land, so that a
+ * sector with none of the areas being drawn can be greyed out without
+ * being read.
+ *
+ * There is one index per map, shared by every view of it.
+ *
+ * @author Samuel Penn
+ */
+public class AreaIndex implements SectorListener {
+	private static Logger		log = Logger.getLogger("uk.org.glendale.mapcraft.map.AreaIndex");
+
+	private static ConcurrentHashMap<String,AreaIndex>	indexes = new ConcurrentHashMap<String,AreaIndex>();
+
+	// Shared by all indexes, so maps are built one at a time.
+	private static ExecutorService	builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread	t = new Thread(r, "AreaIndex builder");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final String		name;
+	private HashMap<SectorCoord,SectorAreas>	sectors = null;
+	// Bounds of each area across the map, as {west, north, east, south}.
+	private HashMap<Integer,int[]>	bounds = new HashMap<Integer,int[]>();
+	// Which terrain ids are land.
+	private boolean[]			land = new boolean[0];
+
+	// Set while the index is being built, to catch changes made meanwhile.
+	private boolean				building = false;
+	private List<Sector>		changedSectors = null;
+	private List<int[]>			changedTiles = null;
+
+	/**
+	 * The areas in a single sector.
+	 */
+	private static class SectorAreas {
+		BitSet					areas = new BitSet();
+		HashMap<Integer,int[]>	bounds = new HashMap<Integer,int[]>();
+		// Land tiles, indexed by x * Sector.HEIGHT + y within the sector.
+		BitSet					land = new BitSet();
+
+		void add(int x, int y, int areaId) {
+			if (areaId < 0) {
+				return;
+			}
+			areas.set(areaId);
+			int[]	b = bounds.get(areaId);
+			if (b == null) {
+				bounds.put(areaId, new int[] { x, y, x, y });
+			} else {
+				grow(b, x, y);
+			}
+		}
+	}
+
+	/**
+	 * Create an empty index. Normally getSharedIndex() should be used.
+	 *
+	 * @param name		Name of the map being indexed.
+	 */
+	public AreaIndex(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Gets the index shared by everything looking at the named map,
+	 * creating it if necessary. It will be empty until it is built.
+	 *
+	 * @param name		Name of the map.
+	 * @return			Index for that map.
+	 */
+	public static AreaIndex getSharedIndex(String name) {
+		AreaIndex		index = indexes.get(name);
+		if (index == null) {
+			if (indexes.putIfAbsent(name, new AreaIndex(name)) == null) {
+				SectorCache.addSectorListener(indexes.get(name));
+			}
+			index = indexes.get(name);
+		}
+		return index;
+	}
+
+	/**
+	 * Throw away the shared index for a map, for when the map is deleted.
+	 */
+	public static void removeSharedIndex(String name) {
+		AreaIndex		index = indexes.remove(name);
+		if (index != null) {
+			SectorCache.removeSectorListener(index);
+		}
+	}
+
+	private static void grow(int[] b, int x, int y) {
+		b[0] = Math.min(b[0], x);
+		b[1] = Math.min(b[1], y);
+		b[2] = Math.max(b[2], x);
+		b[3] = Math.max(b[3], y);
+	}
+
+	public synchronized boolean isBuilt() {
+		return sectors != null;
+	}
+
+	/**
+	 * Start building the index on a background thread, unless it has
+	 * been built or is being built already.
+	 *
+	 * @param data		Database access for the map.
+	 * @param width		Width of the map in tiles.
+	 * @param height	Height of the map in tiles.
+	 * @param land		Which terrain ids are land, indexed by id.
+	 */
+	public void startBuild(final MapData data, final int width, final int height, final boolean[] land) {
+		synchronized (this) {
+			if (sectors != null || building) {
+				return;
+			}
+			building = true;
+		}
+		builder.execute(new Runnable() {
+			public void run() {
+				try {
+					build(data, width, height, land);
+				} catch (Throwable e) {
+					log.log(Level.SEVERE, "Unable to index areas of ["+name+"]", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait until the index has been built. If it isn't being built, then
+	 * this returns straight away.
+	 *
+	 * @param timeout	Most milliseconds to wait.
+	 * @return			True if the index has been built.
+	 */
+	public synchronized boolean waitUntilBuilt(long timeout) throws InterruptedException {
+		long	end = System.currentTimeMillis() + timeout;
+
+		while (sectors == null && building) {
+			long	left = end - System.currentTimeMillis();
+			if (left <= 0) {
+				break;
+			}
+			wait(left);
+		}
+		return sectors != null;
+	}
+
+	/**
+	 * Build the index by reading every sector of the map from the database.
+	 * The index isn't locked while the sectors are read, and any sectors
+	 * written meanwhile are indexed again at the end.
+	 *
+	 * @param data		Database access for the map.
+	 * @param width		Width of the map in tiles.
+	 * @param height	Height of the map in tiles.
+	 * @param land		Which terrain ids are land, indexed by id.
+	 * @throws SQLException
+	 */
+	public void build(MapData data, int width, int height, boolean[] land) throws SQLException {
+		long		start = System.currentTimeMillis();
+		HashMap<SectorCoord,SectorAreas>	built = new HashMap<SectorCoord,SectorAreas>();
+
+		synchronized (this) {
+			building = true;
+			changedSectors = new ArrayList<Sector>();
+			changedTiles = new ArrayList<int[]>();
+		}
+		boolean		done = false;
+		try {
+			for (int y=0; y < height; y += Sector.HEIGHT) {
+				for (int x=0; x < width; x += Sector.WIDTH) {
+					Sector	sector = data.readSector(x, y);
+					built.put(sector.getCoord(), scan(sector, land));
+				}
+			}
+			done = true;
+		} finally {
+			synchronized (this) {
+				List<Sector>	sectorsChanged = changedSectors;
+				List<int[]>		tilesChanged = changedTiles;
+				
+				changedSectors = null;
+				changedTiles = null;
+				if (done) {
+					this.land = land.clone();
+					this.sectors = built;
+					bounds.clear();
+					for (Sector sector : sectorsChanged) {
+						index(sector);
+					}
+					for (int[] t : tilesChanged) {
+						setArea(t[0], t[1], t[2]);
+					}
+				}
+				building = false;
+				notifyAll();
+			}
+		}
+		log.info("Indexed areas of ["+name+"] in "+built.size()+" sectors in "+
+				 (System.currentTimeMillis()-start)+"ms");
+	}
+
+	/**
+	 * Work out which areas, and which land tiles, are in a sector.
+	 */
+	private static SectorAreas scan(Sector sector, boolean[] land) {
+		SectorAreas		entry = new SectorAreas();
+		int[][]			area = sector.getAreaData();
+		int[][]			terrain = sector.getTerrainData();
+
+		for (int x=0; x < Sector.WIDTH; x++) {
+			for (int y=0; y < Sector.HEIGHT; y++) {
+				entry.add(sector.getOriginX()+x, sector.getOriginY()+y, area[x][y]);
+				int		t = terrain[x][y];
+				if (t >= 0 && t < land.length && land[t]) {
+					entry.land.set(x * Sector.HEIGHT + y);
+				}
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Replace everything known about a sector with what is in it now.
+	 */
+	private void index(Sector sector) {
+		SectorAreas		entry = scan(sector, land);
+		SectorAreas		old = sectors.put(sector.getCoord(), entry);
+		// Bounds of any area which was or is in this sector need working out again.
+		if (old != null) {
+			forget(old.areas);
+		}
+		forget(entry.areas);
+	}
+
+	private void forget(BitSet areas) {
+		for (int id = areas.nextSetBit(0); id >= 0; id = areas.nextSetBit(id+1)) {
+			bounds.remove(id);
+		}
+	}
+
+	public synchronized void sectorChanged(String mapName, Sector sector) {
+		if (!name.equals(mapName)) {
+			return;
+		} else if (changedSectors != null) {
+			changedSectors.add(sector);
+		} else if (sectors != null) {
+			index(sector);
+		}
+	}
+
+	/**
+	 * Record that a tile has been painted with an area. Does nothing if
+	 * the index hasn't been built yet. If it is being built, the tile is
+	 * recorded once it is done.
+	 *
+	 * @param x			X coordinate of the tile.
+	 * @param y			Y coordinate of the tile.
+	 * @param areaId	Area the tile now belongs to.
+	 */
+	public synchronized void setArea(int x, int y, int areaId) {
+		if (changedTiles != null && areaId >= 0) {
+			changedTiles.add(new int[] { x, y, areaId });
+			return;
+		}
+		if (sectors == null || areaId < 0) {
+			return;
+		}
+		SectorCoord		c = new SectorCoord(x, y);
+		SectorAreas		entry = sectors.get(c);
+		if (entry == null) {
+			entry = new SectorAreas();
+			sectors.put(c, entry);
+		}
+		entry.add(x, y, areaId);
+		int[]	b = bounds.get(areaId);
+		if (b != null) {
+			grow(b, x, y);
+		}
+	}
+
+	/**
+	 * Gets the bounds of a single area, as {west, north, east, south}, or
+	 * null if the area has no tiles.
+	 */
+	private int[] getAreaBounds(int areaId) {
+		int[]	b = bounds.get(areaId);
+
+		if (b == null && !bounds.containsKey(areaId)) {
+			for (SectorAreas entry : sectors.values()) {
+				int[]	s = entry.bounds.get(areaId);
+				if (s == null) {
+					continue;
+				} else if (b == null) {
+					b = s.clone();
+				} else {
+					grow(b, s[0], s[1]);
+					grow(b, s[2], s[3]);
+				}
+			}
+			bounds.put(areaId, b);
+		}
+		return b;
+	}
+
+	/**
+	 * Gets the smallest rectangle which contains every tile of the given
+	 * areas. As with the rest of the map, the width and height are the
+	 * distance between the outermost tiles.
+	 *
+	 * @param areas		Ids of the areas.
+	 * @return			Bounds of the areas, or an empty rectangle at the
+	 * 					origin if there are no such tiles.
+	 */
+	public synchronized Rectangle getBounds(BitSet areas) {
+		int[]	b = null;
+
+		if (sectors == null) {
+			throw new IllegalStateException("Area index for ["+name+"] has not been built");
+		}
+		for (int id = areas.nextSetBit(0); id >= 0; id = areas.nextSetBit(id+1)) {
+			int[]	a = getAreaBounds(id);
+			if (a == null) {
+				continue;
+			} else if (b == null) {
+				b = a.clone();
+			} else {
+				grow(b, a[0], a[1]);
+				grow(b, a[2], a[3]);
+			}
+		}
+		if (b == null) {
+			return new Rectangle(0, 0, 0, 0);
+		}
+		return new Rectangle(b[0], b[1], b[2]-b[0], b[3]-b[1]);
+	}
+
+	/**
+	 * Does the sector containing the given tile have any tiles belonging to
+	 * one of the given areas? If the index hasn't been built, the answer is
+	 * always yes.
+	 *
+	 * @param x			X coordinate of a tile in the sector.
+	 * @param y			Y coordinate of a tile in the sector.
+	 * @param areas		Ids of the areas.
+	 * @return			True if any of the areas might be in the sector.
+	 */
+	public synchronized boolean hasAny(int x, int y, BitSet areas) {
+		if (sectors == null) {
+			return true;
+		}
+		SectorAreas		entry = sectors.get(new SectorCoord(x, y));
+
+		return entry != null && entry.areas.intersects(areas);
+	}
+
+	/**
+	 * Gets the ids of all the areas which have tiles in the sector
+	 * containing the given tile.
+	 *
+	 * @return		Copy of the set of area ids, empty if none are known.
+	 */
+	public synchronized BitSet getAreas(int x, int y) {
+		SectorAreas		entry = (sectors == null)?null:sectors.get(new SectorCoord(x, y));
+
+		return (entry == null)?new BitSet():(BitSet)entry.areas.clone();
+	}
+
+	/**
+	 * Gets which tiles of the sector containing the given tile are land,
+	 * as of when it was last indexed. Bits are indexed by x * Sector.HEIGHT
+	 * + y within the sector.
+	 *
+	 * @return		Copy of the land tiles, or null if the sector isn't known.
+	 */
+	public synchronized BitSet getLand(int x, int y) {
+		SectorAreas		entry = (sectors == null)?null:sectors.get(new SectorCoord(x, y));
+
+		return (entry == null)?null:(BitSet)entry.land.clone();
+	}
+
+	public String getName() {
+		return name;
+	}
+}
@@ -1,35 +1,59 @@
 package uk.org.glendale.mapcraft.map;
 
-import java.sql.SQLException;
-import java.util.Hashtable;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.faces.bean.ManagedBean;
 import javax.faces.bean.SessionScoped;
 
+import uk.org.glendale.mapcraft.server.AppManager;
 import uk.org.glendale.mapcraft.server.database.MapData;
 import uk.org.glendale.mapcraft.server.database.MapInfo;
 
 /**
- * Represents a complete map. Caches map data provided by the database.
+ * Represents a complete map. Map data provided by the database is held
+ * in a SectorCache which is shared by every view of the same map, so
+ * many sessions looking at one world only need one copy of it.
+ * 
+ * Changes are copy-on-write. The first change to a sector takes a private
+ * copy of it for this view, and all reads and writes of that sector then
+ * go to the copy until it is written back. At most 'cache.edits' sectors
+ * are held this way (default 64); beyond that, the least recently used
+ * one is written back in the background.
  * 
  * @author Samuel Penn
  */
 @ManagedBean @SessionScoped
 public class Map {
+	public static final int		DEFAULT_EDITS = 64;
+	
 	private MapInfo		info;
 	private MapData		data;
-	private Hashtable<SectorCoord,Sector>	sectorCache = new Hashtable<SectorCoord,Sector>();
+	private SectorCache	sectorCache;
+	private AreaIndex	areaIndex;
+	private int			maxEdits;
+	
+	// Private copies of sectors changed through this view.
+	private LinkedHashMap<SectorCoord,Sector>	edits = new LinkedHashMap<SectorCoord,Sector>(16, 0.75f, true);
+	// Copies which are being written back in the background.
+	private ConcurrentHashMap<SectorCoord,Sector>	pending = new ConcurrentHashMap<SectorCoord,Sector>();
 	
-	private static Logger		log = Logger.getLogger("uk.org.glendale.mapcraft.map.Map");
-		
 	public Map(MapInfo info, MapData data) {
+		this(info, data, SectorCache.getSharedCache(info.getName()));
+	}
+	
+	public Map(MapInfo info, MapData data, SectorCache sectorCache) {
 		if (info == null || data == null) {
 			throw new IllegalArgumentException("Both map info and data must be non-null");
 		}
 		this.info = info;
 		this.data = data;
+		this.sectorCache = sectorCache;
+		this.areaIndex = AreaIndex.getSharedIndex(info.getName());
+		this.maxEdits = Integer.parseInt(AppManager.getProperty("cache.edits", ""+DEFAULT_EDITS));
 	}
 	
 	public String getName() {
@@ -48,52 +72,22 @@ public class Map {
 		return data;
 	}
 	
-	private void shrinkCache() {
-		Sector		oldestDirty = null;
-		Sector		oldestClean = null;
-		
-		long		autoCleanTime = System.currentTimeMillis() - 60000;
-		
-		if (sectorCache.size() < 128) {
-			// Cache is small, don't bother cleaning it.
-			return;
-		}
-		for (Sector s : sectorCache.values()) {
-			if (s.isDirty()) {
-				if (oldestDirty == null) {
-					oldestDirty = s;
-				} else if (oldestDirty.getLastUsedTime() > s.getLastUsedTime()) {
-					oldestDirty = s;
-				}
-			} else {
-				if (s.getLastUsedTime() < autoCleanTime) {
-					sectorCache.remove(s.getCoord());
-				} else if (oldestClean == null) {
-					oldestClean = s;
-				} else if (oldestClean.getLastUsedTime() > s.getLastUsedTime()){
-					oldestClean = s;
-				}
-			}
-		}
-		if (sectorCache.size() > 128) {
-			if (oldestClean != null) {
-				sectorCache.remove(oldestClean.getCoord());
-			} else if (oldestDirty != null) {
-				try {
-					data.writeSector(oldestDirty);
-					sectorCache.remove(oldestDirty.getCoord());
-				} catch (SQLException e) {
-					log.log(Level.SEVERE, "Unable to write sector", e);
-				}
-			}
-		}
+	/**
+	 * Gets the cache of sectors used by this map. Mostly of use for
+	 * seeing how effective the cache is. The cache is shared with all
+	 * other views of the same map.
+	 * 
+	 * @return		The sector cache.
+	 */
+	public SectorCache getSectorCache() {
+		return sectorCache;
 	}
 	
 	/**
-	 * Retrieve a cached sector, or read it from the database if it
-	 * isn't cached. Sectors are identified by the coordinate of
-	 * their (0,0) tile, though any tile in the sector can be used,
-	 * and it will be 'trimmed' to (0,0).
+	 * Retrieve a sector for reading. If this view has changed the sector,
+	 * its own copy is returned, otherwise the shared copy is returned, being
+	 * read from the database if it isn't cached. Any tile in the sector can
+	 * be used to identify it.
 	 * 
 	 * @param x		Coordinate of sector to read.
 	 * @param y		Coordinate of sector to read.
@@ -101,34 +95,80 @@ public class Map {
 	 */
 	private Sector getSector(int x, int y) {
 		SectorCoord	c = new SectorCoord(x, y);
-		Sector	s = sectorCache.get(c);
+		Sector		s;
 		
+		synchronized (edits) {
+			s = edits.get(c);
+		}
+		if (s == null) {
+			s = pending.get(c);
+		}
 		if (s == null) {
-			try {
-				shrinkCache();
-				//log.info("Reading sector ["+c.getX()+","+c.getY()+"] cache size ["+sectorCache.size()+"]");
-				s = data.readSector(c.getX(), c.getY());
-			} catch (SQLException e) {
-				e.printStackTrace();
-				return null;
+			s = sectorCache.getSector(data, x, y);
+		}
+		return s;
+	}
+	
+	/**
+	 * Retrieve this view's own copy of a sector, ready to be changed. The
+	 * copy is taken the first time a sector is changed.
+	 */
+	private Sector getEditableSector(int x, int y) {
+		SectorCoord		c = new SectorCoord(x, y);
+		Sector			s;
+		List<Sector>	evicted = new ArrayList<Sector>();
+		
+		synchronized (edits) {
+			s = edits.get(c);
+			if (s != null) {
+				return s;
+			}
+			Sector	original = pending.get(c);
+			if (original == null) {
+				original = sectorCache.getSector(data, x, y);
 			}
-			sectorCache.put(c, s);
+			s = original.copy();
+			edits.put(c, s);
+			while (edits.size() > maxEdits) {
+				SectorCoord		eldest = edits.keySet().iterator().next();
+				evicted.add(edits.remove(eldest));
+			}
+		}
+		for (Sector e : evicted) {
+			writeBehind(e);
 		}
 		return s;
 	}
 	
+	private void writeBehind(final Sector sector) {
+		final SectorCoord	c = sector.getCoord();
+		
+		if (!sector.isDirty()) {
+			return;
+		}
+		pending.put(c, sector);
+		sectorCache.writeBehind(data, sector, new Runnable() {
+			public void run() {
+				pending.remove(c, sector);
+			}
+		});
+	}
+	
+	/**
+	 * Write all changed sectors to the database, and discard this
+	 * view's copies of them.
+	 */
 	public void saveAll() {
-		for (Sector sector : sectorCache.values()) {
+		List<Sector>	changed = new ArrayList<Sector>(pending.values());
+		synchronized (edits) {
+			changed.addAll(edits.values());
+			edits.clear();
+		}
+		for (Sector sector : changed) {
 			if (sector.isDirty()) {
-				try {
-					data.writeSector(sector);
-				} catch (SQLException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+				sectorCache.write(data, sector);
 			}
 		}
-		sectorCache.clear();
 	}
 	
 	/**
@@ -149,15 +189,15 @@ public class Map {
 	/**
 	 * Sets the terrain for the given tile. The coordinate is the
 	 * coordinate for the entire map, with (0,0) being the top left corner.
-	 * The relevant sector will be cached, and changes won't be written to
-	 * the database until later.
+	 * The relevant sector will be copied for this view, and changes won't
+	 * be written to the database until later.
 	 * 
 	 * @param x				X coordinate.
 	 * @param y				Y coordinate.
 	 * @param terrainId		Terrain type to set tile to.
 	 */
 	public void setTerrain(int x, int y, int terrainId) {
-		Sector	s = getSector(x, y);
+		Sector	s = getEditableSector(x, y);
 		s.setTerrain(x, y, terrainId);
 	}
 	
@@ -167,7 +207,7 @@ public class Map {
 	}
 	
 	public void setFeature(int x, int y, int featureId) {
-		Sector s = getSector(x, y);
+		Sector s = getEditableSector(x, y);
 		s.setFeature(x, y, featureId);
 	}
 	
@@ -177,13 +217,75 @@ public class Map {
 	}
 	
 	public void setNamedArea(int x, int y, int areaId) {
-		Sector s = getSector(x, y);
+		Sector s = getEditableSector(x, y);
 		s.setNamedArea(x, y, areaId);
+		areaIndex.setArea(x, y, areaId);
+	}
+	
+	/**
+	 * Gets the terrain, feature and area data for a rectangle of the map
+	 * in one go. Each sector covering the rectangle is looked up once, and
+	 * its data copied into dense arrays. Tiles outside the map are -1.
+	 * 
+	 * @param x			X coordinate of the left edge.
+	 * @param y			Y coordinate of the top edge.
+	 * @param width		Width in tiles.
+	 * @param height	Height in tiles.
+	 * @return			Data for the rectangle.
+	 */
+	public TileBlock getTileBlock(int x, int y, int width, int height) {
+		return getTileBlock(x, y, width, height, null);
+	}
+	
+	/**
+	 * Gets the data for a rectangle of the map, as getTileBlock(), but only
+	 * for the sectors which the area index says have tiles belonging to one
+	 * of the given areas. Other sectors are left as -1, and aren't read,
+	 * but their land tiles are marked (see TileBlock.isHiddenLand()).
+	 * 
+	 * @param x			X coordinate of the left edge.
+	 * @param y			Y coordinate of the top edge.
+	 * @param width		Width in tiles.
+	 * @param height	Height in tiles.
+	 * @param areas		Ids of areas wanted, or null for all sectors.
+	 * @return			Data for the rectangle.
+	 */
+	public TileBlock getTileBlock(int x, int y, int width, int height, BitSet areas) {
+		TileBlock	block = new TileBlock(x, y, width, height);
+		int			x0 = Math.max(0, x), y0 = Math.max(0, y);
+		int			x1 = Math.min(info.getWidth(), x+width);
+		int			y1 = Math.min(info.getHeight(), y+height);
+		
+		for (int sx = x0 - x0%Sector.WIDTH; sx < x1; sx += Sector.WIDTH) {
+			for (int sy = y0 - y0%Sector.HEIGHT; sy < y1; sy += Sector.HEIGHT) {
+				if (areas != null && !areaIndex.hasAny(sx, sy, areas)) {
+					BitSet	land = areaIndex.getLand(sx, sy);
+					if (land != null) {
+						block.setHiddenLand(sx, sy, land);
+					}
+					continue;
+				}
+				Sector	s = getSector(sx, sy);
+				if (s != null) {
+					block.copyFrom(s);
+				}
+			}
+		}
+		return block;
 	}
 	
 	public void addNamedPlace(NamedPlace place) {
-		Sector	s = getSector(place.getX(), place.getY());
+		// Places are already in the database, so the shared copy is
+		// updated as well as any private one.
+		SectorCoord	c = new SectorCoord(place.getX(), place.getY());
+		Sector		s = sectorCache.getSector(data, place.getX(), place.getY());
 		s.addPlace(place);
+		synchronized (edits) {
+			s = edits.get(c);
+		}
+		if (s != null) {
+			s.addPlace(place);
+		}
 	}
 	
 }
@@ -0,0 +1,227 @@
+package uk.org.glendale.mapcraft.map;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In memory spatial index of the NamedPlaces on a map, so that the places
+ * in a part of the map can be found without asking the database. There is
+ * a separate quadtree for each level of importance, so that a query for
+ * only the more important places (as used by small scale maps) never has
+ * to look at the others.
+ *
+ * The index is loaded with every place on the map once, and then told
+ * about each new place as it is created. There is one index per map,
+ * shared by every view of it.
+ *
+ * @author Samuel Penn
+ */
+public class PlaceIndex {
+	/** Number of places a node holds before it is split into quarters. */
+	public static final int		NODE_CAPACITY = 16;
+
+	/** Smallest node, in tiles, which will be split. */
+	public static final int		MIN_NODE_SIZE = 8;
+
+	private static ConcurrentHashMap<String,PlaceIndex>	indexes = new ConcurrentHashMap<String,PlaceIndex>();
+
+	private final String		name;
+	private int					size = 0;
+	private boolean				loaded = false;
+	private TreeMap<Short,Node>	levels = new TreeMap<Short,Node>();
+	private int					count = 0;
+
+	/**
+	 * A square region of one level's quadtree. Places are held in the
+	 * smallest node which they fit in. A node only has children once
+	 * it has more than NODE_CAPACITY places of its own.
+	 */
+	private static class Node {
+		final int			x, y, size;
+		List<NamedPlace>	places = new ArrayList<NamedPlace>();
+		Node[]				children = null;
+
+		Node(int x, int y, int size) {
+			this.x = x;
+			this.y = y;
+			this.size = size;
+		}
+
+		void add(NamedPlace place) {
+			if (children != null) {
+				Node	child = getChild(place.getX(), place.getY());
+				if (child != null) {
+					child.add(place);
+					return;
+				}
+			}
+			places.add(place);
+			if (children == null && places.size() > NODE_CAPACITY && size > MIN_NODE_SIZE) {
+				split();
+			}
+		}
+
+		private void split() {
+			int			half = size / 2;
+			children = new Node[] {
+				new Node(x, y, half), new Node(x+half, y, half),
+				new Node(x, y+half, half), new Node(x+half, y+half, half)
+			};
+			List<NamedPlace>	old = places;
+			places = new ArrayList<NamedPlace>();
+			for (NamedPlace place : old) {
+				add(place);
+			}
+		}
+
+		private Node getChild(int px, int py) {
+			if (px < x || py < y || px >= x+size || py >= y+size) {
+				// Off the edge of the map, so stays with the root.
+				return null;
+			}
+			int		half = size / 2;
+			return children[(px < x+half?0:1) + (py < y+half?0:2)];
+		}
+
+		void find(int west, int north, int east, int south, List<NamedPlace> found) {
+			for (NamedPlace place : places) {
+				if (place.getX() >= west && place.getX() <= east && place.getY() >= north && place.getY() <= south) {
+					found.add(place);
+				}
+			}
+			if (children != null) {
+				for (Node child : children) {
+					if (child.x <= east && child.y <= south && child.x+child.size > west && child.y+child.size > north) {
+						child.find(west, north, east, south, found);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create an empty index. Normally getSharedIndex() should be used.
+	 *
+	 * @param name		Name of the map being indexed.
+	 */
+	public PlaceIndex(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Gets the index shared by everything looking at the named map,
+	 * creating it if necessary. It will be empty until it is loaded.
+	 *
+	 * @param name		Name of the map.
+	 * @return			Index for that map.
+	 */
+	public static PlaceIndex getSharedIndex(String name) {
+		PlaceIndex		index = indexes.get(name);
+		if (index == null) {
+			indexes.putIfAbsent(name, new PlaceIndex(name));
+			index = indexes.get(name);
+		}
+		return index;
+	}
+
+	/**
+	 * Throw away the shared index for a map, for when the map is deleted.
+	 */
+	public static void removeSharedIndex(String name) {
+		indexes.remove(name);
+	}
+
+	public synchronized boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Fill the index with all the places on a map, replacing anything
+	 * which was in it before.
+	 *
+	 * @param width		Width of the map in tiles.
+	 * @param height	Height of the map in tiles.
+	 * @param places	Every place on the map.
+	 */
+	public synchronized void load(int width, int height, Collection<NamedPlace> places) {
+		size = MIN_NODE_SIZE;
+		while (size < width || size < height) {
+			size *= 2;
+		}
+		levels.clear();
+		count = 0;
+		for (NamedPlace place : places) {
+			add(place);
+		}
+		loaded = true;
+	}
+
+	/**
+	 * Add a new place to the index. Does nothing if the index hasn't been
+	 * loaded yet, since the place will be read along with all the others.
+	 *
+	 * @param place		Place to add.
+	 */
+	public synchronized void addPlace(NamedPlace place) {
+		if (loaded) {
+			add(place);
+		}
+	}
+
+	private void add(NamedPlace place) {
+		Node	root = levels.get(place.getImportance());
+		if (root == null) {
+			root = new Node(0, 0, size);
+			levels.put(place.getImportance(), root);
+		}
+		root.add(place);
+		count++;
+	}
+
+	/**
+	 * Gets all the places within the given bounds, which are inclusive.
+	 *
+	 * @param west		X coordinate of the left edge.
+	 * @param north		Y coordinate of the top edge.
+	 * @param east		X coordinate of the right edge.
+	 * @param south		Y coordinate of the bottom edge.
+	 * @return			List of places, may be empty.
+	 */
+	public List<NamedPlace> getPlaces(int west, int north, int east, int south) {
+		return getPlaces(west, north, east, south, Short.MIN_VALUE);
+	}
+
+	/**
+	 * Gets the places within the given bounds which are at least as
+	 * important as the given level. Bounds are inclusive.
+	 *
+	 * @param west			X coordinate of the left edge.
+	 * @param north			Y coordinate of the top edge.
+	 * @param east			X coordinate of the right edge.
+	 * @param south			Y coordinate of the bottom edge.
+	 * @param minImportance	Least important places to include.
+	 * @return				List of places, may be empty.
+	 */
+	public synchronized List<NamedPlace> getPlaces(int west, int north, int east, int south, int minImportance) {
+		List<NamedPlace>	found = new ArrayList<NamedPlace>();
+
+		for (Node root : levels.tailMap((short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, minImportance))).values()) {
+			root.find(west, north, east, south, found);
+		}
+		return found;
+	}
+
+	/**
+	 * Gets the number of places in the index.
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	public String getName() {
+		return name;
+	}
+}
@@ -1,6 +1,7 @@
 package uk.org.glendale.mapcraft.map;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Hashtable;
 import java.util.List;
 
@@ -15,6 +16,16 @@ import java.util.List;
  * A Sector has no concept of persistence, but methods to set/read all
  * the data in a single block are provided for the database layer to use.
  * 
+ * Sparse sectors and sub-sectors are expanded when the data is set, so
+ * every tile holds its resolved value and reads are a simple array
+ * lookup. Tiles which were actually stored are flagged as 'explicit',
+ * so that only they (and tiles changed since) are written back.
+ * 
+ * Tiles which have been set directly are also remembered as 'edited',
+ * as opposed to tiles which only changed because they had to be stored
+ * in their own right. Only the edited tiles are applied when the changes
+ * are merged into a newer copy of the sector (see applyEdits()).
+ * 
  * Note that a Sector's view on things is very low level. It stores the
  * ids of terrain and features, but not the actual class types. This is
  * to keep the in-memory foot print fast and light.
@@ -32,6 +43,8 @@ public class Sector {
 	
 	// Array of terrain data, [X][Y].
 	private boolean[][]	changed;
+	private boolean[][]	explicit;
+	private BitSet		edited = new BitSet(WIDTH * HEIGHT);
 	private int[][]		terrain;
 	private int[][]		feature;
 	private int[][]		area;
@@ -50,6 +63,7 @@ public class Sector {
 		this.originY = originY;
 		
 		changed = new boolean[WIDTH][HEIGHT];
+		explicit = new boolean[WIDTH][HEIGHT];
 		terrain = new int[WIDTH][HEIGHT];
 		feature = new int[WIDTH][HEIGHT];
 		area = new int[WIDTH][HEIGHT];
@@ -60,10 +74,35 @@ public class Sector {
 				feature[x][y] = -1;
 				area[x][y] = -1;
 				changed[x][y] = false;
+				explicit[x][y] = false;
 			}
 		}
 	}
 	
+	/**
+	 * Create a deep copy of this sector, including the record of which
+	 * tiles have been changed.
+	 * 
+	 * @return		A new Sector with the same data.
+	 */
+	public synchronized Sector copy() {
+		Sector	s = new Sector(originX, originY);
+		
+		for (int x=0; x < WIDTH; x++) {
+			System.arraycopy(terrain[x], 0, s.terrain[x], 0, HEIGHT);
+			System.arraycopy(feature[x], 0, s.feature[x], 0, HEIGHT);
+			System.arraycopy(area[x], 0, s.area[x], 0, HEIGHT);
+			System.arraycopy(changed[x], 0, s.changed[x], 0, HEIGHT);
+			System.arraycopy(explicit[x], 0, s.explicit[x], 0, HEIGHT);
+		}
+		s.edited = (BitSet)edited.clone();
+		s.places = new Hashtable<Integer,NamedPlace>(places);
+		s.dirty = dirty;
+		s.lastUsed = lastUsed;
+		
+		return s;
+	}
+	
 	public SectorCoord getCoord() {
 		return new SectorCoord(originX, originY);
 	}
@@ -85,6 +124,20 @@ public class Sector {
 		return dirty;
 	}
 	
+	/**
+	 * Mark the sector as having no changes. Used by the database layer
+	 * once the changed tiles have been successfully written.
+	 */
+	public synchronized void setClean() {
+		for (int x=0; x < WIDTH; x++) {
+			for (int y=0; y < HEIGHT; y++) {
+				changed[x][y] = false;
+			}
+		}
+		edited.clear();
+		dirty = false;
+	}
+	
 	public long getLastUsedTime() {
 		return lastUsed;
 	}
@@ -101,10 +154,24 @@ public class Sector {
 		return changed[x][y];
 	}
 	
+	/**
+	 * Is the given tile explicitly defined, or is it inheriting its
+	 * value from its sub-sector or sector?
+	 * 
+	 * @param x		X coordinate to check.
+	 * @param y		Y coordinate to check.
+	 * @return		True iff the tile has its own value.
+	 */
+	public boolean isExplicit(int x, int y) {
+		return explicit[x%WIDTH][y%HEIGHT];
+	}
+	
 	/**
 	 * Gets all the terrain data as a single array. Used for purposes
-	 * of reading/writing the whole data set to the database. Values of
-	 * -1 represent 'unset' data that shouldn't be stored.
+	 * of reading/writing the whole data set to the database. Values
+	 * have been expanded from the sub-sector and sector tiles, so use
+	 * isExplicit() to find which ones should be stored. Values of -1
+	 * are only found if the whole sector is unset.
 	 * 
 	 * @return		Array of terrain data.
 	 */
@@ -126,8 +193,9 @@ public class Sector {
 	
 	/**
 	 * Sets the terrain data to the passed array. Used for purposes
-	 * of reading/writing the whole data set to the database. Note
-	 * that doing this clears the isDirty flag.
+	 * of reading/writing the whole data set to the database. Unset
+	 * tiles should be -1, and will be filled in from the sub-sector
+	 * or sector tile. Note that doing this clears the isDirty flag.
 	 * 
 	 * @param terrain	Array of terrain data.
 	 * @param feature	Array of feature data.
@@ -139,11 +207,48 @@ public class Sector {
 		this.area = area;
 		this.places = places;
 		this.dirty = false;
+		
+		for (int x=0; x < WIDTH; x++) {
+			for (int y=0; y < HEIGHT; y++) {
+				explicit[x][y] = terrain[x][y] > -1;
+				changed[x][y] = false;
+			}
+		}
+		expand();
+	}
+	
+	/**
+	 * Fill in every tile which isn't explicitly set from its sub-sector
+	 * tile, or from the sector tile if the sub-sector isn't set either.
+	 * Sub-sector tiles are done first, so that other tiles can simply
+	 * copy from them.
+	 */
+	private void expand() {
+		for (int x=0; x < WIDTH; x+=8) {
+			for (int y=0; y < HEIGHT; y+=10) {
+				if (!explicit[x][y]) {
+					copyTile(0, 0, x, y);
+				}
+			}
+		}
+		for (int x=0; x < WIDTH; x++) {
+			for (int y=0; y < HEIGHT; y++) {
+				if (!explicit[x][y]) {
+					copyTile(x - x%8, y - y%10, x, y);
+				}
+			}
+		}
+	}
+	
+	private void copyTile(int fromX, int fromY, int x, int y) {
+		terrain[x][y] = terrain[fromX][fromY];
+		feature[x][y] = feature[fromX][fromY];
+		area[x][y] = area[fromX][fromY];
 	}
 	
 	/**
-	 * Read the terrain at this location. If the tile is unset, search
-	 * upwards for the nearest set terrain item.
+	 * Read the terrain at this location. If the tile is unset, the
+	 * value will be that of the nearest set sub-sector or sector.
 	 * 
 	 * @param x
 	 * @param y
@@ -151,16 +256,7 @@ public class Sector {
 	 */
 	public int getTerrain(int x, int y) {
 		this.lastUsed = System.currentTimeMillis();
-		x %= WIDTH; y %= HEIGHT;
-		int		t = terrain[x][y];
-		if (t > -1) {
-			return t;
-		}
-		// Look for sub-sector value.
-		x -= x%8; y-= y%10;
-		if (terrain[x][y] > -1) return terrain[x][y];
-		// Return sector value.
-		return terrain[0][0];
+		return terrain[x%WIDTH][y%HEIGHT];
 	}
 	
 	/**
@@ -172,71 +268,78 @@ public class Sector {
 	 */
 	public int getFeature(int x, int y) {
 		this.lastUsed = System.currentTimeMillis();
-		x %= WIDTH; y %= HEIGHT;
-		int		t = feature[x][y];
-		if (t > -1) {
-			return t;
-		}
-		// Look for sub-sector value.
-		x -= x%8; y-= y%10;
-		if (feature[x][y] > -1) return feature[x][y];
-		// Return sector value.
-		return feature[0][0];
+		return feature[x%WIDTH][y%HEIGHT];
 	}
 
 	public int getArea(int x, int y) {
 		this.lastUsed = System.currentTimeMillis();
-		x %= WIDTH; y %= HEIGHT;
-		int		t = area[x][y];
-		if (t > -1) {
-			return t;
-		}
-		// Look for sub-sector value.
-		x -= x%8; y-= y%10;
-		if (area[x][y] > -1) return feature[x][y];
-		// Return sector value.
-		return area[0][0];
+		return area[x%WIDTH][y%HEIGHT];
 	}
 	
-	public void setTile(int x, int y, int terrainId, int featureId, int areaId) {
+	public synchronized void setTile(int x, int y, int terrainId, int featureId, int areaId) {
 		this.lastUsed = System.currentTimeMillis();
 		x %= WIDTH; y %= HEIGHT;
-		int		oldTerrain = terrain[x][y];
-		int		oldFeature = feature[x][y];
-		int		oldArea = area[x][y];
+		boolean		origin = (x%8 == 0 && y%10 == 0);
+		
+		if (origin && terrain[x][y] > -1) {
+			// Tiles still inheriting the old value of this tile need to
+			// keep it, so they must now be stored in their own right.
+			if (x==0 && y==0) {
+				for (int xx=0; xx < WIDTH; xx+=8) {
+					for (int yy=0; yy < HEIGHT; yy+=10) {
+						materialise(xx, yy);
+					}
+				}
+			} else {
+				for (int xx=x; xx < x+8; xx++) {
+					for (int yy=y; yy < y+10; yy++) {
+						materialise(xx, yy);
+					}
+				}
+			}
+		}
 		
 		terrain[x][y] = terrainId;
 		feature[x][y] = featureId;
 		area[x][y] = areaId;
 		changed[x][y] = true;
+		explicit[x][y] = true;
+		edited.set(x * HEIGHT + y);
 		dirty = true;
 		
-		if (x==0 && y==0) {
-			// Need to modify any sub-sectors to inherit the old
-			// value if they are still inheriting this value.
-			for (int xx=0; xx < 32; xx+=8) {
-				for (int yy=0; yy < 40; yy+=10) {
-					if (terrain[xx][yy] == -1) {
-						terrain[xx][yy] = oldTerrain;
-						feature[xx][yy] = oldFeature;
-						area[xx][yy] = oldArea;
-						changed[xx][yy] = true;
-					}
-				}
-			}
-		} else if (x%8 == 0 && y%10 ==0) {
-			for (int xx=x; xx < x+8; xx++) {
-				for (int yy=y; yy < y+10; yy++) {
-					if (terrain[xx][yy] == -1) {
-						terrain[xx][yy] = oldTerrain;
-						feature[xx][yy] = oldFeature;
-						area[xx][yy] = oldArea;
-						changed[xx][yy] = true;
-					}
-				}
-			}
+		if (origin) {
+			// Anything still inheriting from this tile gets the new value.
+			expand();
 		}
+	}
+	
+	/**
+	 * Apply the tiles which were set in another copy of this sector to
+	 * this one. Used to merge an edited copy into the current data from
+	 * the database, so that tiles set by someone else since the copy
+	 * was taken are kept.
+	 * 
+	 * @param edits		Copy of this sector which has been edited.
+	 * @return			Number of tiles applied.
+	 */
+	public synchronized int applyEdits(Sector edits) {
+		int		count = 0;
 		
+		synchronized (edits) {
+			for (int i = edits.edited.nextSetBit(0); i >= 0; i = edits.edited.nextSetBit(i+1)) {
+				int		x = i / HEIGHT, y = i % HEIGHT;
+				setTile(x, y, edits.terrain[x][y], edits.feature[x][y], edits.area[x][y]);
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	private void materialise(int x, int y) {
+		if (!explicit[x][y]) {
+			explicit[x][y] = true;
+			changed[x][y] = true;
+		}
 	}
 	
 	public void setTerrain(int x, int y, int terrainId) {
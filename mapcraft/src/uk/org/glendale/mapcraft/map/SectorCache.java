@@ -0,0 +1,334 @@
+package uk.org.glendale.mapcraft.map;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import uk.org.glendale.mapcraft.server.AppManager;
+import uk.org.glendale.mapcraft.server.database.MapData;
+
+/**
+ * Application wide, size bounded cache of Sectors for a single map. There
+ * is one cache per map, shared by every Map view of it, so memory use
+ * doesn't grow with the number of sessions looking at the same world.
+ * Sectors are held in least recently used order, so finding the one to
+ * evict is constant time rather than a scan of the whole cache.
+ *
+ * Sectors in the cache are only ever clean copies of what is in the
+ * database, and must not be modified. Editors take a private copy of a
+ * sector before changing it (see Map), and write it back through this
+ * cache. Only the tiles set in the copy are merged into what is in the
+ * database at the time of writing (see MapData.writeSector()), so two
+ * editors working in the same sector don't lose each other's changes.
+ * The cache then drops its own copy so that the next read picks up the
+ * merged result from the database. Every drop bumps a generation
+ * number, and a sector read from the database is only cached if no drop
+ * happened while it was being read, so stale data can't creep back in.
+ *
+ * Writes can be done on a shared background thread, so that evicting
+ * an edited sector doesn't hold up the thread that caused it.
+ *
+ * SectorListeners are told about every sector which is written, so that
+ * anything drawn from the old data can be thrown away.
+ *
+ * Hits, misses, evictions and writes are counted so that the cache can
+ * be sized sensibly.
+ *
+ * @author Samuel Penn
+ */
+public class SectorCache {
+	/**
+	 * Approximate heap used by a cached Sector, in bytes. Three int arrays
+	 * and two boolean arrays of 32x40, plus the per-column array headers.
+	 */
+	public static final int		SECTOR_BYTES = 21 * 1024;
+
+	public static final int		DEFAULT_SIZE = 128;
+
+	private static Logger		log = Logger.getLogger("uk.org.glendale.mapcraft.map.SectorCache");
+
+	private static ConcurrentHashMap<String,SectorCache>	caches = new ConcurrentHashMap<String,SectorCache>();
+
+	// Shared by all caches, so there is one writer thread however many maps are open.
+	private static ExecutorService	writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread	t = new Thread(r, "SectorCache writer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private static CopyOnWriteArrayList<SectorListener>	listeners = new CopyOnWriteArrayList<SectorListener>();
+
+	private final String		name;
+	private final int			maxSectors;
+	private final LinkedHashMap<SectorCoord,Sector>	sectors;
+	private final AtomicLong	generation = new AtomicLong();
+
+	private final AtomicLong	hits = new AtomicLong();
+	private final AtomicLong	misses = new AtomicLong();
+	private final AtomicLong	evictions = new AtomicLong();
+	private final AtomicLong	writes = new AtomicLong();
+
+	/**
+	 * Create a cache which holds at most the given number of sectors.
+	 * Normally getSharedCache() should be used instead.
+	 *
+	 * @param name			Name of the map being cached.
+	 * @param maxSectors	Maximum number of sectors to hold.
+	 */
+	public SectorCache(String name, int maxSectors) {
+		if (maxSectors < 1) {
+			throw new IllegalArgumentException("Cache must hold at least one sector");
+		}
+		this.name = name;
+		this.maxSectors = maxSectors;
+		this.sectors = new LinkedHashMap<SectorCoord,Sector>(maxSectors * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(java.util.Map.Entry<SectorCoord,Sector> eldest) {
+				if (size() > SectorCache.this.maxSectors) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Gets the cache shared by everything in the application which is
+	 * looking at the named map, creating it if necessary. The size is
+	 * set by the 'cache.sectors' and 'cache.memory' (in MB) configuration
+	 * options. If both are given, the smaller limit is used.
+	 *
+	 * @param name		Name of the map.
+	 * @return			Cache for that map.
+	 */
+	public static SectorCache getSharedCache(String name) {
+		SectorCache		cache = caches.get(name);
+		if (cache == null) {
+			caches.putIfAbsent(name, new SectorCache(name, getConfiguredSize()));
+			cache = caches.get(name);
+		}
+		return cache;
+	}
+
+	/**
+	 * Throw away the shared cache for a map, for when the map is deleted
+	 * or replaced. Anything still holding the cache can carry on using it,
+	 * but the next call to getSharedCache() will create a new one.
+	 *
+	 * @param name		Name of the map.
+	 */
+	public static void removeSharedCache(String name) {
+		SectorCache		cache = caches.remove(name);
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	private static int getConfiguredSize() {
+		int		size = Integer.parseInt(AppManager.getProperty("cache.sectors", ""+DEFAULT_SIZE));
+		String	memory = AppManager.getProperty("cache.memory", null);
+
+		if (memory != null) {
+			size = Math.min(size, sectorsForMemory(Long.parseLong(memory) * 1024 * 1024));
+		}
+		return size;
+	}
+
+	/**
+	 * Add a listener which is told whenever a sector of any map is
+	 * written to the database.
+	 */
+	public static void addSectorListener(SectorListener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	public static void removeSectorListener(SectorListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Gets the number of sectors which will fit into the given amount of
+	 * memory. Always returns at least one.
+	 *
+	 * @param bytes		Memory available to the cache.
+	 * @return			Number of sectors.
+	 */
+	public static int sectorsForMemory(long bytes) {
+		return (int)Math.max(1, Math.min(Integer.MAX_VALUE, bytes / SECTOR_BYTES));
+	}
+
+	/**
+	 * Retrieve a cached sector, or read it from the database if it isn't
+	 * cached. Any tile in the sector can be used to identify it. The
+	 * returned sector is shared, so must not be modified.
+	 *
+	 * @param data	Database access to use if the sector must be read.
+	 * @param x		X coordinate of a tile in the sector.
+	 * @param y		Y coordinate of a tile in the sector.
+	 * @return		The sector, or null if it couldn't be read.
+	 */
+	public Sector getSector(MapData data, int x, int y) {
+		SectorCoord		c = new SectorCoord(x, y);
+		Sector			s;
+
+		synchronized (sectors) {
+			s = sectors.get(c);
+		}
+		if (s != null) {
+			hits.incrementAndGet();
+			return s;
+		}
+		misses.incrementAndGet();
+
+		long	before = generation.get();
+		try {
+			s = data.readSector(c.getX(), c.getY());
+		} catch (SQLException e) {
+			log.log(Level.SEVERE, "Unable to read sector "+c+" of ["+name+"]", e);
+			return null;
+		}
+
+		synchronized (sectors) {
+			Sector		existing = sectors.get(c);
+			if (existing != null) {
+				// Another thread read it first, use theirs.
+				return existing;
+			}
+			if (generation.get() == before) {
+				sectors.put(c, s);
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Drop the given sector from the cache, so that it will be re-read
+	 * next time it is needed.
+	 *
+	 * @param x		X coordinate of a tile in the sector.
+	 * @param y		Y coordinate of a tile in the sector.
+	 */
+	public void invalidate(int x, int y) {
+		synchronized (sectors) {
+			generation.incrementAndGet();
+			sectors.remove(new SectorCoord(x, y));
+		}
+	}
+
+	/**
+	 * Write an edited copy of a sector to the database on the calling
+	 * thread, then drop the shared copy so that readers see the change.
+	 *
+	 * @param data		Database access to write with.
+	 * @param sector	Edited sector to write.
+	 * @return			True if the write succeeded.
+	 */
+	public boolean write(MapData data, Sector sector) {
+		boolean		changed = false;
+		try {
+			if (data.writeSector(sector) > 0) {
+				writes.incrementAndGet();
+				changed = true;
+			}
+			return true;
+		} catch (SQLException e) {
+			log.log(Level.SEVERE, "Unable to write sector "+sector.getCoord()+" of ["+name+"]", e);
+			return false;
+		} finally {
+			invalidate(sector.getOriginX(), sector.getOriginY());
+			if (changed) {
+				// Only once the cache has dropped the old copy, so listeners re-read new data.
+				fireSectorChanged(sector);
+			}
+		}
+	}
+
+	private void fireSectorChanged(Sector sector) {
+		for (SectorListener listener : listeners) {
+			try {
+				listener.sectorChanged(name, sector);
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "Sector listener failed for sector "+sector.getCoord()+" of ["+name+"]", e);
+			}
+		}
+	}
+
+	/**
+	 * Write an edited copy of a sector on the background writer thread.
+	 * The callback is run once the write has finished, whether or not it
+	 * succeeded.
+	 *
+	 * @param data		Database access to write with.
+	 * @param sector	Edited sector to write.
+	 * @param done		Callback, may be null.
+	 */
+	public void writeBehind(final MapData data, final Sector sector, final Runnable done) {
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					write(data, sector);
+				} finally {
+					if (done != null) {
+						done.run();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Empty the cache.
+	 */
+	public void clear() {
+		synchronized (sectors) {
+			generation.incrementAndGet();
+			sectors.clear();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxSectors() {
+		return maxSectors;
+	}
+
+	public int size() {
+		synchronized (sectors) {
+			return sectors.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getWrites() {
+		return writes.get();
+	}
+
+	public String toString() {
+		return "SectorCache ["+name+"] ["+size()+"/"+maxSectors+"] hits ["+getHits()+"] misses ["+getMisses()+
+			   "] evictions ["+getEvictions()+"] writes ["+getWrites()+"]";
+	}
+}
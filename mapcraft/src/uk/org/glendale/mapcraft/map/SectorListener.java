@@ -0,0 +1,19 @@
+package uk.org.glendale.mapcraft.map;
+
+/**
+ * Told whenever changes to a sector have been written to the database,
+ * so that anything derived from the map, such as cached images, can be
+ * brought up to date.
+ *
+ * @author Samuel Penn
+ */
+public interface SectorListener {
+	/**
+	 * Called after an edited sector has been successfully written. This
+	 * may be on a background thread.
+	 *
+	 * @param mapName	Name of the map the sector belongs to.
+	 * @param sector	The sector which was written.
+	 */
+	void sectorChanged(String mapName, Sector sector);
+}
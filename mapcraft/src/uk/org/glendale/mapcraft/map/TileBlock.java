@@ -0,0 +1,161 @@
+package uk.org.glendale.mapcraft.map;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A dense copy of the terrain, feature and area ids for a rectangle of
+ * the map. Used when drawing, so that the data for every tile can be
+ * read with simple array indexing rather than a sector lookup per call.
+ *
+ * Coordinates are map coordinates. Tiles outside the map, or which have
+ * never been set, are -1. Data is held by column, [X][Y], to match the
+ * layout of a Sector.
+ *
+ * Sectors which weren't read because they have none of the areas wanted
+ * are -1 too, but may be marked with which of their tiles are land, so
+ * that they can still be greyed out.
+ *
+ * @author Samuel Penn
+ */
+public class TileBlock {
+	private final int		originX;
+	private final int		originY;
+	private final int		width;
+	private final int		height;
+
+	private final int[]		terrain;
+	private final int[]		feature;
+	private final int[]		area;
+	private BitSet			hiddenLand = null;
+
+	TileBlock(int originX, int originY, int width, int height) {
+		this.originX = originX;
+		this.originY = originY;
+		this.width = width;
+		this.height = height;
+
+		terrain = new int[width*height];
+		feature = new int[width*height];
+		area = new int[width*height];
+		Arrays.fill(terrain, -1);
+		Arrays.fill(feature, -1);
+		Arrays.fill(area, -1);
+	}
+
+	/**
+	 * Copy the overlapping part of a sector into this block.
+	 */
+	void copyFrom(Sector sector) {
+		int[][]		t = sector.getTerrainData();
+		int[][]		f = sector.getFeatureData();
+		int[][]		a = sector.getAreaData();
+
+		int		x0 = Math.max(originX, sector.getOriginX());
+		int		x1 = Math.min(originX+width, sector.getOriginX()+Sector.WIDTH);
+		int		y0 = Math.max(originY, sector.getOriginY());
+		int		y1 = Math.min(originY+height, sector.getOriginY()+Sector.HEIGHT);
+
+		for (int x = x0; x < x1; x++) {
+			int		sx = x - sector.getOriginX();
+			int		sy = y0 - sector.getOriginY();
+			int		i = (x - originX) * height + (y0 - originY);
+
+			System.arraycopy(t[sx], sy, terrain, i, y1 - y0);
+			System.arraycopy(f[sx], sy, feature, i, y1 - y0);
+			System.arraycopy(a[sx], sy, area, i, y1 - y0);
+		}
+	}
+
+	/**
+	 * Mark the land tiles of a sector which hasn't been copied in.
+	 *
+	 * @param sx		X coordinate of the sector's origin.
+	 * @param sy		Y coordinate of the sector's origin.
+	 * @param land		Land tiles of the sector, by x * Sector.HEIGHT + y.
+	 */
+	void setHiddenLand(int sx, int sy, BitSet land) {
+		if (hiddenLand == null) {
+			hiddenLand = new BitSet(width*height);
+		}
+		for (int i = land.nextSetBit(0); i >= 0; i = land.nextSetBit(i+1)) {
+			int		x = sx + i / Sector.HEIGHT;
+			int		y = sy + i % Sector.HEIGHT;
+			if (contains(x, y)) {
+				hiddenLand.set(index(x, y));
+			}
+		}
+	}
+
+	/**
+	 * Is the tile land in a sector which wasn't read? See setHiddenLand().
+	 */
+	public boolean isHiddenLand(int x, int y) {
+		return hiddenLand != null && contains(x, y) && hiddenLand.get(index(x, y));
+	}
+
+	public int getOriginX() {
+		return originX;
+	}
+
+	public int getOriginY() {
+		return originY;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Is the given map coordinate within this block?
+	 */
+	public boolean contains(int x, int y) {
+		return x >= originX && x < originX+width && y >= originY && y < originY+height;
+	}
+
+	private int index(int x, int y) {
+		return (x - originX) * height + (y - originY);
+	}
+
+	public int getTerrain(int x, int y) {
+		return terrain[index(x, y)];
+	}
+
+	public int getFeature(int x, int y) {
+		return feature[index(x, y)];
+	}
+
+	public int getArea(int x, int y) {
+		return area[index(x, y)];
+	}
+
+	/**
+	 * Gets the largest terrain id in the block, so that lookup tables
+	 * indexed by terrain id can be sized.
+	 */
+	public int getMaxTerrain() {
+		return max(terrain);
+	}
+
+	public int getMaxFeature() {
+		return max(feature);
+	}
+
+	public int getMaxArea() {
+		return max(area);
+	}
+
+	private static int max(int[] data) {
+		int		max = -1;
+		for (int i=0; i < data.length; i++) {
+			if (data[i] > max) {
+				max = data[i];
+			}
+		}
+		return max;
+	}
+}
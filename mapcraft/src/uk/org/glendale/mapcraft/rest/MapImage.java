@@ -13,18 +13,30 @@
 package uk.org.glendale.mapcraft.rest;
 
 import java.io.*;
+import java.net.URI;
 import java.sql.*;
+import java.util.HashSet;
+import java.util.Set;
 
 import uk.org.glendale.mapcraft.MapEntityException;
+import uk.org.glendale.mapcraft.graphics.MapImageCache;
+import uk.org.glendale.mapcraft.graphics.MapImageCache.WorldChanges;
 import uk.org.glendale.mapcraft.graphics.MapSector;
+import uk.org.glendale.mapcraft.graphics.TilePyramid;
 import uk.org.glendale.mapcraft.graphics.MapSector.Scale;
 import uk.org.glendale.mapcraft.map.Map;
 import uk.org.glendale.mapcraft.map.NamedArea;
+import uk.org.glendale.mapcraft.map.Rectangle;
 import uk.org.glendale.mapcraft.server.AppManager;
 import uk.org.glendale.mapcraft.server.database.MapInfo;
 import uk.org.glendale.mapcraft.server.database.MapManager;
 
+import javax.imageio.ImageIO;
 import javax.ws.rs.*;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
 
 /**
  * 
@@ -44,25 +56,39 @@ public class MapImage {
 	public File getImageOfWorld(@PathParam("mapname") String mapName,
 								@QueryParam("force") @DefaultValue("false") boolean force) throws SQLException, IOException {
 		
-		MapManager		manager = new MapManager(AppManager.getInstance().getDatabaseConnection());
+		MapManager		manager = MapManager.getInstance();
 		
 		Map				map = manager.getMap(mapName);
 		MapInfo			info = map.getInfo();
 				
 		String		root = AppManager.getInstance().getRootPath();
-		String		filename = String.format("%s-world.jpg", mapName);
-		File		image = new File(root+"/images/cache/"+filename);
+		MapImageCache	cache = MapImageCache.getInstance();
+		File		image = cache.getImage(String.format("%s-world.jpg", mapName));
+		File		terrain = cache.getImage(String.format("%s-world.png", mapName));
 		
-		if (force || !image.exists()) {
+		// Changes are only forgotten once the drawing which includes them
+		// has been saved, so a failed redraw is tried again next time.
+		WorldChanges	changes = cache.getWorldChanges(mapName);
+		if (force || !image.exists() || !terrain.exists()) {
 			MapSector	imageMap = new MapSector(map, new File(root+"/images/map/style/"+style));
 			
 			imageMap.setScale(Scale.SECTOR);
 			
 			imageMap.drawOverviewMap(1);
+			ImageIO.write(imageMap.getOverviewTerrain(), "png", terrain);
+			imageMap.save(image);
+			cache.commitWorldChanges(mapName, changes);
+		} else if (!changes.isEmpty()) {
+			// Only redraw the sectors which have changed since last time.
+			MapSector	imageMap = new MapSector(map, new File(root+"/images/map/style/"+style));
+			
+			imageMap.setScale(Scale.SECTOR);
+			imageMap.updateOverviewMap(ImageIO.read(terrain), changes.getRegions());
+			ImageIO.write(imageMap.getOverviewTerrain(), "png", terrain);
 			imageMap.save(image);
+			cache.commitWorldChanges(mapName, changes);
 		}
 		
-		manager.disconnect();
 		return image;
 	}
 	
@@ -90,7 +116,7 @@ public class MapImage {
 								 @QueryParam("bleed") @DefaultValue("false") boolean bleed,
 								 @QueryParam("force") @DefaultValue("false") boolean force) throws SQLException, MapEntityException, IOException {
 
-		MapManager		manager = new MapManager(AppManager.getInstance().getDatabaseConnection());
+		MapManager		manager = MapManager.getInstance();
 		
 		Map				map = manager.getMap(mapName);
 		MapInfo			info = map.getInfo();
@@ -102,8 +128,8 @@ public class MapImage {
 		NamedArea	area = info.getNamedArea(areaName);
 		
 		String		root = AppManager.getInstance().getRootPath();
-		String		filename = String.format("%s-%s.jpg", mapName, areaName);
-		File		image = new File(root+"/images/cache/"+filename);
+		MapImageCache	cache = MapImageCache.getInstance();
+		File		image = cache.getImage(String.format("%s-%s.jpg", mapName, areaName));
 		
 		if (force || !image.exists()) {
 			MapSector	imageMap = new MapSector(map, new File(root+"/images/map/style/"+style));
@@ -113,9 +139,17 @@ public class MapImage {
 			imageMap.setBleeding(bleed);
 			imageMap.drawMap(area, borderSize);
 			imageMap.save(image);
+			
+			Rectangle		bounds = info.getNamedAreaBounds(area);
+			Set<Integer>	areas = new HashSet<Integer>();
+			areas.add(area.getId());
+			for (NamedArea child : info.getChildAreas(area)) {
+				areas.add(child.getId());
+			}
+			cache.register(mapName, image, new Rectangle(bounds.getX()-borderSize, bounds.getY()-borderSize,
+							bounds.getWidth()+borderSize*2, bounds.getHeight()+borderSize*2), areas);
 		}
 		
-		manager.disconnect();
 		return image;
 	}
 	
@@ -149,7 +183,7 @@ public class MapImage {
 						@QueryParam("b") @DefaultValue("false") boolean bleed,
 						@QueryParam("f") @DefaultValue("false") boolean force) throws SQLException, IOException {
 		
-		MapManager		manager = new MapManager(AppManager.getInstance().getDatabaseConnection());
+		MapManager		manager = MapManager.getInstance();
 		
 		Map				map = manager.getMap(mapName);
 		MapInfo			info = map.getInfo();
@@ -167,16 +201,127 @@ public class MapImage {
 		
 		String		root = AppManager.getInstance().getRootPath();
 		String		filename = String.format("%s-%d-%d-%d-%d-%d%s.jpg", mapName, x, y, width, height, scale, bleed?"b":"");
-		File		image = new File(root+"/images/cache/"+filename);
+		MapImageCache	cache = MapImageCache.getInstance();
+		File		image = cache.getImage(filename);
 		
 		if (force || !image.exists()) {
 			MapSector	imageMap = new MapSector(map, new File(root+"/images/map/style/"+style));
 			imageMap.setBleeding(bleed);
 			imageMap.drawMap(x, y, width, height);
 			imageMap.save(image);
+			cache.register(mapName, image, new Rectangle(x, y, width, height));
 		}
 		
-		manager.disconnect();
 		return image;
 	}	
+
+	private TilePyramid getTilePyramid(Map map) {
+		String		root = AppManager.getInstance().getRootPath();
+		
+		return new TilePyramid(map, new File(root+"/images/map/style/"+style),
+							   MapImageCache.getInstance().getTileFolder());
+	}
+	
+	/**
+	 * Gets a single tile of the map, for use by slippy map clients. Zoom 0
+	 * is a single tile of the whole map, and each zoom level after that
+	 * doubles the number of tiles in each direction, down to one tile per
+	 * sector.
+	 * 
+	 * Rather than the image itself, a redirect is returned to the tile's
+	 * content URL, which is named after a hash of the image so it never
+	 * changes and can be cached forever. Only the redirect needs to be
+	 * requested again to find out whether a tile has been redrawn. If a
+	 * low zoom tile isn't ready yet, the redirect is to a blank tile and
+	 * is only cached for a few seconds.
+	 *
+	 * Tiles are one sector, so aren't square. Their size is given by
+	 * getTileInfo().
+	 * 
+	 * Url: /mapcraft/rest/map/{mapname}/tiles/{z}/{x}/{y}
+	 * 
+	 * @param mapName		Map to retrieve tile for.
+	 * @param z				Zoom level.
+	 * @param x				Column of the tile at that zoom level.
+	 * @param y				Row of the tile at that zoom level.
+	 * @return				Redirect to the tile image.
+	 */
+	@GET
+	@Path("/tiles/{z}/{x}/{y}")
+	public Response getTile(@PathParam("mapname") String mapName,
+							@PathParam("z") int z, @PathParam("x") int x, @PathParam("y") int y,
+							@Context UriInfo uriInfo) throws SQLException, IOException {
+		
+		MapManager		manager = MapManager.getInstance();
+		
+		Map				map = manager.getMap(mapName);
+		TilePyramid		tiles = getTilePyramid(map);
+		
+		if (!tiles.isValid(z, x, y)) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		String			hash = tiles.findTileHash(z, x, y);
+		CacheControl	cache = new CacheControl();
+		if (hash != null) {
+			cache.setMaxAge(60);
+		} else {
+			// Still being built, so ask again soon.
+			hash = tiles.getPlaceholderHash();
+			cache.setMaxAge(5);
+		}
+		URI				uri = uriInfo.getBaseUriBuilder().path(MapImage.class)
+									.path(MapImage.class, "getTileContent").build(mapName, hash);
+		
+		return Response.seeOther(uri).cacheControl(cache).build();
+	}
+	
+	/**
+	 * Gets the layout of the tiles of a map, so a slippy map client can be
+	 * set up to use them. Tiles are the size of a sector, not square.
+	 * 
+	 * Url: /mapcraft/rest/map/{mapname}/tiles/info
+	 * 
+	 * @param mapName		Map to describe.
+	 * @return				Tile width and height in pixels, deepest zoom
+	 * 						level, and number of tiles across and down at
+	 * 						that zoom, as JSON.
+	 */
+	@GET
+	@Path("/tiles/info")
+	@Produces("application/json")
+	public String getTileInfo(@PathParam("mapname") String mapName) throws SQLException {
+		MapManager		manager = MapManager.getInstance();
+		TilePyramid		tiles = getTilePyramid(manager.getMap(mapName));
+		int				z = tiles.getMaxZoom();
+		
+		return String.format("{ \"tileWidth\": %d, \"tileHeight\": %d, \"maxZoom\": %d, \"across\": %d, \"down\": %d }",
+							 tiles.getTileWidth(), tiles.getTileHeight(), z,
+							 tiles.getTilesAcross(z), tiles.getTilesDown(z));
+	}
+	
+	/**
+	 * Gets a tile image by its content hash. The content at a given hash
+	 * never changes, so clients and proxies are told to keep it for a year.
+	 * 
+	 * @param mapName		Map the tile belongs to.
+	 * @param hash			Hash of the tile's content.
+	 * @return				PNG image of the tile.
+	 */
+	@GET
+	@Path("/tiles/content/{hash}")
+	@Produces("image/png")
+	public Response getTileContent(@PathParam("mapname") String mapName,
+								   @PathParam("hash") String hash) {
+		if (!hash.matches("[0-9a-f]+")) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		File		image = TilePyramid.getContentFile(MapImageCache.getInstance().getTileFolder(), hash);
+		if (!image.exists()) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		CacheControl	cache = new CacheControl();
+		cache.setMaxAge(365 * 24 * 3600);
+		
+		return Response.ok(image, "image/png").cacheControl(cache).build();
+	}
 }
@@ -11,6 +11,7 @@ import javax.sql.DataSource;
 import javax.ws.rs.*;
 
 import uk.org.glendale.mapcraft.server.AppManager;
+import uk.org.glendale.mapcraft.server.database.ConnectionSource;
 
 @Path("/info/{mapname}")
 public class MapInfo {
@@ -38,11 +39,22 @@ public class MapInfo {
 		String	message = name+"("+x+","+y+"): ";
 		
 		
-		AppManager		app = AppManager.getInstance();
-		Connection cx = null;
+		AppManager			app = AppManager.getInstance();
+		ConnectionSource	source = app.getConnectionSource();
+		Connection 			cx = null;
 		
-		cx = app.getDatabaseConnection();
-
+		try {
+			if (source != null) {
+				cx = source.getConnection();
+			}
+		} catch (SQLException e) {
+			error = e.getMessage();
+		} finally {
+			// Only checking that a connection can be had.
+			if (source != null) {
+				source.release(cx);
+			}
+		}
 		
 		if (cx == null) {
 			message += error;
@@ -2,7 +2,6 @@ package uk.org.glendale.mapcraft.server;
 
 import java.io.File;
 import java.sql.Connection;
-import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Enumeration;
@@ -19,9 +18,11 @@ import javax.servlet.ServletContextListener;
 import javax.sql.DataSource;
 
 
+import uk.org.glendale.mapcraft.graphics.MapImageCache;
 import uk.org.glendale.mapcraft.graphics.MapSector;
 import uk.org.glendale.mapcraft.map.Map;
 import uk.org.glendale.mapcraft.map.Sector;
+import uk.org.glendale.mapcraft.server.database.ConnectionSource;
 import uk.org.glendale.mapcraft.server.database.MapData;
 import uk.org.glendale.mapcraft.server.database.MapInfo;
 import uk.org.glendale.mapcraft.server.database.MapManager;
@@ -38,7 +39,9 @@ public class AppManager implements ServletContextListener {
 	
 	private DataSource				dataSource = null;
 	private String					databaseClass = null;
-	private Connection				connection = null;
+	private String					databaseURL = null;
+	private Properties				databaseProperties = null;
+	private ConnectionSource		connectionSource = null;
 	private String					root = null;
 	
 	
@@ -54,6 +57,17 @@ public class AppManager implements ServletContextListener {
 		log.info("Configured resources");
 	}
 	
+	/**
+	 * Gets a configuration option, as defined in config.properties.
+	 * 
+	 * @param key			Name of the option.
+	 * @param defaultValue	Value to return if the option isn't set.
+	 * @return				Value of the option.
+	 */
+	public static String getProperty(String key, String defaultValue) {
+		return properties.getProperty(key, defaultValue);
+	}
+	
 	public void setDataSource(DataSource dataSource) {
 		this.dataSource = dataSource;
 	}
@@ -62,10 +76,14 @@ public class AppManager implements ServletContextListener {
 		return dataSource;
 	}
 	
+	/**
+	 * Gets a new connection to the database, which the caller must close
+	 * when it has finished with it. Prefer getConnectionSource().
+	 */
 	public Connection getDatabaseConnection() {
 		Connection	cx = null;
 		
-		if (dataSource == null && connection == null) {
+		if (dataSource == null && databaseURL == null) {
 			configureDatabase();
 		}
 
@@ -73,8 +91,8 @@ public class AppManager implements ServletContextListener {
 			if (dataSource != null) {
 				log.info("Getting new connection from datasource");
 				cx = dataSource.getConnection();
-			} else if (connection != null) {
-				cx = connection;
+			} else if (databaseURL != null) {
+				cx = DriverManager.getConnection(databaseURL, databaseProperties);
 			}
 		} catch (SQLException e) {
 			log.log(Level.SEVERE, "Unable to get connection", e);
@@ -82,6 +100,28 @@ public class AppManager implements ServletContextListener {
 		return cx;
 	}
 	
+	/**
+	 * Gets somewhere to borrow database connections from. If there is
+	 * a DataSource, connections come from its pool. Otherwise a single
+	 * direct connection is shared, and replaced if it is lost.
+	 * 
+	 * @return		Source of database connections, or null if the
+	 * 				database couldn't be configured.
+	 */
+	public synchronized ConnectionSource getConnectionSource() {
+		if (connectionSource == null) {
+			if (dataSource == null && databaseURL == null) {
+				configureDatabase();
+			}
+			if (dataSource != null) {
+				connectionSource = ConnectionSource.fromDataSource(dataSource);
+			} else if (databaseURL != null) {
+				connectionSource = ConnectionSource.fromDriver(databaseURL, databaseProperties);
+			}
+		}
+		return connectionSource;
+	}
+	
 	private void configureDatabase() {
         String     dsName = properties.getProperty("database.resource");
         
@@ -101,24 +141,20 @@ public class AppManager implements ServletContextListener {
             String		username = properties.getProperty("database.username");
             String		password = properties.getProperty("database.password");
             String		database = properties.getProperty("database.database");
-            String      url = "jdbc:mysql://"+hostname+"/"+database;
+            String      url = "jdbc:mysql://"+hostname+"/"+database+"?rewriteBatchedStatements=true";
 
             try {
                 Class.forName(driverName);
 
-                Driver      driver = DriverManager.getDriver(url);
-                
                 Properties  properties = new Properties();
                 properties.setProperty("user", username);
                 properties.setProperty("password", password);
                  
-                connection = driver.connect(url, properties);
+                databaseURL = url;
+                databaseProperties = properties;
             } catch (ClassNotFoundException e) {
                 e.printStackTrace();
-            } catch (SQLException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+            }
 
         }
 	}
@@ -128,7 +164,7 @@ public class AppManager implements ServletContextListener {
 		
 		app.configureDatabase();
 		
-		MapManager		manager = new MapManager(app.getDatabaseConnection());
+		MapManager		manager = new MapManager(app.getConnectionSource());
 		
 		Map			map = manager.getMap("eorthe");
 		
@@ -163,6 +199,8 @@ public class AppManager implements ServletContextListener {
 
 	@Override
 	public void contextDestroyed(ServletContextEvent context) {
+		MapImageCache.getInstance().flush();
+		MapManager.closeInstance();
 		ds = null;
 	}
 
@@ -188,6 +226,28 @@ public class AppManager implements ServletContextListener {
 		AppManager.appManager.setDataSource(ds);
 		AppManager.appManager.configureDatabase();
 		AppManager.appManager.setRootPath(context.getServletContext().getRealPath("/"));
+		
+		// Warm up the icon cache for the configured map styles.
+		for (String style : properties.getProperty("icons.preload", "").split(",")) {
+			if (style.trim().length() > 0) {
+				File	folder = new File(AppManager.appManager.getRootPath()+"/images/map/style/"+style.trim());
+				int		count = MapSector.preloadIcons(folder);
+				log.info("Preloaded ["+count+"] icons for style ["+style.trim()+"]");
+			}
+		}
+		// Start listening for map changes, so cached images can be dropped.
+		MapImageCache.getInstance();
+		
+		// Index the areas of each map in the background, so that it's ready
+		// before the first request for an area.
+		try {
+			for (MapInfo info : MapManager.getInstance().getMaps()) {
+				info.getAreaIndex();
+			}
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Unable to start indexing map areas", e);
+		}
+		
 		if (ds == null) {
 			log.warning("No datasource");
 		} else {
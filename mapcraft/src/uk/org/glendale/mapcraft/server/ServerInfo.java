@@ -22,7 +22,7 @@ public class ServerInfo {
 	private String		mapName = null;
 	
 	public ServerInfo() throws SQLException {
-		manager = new MapManager(AppManager.getInstance().getDatabaseConnection());
+		manager = MapManager.getInstance();
 	}
 	
 	public void setCurrentMap(String name) {
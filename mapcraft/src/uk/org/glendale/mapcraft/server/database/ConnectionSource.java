@@ -0,0 +1,171 @@
+package uk.org.glendale.mapcraft.server.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Somewhere to borrow connections to the database from. Nothing which is
+ * shared between requests keeps hold of a connection. Instead, one is
+ * borrowed for each operation and released as soon as the operation is
+ * finished, so a connection which has been lost only fails the operation
+ * which was using it.
+ *
+ * When the application server provides a pooled DataSource, each borrow
+ * takes a connection from the pool, and releasing it returns it to the
+ * pool. Otherwise there is a single connection, which is lent to one
+ * thread at a time. A thread may borrow it again before releasing it,
+ * as long as it releases it as many times as it borrowed it.
+ *
+ * @author Samuel Penn
+ */
+public abstract class ConnectionSource {
+	private static Logger		log = Logger.getLogger("uk.org.glendale.mapcraft.server.database.ConnectionSource");
+
+	// Seconds to wait when checking whether a connection is still usable,
+	// and milliseconds between checks.
+	private static final int	VALID_TIMEOUT = 5;
+	private static final long	VALID_INTERVAL = 30000;
+
+	/**
+	 * Borrow a connection. It must be given back with release() when
+	 * the caller has finished with it, normally in a finally block.
+	 *
+	 * @return		Connection to the database.
+	 * @throws SQLException
+	 */
+	public abstract Connection getConnection() throws SQLException;
+
+	/**
+	 * Give back a connection which was borrowed with getConnection().
+	 *
+	 * @param cx	Connection to release. May be null.
+	 */
+	public abstract void release(Connection cx);
+
+	/**
+	 * Close any connection held by this source. Pooled connections belong
+	 * to the application server, so are left alone.
+	 */
+	public void close() {
+	}
+
+	/**
+	 * Gets a source which borrows connections from a pool.
+	 */
+	public static ConnectionSource fromDataSource(final DataSource ds) {
+		return new ConnectionSource() {
+			public Connection getConnection() throws SQLException {
+				return ds.getConnection();
+			}
+
+			public void release(Connection cx) {
+				if (cx != null) {
+					try {
+						cx.close();
+					} catch (SQLException e) {
+						log.log(Level.WARNING, "Unable to return connection to pool", e);
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Gets a source which lends out a single connection which is already
+	 * open. If it is lost, it isn't replaced. Used by the command line tools.
+	 */
+	public static ConnectionSource fromConnection(Connection cx) {
+		if (cx == null) {
+			throw new IllegalArgumentException("Connection is null");
+		}
+		return new SingleConnection(cx, null, null);
+	}
+
+	/**
+	 * Gets a source which lends out a single connection made directly to
+	 * the database, for when there is no pool. The connection is opened
+	 * when it is first borrowed, and opened again if it is found to have
+	 * been lost.
+	 *
+	 * @param url			JDBC URL of the database.
+	 * @param properties	Connection properties, such as user and password.
+	 */
+	public static ConnectionSource fromDriver(String url, Properties properties) {
+		return new SingleConnection(null, url, properties);
+	}
+
+	private static class SingleConnection extends ConnectionSource {
+		private final ReentrantLock	lock = new ReentrantLock();
+		private final String		url;
+		private final Properties	properties;
+		private Connection			cx;
+		private long				lastChecked = System.currentTimeMillis();
+
+		SingleConnection(Connection cx, String url, Properties properties) {
+			this.cx = cx;
+			this.url = url;
+			this.properties = properties;
+		}
+
+		public Connection getConnection() throws SQLException {
+			lock.lock();
+			try {
+				if (url != null && lock.getHoldCount() == 1) {
+					reconnectIfLost();
+				}
+				return cx;
+			} catch (SQLException e) {
+				lock.unlock();
+				throw e;
+			}
+		}
+
+		private void reconnectIfLost() throws SQLException {
+			if (cx != null) {
+				if (System.currentTimeMillis() - lastChecked < VALID_INTERVAL) {
+					return;
+				}
+				lastChecked = System.currentTimeMillis();
+				if (!cx.isClosed() && cx.isValid(VALID_TIMEOUT)) {
+					return;
+				}
+				log.warning("Database connection lost, reconnecting");
+				try {
+					cx.close();
+				} catch (SQLException e) {
+					// Already gone.
+				}
+				cx = null;
+			}
+			cx = DriverManager.getConnection(url, properties);
+			lastChecked = System.currentTimeMillis();
+		}
+
+		public void release(Connection cx) {
+			if (lock.isHeldByCurrentThread()) {
+				lock.unlock();
+			}
+		}
+
+		public void close() {
+			lock.lock();
+			try {
+				if (cx != null) {
+					cx.close();
+				}
+			} catch (SQLException e) {
+				// Nothing left to do.
+			} finally {
+				cx = null;
+				lock.unlock();
+			}
+		}
+	}
+}
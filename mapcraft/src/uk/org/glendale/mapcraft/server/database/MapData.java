@@ -1,12 +1,18 @@
 package uk.org.glendale.mapcraft.server.database;
 
+import java.io.IOException;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.logging.Logger;
 
 import uk.org.glendale.mapcraft.map.NamedPlace;
+import uk.org.glendale.mapcraft.map.PlaceIndex;
 import uk.org.glendale.mapcraft.map.Sector;
 
 /**
@@ -29,47 +35,156 @@ import uk.org.glendale.mapcraft.map.Sector;
  * The same holds true for sub-sectors. This allows undeveloped parts
  * of the map to be stored at low resolution. 
  * 
+ * No connection is kept. One is borrowed from the ConnectionSource for
+ * each operation and released when it is done, so a MapData can be
+ * shared by any number of threads and outlives lost connections.
+ * 
+ * Alternatively, a map may be stored 'packed', where each sector is
+ * held as a single compressed row in the <prefix>_sector table (see
+ * PackedSector). If that table exists, it is used in preference to the
+ * per-tile <prefix>_map table. Maps can be converted with the PackMap
+ * tool.
+ * 
  * @author Samuel Penn
  */
 public class MapData {
-	private Connection		cx;
+	private ConnectionSource	source;
 	private String			prefix;	
+	private boolean			packed;
+	
+	private static Logger		log = Logger.getLogger("uk.org.glendale.mapcraft.server.database.MapData");
+	
+	/**
+	 * Access the data for the named map. If the map has a table of packed
+	 * sectors, then that is used, otherwise one row per tile is assumed.
+	 * 
+	 * @param prefix	Name of the map.
+	 * @param source	Where to borrow connections to the database from.
+	 * @throws SQLException
+	 */
+	public MapData(String prefix, ConnectionSource source) throws SQLException {
+		this(prefix, source, hasPackedTable(prefix, source));
+	}
 	
-	public MapData(String prefix, Connection cx) throws SQLException {
-		this.cx = cx;
+	/**
+	 * Access the data for the named map, explicitly specifying whether
+	 * the packed sector table or the per-tile table is to be used.
+	 * 
+	 * @param prefix	Name of the map.
+	 * @param source	Where to borrow connections to the database from.
+	 * @param packed	If true, use the packed sector table.
+	 */
+	public MapData(String prefix, ConnectionSource source, boolean packed) {
+		this.source = source;
 		this.prefix = prefix;
+		this.packed = packed;
 		
-		prepareStatements();
+		buildStatements();
+	}
+	
+	/**
+	 * Does the given map have a packed sector table?
+	 */
+	private static boolean hasPackedTable(String prefix, ConnectionSource source) throws SQLException {
+		Connection		cx = source.getConnection();
+		try {
+			return hasPackedTable(prefix, cx);
+		} finally {
+			source.release(cx);
+		}
+	}
+	
+	static boolean hasPackedTable(String prefix, Connection cx) throws SQLException {
+		DatabaseMetaData	meta = cx.getMetaData();
+		ResultSet			rs = meta.getTables(null, null, prefix+"_sector", null);
+		try {
+			return rs.next();
+		} finally {
+			rs.close();
+		}
+	}
+	
+	/**
+	 * Create the table used to store packed sectors for the given map.
+	 * Nothing is copied into it, that is left to the caller.
+	 * 
+	 * @param prefix	Name of the map.
+	 * @param cx		Connection to the database.
+	 * @throws SQLException
+	 */
+	public static void createPackedTable(String prefix, Connection cx) throws SQLException {
+		Statement	stmnt = cx.createStatement();
+		try {
+			stmnt.executeUpdate("CREATE TABLE IF NOT EXISTS "+prefix+"_sector (x INT NOT NULL, y INT NOT NULL, "+
+								"data BLOB NOT NULL, PRIMARY KEY(x, y))");
+		} finally {
+			stmnt.close();
+		}
+	}
+	
+	/**
+	 * Is this map stored as packed sectors?
+	 * 
+	 * @return		True if sectors are stored packed.
+	 */
+	public boolean isPacked() {
+		return packed;
 	}
 
-	private PreparedStatement   deleteTerrain;
-	private PreparedStatement	insertTerrain;
-	private PreparedStatement	selectSector;
-	private PreparedStatement	selectPlaces;
-	private PreparedStatement   selectTile;
+	private String	upsertTerrain;
+	private String	selectSector;
+	private String	selectPlaces;
+	private String	selectTile;
+	private String	selectPacked;
+	private String	lockPacked;
+	private String	replacePacked;
 	
-	private void prepareStatements() throws SQLException {
-		deleteTerrain = cx.prepareStatement("DELETE FROM "+prefix+"_map WHERE x=? AND y=?");
-		insertTerrain = cx.prepareStatement("INSERT INTO "+prefix+"_map VALUES(?, ?, ?, ?, ?)");
+	private void buildStatements() {
+		selectPlaces = "SELECT id, thing_id, name, title, importance, x, y, sx, sy FROM "+prefix+"_things WHERE x >= ? AND x < ? AND y >= ? AND y < ?";
+		if (packed) {
+			selectPacked = "SELECT data FROM "+prefix+"_sector WHERE x=? AND y=?";
+			lockPacked = "SELECT data FROM "+prefix+"_sector WHERE x=? AND y=? FOR UPDATE";
+			replacePacked = "REPLACE INTO "+prefix+"_sector (x, y, data) VALUES(?, ?, ?)";
+			return;
+		}
+		upsertTerrain = "INSERT INTO "+prefix+"_map VALUES(?, ?, ?, ?, ?) "+
+				"ON DUPLICATE KEY UPDATE terrain_id=VALUES(terrain_id), feature_id=VALUES(feature_id), area_id=VALUES(area_id)";
 		
-		selectSector = cx.prepareStatement("SELECT x, y, terrain_id, feature_id, area_id FROM "+prefix+"_map WHERE x >= ? AND x < ? AND y >= ? AND y < ?");
-		selectPlaces = cx.prepareStatement("SELECT id, thing_id, name, title, importance, x, y, sx, sy FROM "+prefix+"_things WHERE x >= ? AND x < ? AND y >= ? AND y < ?");
-		selectTile = cx.prepareStatement("SELECT x, y, terrain_id, feature_id, area_id FROM "+prefix+"_map WHERE x=? AND y=?");
+		selectSector = "SELECT x, y, terrain_id, feature_id, area_id FROM "+prefix+"_map WHERE x >= ? AND x < ? AND y >= ? AND y < ?";
+		selectTile = "SELECT x, y, terrain_id, feature_id, area_id FROM "+prefix+"_map WHERE "+
+					 "(x=? AND y=?) OR (x=? AND y=?) OR (x=? AND y=?)";
 	}
 	
 	public void setTile(int x, int y, int terrainId, int featureId, int areaId) throws SQLException {
-		deleteTerrain.clearParameters();
-		deleteTerrain.setInt(1, x);
-		deleteTerrain.setInt(2, y);
-		deleteTerrain.executeUpdate();
-		
-		insertTerrain.clearParameters();
-		insertTerrain.setInt(1, x);
-		insertTerrain.setInt(2, y);
-		insertTerrain.setInt(3, terrainId);
-		insertTerrain.setInt(4, featureId);
-		insertTerrain.setInt(5, areaId);
-		insertTerrain.executeUpdate();
+		if (packed) {
+			Sector	sector = readSector(x - x%Sector.WIDTH, y - y%Sector.HEIGHT);
+			sector.setTile(x, y, terrainId, featureId, areaId);
+			writeSector(sector);
+			return;
+		}
+		Connection			cx = source.getConnection();
+		PreparedStatement	ps = null;
+		try {
+			ps = cx.prepareStatement(upsertTerrain);
+			ps.setInt(1, x);
+			ps.setInt(2, y);
+			ps.setInt(3, terrainId);
+			ps.setInt(4, featureId);
+			ps.setInt(5, areaId);
+			ps.executeUpdate();
+		} finally {
+			close(ps);
+			source.release(cx);
+		}
+	}
+	
+	/**
+	 * Close a statement, if it was ever prepared.
+	 */
+	private static void close(Statement stmnt) throws SQLException {
+		if (stmnt != null) {
+			stmnt.close();
+		}
 	}
 	
 	/**
@@ -88,40 +203,55 @@ public class MapData {
 	public MapTile getTile(int x, int y) throws SQLException {
 		MapTile		tile = null;
 		
-		selectTile.clearParameters();
-		selectTile.setInt(1, x);
-		selectTile.setInt(2, y);
+		if (packed) {
+			return getPackedTile(x, y);
+		}
 		
-		ResultSet	rs = null;
+		int		subX = x - x%8, subY = y - y%10;
+		int		secX = x - x%Sector.WIDTH, secY = y - y%Sector.HEIGHT;
 		
+		Connection			cx = source.getConnection();
+		PreparedStatement	ps = null;
 		try {
-			rs = selectTile.executeQuery();
-			if (!rs.next()) {
-				// No exact tile, look for sub-sector.
-				selectTile.setInt(1, x - x%8);
-				selectTile.setInt(2, y - y%10);
-				rs = selectTile.executeQuery();
-				if (!rs.next()) {
-					// No sub-sector, look for sector.
-					selectTile.setInt(1, x - x%32);
-					selectTile.setInt(2, y - y%40);
-					rs = selectTile.executeQuery();
-					if (!rs.next()) {
-						return tile;
-					}
+			// Fetch the tile, its sub-sector and its sector in one go, and
+			// use whichever is the most specific.
+			ps = cx.prepareStatement(selectTile);
+			ps.setInt(1, x);
+			ps.setInt(2, y);
+			ps.setInt(3, subX);
+			ps.setInt(4, subY);
+			ps.setInt(5, secX);
+			ps.setInt(6, secY);
+			
+			ResultSet	rs = ps.executeQuery();
+			int			best = 0;
+			
+			while (rs.next()) {
+				int		tx = rs.getInt("x");
+				int		ty = rs.getInt("y");
+				int		rank = 1;
+				if (tx == x && ty == y) {
+					rank = 3;
+				} else if (tx == subX && ty == subY) {
+					rank = 2;
+				}
+				if (rank > best) {
+					best = rank;
+					tile = new MapTile(tx, ty, rs.getInt("terrain_id"), rs.getInt("feature_id"), rs.getInt("area_id"));
 				}
 			}
-			tile = new MapTile(rs.getInt("x"), rs.getInt("y"), rs.getInt("terrain_id"), rs.getInt("feature_id"), rs.getInt("area_id"));
+			rs.close();
 		} finally {
-			if (rs != null) {
-				rs.close();
-			}
+			close(ps);
+			source.release(cx);
 		}
 		return tile;
 	}
 	
 	/**
-	 * Read all terrain and feature data for the given sector.
+	 * Read all terrain and feature data for the given sector. The sector
+	 * tile, sub-sector tiles and any explicit tiles all come back from
+	 * the one range query, and the Sector expands sparse areas in memory.
 	 * 
 	 * @param origX
 	 * @param origY
@@ -130,68 +260,364 @@ public class MapData {
 	 */
 	public Sector readSector(int origX, int origY) throws SQLException {
 		Sector		sector = new Sector(origX, origY);
+		int[][]		terrainData = sector.getTerrainData();
+		int[][]		featureData = sector.getFeatureData();
+		int[][]		areaData = sector.getAreaData();
 		
-		selectSector.clearParameters();
-		selectSector.setInt(1, origX);
-		selectSector.setInt(2, origX+Sector.WIDTH);
-		selectSector.setInt(3, origY);
-		selectSector.setInt(4, origY+Sector.HEIGHT);
+		Connection	cx = source.getConnection();
+		try {
+			if (packed) {
+				readPackedSector(cx, selectPacked, origX, origY, terrainData, featureData, areaData);
+			} else {
+				PreparedStatement	ps = cx.prepareStatement(selectSector);
+				try {
+					ps.setInt(1, origX);
+					ps.setInt(2, origX+Sector.WIDTH);
+					ps.setInt(3, origY);
+					ps.setInt(4, origY+Sector.HEIGHT);
+					
+					ResultSet	rs = ps.executeQuery();
+					while (rs.next()) {
+						int		x = rs.getInt(1);
+						int		y = rs.getInt(2);
+						terrainData[x%Sector.WIDTH][y%Sector.HEIGHT] = rs.getInt(3);
+						featureData[x%Sector.WIDTH][y%Sector.HEIGHT] = rs.getInt(4);
+						areaData[x%Sector.WIDTH][y%Sector.HEIGHT] = rs.getInt(5);
+					}
+					rs.close();
+				} finally {
+					ps.close();
+				}
+			}
+			sector.setMapData(terrainData, featureData, areaData, readPlaces(cx, origX, origY));
+		} finally {
+			source.release(cx);
+		}
 		
-		ResultSet	rs = selectSector.executeQuery();
-
+		return sector;
+	}
+	
+	/**
+	 * Read the single packed row for a sector into the given arrays. If
+	 * there is no row, the arrays are left untouched (i.e. unset).
+	 */
+	private void readPackedSector(Connection cx, String sql, int origX, int origY, int[][] terrainData, int[][] featureData, int[][] areaData) throws SQLException {
+		PreparedStatement	select = cx.prepareStatement(sql);
+		try {
+			select.setInt(1, origX);
+			select.setInt(2, origY);
+			
+			ResultSet	rs = select.executeQuery();
+			try {
+				if (rs.next()) {
+					PackedSector.unpack(rs.getBytes(1), terrainData, featureData, areaData);
+				}
+			} catch (IOException e) {
+				throw new SQLException("Corrupt packed sector ["+origX+","+origY+"] in ["+prefix+"]", e);
+			} finally {
+				rs.close();
+			}
+		} finally {
+			select.close();
+		}
+	}
+	
+	/**
+	 * Gets a single tile from a packed map. Follows the same rules as
+	 * getTile(), returning the sub-sector or sector tile if the exact
+	 * tile has not been defined.
+	 */
+	private MapTile getPackedTile(int x, int y) throws SQLException {
+		int			ox = x - x%Sector.WIDTH;
+		int			oy = y - y%Sector.HEIGHT;
+		Sector		sector = new Sector(ox, oy);
 		int[][]		terrainData = sector.getTerrainData();
 		int[][]		featureData = sector.getFeatureData();
 		int[][]		areaData = sector.getAreaData();
-		while (rs.next()) {
-			int		x = rs.getInt(1);
-			int		y = rs.getInt(2);
-			terrainData[x%Sector.WIDTH][y%Sector.HEIGHT] = rs.getInt(3);
-			featureData[x%Sector.WIDTH][y%Sector.HEIGHT] = rs.getInt(4);
-			areaData[x%Sector.WIDTH][y%Sector.HEIGHT] = rs.getInt(5);
+		
+		Connection	cx = source.getConnection();
+		try {
+			readPackedSector(cx, selectPacked, ox, oy, terrainData, featureData, areaData);
+		} finally {
+			source.release(cx);
 		}
-		rs.close();
 		
+		int		sx = x%Sector.WIDTH;
+		int		sy = y%Sector.HEIGHT;
+		if (terrainData[sx][sy] == -1) {
+			// No exact tile, look for sub-sector.
+			sx -= sx%8;
+			sy -= sy%10;
+			if (terrainData[sx][sy] == -1) {
+				// No sub-sector, look for sector.
+				sx = 0;
+				sy = 0;
+				if (terrainData[sx][sy] == -1) {
+					return null;
+				}
+			}
+		}
+		return new MapTile(ox+sx, oy+sy, terrainData[sx][sy], featureData[sx][sy], areaData[sx][sy]);
+	}
+	
+	/**
+	 * Gets the places in a sector. Once the map's PlaceIndex has been
+	 * loaded they are taken from that, rather than asking the database.
+	 */
+	private Hashtable<Integer,NamedPlace> readPlaces(Connection cx, int origX, int origY) throws SQLException {
 		Hashtable<Integer,NamedPlace> places = new Hashtable<Integer,NamedPlace>();
-		selectPlaces.clearParameters();
-		selectPlaces.setInt(1, origX);
-		selectPlaces.setInt(2, origX+Sector.WIDTH);
-		selectPlaces.setInt(3, origY);
-		selectPlaces.setInt(4, origY+Sector.HEIGHT);
-		rs = selectPlaces.executeQuery();
-		while (rs.next()) {
-			int		id = rs.getInt(1);
-			int		thingId = rs.getInt(2);
-			String	name = rs.getString(3);
-			String	title = rs.getString(4);
-			short	importance = rs.getShort(5);
-			int		x = rs.getInt(6);
-			int		y = rs.getInt(7);
-			int		sx = rs.getInt(8);
-			int		sy = rs.getInt(9);
-			places.put(id, new NamedPlace(id, thingId, name, title, importance, x, y, sx, sy));
-			System.out.println("Adding ["+name+"] to sector");
-		}
-		rs.close();
-		
-		sector.setMapData(terrainData, featureData, areaData, places);
+		PlaceIndex		index = PlaceIndex.getSharedIndex(prefix);
 		
-		return sector;
+		if (index.isLoaded()) {
+			for (NamedPlace place : index.getPlaces(origX, origY, origX+Sector.WIDTH-1, origY+Sector.HEIGHT-1)) {
+				places.put(place.getId(), place);
+			}
+			return places;
+		}
+		PreparedStatement	ps = cx.prepareStatement(selectPlaces);
+		try {
+			ps.setInt(1, origX);
+			ps.setInt(2, origX+Sector.WIDTH);
+			ps.setInt(3, origY);
+			ps.setInt(4, origY+Sector.HEIGHT);
+			ResultSet	rs = ps.executeQuery();
+			while (rs.next()) {
+				int		id = rs.getInt(1);
+				int		thingId = rs.getInt(2);
+				String	name = rs.getString(3);
+				String	title = rs.getString(4);
+				short	importance = rs.getShort(5);
+				int		x = rs.getInt(6);
+				int		y = rs.getInt(7);
+				int		sx = rs.getInt(8);
+				int		sy = rs.getInt(9);
+				places.put(id, new NamedPlace(id, thingId, name, title, importance, x, y, sx, sy));
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+		
+		return places;
 	}
 	
-	public void writeSector(Sector sector) throws SQLException {
+	/**
+	 * Write a sector as a single packed row, replacing any existing row.
+	 * The sector is written regardless of whether it is dirty, which
+	 * allows it to be used to copy sectors between storage layouts.
+	 * 
+	 * @param sector	Sector to be written.
+	 * @return			Size of the packed data, in bytes.
+	 * @throws SQLException
+	 */
+	public int writePackedSector(Sector sector) throws SQLException {
+		if (!packed) {
+			throw new IllegalStateException("Map ["+prefix+"] is not using packed sectors");
+		}
+		synchronized (sector) {
+			byte[]				blob = PackedSector.pack(sector);
+			Connection			cx = source.getConnection();
+			PreparedStatement	ps = null;
+			try {
+				ps = cx.prepareStatement(replacePacked);
+				ps.setInt(1, sector.getOriginX());
+				ps.setInt(2, sector.getOriginY());
+				ps.setBytes(3, blob);
+				ps.executeUpdate();
+			} finally {
+				close(ps);
+				source.release(cx);
+			}
+			sector.setClean();
+		
+			return blob.length;
+		}
+	}
+	
+	/**
+	 * Merge the tiles set in an edited copy of a sector into the packed
+	 * row for that sector. The copy may have been taken before other
+	 * sessions wrote to the sector, so rather than replacing the row with
+	 * the copy, the row is read again and locked, only the tiles which
+	 * were set in the copy are applied to it, and it is written back in
+	 * the same transaction.
+	 */
+	private void mergePackedSector(Sector sector) throws SQLException {
+		int			ox = sector.getOriginX();
+		int			oy = sector.getOriginY();
+		Sector		current = new Sector(ox, oy);
+		int[][]		terrainData = current.getTerrainData();
+		int[][]		featureData = current.getFeatureData();
+		int[][]		areaData = current.getAreaData();
+		
+		Connection			cx = source.getConnection();
+		PreparedStatement	ps = null;
+		try {
+			boolean		autoCommit = cx.getAutoCommit();
+			try {
+				cx.setAutoCommit(false);
+				readPackedSector(cx, lockPacked, ox, oy, terrainData, featureData, areaData);
+				current.setMapData(terrainData, featureData, areaData, new Hashtable<Integer,NamedPlace>());
+				current.applyEdits(sector);
+				
+				ps = cx.prepareStatement(replacePacked);
+				ps.setInt(1, ox);
+				ps.setInt(2, oy);
+				ps.setBytes(3, PackedSector.pack(current));
+				ps.executeUpdate();
+				cx.commit();
+			} catch (SQLException e) {
+				cx.rollback();
+				throw e;
+			} finally {
+				close(ps);
+				cx.setAutoCommit(autoCommit);
+			}
+		} finally {
+			source.release(cx);
+		}
+		sector.setClean();
+	}
+	
+	/**
+	 * Write all the changed tiles in a sector back to the database. The
+	 * changed tiles are sent as a single batch of upserts within one
+	 * transaction, rather than as a delete and insert per tile, so a
+	 * fully repainted sector costs one round trip rather than thousands.
+	 * Once the transaction has been committed, the sector is marked as
+	 * clean. For packed maps, the tiles set in the sector are merged into
+	 * the sector as it is now in the database (see mergePackedSector()).
+	 * 
+	 * @param sector	Sector to be written.
+	 * @return			Number of tiles written.
+	 * @throws SQLException
+	 */
+	public int writeSector(Sector sector) throws SQLException {
 		if (!sector.isDirty()) {
 			// Nothing changed, so don't write to database.
-			return;
+			return 0;
 		}
+		// Lock out changes to the sector until it has been marked clean.
+		synchronized (sector) {
+			if (packed) {
+				mergePackedSector(sector);
+				return 1;
+			}
+		
+			long	start = System.currentTimeMillis();
+			int		ox = sector.getOriginX();
+			int		oy = sector.getOriginY();
+			int		rows = 0;
+		
+			Connection			cx = source.getConnection();
+			PreparedStatement	batch = null;
+			try {
+				batch = cx.prepareStatement(upsertTerrain);
+				rows = addToBatch(batch, sector);
+			
+				boolean		autoCommit = cx.getAutoCommit();
+				try {
+					cx.setAutoCommit(false);
+					batch.executeBatch();
+					cx.commit();
+				} catch (SQLException e) {
+					cx.rollback();
+					throw e;
+				} finally {
+					cx.setAutoCommit(autoCommit);
+				}
+			} finally {
+				close(batch);
+				source.release(cx);
+			}
+			sector.setClean();
+		
+			log.info("Wrote sector ["+ox+","+oy+"] to ["+prefix+"]: "+rows+" rows in "+
+					 (System.currentTimeMillis() - start)+"ms");
+		
+			return rows;
+		}
+	}
+	
+	/**
+	 * Add all the changed tiles of a sector to an upsert batch.
+	 * 
+	 * @return		Number of tiles added.
+	 */
+	private int addToBatch(PreparedStatement batch, Sector sector) throws SQLException {
+		int		ox = sector.getOriginX();
+		int		oy = sector.getOriginY();
+		int		rows = 0;
 		
-		int	ox = sector.getOriginX();
-		int	oy = sector.getOriginY();
 		for (int x=0; x < Sector.WIDTH; x++) {
 			for (int y=0; y < Sector.HEIGHT; y++) {
 				if (sector.isDirty(x, y)) {
-					setTile(x+ox, y+oy, sector.getTerrain(x, y), sector.getFeature(x, y), sector.getArea(x, y));
+					batch.clearParameters();
+					batch.setInt(1, x+ox);
+					batch.setInt(2, y+oy);
+					batch.setInt(3, sector.getTerrain(x, y));
+					batch.setInt(4, sector.getFeature(x, y));
+					batch.setInt(5, sector.getArea(x, y));
+					batch.addBatch();
+					rows++;
+				}
+			}
+		}
+		return rows;
+	}
+	
+	/**
+	 * Write a number of sectors in one go, as a single batch within one
+	 * transaction. Meant for bulk loading, where sending each sector on
+	 * its own would spend more time waiting on the database than writing.
+	 * The sectors must not be changed by anything else while they are
+	 * being written. Sectors which aren't dirty are skipped.
+	 * 
+	 * @param sectors	Sectors to be written.
+	 * @return			Number of tiles (or packed sectors) written.
+	 * @throws SQLException
+	 */
+	public int writeSectors(List<Sector> sectors) throws SQLException {
+		int					rows = 0;
+		Connection			cx = source.getConnection();
+		PreparedStatement	batch = null;
+		
+		try {
+			batch = cx.prepareStatement(packed?replacePacked:upsertTerrain);
+			for (Sector sector : sectors) {
+				if (!sector.isDirty()) {
+					continue;
 				}
+				if (packed) {
+					batch.clearParameters();
+					batch.setInt(1, sector.getOriginX());
+					batch.setInt(2, sector.getOriginY());
+					batch.setBytes(3, PackedSector.pack(sector));
+					batch.addBatch();
+					rows++;
+				} else {
+					rows += addToBatch(batch, sector);
+				}
+			}
+			
+			boolean		autoCommit = cx.getAutoCommit();
+			try {
+				cx.setAutoCommit(false);
+				batch.executeBatch();
+				cx.commit();
+			} catch (SQLException e) {
+				cx.rollback();
+				throw e;
+			} finally {
+				cx.setAutoCommit(autoCommit);
 			}
+		} finally {
+			close(batch);
+			source.release(cx);
+		}
+		for (Sector sector : sectors) {
+			sector.setClean();
 		}
+		return rows;
 	}
 }
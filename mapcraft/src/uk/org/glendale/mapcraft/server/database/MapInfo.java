@@ -4,7 +4,9 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
@@ -14,13 +16,14 @@ import javax.faces.bean.*;
 import org.apache.commons.collections.list.TreeList;
 
 import uk.org.glendale.mapcraft.MapEntityException;
+import uk.org.glendale.mapcraft.map.AreaIndex;
 import uk.org.glendale.mapcraft.map.NamedArea;
 import uk.org.glendale.mapcraft.map.Feature;
 import uk.org.glendale.mapcraft.map.NamedPlace;
+import uk.org.glendale.mapcraft.map.PlaceIndex;
 import uk.org.glendale.mapcraft.map.Rectangle;
 import uk.org.glendale.mapcraft.map.Terrain;
 import uk.org.glendale.mapcraft.map.Thing;
-import uk.org.glendale.mapcraft.server.AppManager;
 
 /**
  * Keeps track of metadata about a map.
@@ -36,6 +39,7 @@ public class MapInfo {
 	private int		width;
 	private int		height;
 	private boolean	world;
+	private boolean	packed;
 	
 	private Hashtable<Integer,Terrain>		terrain = new Hashtable<Integer,Terrain>();
 	private Hashtable<Integer,Feature>		feature = new Hashtable<Integer,Feature>();
@@ -45,9 +49,12 @@ public class MapInfo {
 	
 	private MapManager	manager = null;
 	
+	// Milliseconds to wait for the area index to be built.
+	private static final long	INDEX_WAIT = 60000;
+	
 	
 	public MapInfo() throws SQLException {
-		manager = new MapManager(AppManager.getInstance().getDatabaseConnection());
+		manager = MapManager.getInstance();
 	}
 	
 	public MapInfo(MapManager manager, String name, String title, int width, int height, boolean world) throws SQLException {
@@ -97,6 +104,18 @@ public class MapInfo {
 		return world;
 	}
 	
+	/**
+	 * Is the map stored as packed sectors, rather than a row per tile?
+	 * See MapData.
+	 */
+	boolean isPacked() {
+		return packed;
+	}
+	
+	void setPacked(boolean packed) {
+		this.packed = packed;
+	}
+	
 	/**
 	 * The width of the map in tiles.
 	 * @param width		Number of tiles.
@@ -214,7 +233,8 @@ public class MapInfo {
 	 * @throws MapEntityException 
 	 */
 	public void addNamedArea(String name, String title, int parentId) throws SQLException, MapEntityException {
-		Connection			cx = manager.getConnection();
+		ConnectionSource	source = manager.getConnectionSource();
+		Connection			cx = source.getConnection();
 		ResultSet			rs = null;
 		PreparedStatement	select = null;
 		PreparedStatement	insert = null;
@@ -255,55 +275,85 @@ public class MapInfo {
 			if (insert != null && !insert.isClosed()) {
 				insert.close();
 			}
+			source.release(cx);
+		}
+	}
+	
+	/**
+	 * Gets the ids of the given area and all the areas within it, as
+	 * walked by getChildAreas().
+	 * 
+	 * @param area		Area to get ids for.
+	 * @return			Set of area ids.
+	 */
+	public BitSet getAreaIds(NamedArea area) {
+		BitSet		ids = new BitSet();
+		
+		ids.set(area.getId());
+		for (NamedArea child : getChildAreas(area)) {
+			ids.set(child.getId());
+		}
+		return ids;
+	}
+	
+	/**
+	 * Gets which terrain types are land, indexed by terrain id.
+	 */
+	public boolean[] getLandTerrain() {
+		int		max = 0;
+		for (int id : terrain.keySet()) {
+			max = Math.max(max, id);
 		}
+		boolean[]	land = new boolean[max+1];
+		for (Terrain t : terrain.values()) {
+			land[t.getId()] = t.getWater() < 100;
+		}
+		return land;
 	}
 	
 	/**
-	 * Gets the bounding box for the given named area. If the area
-	 * is not found on the map, then an empty rectangle is returned.
+	 * Gets the index of where each named area is on the map. The first
+	 * time this is called, the index starts being built in the background,
+	 * by reading every sector of the map. It is returned straight away,
+	 * and isn't complete until isBuilt() says so.
+	 * 
+	 * @return		Area index for this map.
+	 * @throws SQLException
+	 */
+	public AreaIndex getAreaIndex() throws SQLException {
+		AreaIndex	index = AreaIndex.getSharedIndex(prefix);
+		
+		if (!index.isBuilt()) {
+			index.startBuild(manager.getMapData(prefix), width, height, getLandTerrain());
+		}
+		return index;
+	}
+	
+	/**
+	 * Gets the bounding box for the given named area, including all of
+	 * the areas within it. If the area is not found on the map, then an
+	 * empty rectangle is returned. If the area index is still being built,
+	 * this waits for it, for up to INDEX_WAIT milliseconds.
 	 * 
 	 * @param area		Area to find the bounds for.
 	 * @return			Rectangle describing the area.
 	 */
 	public Rectangle getNamedAreaBounds(NamedArea area) {
-		Rectangle bounds;
-		
 		if (area == null) {
 			throw new IllegalArgumentException("Cannot get bounds of null area");
 		}
 		
-		Connection			cx = manager.getConnection();
-		ResultSet			rs = null;
-		PreparedStatement	select = null;
-		
 		try {
-			select = cx.prepareStatement("SELECT min(x) as west, max(x) as east, min(y) as north, max(y) as south FROM "+
-										 prefix+"_map WHERE area_id=? OR area_id IN (SELECT id FROM "+prefix+"_area WHERE "+
-										 "parent_id=?)");
-			select.clearParameters();
-			select.setInt(1, area.getId());
-			select.setInt(2, area.getId());
-			
-			rs = select.executeQuery();
-			
-			if (rs.next()) {
-				int		north = rs.getInt("north");
-				int		west = rs.getInt("west");
-				int		east = rs.getInt("east");
-				int		south = rs.getInt("south");
-				
-				// TODO: This is wrong, due to optimisations. Eastern or Southern tile
-				// may be the only tile in a sector, so actually covers the whole sector.
-				bounds = new Rectangle(west, north, east-west, south-north);
-			} else {
-				return new Rectangle(0, 0, 0, 0);
+			AreaIndex	index = getAreaIndex();
+			if (!index.waitUntilBuilt(INDEX_WAIT)) {
+				throw new IllegalStateException("Area index for ["+prefix+"] is not available yet");
 			}
-			rs.close();
+			return index.getBounds(getAreaIds(area));
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Interrupted waiting for area index for ["+prefix+"]");
 		} catch (SQLException e) {
 			return null;
 		}
-		
-		return bounds;
 	}
 	
 	public void addThing(Thing thing) {
@@ -337,7 +387,8 @@ public class MapInfo {
 	 * @throws MapEntityException
 	 */
 	public NamedPlace createNamedPlace(Thing thing, String name, String title, short importance, int x, int y, int sx, int sy) throws SQLException, MapEntityException {
-		Connection			cx = manager.getConnection();
+		ConnectionSource	source = manager.getConnectionSource();
+		Connection			cx = source.getConnection();
 		ResultSet			rs = null;
 		PreparedStatement	insert = null;
 		NamedPlace			place = null;
@@ -359,9 +410,9 @@ public class MapInfo {
 			if (rs.next()) {
 				int	 id = rs.getInt(1);
 				place = new NamedPlace(id, thing.getId(), name, title, importance, x, y, sx, sy);
+				PlaceIndex.getSharedIndex(prefix).addPlace(place);
 			}
 			rs.close();
-			System.out.println(areas.size());
 		} finally {
 			if (rs != null && !rs.isClosed()) {
 				rs.close();
@@ -369,36 +420,61 @@ public class MapInfo {
 			if (insert != null && !insert.isClosed()) {
 				insert.close();
 			}
+			source.release(cx);
 		}
 		return place;
 	}
 
-	public List<NamedPlace> getNamedPlaces(int west, int north, int east, int south) throws SQLException {
-		Connection			cx = manager.getConnection();
-		ResultSet			rs = null;
-		PreparedStatement	select = null;
-		List<NamedPlace>	places = new ArrayList<NamedPlace>();
+	/**
+	 * Gets the index of all the places on this map. The first time this
+	 * is called, all the places are read from the database.
+	 * 
+	 * @return		Place index for this map.
+	 * @throws SQLException
+	 */
+	public PlaceIndex getPlaceIndex() throws SQLException {
+		PlaceIndex	index = PlaceIndex.getSharedIndex(prefix);
 		
-		try {
-			select = cx.prepareStatement("SELECT id, thing_id, name, title, importance, x, y, sx, sy FROM "+prefix+"_things WHERE x >= ? AND x <= ? AND y >= ? AND y <= ?");
-			select.clearParameters();
-			select.setInt(1, west);
-			select.setInt(2, east);
-			select.setInt(3, north);
-			select.setInt(4, south);
-			
-			rs = select.executeQuery();
-			while (rs.next()) {
-				NamedPlace	place = new NamedPlace(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), 
-							rs.getShort(5), rs.getInt(6), rs.getInt(7), rs.getInt(8), rs.getInt(9));
-				places.add(place);
-			}
-		} finally {
-			if (rs != null) {
-				rs.close();
+		synchronized (index) {
+			if (!index.isLoaded()) {
+				ConnectionSource	source = manager.getConnectionSource();
+				Connection			cx = source.getConnection();
+				List<NamedPlace>	places = new ArrayList<NamedPlace>();
+				
+				try {
+					Statement	select = cx.createStatement();
+					try {
+						ResultSet	rs = select.executeQuery("SELECT id, thing_id, name, title, importance, x, y, sx, sy FROM "+prefix+"_things");
+						while (rs.next()) {
+							places.add(new NamedPlace(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), 
+									   rs.getShort(5), rs.getInt(6), rs.getInt(7), rs.getInt(8), rs.getInt(9)));
+						}
+						rs.close();
+					} finally {
+						select.close();
+					}
+				} finally {
+					source.release(cx);
+				}
+				index.load(width, height, places);
 			}
 		}
-		
-		return places;
+		return index;
+	}
+
+	/**
+	 * Gets all the places within the given bounds, which are inclusive.
+	 */
+	public List<NamedPlace> getNamedPlaces(int west, int north, int east, int south) throws SQLException {
+		return getPlaceIndex().getPlaces(west, north, east, south);
+	}
+	
+	/**
+	 * Gets the places within the given bounds which are at least as
+	 * important as the given level, for maps at scales where the lesser
+	 * places would clutter things up. Bounds are inclusive.
+	 */
+	public List<NamedPlace> getNamedPlaces(int west, int north, int east, int south, int minImportance) throws SQLException {
+		return getPlaceIndex().getPlaces(west, north, east, south, minImportance);
 	}
 }
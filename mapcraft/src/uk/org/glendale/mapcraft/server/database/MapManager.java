@@ -7,51 +7,118 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.logging.Logger;
 
+import uk.org.glendale.mapcraft.graphics.MapImageCache;
+import uk.org.glendale.mapcraft.map.AreaIndex;
 import uk.org.glendale.mapcraft.map.Map;
 import uk.org.glendale.mapcraft.map.NamedArea;
+import uk.org.glendale.mapcraft.map.PlaceIndex;
+import uk.org.glendale.mapcraft.map.SectorCache;
 import uk.org.glendale.mapcraft.map.Feature;
 import uk.org.glendale.mapcraft.map.Terrain;
 import uk.org.glendale.mapcraft.map.Thing;
 import uk.org.glendale.mapcraft.server.AppManager;
 
 /**
- * Manages a connection to the database, and the list of maps available.
+ * Manages access to the database, and the list of maps available.
  * Used to create and select maps.
  * 
+ * The web application shares a single MapManager, returned by getInstance(),
+ * which reads the metadata of every map once and keeps it in memory. It is
+ * only read again when a map is created or deleted through the manager, or
+ * refresh() is called. Getting a map is cheap, so most of the cost of a
+ * request is drawing it.
+ * 
+ * The manager doesn't hold a connection. Connections are borrowed from a
+ * ConnectionSource for each operation, both here and by the MapData and
+ * MapInfo objects it hands out, so nothing is left holding a connection
+ * which has been lost. The shared manager uses the application's pool.
+ * 
  * @author Samuel Penn
  *
  */
 public class MapManager {
-	private Hashtable<String,MapInfo>	maps = null;
-	private Connection		cx = null;
+	private static Logger		log = Logger.getLogger("uk.org.glendale.mapcraft.server.database.MapManager");
+	private static MapManager	instance = null;
+	
+	private volatile Hashtable<String,MapInfo>	maps = null;
+	private ConnectionSource	source = null;
 	
 	private static final String		selectMapsSQL = "SELECT name, title, width, height, world FROM mapcraft";
 	private static final String		insertMapsSQL = "INSERT INTO mapcraft (name, title, width, height, world) VALUES(?, ?, ?, ?, ?)";
 	
-	private PreparedStatement	selectMaps;
-	private PreparedStatement	insertMaps;
-	
+	/**
+	 * Create a manager which uses a single connection which is already
+	 * open. The connection is closed by disconnect().
+	 */
 	public MapManager(Connection cx) throws SQLException {
-		if (cx == null || cx.isClosed()) {
-			throw new IllegalArgumentException("Connection is null or closed");
+		this(checkConnection(cx));
+	}
+	
+	/**
+	 * Create a manager which borrows connections from the given source
+	 * whenever it needs one.
+	 */
+	public MapManager(ConnectionSource source) throws SQLException {
+		if (source == null) {
+			throw new IllegalArgumentException("No source of database connections");
 		}
-		this.cx = cx;
+		this.source = source;
 
-		prepareStatements();
 		refresh();
 	}
 	
-	public void disconnect() {
-		try {
-			cx.close();
-		} catch (SQLException e) {
-			
+	private static ConnectionSource checkConnection(Connection cx) throws SQLException {
+		if (cx == null || cx.isClosed()) {
+			throw new IllegalArgumentException("Connection is null or closed");
 		}
+		return ConnectionSource.fromConnection(cx);
 	}
 	
-	public Connection getConnection() {
-		return cx;
+	/**
+	 * Gets the MapManager shared by the whole application. It is created
+	 * the first time it is asked for. It must not be disconnected by the
+	 * caller.
+	 * 
+	 * @return		The shared MapManager.
+	 * @throws SQLException
+	 */
+	public static synchronized MapManager getInstance() throws SQLException {
+		if (instance == null) {
+			instance = new MapManager(AppManager.getInstance().getConnectionSource());
+			log.info("Created shared map manager with ["+instance.maps.size()+"] maps");
+		}
+		return instance;
+	}
+	
+	/**
+	 * Disconnect the shared MapManager, if there is one, when the
+	 * application is shut down.
+	 */
+	public static synchronized void closeInstance() {
+		if (instance != null) {
+			instance.disconnect();
+			instance = null;
+		}
+	}
+	
+	/**
+	 * Close any connection held by this manager's ConnectionSource. Pooled
+	 * connections are left to the pool.
+	 */
+	public void disconnect() {
+		source.close();
+	}
+	
+	/**
+	 * Gets where this manager borrows its connections from. Anything taken
+	 * from it must be given back with ConnectionSource.release().
+	 * 
+	 * @return		Source of connections to the database.
+	 */
+	public ConnectionSource getConnectionSource() {
+		return source;
 	}
 	
 	private void validateName(String name) throws IllegalArgumentException {
@@ -60,39 +127,46 @@ public class MapManager {
 		}
 	}
 	
-	private void prepareStatements() throws SQLException {
-		selectMaps = cx.prepareStatement(selectMapsSQL);
-		insertMaps = cx.prepareStatement(insertMapsSQL);
-	}
-	
 	/**
 	 * Refresh list of all available maps on this server.
 	 * 
 	 * @throws SQLException
 	 */
-	public void refresh() throws SQLException {
-		selectMaps.clearParameters();
-		ResultSet	rs = selectMaps.executeQuery();
-
-		maps = new Hashtable<String,MapInfo>();
+	public synchronized void refresh() throws SQLException {
+		Hashtable<String,MapInfo>	maps = new Hashtable<String,MapInfo>();
+		
+		Connection			cx = source.getConnection();
+		PreparedStatement	selectMaps = null;
 		try {
-			while (rs.next()) {
-				String		name = rs.getString("name");
-				String		title = rs.getString("title");
-				int			width = rs.getInt("width");
-				int			height = rs.getInt("height");
-				boolean		world = rs.getBoolean("world");
-				
-				System.out.println("Adding map ["+name+"] ("+width+"x"+height+")");
-				
-				MapInfo		info = new MapInfo(this, name, title, width, height, world);
-				readTerrain(info);
+			selectMaps = cx.prepareStatement(selectMapsSQL);
+			ResultSet	rs = selectMaps.executeQuery();
+			try {
+				while (rs.next()) {
+					String		name = rs.getString("name");
+					String		title = rs.getString("title");
+					int			width = rs.getInt("width");
+					int			height = rs.getInt("height");
+					boolean		world = rs.getBoolean("world");
+					
+					log.info("Adding map ["+name+"] ("+width+"x"+height+")");
+					
+					MapInfo		info = new MapInfo(this, name, title, width, height, world);
+					readTerrain(cx, info);
+					info.setPacked(MapData.hasPackedTable(name, cx));
 
-				maps.put(name, info);
+					maps.put(name, info);
+				}
+			} finally {
+				rs.close();
 			}
 		} finally {
-			rs.close();
+			if (selectMaps != null) {
+				selectMaps.close();
+			}
+			source.release(cx);
 		}
+		// Readers never see a partly read list of maps.
+		this.maps = maps;
 	}
 	
 	/**
@@ -103,7 +177,7 @@ public class MapManager {
 	 * @param info		MapInfo object to be updated.
 	 * @throws SQLException
 	 */
-	private void readTerrain(MapInfo info) throws SQLException {
+	private void readTerrain(Connection cx, MapInfo info) throws SQLException {
 		Statement	stmnt = cx.createStatement();
 
 		// Read list of terrain types.
@@ -159,6 +233,7 @@ public class MapManager {
 			info.addThing(new Thing(id, name, title, image, importance));
 		}
 		rs.close();
+		stmnt.close();
 	}
 	
 	/**
@@ -174,17 +249,28 @@ public class MapManager {
 	 * 
 	 * @throws SQLException
 	 */
-	public void createMap(String name, String title, int width, int height, boolean world) throws SQLException {
+	public synchronized void createMap(String name, String title, int width, int height, boolean world) throws SQLException {
 		validateName(name);
-		insertMaps.clearParameters();
-		insertMaps.setString(1, name);
-		insertMaps.setString(2, title);
-		insertMaps.setInt(3, width);
-		insertMaps.setInt(4, height);
-		insertMaps.setBoolean(5, world);
-		
-		insertMaps.executeUpdate();
-		createTables(name);
+		Connection			cx = source.getConnection();
+		PreparedStatement	insertMaps = null;
+		try {
+			insertMaps = cx.prepareStatement(insertMapsSQL);
+			insertMaps.setString(1, name);
+			insertMaps.setString(2, title);
+			insertMaps.setInt(3, width);
+			insertMaps.setInt(4, height);
+			insertMaps.setBoolean(5, world);
+			
+			insertMaps.executeUpdate();
+			createTables(cx, name);
+		} finally {
+			if (insertMaps != null) {
+				insertMaps.close();
+			}
+			source.release(cx);
+		}
+		refresh();
+		fillMap(getMapInfo(name), 1, 0);
 	}
 	
 	/**
@@ -194,21 +280,36 @@ public class MapManager {
 	 * @param name		Name of map.
 	 * @throws SQLException
 	 */
-	public void deleteMap(String name) throws SQLException {
+	public synchronized void deleteMap(String name) throws SQLException {
 		validateName(name);
-		Statement		stmnt = cx.createStatement();
-		stmnt.executeUpdate("DELETE FROM mapcraft WHERE name='"+name+"'");
-		stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_terrain");
-		stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_feature");
-		stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_area");
-		stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_thing");
-		stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_things");
-		stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_map");
+		Connection		cx = source.getConnection();
+		try {
+			Statement		stmnt = cx.createStatement();
+			stmnt.executeUpdate("DELETE FROM mapcraft WHERE name='"+name+"'");
+			stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_terrain");
+			stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_feature");
+			stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_area");
+			stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_thing");
+			stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_things");
+			stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_map");
+			stmnt.executeUpdate("DROP TABLE IF EXISTS "+name+"_sector");
+			stmnt.close();
+		} finally {
+			source.release(cx);
+		}
 		
+		// Nothing from the old map may be served if one is created with the same name.
+		SectorCache.removeSharedCache(name);
+		AreaIndex.removeSharedIndex(name);
+		PlaceIndex.removeSharedIndex(name);
+		AppManager		appManager = AppManager.getInstance();
+		if (appManager != null && appManager.getRootPath() != null) {
+			MapImageCache.getInstance().removeMap(name);
+		}
 		refresh();
 	}
 	
-	private void createTables(String prefix) throws SQLException {
+	private void createTables(Connection cx, String prefix) throws SQLException {
 		Statement		stmnt = cx.createStatement();
 		
 		stmnt.executeUpdate("CREATE TABLE "+prefix+"_terrain (id INT NOT NULL AUTO_INCREMENT, "+
@@ -233,43 +334,41 @@ public class MapManager {
 				"terrain_id INT NOT NULL, feature_id INT DEFAULT 0, area_id INT DEFAULT 0, "+
 				"PRIMARY KEY(x, y))");
 		
-		addFeature(prefix, "hills.low", "Low hills", "lowhills", 0, 0, 15, 0);
-		addFeature(prefix, "hills.high", "High hills", "highhills", 0, 0, 30, 0);
-		addFeature(prefix, "mountains.low", "Low mountains", "lowmnts", 0, 0, 50, 0);
-		addFeature(prefix, "mountains.medium", "Medium mountains", "medmnts", 0, 0, 75, 0);
-		addFeature(prefix, "mountains.high", "High mountains", "highmnts", 0, 0, 90, 0);
-		addFeature(prefix, "wetlands", "Wetlands", "wetlands", 25, 0, 0, 0);
-		addFeature(prefix, "ice", "Ice", "ice", 0, 0, 0, 0);
-		
-		addTerrain(prefix, "water.ocean", "Ocean", "ocean", 100, 0, 0, 0, "9999FF");
-		addTerrain(prefix, "water.sea", "Sea", "sea", 100, 0, 0, 0, "AAAAFF");
-		addTerrain(prefix, "temperate.grassland", "Grassland", "grass", 0, 10, 0, 75, "99FF99");
-		addTerrain(prefix, "temperate.crops", "Cropland", "cropland", 0, 5, 0, 90, "BBFFBB");
-		addTerrain(prefix, "temperate.woodland", "Light woodland", "woods", 0, 30, 0, 75, "77DD77");
-		addTerrain(prefix, "temperate.mixed", "Mixed woodland", "mixed_forest", 0, 60, 0, 75, "449944");
-		addTerrain(prefix, "temperate.coniferous", "Coniferous woodland", "coniferous", 0, 60, 0, 75, "449944");
-		addTerrain(prefix, "temperate.moors", "Moorland", "moors", 0, 10, 10, 55, "99AA99");
-		addTerrain(prefix, "temperate.heath", "Heathland", "heath", 0, 10, 10, 55, "99AA99");
-		addTerrain(prefix, "subtropical.grassland", "Dry grassland", "dry", 0, 5, 0, 20, "77CCAA");
-		addTerrain(prefix, "subtropical.desert", "Desert", "desert", 0, 0, 0, 5, "88FFFF");
-		addTerrain(prefix, "boreal.forest", "Boreal forest", "boreal_forest", 0, 60, 0, 75, "AAEEAA");
-		addTerrain(prefix, "arctic.snow", "Snow", "snow", 0, 0, 0, 0, "FFFFFF");
+		addFeature(cx, prefix, "hills.low", "Low hills", "lowhills", 0, 0, 15, 0);
+		addFeature(cx, prefix, "hills.high", "High hills", "highhills", 0, 0, 30, 0);
+		addFeature(cx, prefix, "mountains.low", "Low mountains", "lowmnts", 0, 0, 50, 0);
+		addFeature(cx, prefix, "mountains.medium", "Medium mountains", "medmnts", 0, 0, 75, 0);
+		addFeature(cx, prefix, "mountains.high", "High mountains", "highmnts", 0, 0, 90, 0);
+		addFeature(cx, prefix, "wetlands", "Wetlands", "wetlands", 25, 0, 0, 0);
+		addFeature(cx, prefix, "ice", "Ice", "ice", 0, 0, 0, 0);
 		
-		addThing(prefix, "settlement.village", "Village", "village", (short)0);
-		addThing(prefix, "settlement.town", "Town", "town", (short)1);
-		addThing(prefix, "settlement.city", "City", "city", (short)2);
-		addThing(prefix, "settlement.largecity", "Large city", "large-city", (short)3);
-		addThing(prefix, "castle.keep", "Keep", "keep", (short)1);
-		addThing(prefix, "castle.castle", "Castle", "castle", (short)2);
-		addThing(prefix, "misc.ruins", "Ruins", "ruins", (short)0);
-		addThing(prefix, "misc.mines", "Mines", "mines", (short)0);
-		addThing(prefix, "misc.label", "Label", "label", (short)1);
-		addThing(prefix, "misc.peak", "Peak", "peak", (short)1);
+		addTerrain(cx, prefix, "water.ocean", "Ocean", "ocean", 100, 0, 0, 0, "9999FF");
+		addTerrain(cx, prefix, "water.sea", "Sea", "sea", 100, 0, 0, 0, "AAAAFF");
+		addTerrain(cx, prefix, "temperate.grassland", "Grassland", "grass", 0, 10, 0, 75, "99FF99");
+		addTerrain(cx, prefix, "temperate.crops", "Cropland", "cropland", 0, 5, 0, 90, "BBFFBB");
+		addTerrain(cx, prefix, "temperate.woodland", "Light woodland", "woods", 0, 30, 0, 75, "77DD77");
+		addTerrain(cx, prefix, "temperate.mixed", "Mixed woodland", "mixed_forest", 0, 60, 0, 75, "449944");
+		addTerrain(cx, prefix, "temperate.coniferous", "Coniferous woodland", "coniferous", 0, 60, 0, 75, "449944");
+		addTerrain(cx, prefix, "temperate.moors", "Moorland", "moors", 0, 10, 10, 55, "99AA99");
+		addTerrain(cx, prefix, "temperate.heath", "Heathland", "heath", 0, 10, 10, 55, "99AA99");
+		addTerrain(cx, prefix, "subtropical.grassland", "Dry grassland", "dry", 0, 5, 0, 20, "77CCAA");
+		addTerrain(cx, prefix, "subtropical.desert", "Desert", "desert", 0, 0, 0, 5, "88FFFF");
+		addTerrain(cx, prefix, "boreal.forest", "Boreal forest", "boreal_forest", 0, 60, 0, 75, "AAEEAA");
+		addTerrain(cx, prefix, "arctic.snow", "Snow", "snow", 0, 0, 0, 0, "FFFFFF");
 		
-		addArea(prefix, "Unnamed", "unnamed", 0);
+		addThing(cx, prefix, "settlement.village", "Village", "village", (short)0);
+		addThing(cx, prefix, "settlement.town", "Town", "town", (short)1);
+		addThing(cx, prefix, "settlement.city", "City", "city", (short)2);
+		addThing(cx, prefix, "settlement.largecity", "Large city", "large-city", (short)3);
+		addThing(cx, prefix, "castle.keep", "Keep", "keep", (short)1);
+		addThing(cx, prefix, "castle.castle", "Castle", "castle", (short)2);
+		addThing(cx, prefix, "misc.ruins", "Ruins", "ruins", (short)0);
+		addThing(cx, prefix, "misc.mines", "Mines", "mines", (short)0);
+		addThing(cx, prefix, "misc.label", "Label", "label", (short)1);
+		addThing(cx, prefix, "misc.peak", "Peak", "peak", (short)1);
 		
-		refresh();
-		fillMap(getMapInfo(prefix), 1, 0);
+		addArea(cx, prefix, "Unnamed", "unnamed", 0);
+		stmnt.close();
 	}
 
 	/**
@@ -281,7 +380,7 @@ public class MapManager {
 	 * @param image
 	 * @throws SQLException
 	 */
-	private void addTerrain(String prefix, String name, String title, String image, int water, int woods, int hills, int fertility, String colour) throws SQLException {
+	private void addTerrain(Connection cx, String prefix, String name, String title, String image, int water, int woods, int hills, int fertility, String colour) throws SQLException {
 		PreparedStatement	ps = cx.prepareStatement("INSERT INTO "+prefix+"_terrain (name, image, title, water, woods, hills, fertility, colour) VALUES(?,?,?,?,?,?,?,?)");
 		
 		ps.setString(1, name);
@@ -294,9 +393,10 @@ public class MapManager {
 		ps.setString(8, colour);
 		
 		ps.execute();
+		ps.close();
 	}
 	
-	private void addFeature(String prefix, String name, String title, String image, int water, int woods, int hills, int fertility) throws SQLException {
+	private void addFeature(Connection cx, String prefix, String name, String title, String image, int water, int woods, int hills, int fertility) throws SQLException {
 		PreparedStatement	ps = cx.prepareStatement("INSERT INTO "+prefix+"_feature (name, image, title, water, woods, hills, fertility) VALUES(?,?,?,?,?,?,?)");
 		
 		ps.setString(1, name);
@@ -306,20 +406,22 @@ public class MapManager {
 		ps.setInt(5, woods);
 		ps.setInt(6, hills);
 		ps.setInt(7, fertility);
-		ps.execute();		
+		ps.execute();
+		ps.close();
 	}
 	
-	private void addArea(String prefix, String name, String title, int parentId) throws SQLException {
+	private void addArea(Connection cx, String prefix, String name, String title, int parentId) throws SQLException {
 		PreparedStatement	ps = cx.prepareStatement("INSERT INTO "+prefix+"_area (name, title, parent_id) VALUES(?,?,?)");
 		
 		ps.setString(1, name);
 		ps.setString(2, title);
 		ps.setInt(3, parentId);
 		
-		ps.execute();				
+		ps.execute();
+		ps.close();
 	}
 
-	private void addThing(String prefix, String name, String title, String image, short importance) throws SQLException {
+	private void addThing(Connection cx, String prefix, String name, String title, String image, short importance) throws SQLException {
 		PreparedStatement	ps = cx.prepareStatement("INSERT INTO "+prefix+"_thing (name, title, image, importance) VALUES(?,?,?,?)");
 		
 		ps.setString(1, name);
@@ -327,11 +429,12 @@ public class MapManager {
 		ps.setString(3, image);
 		ps.setShort(4, importance);
 		
-		ps.execute();				
+		ps.execute();
+		ps.close();
 	}
 	
 	private void fillMap(MapInfo info, int terrainId, int featureId) throws SQLException {
-		MapData		data = new MapData(info.getName(), cx);
+		MapData		data = getMapData(info.getName());
 		for (int y=0; y < info.getHeight(); y+=40) {
 			for (int x=0; x < info.getWidth(); x+=32) {
 				data.setTile(x, y, terrainId, featureId, 0);
@@ -348,13 +451,37 @@ public class MapManager {
 		return maps.get(name);
 	}
 	
+	/**
+	 * Gets a data access object for a map. It holds no connection of its
+	 * own, so one is simply created each time.
+	 */
+	MapData getMapData(String name) throws SQLException {
+		MapInfo		info = maps.get(name);
+		
+		if (info == null) {
+			return new MapData(name, source);
+		}
+		return new MapData(name, source, info.isPacked());
+	}
+	
+	/**
+	 * Gets a view of the named map. The map's metadata is shared with all
+	 * other views of it, so this doesn't need to read anything from the
+	 * database.
+	 * 
+	 * @param name		Name of the map.
+	 * @return			New view of the map.
+	 * @throws SQLException
+	 */
 	public Map getMap(String name) throws SQLException {
 		validateName(name);
 		
 		MapInfo		info = maps.get(name);
-		MapData		data = new MapData(name, cx);
+		if (info == null) {
+			throw new IllegalArgumentException("Unknown map ["+name+"]");
+		}
 		
-		return new Map(info, data);
+		return new Map(info, getMapData(name));
 	}
 	
 	public void getMap(MapInfo info) {
@@ -368,11 +495,7 @@ public class MapManager {
 	public static void main(String[] args) throws Exception {
 		AppManager		app = new AppManager();
 		
-		MapManager		manager = new MapManager(app.getDatabaseConnection());
-		
-		if (manager.getConnection() == null) {
-			System.out.println("No database");
-		}
+		MapManager		manager = new MapManager(app.getConnectionSource());
 		
 		//manager.deleteMap("eorthe");
 		//manager.createMap("eorthe", "World of Eorthe", 8000, 4000, true);
@@ -0,0 +1,102 @@
+package uk.org.glendale.mapcraft.server.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import uk.org.glendale.mapcraft.map.Sector;
+
+/**
+ * Converts the tile data of a Sector to and from a single compressed
+ * blob, so that a whole sector can be stored as one row in the database.
+ *
+ * The blob is a version byte followed by the terrain, feature and area
+ * arrays, each written as WIDTH*HEIGHT ints in [X][Y] order, the whole
+ * thing being deflated. Tiles which aren't explicitly set are stored as
+ * -1, so sparse sectors and sub-sectors survive the round trip, and
+ * compress down to almost nothing.
+ *
+ * @author Samuel Penn
+ */
+public class PackedSector {
+	public static final int		VERSION = 1;
+
+	private PackedSector() {
+	}
+
+	/**
+	 * Pack the terrain, feature and area data of the sector into a
+	 * compressed blob. Named places are not included.
+	 *
+	 * @param sector	Sector to be packed.
+	 * @return			Compressed data for the sector.
+	 */
+	public static byte[] pack(Sector sector) {
+		ByteArrayOutputStream	bytes = new ByteArrayOutputStream(1024);
+		Deflater				deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+		try {
+			DataOutputStream	out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+
+			out.writeByte(VERSION);
+			write(out, sector, sector.getTerrainData());
+			write(out, sector, sector.getFeatureData());
+			write(out, sector, sector.getAreaData());
+			out.close();
+		} catch (IOException e) {
+			// Can't happen when writing to a byte array.
+			throw new IllegalStateException("Unable to pack sector", e);
+		} finally {
+			deflater.end();
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static void write(DataOutputStream out, Sector sector, int[][] data) throws IOException {
+		for (int x=0; x < Sector.WIDTH; x++) {
+			for (int y=0; y < Sector.HEIGHT; y++) {
+				out.writeInt(sector.isExplicit(x, y)?data[x][y]:-1);
+			}
+		}
+	}
+
+	/**
+	 * Unpack a blob created by pack() into the three data arrays of a sector.
+	 * The arrays must already be sized to WIDTH x HEIGHT.
+	 *
+	 * @param blob			Compressed sector data.
+	 * @param terrain		Array to be filled with terrain data.
+	 * @param feature		Array to be filled with feature data.
+	 * @param area			Array to be filled with area data.
+	 * @throws IOException	If the blob is corrupt or of an unknown version.
+	 */
+	public static void unpack(byte[] blob, int[][] terrain, int[][] feature, int[][] area) throws IOException {
+		DataInputStream		in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(blob)));
+
+		try {
+			int		version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("Unsupported packed sector version ["+version+"]");
+			}
+			read(in, terrain);
+			read(in, feature);
+			read(in, area);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void read(DataInputStream in, int[][] data) throws IOException {
+		for (int x=0; x < Sector.WIDTH; x++) {
+			for (int y=0; y < Sector.HEIGHT; y++) {
+				data[x][y] = in.readInt();
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package uk.org.glendale.mapcraft.server.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.zip.DeflaterOutputStream;
+
+import junit.framework.TestCase;
+
+import uk.org.glendale.mapcraft.map.NamedPlace;
+import uk.org.glendale.mapcraft.map.Sector;
+
+public class PackedSectorTest extends TestCase {
+	private static final int	W = Sector.WIDTH, H = Sector.HEIGHT;
+
+	/**
+	 * Corners and edges of the sector, plus a tile which is neither a
+	 * sub-sector origin nor on an edge.
+	 */
+	private static final int[][]	EDGES = {
+		{ 0, 0 }, { W-1, 0 }, { 0, H-1 }, { W-1, H-1 },
+		{ W/2, 0 }, { 0, H/2 }, { W-1, H/2 }, { W/2, H-1 }, { 13, 17 }
+	};
+
+	private int[][] blank() {
+		return new int[W][H];
+	}
+
+	/**
+	 * Unpack a blob into a new sector, the same way MapData does.
+	 */
+	private Sector unpack(byte[] blob) throws IOException {
+		int[][]		terrain = blank(), feature = blank(), area = blank();
+		Sector		sector = new Sector(0, 0);
+
+		PackedSector.unpack(blob, terrain, feature, area);
+		sector.setMapData(terrain, feature, area, new Hashtable<Integer,NamedPlace>());
+
+		return sector;
+	}
+
+	private void assertSameTiles(Sector expected, Sector actual) {
+		for (int x=0; x < W; x++) {
+			for (int y=0; y < H; y++) {
+				String	tile = x+","+y+": ";
+				assertEquals(tile+"explicit", expected.isExplicit(x, y), actual.isExplicit(x, y));
+				assertEquals(tile+"terrain", expected.getTerrain(x, y), actual.getTerrain(x, y));
+				assertEquals(tile+"feature", expected.getFeature(x, y), actual.getFeature(x, y));
+				assertEquals(tile+"area", expected.getArea(x, y), actual.getArea(x, y));
+			}
+		}
+	}
+
+	/**
+	 * A sparse sector with only its edge tiles set, using the smallest
+	 * and largest values each field can hold. Unset tiles must come back
+	 * unset, and inherit the same values as before.
+	 */
+	public void testSparseSector() throws IOException {
+		Sector		sector = new Sector(0, 0);
+
+		for (int i=0; i < EDGES.length; i++) {
+			int		value = (i%2 == 0)?Integer.MAX_VALUE:0;
+			sector.setTile(EDGES[i][0], EDGES[i][1], value, value, value);
+		}
+
+		byte[]		blob = PackedSector.pack(sector);
+		int[][]		terrain = blank(), feature = blank(), area = blank();
+		PackedSector.unpack(blob, terrain, feature, area);
+		for (int x=0; x < W; x++) {
+			for (int y=0; y < H; y++) {
+				if (!sector.isExplicit(x, y)) {
+					assertEquals("Unset tile "+x+","+y, -1, terrain[x][y]);
+					assertEquals("Unset tile "+x+","+y, -1, feature[x][y]);
+					assertEquals("Unset tile "+x+","+y, -1, area[x][y]);
+				}
+			}
+		}
+		for (int i=0; i < EDGES.length; i++) {
+			int		x = EDGES[i][0], y = EDGES[i][1];
+			int		value = (i%2 == 0)?Integer.MAX_VALUE:0;
+			assertEquals("Terrain "+x+","+y, value, terrain[x][y]);
+			assertEquals("Feature "+x+","+y, value, feature[x][y]);
+			assertEquals("Area "+x+","+y, value, area[x][y]);
+		}
+
+		assertSameTiles(sector, unpack(blob));
+	}
+
+	/**
+	 * A sector with every tile set to a different value.
+	 */
+	public void testFullSector() throws IOException {
+		Sector		sector = new Sector(0, 0);
+
+		for (int x=0; x < W; x++) {
+			for (int y=0; y < H; y++) {
+				int		n = x * H + y;
+				sector.setTile(x, y, n, Integer.MAX_VALUE - n, n * 65537);
+			}
+		}
+		assertSameTiles(sector, unpack(PackedSector.pack(sector)));
+	}
+
+	/**
+	 * Sectors with no tiles set at all must survive, and should pack
+	 * down to almost nothing.
+	 */
+	public void testEmptySector() throws IOException {
+		Sector		sector = new Sector(0, 0);
+		byte[]		blob = PackedSector.pack(sector);
+
+		assertTrue("Empty sector is "+blob.length+" bytes", blob.length < 100);
+		assertSameTiles(sector, unpack(blob));
+	}
+
+	/**
+	 * Blobs written by a different version must be rejected.
+	 */
+	public void testUnknownVersion() throws IOException {
+		ByteArrayOutputStream	bytes = new ByteArrayOutputStream();
+		DataOutputStream		out = new DataOutputStream(new DeflaterOutputStream(bytes));
+
+		out.writeByte(PackedSector.VERSION + 1);
+		out.close();
+		try {
+			PackedSector.unpack(bytes.toByteArray(), blank(), blank(), blank());
+			fail("Unknown version was accepted");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+}
@@ -7,172 +7,438 @@
  */
 package uk.org.glendale.mapcraft.server.tools;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import uk.org.glendale.mapcraft.map.Map;
+import uk.org.glendale.mapcraft.MapEntityException;
+import uk.org.glendale.mapcraft.map.NamedPlace;
+import uk.org.glendale.mapcraft.map.Sector;
 import uk.org.glendale.mapcraft.server.AppManager;
 import uk.org.glendale.mapcraft.server.database.MapData;
 import uk.org.glendale.mapcraft.server.database.MapInfo;
 import uk.org.glendale.mapcraft.server.database.MapManager;
-import net.sourceforge.mapcraft.map.TerrainSet;
 import net.sourceforge.mapcraft.map.elements.Area;
 import net.sourceforge.mapcraft.map.elements.Terrain;
 import net.sourceforge.mapcraft.map.elements.Thing;
 import net.sourceforge.mapcraft.map.interfaces.ITileSet;
 
 /**
- * Imports an XML map file from earlier versions of Mapcraft. 
- * 
+ * Imports an XML map file from earlier versions of Mapcraft.
+ *
+ * The old map is read with the streaming loader, and its tiles are
+ * converted into terrain, feature and area ids of the new map in a single
+ * pass. Every sector of the new map which the old one covers is then
+ * built in memory, spread over a pool of threads, and written to the
+ * database in batches. Sectors which are entirely covered are built from
+ * scratch, and only those on the edges are read first.
+ *
+ * Each batch of sectors written, and each place added, is recorded in a
+ * progress file next to the old map, so if the import is interrupted it
+ * carries on from where it stopped when run again. The progress file is
+ * named after the new map and the position as well, so importing the same
+ * file somewhere else starts afresh. Places which are already on the new
+ * map are skipped, in case one was added just before the import stopped.
+ * Use -restart to ignore any earlier progress.
+ *
+ * Usage: Import [-threads n] [-restart] <mapname> <file.map> <x> <y>
+ *
+ * Where x and y are the position on the new map of the old map's parent.
+ *
  * @author Samuel Penn
  */
 public class Import {
-	
+	/** Number of sectors written to the database in one go. */
+	public static final int		BATCH_SIZE = 16;
+
+	private static final String	PLACE = "place:";
+
 	private static Hashtable<String,String>		mapping = new Hashtable<String,String>();
-	
+	private static Hashtable<String,String>		features = new Hashtable<String,String>();
+
 	static {
 		ResourceBundle		bundle = ResourceBundle.getBundle("uk.org.glendale.mapcraft.server.tools.mappings");
 		Enumeration<String>	keys = bundle.getKeys();
-		
+
 		while (keys.hasMoreElements()) {
 			String	key = keys.nextElement();
 			String	value = bundle.getString(key);
-			
+
 			mapping.put(key, value);
 		}
+
+		features.put("lowhills", "hills.low");
+		features.put("highhills", "hills.high");
+		features.put("foothills", "mountains.low");
+		features.put("lowmnts", "mountains.medium");
+		features.put("highmnts", "mountains.high");
+		features.put("marsh", "wetlands");
+		features.put("ice", "ice");
 	}
-	
-	public static void main(String[] args) throws Exception {
-		// New style map we want to import into.
-		AppManager		app = new AppManager();
-		MapManager		manager = new MapManager(app.getDatabaseConnection());
-
-		Map				map = manager.getMap("eorthe");
-		MapInfo			info = map.getInfo();
-
-		// Old style XML map to export from
-		String		xmlPath = "application/maps/island.map";
-		xmlPath = "/home/sam/rpg/habisfern/encyclopedia/src/maps/weidany.map";
-		
-		net.sourceforge.mapcraft.map.Map	xmlMap = new net.sourceforge.mapcraft.map.Map(xmlPath);
-		
-		ITileSet	tiles = xmlMap.getTileSet(0);
-		int			scale = tiles.getScale();
-		int			xOffset = tiles.getParentsXOffset();
-		int			yOffset = tiles.getParentsYOffset();
-		int			parentScale = tiles.getParentsScale();
-		
-		for (int a=0; a < xmlMap.getAreaSet().size(); a++) {
-			Area area = xmlMap.getAreaSet().getArea(a+1);
-			System.out.println(area.getUri());
-			if (info.getNamedArea(area.getUri()) == null) {
-				info.addNamedArea(area.getUri(), area.getName(), 0);
-			}
-		}		
-		
-		xOffset = 3424 + xOffset * parentScale/5;
-		yOffset = 640 + yOffset * parentScale/5;
+
+	private final String		mapName;
+	private final MapInfo		info;
+	private final MapData		data;
+
+	private net.sourceforge.mapcraft.map.Map	xmlMap;
+	private ITileSet	tiles;
+	private int			scale;
+	private int			xOffset, yOffset;
+
+	// Converted data of the old map, [y*width + x]. Terrain is -1 for tiles
+	// which can't be imported.
+	private int			sourceWidth, sourceHeight;
+	private int[]		terrain;
+	private int[]		feature;
+	private int[]		area;
+
+	private File			progressFile;
+	private HashSet<String>	done = new HashSet<String>();
+
+	public Import(MapManager manager, String mapName) throws Exception {
+		this.mapName = mapName;
+		info = manager.getMapInfo(mapName);
+		if (info == null) {
+			throw new IllegalArgumentException("No such map ["+mapName+"]");
+		}
+		data = new MapData(mapName, manager.getConnectionSource());
+	}
+
+	/**
+	 * Read an old map, and work out what each of its tiles will be on the
+	 * new map. Any named areas on the old map which don't exist on the new
+	 * one are created.
+	 *
+	 * @param filename	Old style XML map.
+	 * @param x			X coordinate of the old map's parent on the new map.
+	 * @param y			Y coordinate of the old map's parent on the new map.
+	 */
+	public void read(String filename, int x, int y) throws Exception {
+		long		start = System.currentTimeMillis();
+
+		xmlMap = new net.sourceforge.mapcraft.map.Map(filename);
+		tiles = xmlMap.getTileSet(0);
+		scale = tiles.getScale();
+		xOffset = x + tiles.getParentsXOffset() * tiles.getParentsScale()/5;
+		yOffset = y + tiles.getParentsYOffset() * tiles.getParentsScale()/5;
 		if (scale < 5 || scale%5 != 0) {
 			throw new IllegalArgumentException("Imported map has unsupported scale "+scale);
 		}
 		scale /= 5;
-		System.out.println("Scale: "+scale);
-		
-		for (int y=0; y < tiles.getMapHeight(); y++) {
-			if (y%1 == 0) {
-				System.out.print("\nY: "+y+"/"+tiles.getMapHeight());
+
+		Hashtable<String,Integer>	areaIds = new Hashtable<String,Integer>();
+		for (int a=0; a < xmlMap.getAreaSet().size(); a++) {
+			Area	xmlArea = xmlMap.getAreaSet().getArea(a+1);
+			try {
+				info.getNamedArea(xmlArea.getUri());
+			} catch (MapEntityException e) {
+				info.addNamedArea(xmlArea.getUri(), xmlArea.getName(), 0);
 			}
-			for (int x=0; x < tiles.getMapWidth(); x++) {
-				Terrain		t = tiles.getTerrain(x, y);
-				String		terrainName = t.getName();
-				int			terrainId = -1;
-				int			featureId = 0;
-				
-								
-				if (mapping.get(terrainName) == null) {
-					System.out.println(terrainName);
-					continue;
-				} else if (info.getTerrain(mapping.get(terrainName)) == null) {
-					System.out.println(terrainName);
-					continue;
+			areaIds.put(xmlArea.getUri(), info.getNamedArea(xmlArea.getUri()).getId());
+		}
+
+		Hashtable<String,Integer>	terrainIds = new Hashtable<String,Integer>();
+		Hashtable<String,Integer>	featureIds = new Hashtable<String,Integer>();
+		HashSet<String>				unknown = new HashSet<String>();
+
+		sourceWidth = tiles.getMapWidth();
+		sourceHeight = tiles.getMapHeight();
+		terrain = new int[sourceWidth * sourceHeight];
+		feature = new int[sourceWidth * sourceHeight];
+		area = new int[sourceWidth * sourceHeight];
+
+		for (int sy=0; sy < sourceHeight; sy++) {
+			for (int sx=0; sx < sourceWidth; sx++) {
+				int			i = sy * sourceWidth + sx;
+				String		name = tiles.getTerrain(sx, sy).getName();
+				Integer		id = terrainIds.get(name);
+
+				if (id == null) {
+					id = -1;
+					if (mapping.get(name) != null && info.getTerrain(mapping.get(name)) != null) {
+						id = info.getTerrain(mapping.get(name)).getId();
+					} else if (unknown.add(name)) {
+						System.out.println("No mapping for terrain ["+name+"]");
+					}
+					terrainIds.put(name, id);
 				}
-				terrainId = info.getTerrain(mapping.get(terrainName)).getId();
-
-				switch (terrainId) {
-				case 0: case 1: case 2:
-					System.out.print(".");
-					break;
-				default:
-					System.out.print("#");
+				terrain[i] = id;
+
+				Terrain		f = tiles.getFeature(sx, sy);
+				feature[i] = 0;
+				if (f != null && features.get(f.getName()) != null) {
+					id = featureIds.get(f.getName());
+					if (id == null) {
+						id = info.getFeature(features.get(f.getName())).getId();
+						featureIds.put(f.getName(), id);
+					}
+					feature[i] = id;
 				}
-				if (terrainId < 3) {
-					//continue;
+
+				Area		a = tiles.getArea(sx, sy);
+				id = (a == null)?null:areaIds.get(a.getUri());
+				area[i] = (id == null)?0:id;
+			}
+		}
+		System.out.println("Read "+sourceWidth+"x"+sourceHeight+" tiles at scale "+scale+" in "+
+						   (System.currentTimeMillis() - start)+"ms");
+
+		progressFile = new File(filename+"."+mapName+"."+x+","+y+".progress");
+	}
+
+	/**
+	 * Read what was done by an earlier, interrupted, import of the same
+	 * map, so that it isn't done again.
+	 */
+	public void resume() throws IOException {
+		if (!progressFile.exists()) {
+			return;
+		}
+		BufferedReader	in = new BufferedReader(new FileReader(progressFile));
+		try {
+			String		line;
+			while ((line = in.readLine()) != null) {
+				done.add(line.trim());
+			}
+		} finally {
+			in.close();
+		}
+		System.out.println("Resuming, "+done.size()+" steps already done");
+	}
+
+	/**
+	 * Forget about any earlier import of the same map.
+	 */
+	public void restart() {
+		progressFile.delete();
+		done.clear();
+	}
+
+	private void recordProgress(List<String> steps) throws IOException {
+		PrintWriter		out = new PrintWriter(new FileWriter(progressFile, true));
+		try {
+			for (String step : steps) {
+				out.println(step);
+			}
+		} finally {
+			out.close();
+		}
+		done.addAll(steps);
+	}
+
+	private static String key(Sector sector) {
+		return sector.getOriginX()+","+sector.getOriginY();
+	}
+
+	/**
+	 * Build a sector of the new map from the old one. If the old map
+	 * covers all of it, the sector starts off empty, otherwise it is
+	 * read from the database so that the tiles outside the old map are
+	 * kept.
+	 */
+	private Sector buildSector(int originX, int originY) throws Exception {
+		int		x0 = Math.max(originX, xOffset);
+		int		y0 = Math.max(originY, yOffset);
+		int		x1 = Math.min(Math.min(originX + Sector.WIDTH, info.getWidth()), xOffset + sourceWidth * scale);
+		int		y1 = Math.min(Math.min(originY + Sector.HEIGHT, info.getHeight()), yOffset + sourceHeight * scale);
+
+		boolean	covered = (x0 == originX && y0 == originY &&
+						   x1 == originX + Sector.WIDTH && y1 == originY + Sector.HEIGHT);
+		for (int y = y0; covered && y < y1; y++) {
+			for (int x = x0; covered && x < x1; x++) {
+				covered = terrain[((y - yOffset)/scale) * sourceWidth + (x - xOffset)/scale] >= 0;
+			}
+		}
+
+		Sector	sector = covered?new Sector(originX, originY):data.readSector(originX, originY);
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				int		i = ((y - yOffset)/scale) * sourceWidth + (x - xOffset)/scale;
+				if (terrain[i] >= 0) {
+					sector.setTile(x, y, terrain[i], feature[i], area[i]);
 				}
-				
-				Terrain		f = tiles.getFeature(x, y);
-				if (f.getName().equals("lowhills")) {
-					featureId = info.getFeature("hills.low").getId();
-				} else if (f.getName().equals("highhills")) {
-					featureId = info.getFeature("hills.high").getId();
-				} else if (f.getName().equals("foothills")) {
-					featureId = info.getFeature("mountains.low").getId();
-				} else if (f.getName().equals("lowmnts")) {
-					featureId = info.getFeature("mountains.medium").getId();
-				} else if (f.getName().equals("highmnts")) {
-					featureId = info.getFeature("mountains.high").getId();
-				} else if (f.getName().equals("marsh")) {
-					featureId = info.getFeature("wetlands").getId();
-				} else if (f.getName().equals("ice")) {
-					featureId = info.getFeature("ice").getId();
+			}
+		}
+		return sector;
+	}
+
+	private List<Future<Sector>> submit(ExecutorService pool, List<int[]> origins) {
+		List<Future<Sector>>	futures = new ArrayList<Future<Sector>>();
+
+		for (final int[] origin : origins) {
+			futures.add(pool.submit(new Callable<Sector>() {
+				public Sector call() throws Exception {
+					return buildSector(origin[0], origin[1]);
 				}
-				
-				Area	area = tiles.getArea(x, y);
-				int		areaId = 0;
-				if (area != null) {
-					areaId = info.getNamedArea(area.getUri()).getId();
+			}));
+		}
+		return futures;
+	}
+
+	/**
+	 * Import the tiles of the old map. Sectors are built in chunks of a
+	 * few batches for each thread, and the next chunk is built while the
+	 * last one is being written.
+	 *
+	 * @param threads	Number of threads to build sectors with.
+	 */
+	public void importTiles(int threads) throws Exception {
+		int				left = Math.max(0, xOffset), top = Math.max(0, yOffset);
+		int				right = Math.min(info.getWidth(), xOffset + sourceWidth * scale);
+		int				bottom = Math.min(info.getHeight(), yOffset + sourceHeight * scale);
+		List<int[]>		origins = new ArrayList<int[]>();
+
+		for (int y = top - top%Sector.HEIGHT; y < bottom; y += Sector.HEIGHT) {
+			for (int x = left - left%Sector.WIDTH; x < right; x += Sector.WIDTH) {
+				if (!done.contains(x+","+y)) {
+					origins.add(new int[] { x, y });
 				}
-				for (int xx=0; xx < scale; xx++) {
-					if ((x*scale + xx) > map.getInfo().getWidth()) {
-						break;
-					}
-					for (int yy=0; yy < scale; yy++) {
-						if ((y*scale + yy) > map.getInfo().getHeight()) {
-							break;
+			}
+		}
+		System.out.println("Importing "+origins.size()+" sectors with "+threads+" threads");
+
+		ExecutorService		pool = Executors.newFixedThreadPool(threads);
+		int					chunk = threads * BATCH_SIZE;
+		long				start = System.currentTimeMillis();
+		long				tileCount = 0;
+		int					sectorCount = 0;
+
+		try {
+			List<Future<Sector>>	current = submit(pool, origins.subList(0, Math.min(chunk, origins.size())));
+			for (int next = chunk; !current.isEmpty(); next += chunk) {
+				List<Future<Sector>>	following = submit(pool, origins.subList(Math.min(next, origins.size()),
+																			   Math.min(next + chunk, origins.size())));
+				List<Sector>			batch = new ArrayList<Sector>();
+
+				for (int i=0; i < current.size(); i++) {
+					batch.add(current.get(i).get());
+					if (batch.size() == BATCH_SIZE || i == current.size() - 1) {
+						List<String>	steps = new ArrayList<String>();
+						for (Sector sector : batch) {
+							steps.add(key(sector));
 						}
-						//map.setTile(x*scale + xx, y*scale + yy, terrainId, featureId, areaId);
-						map.setTerrain(xOffset + x*scale + xx, yOffset + y*scale + yy, terrainId);
-						map.setFeature(xOffset + x*scale + xx, yOffset + y*scale + yy, featureId);	
-						map.setNamedArea(xOffset + x*scale + xx, yOffset + y*scale + yy, areaId);
+						tileCount += data.writeSectors(batch);
+						sectorCount += batch.size();
+						recordProgress(steps);
+						batch.clear();
 					}
 				}
+				long	elapsed = Math.max(1, System.currentTimeMillis() - start);
+				System.out.println(String.format("Imported %d/%d sectors, %.1f sectors/s, %.0f tiles/s",
+								   sectorCount, origins.size(), sectorCount * 1000.0 / elapsed, tileCount * 1000.0 / elapsed));
+				current = following;
 			}
+		} catch (ExecutionException e) {
+			throw (e.getCause() instanceof Exception)?(Exception)e.getCause():e;
+		} finally {
+			pool.shutdownNow();
 		}
-		System.out.println("Done tiles");
-		for (Thing xmlThing : tiles.getThings()) {
-			if (xmlThing == null) {
+		System.out.println("Done tiles: "+sectorCount+" sectors, "+tileCount+" tiles in "+
+						   (System.currentTimeMillis() - start)+"ms");
+	}
+
+	/**
+	 * Import the places on the old map. Each place is recorded as done as
+	 * soon as it is added, so a resumed import doesn't add it again.
+	 */
+	public void importPlaces() throws Exception {
+		Thing[]		xmlThings = tiles.getThings();
+		int			count = 0;
+
+		for (int p=0; xmlThings != null && p < xmlThings.length; p++) {
+			Thing	xmlThing = xmlThings[p];
+			if (xmlThing == null || done.contains(PLACE+p)) {
 				continue;
 			}
 			String 	name = xmlThing.getName();
 			String 	title = xmlThing.getDescription();
 			short	importance = (short)xmlThing.getImportance();
 			String 	type = xmlMap.getThingSet().getTerrain(xmlThing.getType()).getName();
-			
+
 			uk.org.glendale.mapcraft.map.Thing	thing = info.getThing(type);
 			if (thing == null) {
 				System.out.println("Unable to find thing ["+type+"]");
-				break;
+				continue;
 			}
-			
+
 			// The XMLThing will have an X/Y that is tile coordinate * 100.
 			int		x = xmlThing.getX() * scale;
 			int		y = xmlThing.getY() * scale;
-			
-			info.createNamedPlace(thing, name, title, importance, xOffset + x/100, yOffset + y/100, x%100, y%100);
+
+			if (!exists(thing, name, xOffset + x/100, yOffset + y/100, x%100, y%100)) {
+				info.createNamedPlace(thing, name, title, importance, xOffset + x/100, yOffset + y/100, x%100, y%100);
+				count++;
+			}
+			recordProgress(Collections.singletonList(PLACE+p));
+		}
+		System.out.println("Done places: "+count);
+	}
+
+	/**
+	 * Is there already a place of this type and name at this position?
+	 */
+	private boolean exists(uk.org.glendale.mapcraft.map.Thing thing, String name, int x, int y, int sx, int sy) throws SQLException {
+		for (NamedPlace place : info.getNamedPlaces(x, y, x, y)) {
+			if (place.getThingId() == thing.getId() && place.getName().equals(name) &&
+				place.getSubX() == sx && place.getSubY() == sy) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int			threads = Runtime.getRuntime().availableProcessors();
+		boolean		restart = false;
+		int			a = 0;
+
+		for (; a < args.length && args[a].startsWith("-"); a++) {
+			if (args[a].equals("-threads") && a+1 < args.length) {
+				threads = Math.max(1, Integer.parseInt(args[++a]));
+			} else if (args[a].equals("-restart")) {
+				restart = true;
+			} else {
+				a = args.length;
+			}
+		}
+		if (args.length - a != 4) {
+			System.out.println("Usage: Import [-threads n] [-restart] <mapname> <file.map> <x> <y>");
+			return;
+		}
+
+		// New style map we want to import into.
+		AppManager		app = new AppManager();
+		MapManager		manager = new MapManager(app.getConnectionSource());
+
+		try {
+			Import		importer = new Import(manager, args[a]);
+			importer.read(args[a+1], Integer.parseInt(args[a+2]), Integer.parseInt(args[a+3]));
+			if (restart) {
+				importer.restart();
+			} else {
+				importer.resume();
+			}
+			importer.importTiles(threads);
+			importer.importPlaces();
+			System.out.println("Done!");
+		} finally {
+			manager.disconnect();
 		}
-		System.out.println("Saving");
-		map.saveAll();
-		System.out.println("Done!");
 	}
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2010 Samuel Penn, sam@glendale.org.uk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2.
+ */
+package uk.org.glendale.mapcraft.server.tools;
+
+import java.sql.Connection;
+
+import uk.org.glendale.mapcraft.map.Sector;
+import uk.org.glendale.mapcraft.server.AppManager;
+import uk.org.glendale.mapcraft.server.database.ConnectionSource;
+import uk.org.glendale.mapcraft.server.database.MapData;
+import uk.org.glendale.mapcraft.server.database.MapInfo;
+import uk.org.glendale.mapcraft.server.database.MapManager;
+
+/**
+ * Converts a map from one row per tile (<prefix>_map) to one packed row
+ * per sector (<prefix>_sector). Every sector of the map is read from the
+ * tile table and written to the sector table. Once the sector table
+ * exists, MapData will use it in preference to the tile table. The tile
+ * table is left untouched, so it can be dropped by hand once the
+ * conversion has been checked.
+ *
+ * Usage: PackMap <mapname>
+ *
+ * @author Samuel Penn
+ */
+public class PackMap {
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.out.println("Usage: PackMap <mapname>");
+			return;
+		}
+		String			name = args[0];
+		AppManager		app = new AppManager();
+		MapManager		manager = new MapManager(app.getConnectionSource());
+		ConnectionSource	source = manager.getConnectionSource();
+		MapInfo			info = manager.getMapInfo(name);
+
+		if (info == null) {
+			System.out.println("No such map ["+name+"]");
+			return;
+		}
+
+		Connection		cx = source.getConnection();
+		try {
+			MapData.createPackedTable(name, cx);
+		} finally {
+			source.release(cx);
+		}
+		MapData		tiles = new MapData(name, source, false);
+		MapData		packed = new MapData(name, source, true);
+
+		long		start = System.currentTimeMillis();
+		long		bytes = 0;
+		int			count = 0;
+		int			total = ((info.getWidth() + Sector.WIDTH - 1) / Sector.WIDTH) *
+							((info.getHeight() + Sector.HEIGHT - 1) / Sector.HEIGHT);
+
+		for (int y=0; y < info.getHeight(); y += Sector.HEIGHT) {
+			for (int x=0; x < info.getWidth(); x += Sector.WIDTH) {
+				Sector	sector = tiles.readSector(x, y);
+				bytes += packed.writePackedSector(sector);
+				count++;
+			}
+			System.out.println("Packed "+count+"/"+total+" sectors");
+		}
+		System.out.println("Done: "+count+" sectors, "+bytes+" bytes in "+
+						   (System.currentTimeMillis() - start)+"ms");
+		manager.disconnect();
+	}
+}